@@ -0,0 +1,139 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sixt.service.test_service;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.palantir.docker.compose.DockerComposeRule;
+import com.palantir.docker.compose.configuration.DockerComposeFiles;
+import com.palantir.docker.compose.connection.Container;
+import com.sixt.service.framework.FeatureFlags;
+import com.sixt.service.framework.OrangeContext;
+import com.sixt.service.framework.ServiceProperties;
+import com.sixt.service.framework.injection.ServiceRegistryModule;
+import com.sixt.service.framework.injection.TracingModule;
+import com.sixt.service.framework.registry.ServiceDiscoveryProvider;
+import com.sixt.service.framework.rpc.LoadBalancerFactory;
+import com.sixt.service.framework.rpc.RpcClient;
+import com.sixt.service.framework.rpc.RpcClientFactory;
+import com.sixt.service.framework.servicetest.helper.DockerComposeHelper;
+import com.sixt.service.framework.servicetest.injection.ServiceUnderTestModule;
+import com.sixt.service.test_service.api.TestServiceOuterClass.GetRandomStringQuery;
+import com.sixt.service.test_service.api.TestServiceOuterClass.RandomStringResponse;
+import org.joda.time.Duration;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Sends the same load to the test service through an RpcClient, once over HTTP/1.1 and
+ * once with rpcClientHttp2 set for it, and logs the throughput of both transports.
+ * Not part of the service integration tests, run it with "gradle serviceBenchmark".
+ */
+public class Http2TransportBenchmark {
+
+    private static final Logger logger = LoggerFactory.getLogger(Http2TransportBenchmark.class);
+
+    private static final String SERVICE_NAME = "com.sixt.service.test-service";
+    private static final int REQUESTS = 5000;
+    private static final int CONCURRENCY = 64;
+
+    private static ServiceProperties serviceProperties;
+    private static LoadBalancerFactory loadBalancerFactory;
+    private static RpcClient<RandomStringResponse> client;
+
+    @ClassRule
+    public static DockerComposeRule docker = DockerComposeRule.builder()
+            .files(DockerComposeFiles.from("src/serviceTest/resources/docker-compose.yml",
+                    "src/serviceTest/resources/docker-compose-http2.yml"))
+            .saveLogsTo("build/dockerCompose/logs")
+            .waitingForService("consul", (container) -> DockerComposeHelper.
+                    waitForConsul("build/dockerCompose/logs/consul.log"), Duration.standardMinutes(1))
+            .waitingForService(SERVICE_NAME, Container::areAllPortsOpen, Duration.standardMinutes(1))
+            .build();
+
+    @Rule
+    public Timeout globalTimeout = Timeout.seconds(300);
+
+    @BeforeClass
+    public static void setupClass() throws Exception {
+        DockerComposeHelper.setKafkaEnvironment(docker);
+        DockerComposeHelper.setConsulEnvironment(docker);
+
+        //the transport is chosen per request, so the flag can be switched between runs
+        serviceProperties = new ServiceProperties();
+        serviceProperties.initialize(new String[0]);
+        Injector injector = Guice.createInjector(new ServiceUnderTestModule(SERVICE_NAME, serviceProperties),
+                new ServiceRegistryModule(serviceProperties), new TracingModule(serviceProperties));
+        loadBalancerFactory = injector.getInstance(LoadBalancerFactory.class);
+        loadBalancerFactory.initialize(injector.getInstance(ServiceDiscoveryProvider.class));
+        loadBalancerFactory.getLoadBalancer(SERVICE_NAME).waitForServiceInstance();
+        client = injector.getInstance(RpcClientFactory.class).newClient(SERVICE_NAME,
+                "TestService.GetRandomString", RandomStringResponse.class).build();
+    }
+
+    @AfterClass
+    public static void shutdown() {
+        loadBalancerFactory.shutdown();
+    }
+
+    @Test
+    public void compareHttp1AndHttp2() throws Exception {
+        serviceProperties.addProperty(FeatureFlags.RPC_CLIENT_HTTP2, "");
+        run(REQUESTS / 10);
+        long http1Millis = run(REQUESTS);
+
+        serviceProperties.addProperty(FeatureFlags.RPC_CLIENT_HTTP2, SERVICE_NAME);
+        run(REQUESTS / 10);
+        long http2Millis = run(REQUESTS);
+
+        logger.info("HTTP/1.1: {} requests in {} ms ({} req/s)", REQUESTS, http1Millis,
+                REQUESTS * 1000 / http1Millis);
+        logger.info("h2c: {} requests in {} ms ({} req/s)", REQUESTS, http2Millis,
+                REQUESTS * 1000 / http2Millis);
+    }
+
+    private long run(int count) throws Exception {
+        Semaphore inFlight = new Semaphore(CONCURRENCY);
+        CountDownLatch done = new CountDownLatch(count);
+        AtomicInteger failures = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            inFlight.acquire();
+            client.callAsync(GetRandomStringQuery.getDefaultInstance(), new OrangeContext())
+                    .whenComplete((response, ex) -> {
+                        if (ex != null) {
+                            failures.incrementAndGet();
+                        }
+                        inFlight.release();
+                        done.countDown();
+                    });
+        }
+        assertThat(done.await(60, TimeUnit.SECONDS)).isTrue();
+        assertThat(failures.get()).isEqualTo(0);
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+}
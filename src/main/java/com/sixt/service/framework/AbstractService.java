@@ -27,6 +27,7 @@ import com.sixt.service.framework.health.HealthCheckContributor;
 import com.sixt.service.framework.health.HealthCheckManager;
 import com.sixt.service.framework.health.ReadinessCheckServer;
 import com.sixt.service.framework.injection.*;
+import com.sixt.service.framework.jetty.InstrumentedQueuedThreadPool;
 import com.sixt.service.framework.jetty.JettyComposer;
 import com.sixt.service.framework.jetty.RpcServlet;
 import com.sixt.service.framework.logging.SixtLogbackContext;
@@ -35,9 +36,11 @@ import com.sixt.service.framework.registry.ServiceDiscoveryProvider;
 import com.sixt.service.framework.registry.ServiceRegistrationProvider;
 import com.sixt.service.framework.rpc.LoadBalancerFactory;
 import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
-import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -145,15 +148,21 @@ public abstract class AbstractService {
     }
 
     public void startJettyContainer() throws Exception {
-        jettyServer = new Server(serviceProperties.getServicePort());
-        org.eclipse.jetty.util.thread.ThreadPool threadPool = jettyServer.getThreadPool();
-        if (threadPool instanceof QueuedThreadPool) {
-            ((QueuedThreadPool) threadPool).setMaxThreads(FeatureFlags.getMaxJettyThreads(serviceProperties));
-            ((QueuedThreadPool) threadPool).setMinThreads(FeatureFlags.getMinJettyThreads(serviceProperties));
+        //measures how long requests wait for a thread, for admission control
+        jettyServer = new Server(new InstrumentedQueuedThreadPool(
+                FeatureFlags.getMaxJettyThreads(serviceProperties),
+                FeatureFlags.getMinJettyThreads(serviceProperties)));
+        ServerConnector connector;
+        if (FeatureFlags.isHttp2Enabled(serviceProperties)) {
+            //HTTP/1.1 clients are still served, HTTP/2 clients connect with prior knowledge (h2c)
+            HttpConfiguration httpConfig = new HttpConfiguration();
+            connector = new ServerConnector(jettyServer,
+                    new HttpConnectionFactory(httpConfig), new HTTP2CServerConnectionFactory(httpConfig));
         } else {
-            logger.warn("Expected ThreadPool to be instance of QueuedThreadPool, but was {}",
-                    jettyServer.getThreadPool().getClass().getName());
+            connector = new ServerConnector(jettyServer);
         }
+        connector.setPort(serviceProperties.getServicePort());
+        jettyServer.addConnector(connector);
         JettyComposer.compose(jettyServer);
         jettyServer.start();
         int port = ((ServerConnector) jettyServer.getConnectors()[0]).getLocalPort();
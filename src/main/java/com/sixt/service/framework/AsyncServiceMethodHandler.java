@@ -0,0 +1,54 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework;
+
+import com.google.protobuf.Message;
+import com.sixt.service.framework.rpc.RpcCallException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A handler that doesn't need a thread while it waits, e.g. for the services it calls.
+ * Registered like any other ServiceMethodHandler.  With asyncRpcEnabled set, protobuf
+ * requests for it, also the calls of protobuf batches, are handled with servlet async i/o
+ * and the jetty thread is released until the returned future completes.  Everywhere else
+ * (json-rpc) the future is waited for.
+ * The future should be completed exceptionally with an RpcCallException to return an error.
+ */
+public interface AsyncServiceMethodHandler<REQ extends Message, RES extends Message>
+        extends ServiceMethodHandler<REQ, RES> {
+
+    CompletableFuture<RES> handleRequestAsync(REQ request, OrangeContext ctx);
+
+    @Override
+    default RES handleRequest(REQ request, OrangeContext ctx) throws RpcCallException {
+        try {
+            return handleRequestAsync(request, ctx).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RpcCallException(RpcCallException.Category.InternalServerError,
+                    "Interrupted while waiting for the response");
+        } catch (ExecutionException | CompletionException ex) {
+            Throwable cause = ex.getCause() == null ? ex : ex.getCause();
+            if (cause instanceof RpcCallException) {
+                throw (RpcCallException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+}
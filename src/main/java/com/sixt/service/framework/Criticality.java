@@ -0,0 +1,62 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework;
+
+/**
+ * How important it is that a request gets handled.  Under overload, requests are shed
+ * starting with the lowest criticality.  Carried in the OrangeContext and propagated to
+ * the calls made while handling a request, so that the work done on behalf of a
+ * sheddable request is sheddable as well.
+ */
+public enum Criticality {
+
+    // never shed because of queueing, only when the concurrency limit of the method is reached
+    CRITICAL_PLUS(1.0),
+    // the default
+    CRITICAL(1.0),
+    SHEDDABLE_PLUS(0.75),
+    // e.g. analytics or prefetching, can be dropped first
+    SHEDDABLE(0.5);
+
+    public final static Criticality DEFAULT = CRITICAL;
+
+    private final double limitRatio;
+
+    Criticality(double limitRatio) {
+        this.limitRatio = limitRatio;
+    }
+
+    /**
+     * @return the share of the server's admission limits that requests of this
+     * criticality may use
+     */
+    public double getLimitRatio() {
+        return limitRatio;
+    }
+
+    /**
+     * @return the criticality with the given (case-insensitive) name, or null if there is none
+     */
+    public static Criticality fromString(String value) {
+        if (value == null) {
+            return null;
+        }
+        for (Criticality criticality : values()) {
+            if (criticality.name().equalsIgnoreCase(value.trim())) {
+                return criticality;
+            }
+        }
+        return null;
+    }
+
+}
@@ -81,6 +81,247 @@ public class FeatureFlags {
                 DEFAULT_MAX_JETTY_THREADS);
     }
 
+    // Rpc connections are kept alive and reused.  Comma-separated list of destination
+    // services that still need "Connection: close" on every request.
+    public final static String RPC_CLIENT_CONNECTION_CLOSE = "rpcClientConnectionClose";
+    public static boolean shouldCloseRpcConnections(ServiceProperties serviceProps,
+                                                    String destinationService) {
+        return isDestinationListed(serviceProps, RPC_CLIENT_CONNECTION_CLOSE, destinationService);
+    }
+
+    // Serve rpc requests over HTTP/2 cleartext (h2c) in addition to HTTP/1.1
+    // on the service port.
+    public final static String HTTP2_ENABLED = "http2Enabled";
+    public static boolean isHttp2Enabled(ServiceProperties serviceProps) {
+        String value = serviceProps.getProperty(HTTP2_ENABLED);
+        return StringUtils.isNotEmpty(value) && Boolean.valueOf(value);
+    }
+
+    // Comma-separated list of destination services that are called over HTTP/2
+    // cleartext (h2c), multiplexing all requests to an instance over one connection.
+    // The destination services need to have http2Enabled set.
+    public final static String RPC_CLIENT_HTTP2 = "rpcClientHttp2";
+    public static boolean shouldUseHttp2(ServiceProperties serviceProps, String destinationService) {
+        return isDestinationListed(serviceProps, RPC_CLIENT_HTTP2, destinationService);
+    }
+
+    // Upper bound of the connections kept to one instance of a destination service.
+    // Connections are opened on demand.  Can be set for a single destination service
+    // with "rpcClientMaxConnections.<service name>".
+    public final static String RPC_CLIENT_MAX_CONNECTIONS = "rpcClientMaxConnections";
+    public final static int DEFAULT_RPC_CLIENT_MAX_CONNECTIONS = 64;
+    public static int getRpcClientMaxConnections(ServiceProperties serviceProps,
+                                                 String destinationService) {
+        return getDestinationIntegerProperty(serviceProps, RPC_CLIENT_MAX_CONNECTIONS,
+                destinationService, DEFAULT_RPC_CLIENT_MAX_CONNECTIONS);
+    }
+
+    // How requests are distributed between the instances of a called service:
+    // "round_robin", "power_of_two_choices", "least_outstanding_requests" or "latency_weighted".
+    // Can be set for a single destination service with "loadBalancingStrategy.<service name>".
+    public final static String LOAD_BALANCING_STRATEGY = "loadBalancingStrategy";
+    public final static String DEFAULT_LOAD_BALANCING_STRATEGY = "round_robin";
+    public static String getLoadBalancingStrategy(ServiceProperties serviceProps,
+                                                  String destinationService) {
+        String value = serviceProps.getProperty(LOAD_BALANCING_STRATEGY + "." + destinationService);
+        if (StringUtils.isBlank(value)) {
+            value = serviceProps.getProperty(LOAD_BALANCING_STRATEGY);
+        }
+        return StringUtils.isBlank(value) ? DEFAULT_LOAD_BALANCING_STRATEGY : value.trim();
+    }
+
+    // Percentage of healthy endpoints in the primary availability zone below which
+    // requests spill over to other zones, in proportion to the missing capacity.
+    // 0 only uses other zones when no endpoint in the primary zone can serve requests.
+    public final static String ZONE_SPILLOVER_THRESHOLD = "loadBalancerZoneSpilloverThreshold";
+    public final static int DEFAULT_ZONE_SPILLOVER_THRESHOLD = 50;
+    public static int getZoneSpilloverThreshold(ServiceProperties serviceProps) {
+        return serviceProps.getIntegerProperty(ZONE_SPILLOVER_THRESHOLD,
+                DEFAULT_ZONE_SPILLOVER_THRESHOLD);
+    }
+
+    // Circuit breaker used for the instances of a called service: "default" trips after
+    // consecutive failures, "sliding_window" on the failure or slow call rate of the last
+    // requests.  The settings below can be set for a single destination service by
+    // appending ".<service name>" to the key.
+    public final static String CIRCUIT_BREAKER = "circuitBreaker";
+    public final static String DEFAULT_CIRCUIT_BREAKER = "default";
+    public static String getCircuitBreaker(ServiceProperties serviceProps, String destinationService) {
+        String value = serviceProps.getProperty(CIRCUIT_BREAKER + "." + destinationService);
+        if (StringUtils.isBlank(value)) {
+            value = serviceProps.getProperty(CIRCUIT_BREAKER);
+        }
+        return StringUtils.isBlank(value) ? DEFAULT_CIRCUIT_BREAKER : value.trim();
+    }
+
+    // Number of requests in the sliding window
+    public final static String CIRCUIT_BREAKER_WINDOW_SIZE = "circuitBreakerWindowSize";
+    public final static int DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE = 100;
+    public static int getCircuitBreakerWindowSize(ServiceProperties serviceProps, String destinationService) {
+        return getDestinationIntegerProperty(serviceProps, CIRCUIT_BREAKER_WINDOW_SIZE,
+                destinationService, DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE);
+    }
+
+    // Requests needed in the window before the rates are evaluated
+    public final static String CIRCUIT_BREAKER_MINIMUM_REQUESTS = "circuitBreakerMinimumRequests";
+    public final static int DEFAULT_CIRCUIT_BREAKER_MINIMUM_REQUESTS = 20;
+    public static int getCircuitBreakerMinimumRequests(ServiceProperties serviceProps,
+                                                       String destinationService) {
+        return getDestinationIntegerProperty(serviceProps, CIRCUIT_BREAKER_MINIMUM_REQUESTS,
+                destinationService, DEFAULT_CIRCUIT_BREAKER_MINIMUM_REQUESTS);
+    }
+
+    // Percentage of failed requests in the window that trips the breaker
+    public final static String CIRCUIT_BREAKER_FAILURE_RATE = "circuitBreakerFailureRateThreshold";
+    public final static int DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE = 50;
+    public static int getCircuitBreakerFailureRateThreshold(ServiceProperties serviceProps,
+                                                            String destinationService) {
+        return getDestinationIntegerProperty(serviceProps, CIRCUIT_BREAKER_FAILURE_RATE,
+                destinationService, DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE);
+    }
+
+    // Percentage of slow requests in the window that trips the breaker, 0 to disable
+    public final static String CIRCUIT_BREAKER_SLOW_CALL_RATE = "circuitBreakerSlowCallRateThreshold";
+    public final static int DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_RATE = 0;
+    public static int getCircuitBreakerSlowCallRateThreshold(ServiceProperties serviceProps,
+                                                             String destinationService) {
+        return getDestinationIntegerProperty(serviceProps, CIRCUIT_BREAKER_SLOW_CALL_RATE,
+                destinationService, DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_RATE);
+    }
+
+    // Requests taking longer than this (in ms) count as slow
+    public final static String CIRCUIT_BREAKER_SLOW_CALL_DURATION = "circuitBreakerSlowCallDuration";
+    public final static int DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_DURATION = 1000;
+    public static int getCircuitBreakerSlowCallDuration(ServiceProperties serviceProps,
+                                                        String destinationService) {
+        return getDestinationIntegerProperty(serviceProps, CIRCUIT_BREAKER_SLOW_CALL_DURATION,
+                destinationService, DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_DURATION);
+    }
+
+    // Seconds a tripped breaker waits before letting a probe request through
+    public final static String CIRCUIT_BREAKER_OPEN_TIME = "circuitBreakerOpenTime";
+    public final static int DEFAULT_CIRCUIT_BREAKER_OPEN_TIME = 15;
+    public static int getCircuitBreakerOpenTime(ServiceProperties serviceProps, String destinationService) {
+        return getDestinationIntegerProperty(serviceProps, CIRCUIT_BREAKER_OPEN_TIME,
+                destinationService, DEFAULT_CIRCUIT_BREAKER_OPEN_TIME);
+    }
+
+    // Initial limit of concurrent requests to a called service, adapted to the observed
+    // round-trip times.  0 disables limiting.  The settings below can be set for a single
+    // destination service by appending ".<service name>" to the key.
+    public final static String RPC_CLIENT_CONCURRENCY_LIMIT = "rpcClientConcurrencyLimit";
+    public final static int DEFAULT_RPC_CLIENT_CONCURRENCY_LIMIT = 0;
+    public static int getRpcClientConcurrencyLimit(ServiceProperties serviceProps,
+                                                   String destinationService) {
+        return getDestinationIntegerProperty(serviceProps, RPC_CLIENT_CONCURRENCY_LIMIT,
+                destinationService, DEFAULT_RPC_CLIENT_CONCURRENCY_LIMIT);
+    }
+
+    // Upper bound of the adaptive concurrency limit
+    public final static String RPC_CLIENT_MAX_CONCURRENCY_LIMIT = "rpcClientMaxConcurrencyLimit";
+    public final static int DEFAULT_RPC_CLIENT_MAX_CONCURRENCY_LIMIT = 1000;
+    public static int getRpcClientMaxConcurrencyLimit(ServiceProperties serviceProps,
+                                                      String destinationService) {
+        return getDestinationIntegerProperty(serviceProps, RPC_CLIENT_MAX_CONCURRENCY_LIMIT,
+                destinationService, DEFAULT_RPC_CLIENT_MAX_CONCURRENCY_LIMIT);
+    }
+
+    // Retries to a called service may not exceed this percentage of its successful
+    // requests, 0 disables the budget.  Can be set for a single destination service with
+    // "rpcClientRetryBudgetRatio.<service name>".
+    public final static String RPC_CLIENT_RETRY_BUDGET_RATIO = "rpcClientRetryBudgetRatio";
+    public final static int DEFAULT_RPC_CLIENT_RETRY_BUDGET_RATIO = 10;
+    public static int getRpcClientRetryBudgetRatio(ServiceProperties serviceProps,
+                                                   String destinationService) {
+        return getDestinationIntegerProperty(serviceProps, RPC_CLIENT_RETRY_BUDGET_RATIO,
+                destinationService, DEFAULT_RPC_CLIENT_RETRY_BUDGET_RATIO);
+    }
+
+    // Retries that may be taken in a row when the retry budget is full
+    public final static String RPC_CLIENT_RETRY_BUDGET_BURST = "rpcClientRetryBudgetBurst";
+    public final static int DEFAULT_RPC_CLIENT_RETRY_BUDGET_BURST = 10;
+    public static int getRpcClientRetryBudgetBurst(ServiceProperties serviceProps,
+                                                   String destinationService) {
+        return getDestinationIntegerProperty(serviceProps, RPC_CLIENT_RETRY_BUDGET_BURST,
+                destinationService, DEFAULT_RPC_CLIENT_RETRY_BUDGET_BURST);
+    }
+
+    // Read and write protobuf rpc requests with non-blocking servlet i/o.  Requests for an
+    // AsyncServiceMethodHandler then don't hold a jetty thread while the handler is working.
+    public final static String ASYNC_RPC_ENABLED = "asyncRpcEnabled";
+    public static boolean isAsyncRpcEnabled(ServiceProperties serviceProps) {
+        String value = serviceProps.getProperty(ASYNC_RPC_ENABLED);
+        return StringUtils.isNotEmpty(value) && Boolean.valueOf(value);
+    }
+
+    // Milliseconds after which an asynchronously handled request without a time budget
+    // of its own is answered with RequestTimedOut
+    public final static String ASYNC_RPC_TIMEOUT = "asyncRpcTimeout";
+    public final static int DEFAULT_ASYNC_RPC_TIMEOUT = 30_000;
+    public static int getAsyncRpcTimeout(ServiceProperties serviceProps) {
+        return serviceProps.getIntegerProperty(ASYNC_RPC_TIMEOUT, DEFAULT_ASYNC_RPC_TIMEOUT);
+    }
+
+    // Admission control of incoming rpc requests: rejected requests are answered with a
+    // retriable 503 without being handled.  The settings below can be set for a single
+    // service method by appending ".<method name>" to the key.
+    // Requests of a method handled concurrently, 0 for no limit
+    public final static String RPC_SERVER_CONCURRENCY_LIMIT = "rpcServerConcurrencyLimit";
+    public final static int DEFAULT_RPC_SERVER_CONCURRENCY_LIMIT = 0;
+    public static int getRpcServerConcurrencyLimit(ServiceProperties serviceProps, String methodName) {
+        return getDestinationIntegerProperty(serviceProps, RPC_SERVER_CONCURRENCY_LIMIT,
+                methodName, DEFAULT_RPC_SERVER_CONCURRENCY_LIMIT);
+    }
+
+    // Milliseconds a request may have waited for a jetty thread, 0 for no limit
+    public final static String RPC_SERVER_MAX_QUEUE_TIME = "rpcServerMaxQueueTime";
+    public final static int DEFAULT_RPC_SERVER_MAX_QUEUE_TIME = 0;
+    public static int getRpcServerMaxQueueTime(ServiceProperties serviceProps, String methodName) {
+        return getDestinationIntegerProperty(serviceProps, RPC_SERVER_MAX_QUEUE_TIME,
+                methodName, DEFAULT_RPC_SERVER_MAX_QUEUE_TIME);
+    }
+
+    // Adaptive queue time limit in milliseconds: once even the shortest queue time during
+    // an interval was above it, only requests that waited less are admitted until the
+    // queue has drained.  0 to disable.  Applies to all methods.
+    public final static String RPC_SERVER_QUEUE_DELAY_TARGET = "rpcServerQueueDelayTarget";
+    public final static int DEFAULT_RPC_SERVER_QUEUE_DELAY_TARGET = 0;
+    public static int getRpcServerQueueDelayTarget(ServiceProperties serviceProps) {
+        return serviceProps.getIntegerProperty(RPC_SERVER_QUEUE_DELAY_TARGET,
+                DEFAULT_RPC_SERVER_QUEUE_DELAY_TARGET);
+    }
+
+    // Bulkheads: the handler of a method runs on its own pool of this many threads, so that
+    // a slow method cannot take all jetty threads.  0 runs handlers on the jetty threads.
+    // Set for a single method with "rpcServerBulkheadThreads.<method name>", which takes
+    // precedence over the @RpcHandler annotation.  Read when the method is first called.
+    public final static String RPC_SERVER_BULKHEAD_THREADS = "rpcServerBulkheadThreads";
+    public final static int DEFAULT_RPC_SERVER_BULKHEAD_THREADS = 0;
+    public static int getRpcServerBulkheadThreads(ServiceProperties serviceProps, String methodName,
+                                                  int declaredThreads) {
+        int value = declaredThreads > 0 ? declaredThreads : serviceProps.getIntegerProperty(
+                RPC_SERVER_BULKHEAD_THREADS, DEFAULT_RPC_SERVER_BULKHEAD_THREADS);
+        return serviceProps.getIntegerProperty(RPC_SERVER_BULKHEAD_THREADS + "." + methodName, value);
+    }
+
+    // Requests waiting for a thread of a bulkhead, more are rejected with a retriable 503
+    public final static String RPC_SERVER_BULKHEAD_QUEUE_SIZE = "rpcServerBulkheadQueueSize";
+    public final static int DEFAULT_RPC_SERVER_BULKHEAD_QUEUE_SIZE = 10;
+    public static int getRpcServerBulkheadQueueSize(ServiceProperties serviceProps, String methodName,
+                                                    int declaredQueueSize) {
+        int value = declaredQueueSize >= 0 ? declaredQueueSize : serviceProps.getIntegerProperty(
+                RPC_SERVER_BULKHEAD_QUEUE_SIZE, DEFAULT_RPC_SERVER_BULKHEAD_QUEUE_SIZE);
+        return serviceProps.getIntegerProperty(RPC_SERVER_BULKHEAD_QUEUE_SIZE + "." + methodName, value);
+    }
+
+    // Threads handling the calls of batched rpc requests concurrently.  When all of them
+    // are busy, the calls are handled on the thread that received the batch.
+    public final static String RPC_BATCH_THREADS = "rpcBatchThreads";
+    public final static int DEFAULT_RPC_BATCH_THREADS = 32;
+    public static int getRpcBatchThreads(ServiceProperties serviceProps) {
+        return serviceProps.getIntegerProperty(RPC_BATCH_THREADS, DEFAULT_RPC_BATCH_THREADS);
+    }
+
     public final static String KAFKA_MAX_BLOCK_MS = "kafkaMaxBlockMs";
     public final static int DEFAULT_KAFKA_MAX_BLOCK_MS = 850;
     public static int getKafkaMaxBlockMs(ServiceProperties serviceProps) {
@@ -95,4 +336,24 @@ public class FeatureFlags {
                 DEFAULT_KAFKA_REQUEST_TIMEOUT_MS);
     }
 
+    private static boolean isDestinationListed(ServiceProperties serviceProps, String key,
+                                               String destinationService) {
+        String value = serviceProps.getProperty(key);
+        if (StringUtils.isBlank(value) || destinationService == null) {
+            return false;
+        }
+        for (String service : value.split(",")) {
+            if (destinationService.equals(service.trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int getDestinationIntegerProperty(ServiceProperties serviceProps, String key,
+                                                     String destinationService, int defaultValue) {
+        int value = serviceProps.getIntegerProperty(key, defaultValue);
+        return serviceProps.getIntegerProperty(key + "." + destinationService, value);
+    }
+
 }
@@ -17,6 +17,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class MethodHandlerDictionary  {
 
@@ -29,6 +30,7 @@ public class MethodHandlerDictionary  {
     private List<ServiceMethodPostHook<? extends Message>> globalPostHooks;
     private Map<String, List<ServiceMethodPreHook<? extends Message>>> methodPreHooks;
     private Map<String, List<ServiceMethodPostHook<? extends Message>>> methodPostHooks;
+    private final Map<String, ServiceMethodDescriptor> descriptors = new ConcurrentHashMap<>();
 
     public MethodHandlerDictionary() {
         this.methodHandlers = new HashMap<>();
@@ -54,6 +56,7 @@ public class MethodHandlerDictionary  {
             }
             hooks.add(handlerClass);
         }
+        updateDescriptors(endpoint);
     }
 
     /**
@@ -72,6 +75,7 @@ public class MethodHandlerDictionary  {
             }
             hooks.add(handlerClass);
         }
+        updateDescriptors(endpoint);
     }
 
     public void put(String endpoint, ServiceMethodHandler<? extends Message, ? extends Message> instance) {
@@ -80,6 +84,28 @@ public class MethodHandlerDictionary  {
             logger.warn("Overwriting ServiceMethodHandler registration for {}", endpoint);
         }
         methodHandlers.put(endpoint, instance);
+        updateDescriptors(endpoint);
+    }
+
+    /**
+     * @return the handler and hook chain of a method, or null if there is no handler for it
+     */
+    public ServiceMethodDescriptor getDescriptor(String endpoint) {
+        return descriptors.get(endpoint);
+    }
+
+    private void updateDescriptors(String endpoint) {
+        if (GLOBAL.equals(endpoint)) {
+            for (String method : methodHandlers.keySet()) {
+                updateDescriptors(method);
+            }
+            return;
+        }
+        ServiceMethodHandler<? extends Message, ? extends Message> handler = methodHandlers.get(endpoint);
+        if (handler != null) {
+            descriptors.put(endpoint, new ServiceMethodDescriptor(endpoint, handler,
+                    buildPreHooks(endpoint), buildPostHooks(endpoint)));
+        }
     }
 
     public Map<String, ServiceMethodHandler<? extends Message, ? extends Message>> getMethodHandlers() {
@@ -99,6 +125,16 @@ public class MethodHandlerDictionary  {
     }
 
     public List<ServiceMethodPreHook<? extends Message>> getPreHooksFor(String methodName) {
+        ServiceMethodDescriptor descriptor = descriptors.get(methodName);
+        return descriptor != null ? descriptor.getPreHooks() : buildPreHooks(methodName);
+    }
+
+    public List<ServiceMethodPostHook<? extends Message>> getPostHooksFor(String methodName) {
+        ServiceMethodDescriptor descriptor = descriptors.get(methodName);
+        return descriptor != null ? descriptor.getPostHooks() : buildPostHooks(methodName);
+    }
+
+    private List<ServiceMethodPreHook<? extends Message>> buildPreHooks(String methodName) {
         List<ServiceMethodPreHook<? extends Message>> retval = new ArrayList<>(globalPreHooks);
         List<ServiceMethodPreHook<? extends Message>> methodHooks = methodPreHooks.get(methodName);
         if (methodHooks != null) {
@@ -107,7 +143,7 @@ public class MethodHandlerDictionary  {
         return Collections.unmodifiableList(retval);
     }
 
-    public List<ServiceMethodPostHook<? extends Message>> getPostHooksFor(String methodName) {
+    private List<ServiceMethodPostHook<? extends Message>> buildPostHooks(String methodName) {
         List<ServiceMethodPostHook<? extends Message>> hooks = methodPostHooks.get(methodName);
         List<ServiceMethodPostHook<? extends Message>> retval = new ArrayList<>();
         if (hooks != null) {
@@ -28,10 +28,17 @@ public class OrangeContext {
     public final static String CORRELATION_ID = "correlation-id";
     private static final String RPC_ORIGIN_SERVICE = "X-Sx-From-Service";
     private static final String RPC_ORIGIN_METHOD = "X-Sx-From-Method";
+    // Remaining time budget of the caller in milliseconds.  A relative value is sent over
+    // the wire (instead of the absolute deadline) so that clock skew between hosts doesn't matter.
+    public final static String RPC_TIME_BUDGET = "X-Sx-Time-Budget";
+    public final static long NO_DEADLINE = 0;
+    // Criticality of the request, propagated to all calls made on its behalf
+    public final static String RPC_CRITICALITY = "X-Sx-Criticality";
 
     private String correlationId;
     private Map<String, String> properties = new HashMap<>();
     private SpanContext tracingContext;
+    private long deadline = NO_DEADLINE;
 
     public OrangeContext() {
         this(null, null);
@@ -49,6 +56,7 @@ public class OrangeContext {
         }
         if (props != null) {
             this.properties = props;
+            parseTimeBudget(props.get(RPC_TIME_BUDGET.toLowerCase()));
         }
     }
 
@@ -79,7 +87,10 @@ public class OrangeContext {
     }
 
     public Map<String, String> getProperties() {
-        return new HashMap<>(properties);
+        Map<String, String> retval = new HashMap<>(properties);
+        //the time budget is recalculated for every outgoing request
+        retval.remove(RPC_TIME_BUDGET.toLowerCase());
+        return retval;
     }
 
     public String getProperty(String key) {
@@ -94,5 +105,71 @@ public class OrangeContext {
         this.tracingContext = tracingContext;
     }
 
+    /**
+     * The absolute deadline (epoch milliseconds) after which the caller is no longer
+     * waiting for a result, or NO_DEADLINE.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public boolean hasDeadline() {
+        return deadline != NO_DEADLINE;
+    }
+
+    /**
+     * Set the deadline relative to now
+     * @param millis time budget in milliseconds
+     */
+    public void setTimeBudget(long millis) {
+        this.deadline = System.currentTimeMillis() + millis;
+    }
+
+    /**
+     * Milliseconds left until the deadline, Long.MAX_VALUE if there is no deadline.
+     * Zero or negative once the deadline has passed.
+     */
+    public long getRemainingTimeBudget() {
+        if (! hasDeadline()) {
+            return Long.MAX_VALUE;
+        }
+        return deadline - System.currentTimeMillis();
+    }
+
+    public boolean isDeadlineExceeded() {
+        return hasDeadline() && getRemainingTimeBudget() <= 0;
+    }
+
+    private void parseTimeBudget(String value) {
+        if (value == null) {
+            return;
+        }
+        try {
+            setTimeBudget(Long.parseLong(value.trim()));
+        } catch (NumberFormatException ex) {
+            //ignore, we just don't have a deadline then
+        }
+    }
+
+    /**
+     * @return the criticality of the request, Criticality.DEFAULT if none was set
+     */
+    public Criticality getCriticality() {
+        Criticality retval = Criticality.fromString(getProperty(RPC_CRITICALITY));
+        return retval == null ? Criticality.DEFAULT : retval;
+    }
+
+    public boolean hasCriticality() {
+        return Criticality.fromString(getProperty(RPC_CRITICALITY)) != null;
+    }
+
+    public void setCriticality(Criticality criticality) {
+        setProperty(RPC_CRITICALITY, criticality.name());
+    }
+
     //TODO: getIntProperty, getLongProperty, etc.
 }
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework;
+
+import com.google.protobuf.Message;
+import com.sixt.service.framework.annotation.RpcHandler;
+import com.sixt.service.framework.util.ReflectionUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Everything needed to dispatch a request to a service method: the handler, its request
+ * and response classes and the complete hook chain.  Resolved once when the handler or one
+ * of its hooks is registered, so that no reflection happens per request.
+ */
+public class ServiceMethodDescriptor {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServiceMethodDescriptor.class);
+
+    private final String methodName;
+    private final ServiceMethodHandler<? extends Message, ? extends Message> handler;
+    private final Class<? extends Message> requestClass;
+    private final Class<? extends Message> responseClass;
+    private final Criticality criticality;
+    private final int bulkheadThreads;
+    private final int bulkheadQueueSize;
+    private final List<ServiceMethodPreHook<? extends Message>> preHooks;
+    private final List<ServiceMethodPostHook<? extends Message>> postHooks;
+
+    ServiceMethodDescriptor(String methodName, ServiceMethodHandler<? extends Message, ? extends Message> handler,
+                            List<ServiceMethodPreHook<? extends Message>> preHooks,
+                            List<ServiceMethodPostHook<? extends Message>> postHooks) {
+        this.methodName = methodName;
+        this.handler = handler;
+        this.requestClass = resolveType(handler, 0);
+        this.responseClass = resolveType(handler, 1);
+        RpcHandler annotation = handler.getClass().getAnnotation(RpcHandler.class);
+        this.criticality = annotation == null ? Criticality.DEFAULT : annotation.criticality();
+        this.bulkheadThreads = annotation == null ? 0 : annotation.bulkheadThreads();
+        this.bulkheadQueueSize = annotation == null ? -1 : annotation.bulkheadQueueSize();
+        this.preHooks = preHooks;
+        this.postHooks = postHooks;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Class<? extends Message> resolveType(Object handler, int parameterIndex) {
+        try {
+            return (Class<? extends Message>) ReflectionUtil.findSubClassParameterType(handler, parameterIndex);
+        } catch (ClassNotFoundException ex) {
+            logger.warn("Reflection for handler {} of {} failed", handler.getClass(), methodName);
+            return null;
+        }
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public ServiceMethodHandler<? extends Message, ? extends Message> getHandler() {
+        return handler;
+    }
+
+    /**
+     * @return the request class, or null if it couldn't be determined
+     */
+    public Class<? extends Message> getRequestClass() {
+        return requestClass;
+    }
+
+    /**
+     * @return the response class, or null if it couldn't be determined
+     */
+    public Class<? extends Message> getResponseClass() {
+        return responseClass;
+    }
+
+    /**
+     * @return the criticality of requests that don't carry one, from the @RpcHandler annotation
+     */
+    public Criticality getCriticality() {
+        return criticality;
+    }
+
+    /**
+     * @return the bulkhead threads declared by the @RpcHandler annotation, 0 if none
+     */
+    public int getBulkheadThreads() {
+        return bulkheadThreads;
+    }
+
+    /**
+     * @return the bulkhead queue size declared by the @RpcHandler annotation, -1 if none
+     */
+    public int getBulkheadQueueSize() {
+        return bulkheadQueueSize;
+    }
+
+    /**
+     * @return global pre-hooks followed by the ones of this method
+     */
+    public List<ServiceMethodPreHook<? extends Message>> getPreHooks() {
+        return preHooks;
+    }
+
+    /**
+     * @return post-hooks of this method followed by the global ones
+     */
+    public List<ServiceMethodPostHook<? extends Message>> getPostHooks() {
+        return postHooks;
+    }
+
+}
@@ -12,6 +12,8 @@
 
 package com.sixt.service.framework.annotation;
 
+import com.sixt.service.framework.Criticality;
+
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 
@@ -27,5 +29,21 @@ public @interface RpcHandler {
      * The name under which the handler will be registered
      */
     String value();
+
+    /**
+     * Criticality of requests to this method that don't carry one of their own
+     */
+    Criticality criticality() default Criticality.CRITICAL;
+
+    /**
+     * Threads of a bulkhead that runs this handler isolated from the other methods,
+     * 0 to run it on the jetty threads
+     */
+    int bulkheadThreads() default 0;
+
+    /**
+     * Requests that may wait for a thread of the bulkhead, -1 for the default
+     */
+    int bulkheadQueueSize() default -1;
 }
 
@@ -22,6 +22,7 @@ import com.sixt.service.framework.ServiceProperties;
 import com.sixt.service.framework.configuration.ConfigurationManager;
 import com.sixt.service.framework.rpc.LoadBalancer;
 import com.sixt.service.framework.rpc.LoadBalancerImpl;
+import com.sixt.service.framework.rpc.RpcConnectionPools;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.slf4j.Logger;
@@ -100,7 +101,10 @@ public class InjectionModule extends AbstractModule {
         sslContextFactory.setExcludeCipherSuites("");
         HttpClient client = new HttpClient(sslContextFactory);
         client.setFollowRedirects(false);
-        client.setMaxConnectionsPerDestination(16);
+        //connections are kept alive, pools are sized per destination service
+        RpcConnectionPools connectionPools = new RpcConnectionPools(serviceProperties);
+        client.getTransport().setConnectionPoolFactory(connectionPools);
+        client.addBean(connectionPools);
         client.setRequestBufferSize(65536);
         client.setConnectTimeout(FeatureFlags.getHttpConnectTimeout(serviceProperties));
         client.setAddressResolutionTimeout(FeatureFlags.getHttpAddressResolutionTimeout(serviceProperties));
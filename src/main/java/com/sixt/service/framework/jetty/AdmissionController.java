@@ -0,0 +1,160 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.jetty;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.sixt.service.framework.Criticality;
+import com.sixt.service.framework.FeatureFlags;
+import com.sixt.service.framework.ServiceProperties;
+import com.sixt.service.framework.rpc.RpcCallException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control in front of the service methods.  Under overload, requests are
+ * rejected with a retriable 503 instead of being worked on long after their callers
+ * gave up waiting:
+ * <ul><li>Every method may have a limit of requests it handles concurrently.</li>
+ * <li>Requests that waited too long for a jetty thread are rejected.</li>
+ * <li>With a queue delay target, the queue time limit adapts to the measured queueing
+ * delay (like CoDel): when even the shortest queue time during an interval was above
+ * the target, there is a standing queue, and only requests that waited less than the
+ * target are admitted until it has drained.</li></ul>
+ * Requests of lower criticality may only use a share of these limits, so that they are
+ * shed first.  CRITICAL_PLUS requests are never shed because of queueing.
+ */
+@Singleton
+public class AdmissionController {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionController.class);
+
+    public final static String REJECTED_CONCURRENCY = "concurrency";
+    public final static String REJECTED_QUEUE_TIME = "queue_time";
+    // milliseconds the queue delay has to stay above the target to count as overload
+    public final static long QUEUE_DELAY_INTERVAL = 100;
+
+    private final ServiceProperties serviceProps;
+    private final RpcHandlerMetrics handlerMetrics;
+    private final Clock clock;
+    private final Map<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+    // guarded by this
+    private long intervalStart;
+    private long intervalMinQueueTime = Long.MAX_VALUE;
+    private boolean overloaded = false;
+
+    @Inject
+    public AdmissionController(ServiceProperties serviceProps, RpcHandlerMetrics handlerMetrics) {
+        this(serviceProps, handlerMetrics, Clock.systemUTC());
+    }
+
+    AdmissionController(ServiceProperties serviceProps, RpcHandlerMetrics handlerMetrics, Clock clock) {
+        this.serviceProps = serviceProps;
+        this.handlerMetrics = handlerMetrics;
+        this.clock = clock;
+        this.intervalStart = clock.millis();
+    }
+
+    public void acquire(String methodName, long queueTime) throws RpcCallException {
+        acquire(methodName, queueTime, Criticality.DEFAULT);
+    }
+
+    /**
+     * @param queueTime milliseconds the request waited before it got to be handled,
+     *                  or -1 if not known
+     * @throws RpcCallException (ServiceUnavailable) if the request is rejected.  Otherwise,
+     * it must be followed by exactly one call to release.
+     */
+    public void acquire(String methodName, long queueTime, Criticality criticality) throws RpcCallException {
+        if (queueTime >= 0) {
+            long maxQueueTime = getMaxQueueTime(methodName, queueTime);
+            if (maxQueueTime > 0 && criticality != Criticality.CRITICAL_PLUS &&
+                    queueTime > (long) (maxQueueTime * criticality.getLimitRatio())) {
+                throw reject(methodName, REJECTED_QUEUE_TIME, criticality, "Request waited " + queueTime +
+                        " ms to be handled");
+            }
+        }
+        int limit = FeatureFlags.getRpcServerConcurrencyLimit(serviceProps, methodName);
+        if (limit > 0) {
+            limit = Math.max(1, (int) (limit * criticality.getLimitRatio()));
+        }
+        AtomicInteger counter = inFlight.computeIfAbsent(methodName, key -> new AtomicInteger(0));
+        while (true) {
+            int current = counter.get();
+            if (limit > 0 && current >= limit) {
+                throw reject(methodName, REJECTED_CONCURRENCY, criticality, "Too many concurrent requests");
+            }
+            if (counter.compareAndSet(current, current + 1)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes another slot for an admitted request, without checking the limits, e.g. to keep
+     * its handler counted after the request was answered.  Must be followed by a call to release.
+     */
+    public void retain(String methodName) {
+        inFlight.computeIfAbsent(methodName, key -> new AtomicInteger(0)).incrementAndGet();
+    }
+
+    public void release(String methodName) {
+        AtomicInteger counter = inFlight.get(methodName);
+        if (counter != null) {
+            counter.decrementAndGet();
+        }
+    }
+
+    public int getInFlight(String methodName) {
+        AtomicInteger counter = inFlight.get(methodName);
+        return counter == null ? 0 : counter.get();
+    }
+
+    private long getMaxQueueTime(String methodName, long queueTime) {
+        long maxQueueTime = FeatureFlags.getRpcServerMaxQueueTime(serviceProps, methodName);
+        long target = FeatureFlags.getRpcServerQueueDelayTarget(serviceProps);
+        if (target > 0 && isOverloaded(queueTime, target)) {
+            return maxQueueTime > 0 ? Math.min(maxQueueTime, target) : target;
+        }
+        return maxQueueTime;
+    }
+
+    private synchronized boolean isOverloaded(long queueTime, long target) {
+        intervalMinQueueTime = Math.min(intervalMinQueueTime, queueTime);
+        long now = clock.millis();
+        if (now - intervalStart >= QUEUE_DELAY_INTERVAL) {
+            boolean wasOverloaded = overloaded;
+            overloaded = intervalMinQueueTime > target;
+            if (overloaded != wasOverloaded) {
+                logger.info("Queue delay {} than target of {} ms, {} shedding load",
+                        overloaded ? "higher" : "lower", target, overloaded ? "start" : "stop");
+            }
+            intervalStart = now;
+            intervalMinQueueTime = Long.MAX_VALUE;
+        }
+        return overloaded;
+    }
+
+    private RpcCallException reject(String methodName, String reason, Criticality criticality,
+                                    String message) {
+        handlerMetrics.incrementRejectionCounter(methodName, reason, criticality);
+        return new RpcCallException(RpcCallException.Category.ServiceUnavailable,
+                message + ", rejecting " + methodName).withSource(serviceProps.getServiceName());
+    }
+
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.jetty;
+
+import com.sixt.service.framework.protobuf.ProtobufUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Servlet 3.1 non-blocking i/o for one rpc request.  The request body is collected by a
+ * ReadListener and handed to the request handler once complete, the response is written
+ * by a WriteListener.  No thread is held while waiting for the network, or between the
+ * two while an asynchronous handler is working on the request.  Requests larger than an
+ * rpc message can be are answered with 400 without reading them any further, requests not
+ * answered within their timeout are handed to the timeout handler.
+ */
+class AsyncRpcExchange implements ReadListener, WriteListener, AsyncListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncRpcExchange.class);
+
+    //both chunks of an rpc message, each prefixed with its length
+    static final int MAX_REQUEST_SIZE = 8 + ProtobufUtil.MAX_HEADER_CHUNK_SIZE +
+            ProtobufUtil.MAX_BODY_CHUNK_SIZE;
+
+    private final AsyncContext asyncContext;
+    private final HttpServletResponse response;
+    private final ServletInputStream in;
+    private final BiConsumer<AsyncRpcExchange, byte[]> requestHandler;
+    private final Consumer<AsyncRpcExchange> timeoutHandler;
+    //grows with what is actually read, the content-length header is not trusted
+    private final ByteArrayOutputStream requestBody = new ByteArrayOutputStream(1024);
+    private final byte[] readBuffer = new byte[8192];
+    private final AtomicBoolean responded = new AtomicBoolean(false);
+    private final AtomicBoolean completed = new AtomicBoolean(false);
+    private ServletOutputStream out;
+    private byte[] responseData;
+    private boolean responseWritten = false;
+    private volatile boolean timingOut = false;
+
+    private AsyncRpcExchange(AsyncContext asyncContext, HttpServletRequest request,
+                             HttpServletResponse response,
+                             BiConsumer<AsyncRpcExchange, byte[]> requestHandler,
+                             Consumer<AsyncRpcExchange> timeoutHandler) throws IOException {
+        this.asyncContext = asyncContext;
+        this.response = response;
+        this.in = request.getInputStream();
+        this.requestHandler = requestHandler;
+        this.timeoutHandler = timeoutHandler;
+    }
+
+    /**
+     * Puts the request into async mode and starts reading it.  The request handler is
+     * called with the complete request body and must eventually call respond().  If the
+     * request isn't answered within timeoutMillis, the timeout handler is called, which
+     * is expected to respond() right away.
+     */
+    static AsyncRpcExchange start(HttpServletRequest request, HttpServletResponse response,
+                                  long timeoutMillis, BiConsumer<AsyncRpcExchange, byte[]> requestHandler,
+                                  Consumer<AsyncRpcExchange> timeoutHandler) throws IOException {
+        AsyncContext asyncContext = request.startAsync(request, response);
+        //0 would mean no timeout at all
+        asyncContext.setTimeout(Math.max(1, timeoutMillis));
+        try {
+            AsyncRpcExchange retval = new AsyncRpcExchange(asyncContext, request, response,
+                    requestHandler, timeoutHandler);
+            asyncContext.addListener(retval);
+            if (request.getContentLengthLong() > MAX_REQUEST_SIZE) {
+                retval.rejectTooLarge();
+                return retval;
+            }
+            retval.in.setReadListener(retval);
+            return retval;
+        } catch (IOException | RuntimeException ex) {
+            asyncContext.complete();
+            throw ex;
+        }
+    }
+
+    /**
+     * Writes the response and completes the request.  Only the first call has any effect.
+     */
+    void respond(int statusCode, String contentType, byte[] data) {
+        if (! responded.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            response.setStatus(statusCode);
+            if (contentType != null) {
+                response.setContentType(contentType);
+            }
+            responseData = data;
+            out = response.getOutputStream();
+            if (timingOut) {
+                //has to be completed before onTimeout returns, otherwise the container
+                //  answers with an error of its own.  error responses are small.
+                if (data != null && data.length > 0) {
+                    out.write(data);
+                }
+                complete();
+                return;
+            }
+            //onWritePossible is called by the container as soon as it can be written to
+            out.setWriteListener(this);
+        } catch (Exception ex) {
+            logger.debug("Error writing response, assuming client disconnected", ex);
+            complete();
+        }
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException {
+        while (! responded.get() && in.isReady()) {
+            int read = in.read(readBuffer);
+            if (read < 0) {
+                return;
+            }
+            if (requestBody.size() + read > MAX_REQUEST_SIZE) {
+                rejectTooLarge();
+                return;
+            }
+            requestBody.write(readBuffer, 0, read);
+        }
+    }
+
+    private void rejectTooLarge() {
+        logger.warn("Bad request, rpc request is larger than {} bytes", MAX_REQUEST_SIZE);
+        respond(HttpServletResponse.SC_BAD_REQUEST, null, null);
+    }
+
+    @Override
+    public void onAllDataRead() {
+        if (responded.get()) {
+            return;
+        }
+        try {
+            requestHandler.accept(this, requestBody.toByteArray());
+        } catch (Exception ex) {
+            logger.warn("Uncaught exception", ex);
+            respond(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, null, null);
+        }
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        if (! responseWritten) {
+            responseWritten = true;
+            if (responseData != null && responseData.length > 0) {
+                out.write(responseData);
+            }
+        }
+        //if not ready yet, we are called again once the data is written
+        if (out.isReady()) {
+            complete();
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        //there is nothing we can do, client probably went away
+        logger.debug("Error during async rpc i/o", throwable);
+        responded.set(true);
+        complete();
+    }
+
+    private void complete() {
+        if (completed.compareAndSet(false, true)) {
+            try {
+                asyncContext.complete();
+            } catch (IllegalStateException ex) {
+                logger.debug("Async request was already completed", ex);
+            }
+        }
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        timingOut = true;
+        try {
+            timeoutHandler.accept(this);
+        } catch (Exception ex) {
+            logger.warn("Uncaught exception", ex);
+        }
+        //in case the timeout handler didn't answer
+        respond(HttpServletResponse.SC_GATEWAY_TIMEOUT, null, null);
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        onError(event.getThrowable());
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+}
@@ -0,0 +1,231 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.jetty;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.sixt.service.framework.Criticality;
+import com.sixt.service.framework.FeatureFlags;
+import com.sixt.service.framework.ServiceMethodDescriptor;
+import com.sixt.service.framework.ServiceProperties;
+import com.sixt.service.framework.metrics.GoGauge;
+import com.sixt.service.framework.rpc.RpcCallException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bulkheads isolate the handlers of single methods on their own bounded thread pools,
+ * so that a slow or hanging method can only use up its own threads and queue, instead
+ * of all jetty threads.  When both are full, requests are rejected with a retriable 503.
+ * Queued requests are run by criticality, so that sheddable ones don't hold up critical ones.
+ * A method gets a bulkhead if threads are configured for it, either on its @RpcHandler
+ * annotation or with the rpcServerBulkheadThreads properties.  The configuration is read
+ * when the method is first called.
+ * Asynchronous handlers don't need a thread while they wait, they are limited to as many
+ * outstanding calls as the threads and the queue of their bulkhead hold instead.
+ */
+@Singleton
+public class Bulkheads {
+
+    private static final Logger logger = LoggerFactory.getLogger(Bulkheads.class);
+
+    public final static String REJECTED_BULKHEAD = "bulkhead";
+
+    private final ServiceProperties serviceProps;
+    private final RpcHandlerMetrics handlerMetrics;
+    // empty for methods without a bulkhead
+    private final Map<String, Optional<ThreadPoolExecutor>> executors = new ConcurrentHashMap<>();
+    // outstanding asynchronous calls, for the methods with a bulkhead
+    private final Map<String, Semaphore> asyncPermits = new ConcurrentHashMap<>();
+    // keeps queued calls of the same criticality in order
+    private final AtomicLong sequence = new AtomicLong();
+
+    @Inject
+    public Bulkheads(ServiceProperties serviceProps, RpcHandlerMetrics handlerMetrics) {
+        this.serviceProps = serviceProps;
+        this.handlerMetrics = handlerMetrics;
+    }
+
+    public boolean hasBulkhead(ServiceMethodDescriptor method) {
+        return getExecutor(method) != null;
+    }
+
+    /**
+     * Runs the call on the bulkhead of the method.  The logging context of the calling
+     * thread is carried over.
+     * @throws RpcCallException (ServiceUnavailable) if the threads and the queue of the
+     *                          bulkhead are full
+     */
+    public <T> CompletableFuture<T> submit(ServiceMethodDescriptor method, Criticality criticality,
+                                           Callable<T> call) throws RpcCallException {
+        ThreadPoolExecutor executor = getExecutor(method);
+        if (executor == null) {
+            throw new IllegalStateException("Method " + method.getMethodName() + " has no bulkhead");
+        }
+        CompletableFuture<T> retval = new CompletableFuture<>();
+        Map<String, String> mdc = MDC.getCopyOfContextMap();
+        try {
+            executor.execute(new BulkheadTask(criticality, sequence.getAndIncrement(), () -> {
+                if (mdc != null) {
+                    MDC.setContextMap(mdc);
+                }
+                try {
+                    retval.complete(call.call());
+                } catch (Throwable ex) {
+                    retval.completeExceptionally(ex);
+                } finally {
+                    MDC.clear();
+                }
+            }));
+        } catch (RejectedExecutionException ex) {
+            handlerMetrics.incrementRejectionCounter(method.getMethodName(), REJECTED_BULKHEAD, criticality);
+            throw new RpcCallException(RpcCallException.Category.ServiceUnavailable,
+                    "Bulkhead of " + method.getMethodName() + " is full")
+                    .withSource(serviceProps.getServiceName());
+        }
+        return retval;
+    }
+
+    /**
+     * Starts an asynchronous call on the calling thread, if the bulkhead of the method
+     * has room for another outstanding call.  The room is given back once the future of
+     * the call completes, even if the returned one was completed or cancelled before.
+     * Failures of the call complete the returned future exceptionally.
+     * @throws RpcCallException (ServiceUnavailable) if the bulkhead is full
+     */
+    public <T> CompletableFuture<T> submitAsync(ServiceMethodDescriptor method, Criticality criticality,
+                                                Callable<CompletableFuture<T>> call) throws RpcCallException {
+        if (getExecutor(method) == null) {
+            throw new IllegalStateException("Method " + method.getMethodName() + " has no bulkhead");
+        }
+        Semaphore permits = asyncPermits.get(method.getMethodName());
+        if (! permits.tryAcquire()) {
+            handlerMetrics.incrementRejectionCounter(method.getMethodName(), REJECTED_BULKHEAD, criticality);
+            throw new RpcCallException(RpcCallException.Category.ServiceUnavailable,
+                    "Bulkhead of " + method.getMethodName() + " is full")
+                    .withSource(serviceProps.getServiceName());
+        }
+        CompletableFuture<T> running;
+        try {
+            running = call.call();
+        } catch (Throwable ex) {
+            running = new CompletableFuture<>();
+            running.completeExceptionally(ex);
+        }
+        CompletableFuture<T> retval = new CompletableFuture<>();
+        running.whenComplete((result, error) -> {
+            permits.release();
+            if (error == null) {
+                retval.complete(result);
+            } else {
+                retval.completeExceptionally(error);
+            }
+        });
+        return retval;
+    }
+
+    ThreadPoolExecutor getExecutor(ServiceMethodDescriptor method) {
+        return executors.computeIfAbsent(method.getMethodName(),
+                name -> Optional.ofNullable(createExecutor(name, method))).orElse(null);
+    }
+
+    private ThreadPoolExecutor createExecutor(String methodName, ServiceMethodDescriptor method) {
+        int threads = FeatureFlags.getRpcServerBulkheadThreads(serviceProps, methodName,
+                method.getBulkheadThreads());
+        if (threads <= 0) {
+            return null;
+        }
+        int queueSize = FeatureFlags.getRpcServerBulkheadQueueSize(serviceProps, methodName,
+                method.getBulkheadQueueSize());
+        BlockingQueue<Runnable> queue = queueSize > 0 ? new BoundedPriorityQueue(queueSize)
+                : new SynchronousQueue<>();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue,
+                new ThreadFactoryBuilder().setNameFormat("bulkhead-" + methodName.replace("%", "")
+                        + "-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        int maxAsyncCalls = threads + Math.max(0, queueSize);
+        Semaphore permits = new Semaphore(maxAsyncCalls);
+        asyncPermits.put(methodName, permits);
+        logger.info("Bulkhead of {}: {} threads, queue size {}", methodName, threads, queueSize);
+
+        if (handlerMetrics != null) {
+            GoGauge gauge = handlerMetrics.getBulkheadGauge(methodName);
+            gauge.register("max", () -> threads);
+            gauge.register("active", executor::getActiveCount);
+            gauge.register("queued", () -> executor.getQueue().size());
+            gauge.register("async", () -> maxAsyncCalls - permits.availablePermits());
+        }
+        return executor;
+    }
+
+    /**
+     * A call and the criticality of the request it was submitted for
+     */
+    private static class BulkheadTask implements Runnable, Comparable<BulkheadTask> {
+
+        private final Criticality criticality;
+        private final long sequence;
+        private final Runnable call;
+
+        BulkheadTask(Criticality criticality, long sequence, Runnable call) {
+            this.criticality = criticality == null ? Criticality.DEFAULT : criticality;
+            this.sequence = sequence;
+            this.call = call;
+        }
+
+        @Override
+        public void run() {
+            call.run();
+        }
+
+        @Override
+        public int compareTo(BulkheadTask other) {
+            //the most critical first, as declared
+            int retval = criticality.compareTo(other.criticality);
+            return retval != 0 ? retval : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Holds at most capacity BulkheadTasks, the executor rejects further ones
+     */
+    private static class BoundedPriorityQueue extends PriorityBlockingQueue<Runnable> {
+
+        private final int capacity;
+
+        BoundedPriorityQueue(int capacity) {
+            super(capacity);
+            this.capacity = capacity;
+        }
+
+        @Override
+        public synchronized boolean offer(Runnable task) {
+            //only offers add elements, so they don't get past the capacity between the checks
+            return size() < capacity && super.offer(task);
+        }
+
+        @Override
+        public int remainingCapacity() {
+            return Math.max(0, capacity - size());
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.jetty;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * A QueuedThreadPool that measures how long each job waited in its queue for a thread.
+ * Jetty only timestamps a request once it is parsed, which is after the job reading it got
+ * a thread, so the wait for the thread is missing from the request's timestamp.  Jobs that
+ * jetty hands directly to a reserved thread don't go through the queue and aren't measured.
+ */
+public class InstrumentedQueuedThreadPool extends QueuedThreadPool {
+
+    // the job the current thread is running, null on other threads
+    private static final ThreadLocal<Job> currentJob = new ThreadLocal<>();
+
+    public InstrumentedQueuedThreadPool(int maxThreads, int minThreads) {
+        super(maxThreads, minThreads);
+    }
+
+    @Override
+    public void execute(Runnable job) {
+        super.execute(new Job(job, System.currentTimeMillis()));
+    }
+
+    /**
+     * Milliseconds the job of the current thread waited for the thread, if the job was
+     * started before the given time, e.g. before a request was received with it.  Only
+     * reported once per job, as it may go on to handle further requests.
+     *
+     * @return the queue delay, or 0 if there is none to report
+     */
+    static long takeQueueDelay(long since) {
+        Job job = currentJob.get();
+        if (job == null || job.reported || job.started > since) {
+            return 0;
+        }
+        job.reported = true;
+        return job.started - job.enqueued;
+    }
+
+    private static class Job implements Runnable {
+        private final Runnable delegate;
+        private final long enqueued;
+        private long started;
+        private boolean reported;
+
+        Job(Runnable delegate, long enqueued) {
+            this.delegate = delegate;
+            this.enqueued = enqueued;
+        }
+
+        @Override
+        public void run() {
+            started = System.currentTimeMillis();
+            currentJob.set(this);
+            try {
+                delegate.run();
+            } finally {
+                currentJob.remove();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return delegate.toString();
+        }
+    }
+
+}
@@ -29,8 +29,10 @@ public class JettyComposer {
     public static void compose(Server server) {
         //Servlets + Guice
         ServletContextHandler servletContextHandler = new ServletContextHandler(server, "/", ServletContextHandler.SESSIONS);
-        servletContextHandler.addFilter(GuiceFilter.class, "/*", EnumSet.allOf(DispatcherType.class));
-        servletContextHandler.addServlet(DefaultServlet.class, "/");
+        //async support is needed along the whole chain for RpcServlet to use async i/o
+        servletContextHandler.addFilter(GuiceFilter.class, "/*", EnumSet.allOf(DispatcherType.class))
+                .setAsyncSupported(true);
+        servletContextHandler.addServlet(DefaultServlet.class, "/").setAsyncSupported(true);
 
         //JMX stuff...
         MBeanContainer mbContainer = new MBeanContainer(ManagementFactory.getPlatformMBeanServer());
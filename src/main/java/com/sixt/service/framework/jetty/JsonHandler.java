@@ -15,16 +15,19 @@ package com.sixt.service.framework.jetty;
 import com.codahale.metrics.MetricRegistry;
 import com.google.common.io.CharStreams;
 import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.protobuf.Message;
 import com.sixt.service.framework.MethodHandlerDictionary;
 import com.sixt.service.framework.OrangeContext;
-import com.sixt.service.framework.ServiceMethodHandler;
+import com.sixt.service.framework.ServiceMethodDescriptor;
 import com.sixt.service.framework.ServiceProperties;
 import com.sixt.service.framework.json.JsonRpcRequest;
 import com.sixt.service.framework.json.JsonRpcResponse;
 import com.sixt.service.framework.metrics.GoTimer;
+import com.sixt.service.framework.protobuf.ProtobufJsonReader;
 import com.sixt.service.framework.protobuf.ProtobufUtil;
 import com.sixt.service.framework.rpc.RpcCallException;
 import io.opentracing.Span;
@@ -37,26 +40,37 @@ import org.slf4j.MDC;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
 import static com.sixt.service.framework.OrangeContext.CORRELATION_ID;
 import static com.sixt.service.framework.jetty.RpcServlet.TYPE_JSON;
 import static com.sixt.service.framework.json.JsonRpcRequest.METHOD_FIELD;
 import static com.sixt.service.framework.json.JsonRpcRequest.PARAMS_FIELD;
 import static com.sixt.service.framework.json.JsonRpcResponse.ERROR_FIELD;
-import static com.sixt.service.framework.util.ReflectionUtil.findSubClassParameterType;
 
 @Singleton
 public class JsonHandler extends RpcHandler {
 
     private static final Logger logger = LoggerFactory.getLogger(JsonHandler.class);
 
-    @Inject
     public JsonHandler(MethodHandlerDictionary handlers, MetricRegistry registry,
                        RpcHandlerMetrics handlerMetrics, ServiceProperties serviceProperties, Tracer tracer) {
         super(handlers, registry, handlerMetrics, serviceProperties, tracer);
     }
 
+    @Inject
+    public JsonHandler(MethodHandlerDictionary handlers, MetricRegistry registry,
+                       RpcHandlerMetrics handlerMetrics, ServiceProperties serviceProperties, Tracer tracer,
+                       AdmissionController admissionController, Bulkheads bulkheads) {
+        super(handlers, registry, handlerMetrics, serviceProperties, tracer, admissionController, bulkheads);
+    }
+
     public void doPost(HttpServletRequest req, HttpServletResponse resp) {
         logger.debug("Handling json request");
 
@@ -66,19 +80,22 @@ public class JsonHandler extends RpcHandler {
         long startTime = System.nanoTime();
         Map<String, String> headers = gatherHttpHeaders(req);
         OrangeContext context = new OrangeContext(headers);
+        long queueTime = getQueueTime(req);
         try {
 
             MDC.put(CORRELATION_ID, context.getCorrelationId());
 
-            String postedContent = CharStreams.toString(req.getReader());
-            logger.debug("Request JSON: {}", postedContent);
-
-            JsonRpcRequest rpcRequest;
+            JsonReader jsonReader = newJsonReader(req.getReader());
 
+            ParsedRequest parsedRequest;
             try {
-                rpcRequest = parseRpcRequest(postedContent);
+                if (isBatch(jsonReader)) {
+                    handleBatch(resp, jsonReader, headers, queueTime);
+                    return;
+                }
+                parsedRequest = readRpcRequest(jsonReader);
             } catch (IllegalArgumentException iaex) {
-                logger.warn("Error parsing request: " + postedContent, iaex);
+                logger.warn("Error parsing request", iaex);
                 @SuppressWarnings("ThrowableNotThrown")
                 RpcCallException callException = new RpcCallException(RpcCallException.Category.BadRequest,
                         iaex.getMessage());
@@ -89,6 +106,7 @@ public class JsonHandler extends RpcHandler {
                         context.getRpcOriginMethod());
                 return;
             }
+            JsonRpcRequest rpcRequest = parsedRequest.rpcRequest;
 
             methodName = rpcRequest.getMethod();
 
@@ -98,10 +116,10 @@ public class JsonHandler extends RpcHandler {
                     context.getRpcOriginMethod());
             startTime = methodTimer.start();
             context.setCorrelationId(rpcRequest.getIdAsString());
-            JsonRpcResponse finalResponse = dispatchJsonRpcRequest(rpcRequest, context);
+            JsonRpcResponse finalResponse = dispatchJsonRpcRequest(parsedRequest, context, queueTime);
 
             resp.setContentType(TYPE_JSON);
-            writeResponse(resp, finalResponse.getStatusCode(), finalResponse.toJson().toString());
+            writeResponse(resp, finalResponse);
 
             //TODO: should we check the response for errors (for metrics)?
             methodTimer.recordSuccess(startTime);
@@ -126,9 +144,19 @@ public class JsonHandler extends RpcHandler {
 
     protected JsonRpcRequest parseRpcRequest(String jsonRequestString)
             throws IllegalArgumentException {
-        JsonObject jsonRpcRequest = null;
+        JsonElement element;
+        try {
+            element = new JsonParser().parse(jsonRequestString);
+        } catch (Exception ex) {
+            throw new IllegalArgumentException(ex.getMessage(), ex);
+        }
+        return parseRpcRequest(element);
+    }
+
+    private JsonRpcRequest parseRpcRequest(JsonElement element) throws IllegalArgumentException {
+        JsonObject jsonRpcRequest;
         try {
-            jsonRpcRequest = new JsonParser().parse(jsonRequestString).getAsJsonObject();
+            jsonRpcRequest = element.getAsJsonObject();
         } catch (Exception ex) {
             throw new IllegalArgumentException(ex.getMessage(), ex);
         }
@@ -146,19 +174,253 @@ public class JsonHandler extends RpcHandler {
         return new JsonRpcRequest(idElement, methodElement.getAsString(), paramsArray);
     }
 
+    private JsonReader newJsonReader(Reader reader) throws IOException {
+        if (logger.isDebugEnabled()) {
+            String postedContent = CharStreams.toString(reader);
+            logger.debug("Request JSON: {}", postedContent);
+            reader = new StringReader(postedContent);
+        }
+        JsonReader retval = new JsonReader(reader);
+        //as lenient as the JsonParser used before
+        retval.setLenient(true);
+        return retval;
+    }
+
+    private boolean isBatch(JsonReader reader) throws IllegalArgumentException {
+        try {
+            return reader.peek() == JsonToken.BEGIN_ARRAY;
+        } catch (IOException ex) {
+            throw new IllegalArgumentException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Reads a request in one pass.  If the method is known by the time the params are
+     * reached (which is the case for everything sent by RpcClient), the first param is
+     * decoded straight into the request message of the method.  Otherwise the params
+     * are kept as json and converted when the request is dispatched.
+     */
+    private ParsedRequest readRpcRequest(JsonReader reader) throws IllegalArgumentException {
+        ParsedRequest retval = new ParsedRequest();
+        JsonParser parser = new JsonParser();
+        JsonElement idElement = null;
+        String method = null;
+        JsonArray paramsArray = null;
+        try {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                throw new IllegalArgumentException("Expected a json object but was " + reader.peek());
+            }
+            reader.beginObject();
+            while (reader.hasNext() && retval.paramsError == null) {
+                String name = reader.nextName();
+                if (METHOD_FIELD.equals(name)) {
+                    JsonElement methodElement = parser.parse(reader);
+                    method = methodElement.isJsonNull() ? null : methodElement.getAsString();
+                } else if (JsonRpcRequest.ID_FIELD.equals(name)) {
+                    idElement = parser.parse(reader);
+                } else if (PARAMS_FIELD.equals(name)) {
+                    ServiceMethodDescriptor descriptor = method == null ? null : handlers.getDescriptor(method);
+                    if (descriptor != null && descriptor.getRequestClass() != null &&
+                            reader.peek() == JsonToken.BEGIN_ARRAY) {
+                        readParams(reader, descriptor.getRequestClass(), retval);
+                    } else {
+                        JsonElement params = parser.parse(reader);
+                        if (! params.isJsonArray()) {
+                            throw new IllegalArgumentException("Params must be an array");
+                        }
+                        paramsArray = params.getAsJsonArray();
+                    }
+                } else {
+                    reader.skipValue();
+                }
+            }
+            if (retval.paramsError == null) {
+                reader.endObject();
+            }
+        } catch (IOException | IllegalStateException | UnsupportedOperationException | JsonParseException ex) {
+            throw new IllegalArgumentException(ex.getMessage(), ex);
+        }
+        if (method == null || method.isEmpty()) {
+            throw new IllegalArgumentException("Missing method name");
+        }
+        if (! handlers.hasMethodHandler(method)) {
+            throw new IllegalArgumentException("No handler registered for method '" + method + "'");
+        }
+        retval.rpcRequest = new JsonRpcRequest(idElement, method, paramsArray);
+        return retval;
+    }
+
+    private void readParams(JsonReader reader, Class<? extends Message> requestClass,
+                            ParsedRequest parsedRequest) throws IOException {
+        reader.beginArray();
+        parsedRequest.paramsDecoded = true;
+        if (reader.hasNext()) {
+            try {
+                parsedRequest.params = ProtobufJsonReader.read(reader, requestClass);
+            } catch (RuntimeException ex) {
+                //the request itself is well-formed, but the param doesn't fit the method.
+                //  the reader is left somewhere inside of the param, so stop reading
+                parsedRequest.paramsError = ex;
+                return;
+            }
+        }
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endArray();
+    }
+
+    /**
+     * JSON-RPC 2.0 batch: an array of requests is answered with an array of responses
+     * in the same order.  The requests are handled concurrently, each with its own
+     * OrangeContext built from the headers of the http request.  Notifications (requests
+     * without an id) are handled, but not answered.  If there are only notifications,
+     * the response is empty.
+     */
+    private void handleBatch(HttpServletResponse resp, JsonReader reader,
+                             Map<String, String> headers, long queueTime) throws IOException {
+        JsonArray batch = null;
+        try {
+            batch = new JsonParser().parse(reader).getAsJsonArray();
+        } catch (Exception ex) {
+            logger.warn("Error parsing batch request", ex);
+        }
+        if (batch == null || batch.size() == 0) {
+            @SuppressWarnings("ThrowableNotThrown")
+            RpcCallException callException = new RpcCallException(RpcCallException.Category.BadRequest,
+                    "Invalid batch request");
+            JsonObject jsonResponse = new JsonObject();
+            jsonResponse.add(ERROR_FIELD, callException.toJson());
+            writeResponse(resp, HttpServletResponse.SC_BAD_REQUEST, jsonResponse.toString());
+            return;
+        }
+        List<Supplier<JsonRpcResponse>> calls = new ArrayList<>(batch.size());
+        long dispatched = System.currentTimeMillis();
+        for (JsonElement element : batch) {
+            //measured when the call gets a thread, not when the batch arrived
+            calls.add(() -> handleBatchElement(element, headers, getQueueTime(queueTime, dispatched)));
+        }
+        List<JsonRpcResponse> responses = new ArrayList<>(batch.size());
+        List<JsonRpcResponse> results = dispatchConcurrently(calls);
+        for (int i = 0; i < results.size(); i++) {
+            if (! isNotification(batch.get(i))) {
+                responses.add(results.get(i));
+            }
+        }
+
+        setResponseStatus(resp, HttpServletResponse.SC_OK);
+        if (responses.isEmpty()) {
+            return;
+        }
+        resp.setContentType(TYPE_JSON);
+        PrintWriter writer = resp.getWriter();
+        writer.write('[');
+        for (int i = 0; i < responses.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            responses.get(i).writeTo(writer);
+        }
+        writer.write(']');
+        writer.flush();
+    }
+
+    /**
+     * @return true for a valid request object without an id, invalid requests are always
+     * answered with an error
+     */
+    private boolean isNotification(JsonElement element) {
+        if (! element.isJsonObject() || element.getAsJsonObject().has(JsonRpcRequest.ID_FIELD)) {
+            return false;
+        }
+        JsonElement method = element.getAsJsonObject().get(METHOD_FIELD);
+        return method != null && method.isJsonPrimitive() && handlers.hasMethodHandler(method.getAsString());
+    }
+
+    /**
+     * Writes the response envelope and the already printed protobuf result into the
+     * servlet writer, without building a json document first
+     */
+    private void writeResponse(HttpServletResponse resp, JsonRpcResponse response) throws IOException {
+        setResponseStatus(resp, response.getStatusCode());
+        PrintWriter writer = resp.getWriter();
+        response.writeTo(writer);
+        writer.flush();
+    }
+
+    private JsonRpcResponse handleBatchElement(JsonElement element, Map<String, String> headers,
+                                               long queueTime) {
+        OrangeContext context = new OrangeContext(headers);
+        JsonRpcRequest rpcRequest;
+        try {
+            rpcRequest = parseRpcRequest(element);
+        } catch (IllegalArgumentException iaex) {
+            logger.warn("Error parsing request: " + element, iaex);
+            @SuppressWarnings("ThrowableNotThrown")
+            RpcCallException callException = new RpcCallException(RpcCallException.Category.BadRequest,
+                    iaex.getMessage());
+            JsonElement id = element.isJsonObject() ? element.getAsJsonObject().get(JsonRpcRequest.ID_FIELD) : null;
+            incrementFailureCounter("unknown", context.getRpcOriginService(),
+                    context.getRpcOriginMethod());
+            return new JsonRpcResponse(id == null ? JsonNull.INSTANCE : id, JsonNull.INSTANCE,
+                    callException.toJson(), HttpServletResponse.SC_BAD_REQUEST);
+        }
+        String methodName = rpcRequest.getMethod();
+        Span span = getSpan(methodName, headers, context);
+        try {
+            context.setCorrelationId(rpcRequest.getIdAsString());
+            MDC.put(CORRELATION_ID, context.getCorrelationId());
+            GoTimer methodTimer = getMethodTimer(methodName, context.getRpcOriginService(),
+                    context.getRpcOriginMethod());
+            long startTime = methodTimer.start();
+            JsonRpcResponse response = dispatchJsonRpcRequest(new ParsedRequest(rpcRequest), context,
+                    queueTime);
+            if (response.getStatusCode() == HttpServletResponse.SC_OK) {
+                methodTimer.recordSuccess(startTime);
+                incrementSuccessCounter(methodName, context.getRpcOriginService(),
+                        context.getRpcOriginMethod());
+            } else {
+                methodTimer.recordFailure(startTime);
+                incrementFailureCounter(methodName, context.getRpcOriginService(),
+                        context.getRpcOriginMethod());
+                if (span != null) {
+                    Tags.ERROR.set(span, true);
+                }
+            }
+            return response;
+        } finally {
+            if (span != null) {
+                span.finish();
+            }
+            MDC.remove(CORRELATION_ID);
+        }
+    }
+
     @SuppressWarnings("unchecked")
-    private JsonRpcResponse dispatchJsonRpcRequest(JsonRpcRequest rpcRequest, OrangeContext cxt) {
+    private JsonRpcResponse dispatchJsonRpcRequest(ParsedRequest parsedRequest, OrangeContext cxt,
+                                                   long queueTime) {
+        JsonRpcRequest rpcRequest = parsedRequest.rpcRequest;
         JsonRpcResponse jsonResponse = new JsonRpcResponse(rpcRequest.getId(), JsonNull.INSTANCE,
                 JsonNull.INSTANCE, HttpServletResponse.SC_OK);
+        boolean admitted = false;
         try {
-            ServiceMethodHandler handler = handlers.getMethodHandler(rpcRequest.getMethod());
-            Message innerRequest = convertJsonToProtobuf(handler, rpcRequest);
+            ServiceMethodDescriptor method = handlers.getDescriptor(rpcRequest.getMethod());
+            admit(method, cxt, queueTime);
+            admitted = true;
+            Message innerRequest = parsedRequest.paramsDecoded ? getDecodedParams(parsedRequest) :
+                    convertJsonToProtobuf(method, rpcRequest);
             JsonElement idElement = rpcRequest.getId();
             if (idElement == null) {
                 jsonResponse.setId(new JsonPrimitive(-1));
             }
-            Message innerResponse = invokeHandlerChain(rpcRequest.getMethod(), handler, innerRequest, cxt);
-            jsonResponse.setResult(ProtobufUtil.protobufToJson(innerResponse));
+            Message innerResponse = invokeHandlerChain(method, innerRequest, cxt);
+            if (innerResponse == null) {
+                jsonResponse.setResult(ProtobufUtil.protobufToJson(innerResponse));
+            } else {
+                //printed here, so that a failing conversion is answered as an error
+                //  and doesn't leave a truncated body behind
+                jsonResponse.setResultMessage(innerResponse);
+            }
         } catch (RpcCallException rpcEx) {
             logger.debug("Error processing request", rpcEx);
             jsonResponse.setError(rpcEx.toJson());
@@ -169,23 +431,48 @@ public class JsonHandler extends RpcHandler {
                 jsonResponse.setError(new JsonPrimitive(ex.getMessage()));
             }
             jsonResponse.setStatusCode(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        } finally {
+            if (admitted) {
+                admissionController.release(rpcRequest.getMethod());
+            }
         }
         return jsonResponse;
     }
 
-    @SuppressWarnings("unchecked")
-    private Message convertJsonToProtobuf(ServiceMethodHandler handler,
+    private Message getDecodedParams(ParsedRequest parsedRequest) throws RpcCallException {
+        if (parsedRequest.paramsError != null) {
+            logger.debug("Invalid request params", parsedRequest.paramsError);
+            throw new RpcCallException(RpcCallException.Category.BadRequest, "Invalid request");
+        }
+        return parsedRequest.params;
+    }
+
+    private Message convertJsonToProtobuf(ServiceMethodDescriptor method,
                                           JsonRpcRequest rpcRequest) throws RpcCallException {
-        try {
-            Class<?> requestKlass = findSubClassParameterType(handler, 0);
-            return ProtobufUtil.jsonToProtobuf(rpcRequest.getParams(),
-                    (Class<? extends Message>) requestKlass);
-        } catch (ClassNotFoundException ex) {
+        if (method != null && method.getRequestClass() == null) {
             throw new IllegalStateException("Reflection for handler " +
-                    handler.getClass() + " failed");
+                    method.getHandler().getClass() + " failed");
+        }
+        try {
+            return ProtobufUtil.jsonToProtobuf(rpcRequest.getParams(), method.getRequestClass());
         } catch (RuntimeException ex) {
             throw new RpcCallException(RpcCallException.Category.BadRequest, "Invalid request");
         }
     }
 
+    private static class ParsedRequest {
+        private JsonRpcRequest rpcRequest;
+        // set if the params have already been decoded into the request message
+        private boolean paramsDecoded;
+        private Message params;
+        private RuntimeException paramsError;
+
+        ParsedRequest() {
+        }
+
+        ParsedRequest(JsonRpcRequest rpcRequest) {
+            this.rpcRequest = rpcRequest;
+        }
+    }
+
 }
@@ -19,10 +19,10 @@ import com.google.inject.Singleton;
 import com.google.protobuf.Message;
 import com.sixt.service.framework.*;
 import com.sixt.service.framework.metrics.GoTimer;
+import com.sixt.service.framework.protobuf.ProtobufRpcRequest;
 import com.sixt.service.framework.protobuf.ProtobufUtil;
 import com.sixt.service.framework.protobuf.RpcEnvelope;
 import com.sixt.service.framework.rpc.RpcCallException;
-import com.sixt.service.framework.util.ReflectionUtil;
 import io.opentracing.Span;
 import io.opentracing.Tracer;
 import io.opentracing.tag.Tags;
@@ -35,30 +35,56 @@ import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 @Singleton
 public class ProtobufHandler extends RpcHandler {
 
     private static final Logger logger = LoggerFactory.getLogger(ProtobufHandler.class);
 
-    @Inject
     public ProtobufHandler(MethodHandlerDictionary handlers, MetricRegistry registry,
                            RpcHandlerMetrics handlerMetrics, ServiceProperties serviceProperties, Tracer tracer) {
         super(handlers, registry, handlerMetrics, serviceProperties, tracer);
     }
 
+    @Inject
+    public ProtobufHandler(MethodHandlerDictionary handlers, MetricRegistry registry,
+                           RpcHandlerMetrics handlerMetrics, ServiceProperties serviceProperties, Tracer tracer,
+                           AdmissionController admissionController, Bulkheads bulkheads) {
+        super(handlers, registry, handlerMetrics, serviceProperties, tracer, admissionController, bulkheads);
+    }
+
     @SuppressWarnings("unchecked")
     public void doPost(HttpServletRequest req, HttpServletResponse resp) {
         logger.debug("Handling protobuf request");
 
+        if (req.isAsyncSupported() && FeatureFlags.isAsyncRpcEnabled(serviceProps)) {
+            try {
+                doPostAsync(req, resp);
+            } catch (IOException | IllegalStateException ex) {
+                logger.warn("Cannot handle request asynchronously", ex);
+                resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+            return;
+        }
+
         RpcEnvelope.Request rpcRequest = null;
         String methodName = null;
         Span span = null;
         Map<String, String> headers = gatherHttpHeaders(req);
         OrangeContext context = new OrangeContext(headers);
         HttpServletRequest blubb = new HttpServletRequestWrapper(req);
+        long queueTime = getQueueTime(req);
+        boolean admitted = false;
 
         try {
             MDC.put(OrangeContext.CORRELATION_ID, context.getCorrelationId());
@@ -68,26 +94,36 @@ public class ProtobufHandler extends RpcHandler {
 
             methodName = rpcRequest.getServiceMethod();
 
+            if (ProtobufRpcRequest.BATCH_METHOD.equals(methodName)) {
+                RpcEnvelope.BatchRequest batch = (RpcEnvelope.BatchRequest) readRpcBody(in,
+                        RpcEnvelope.BatchRequest.class);
+                RpcEnvelope.BatchResponse batchResponse = handleBatch(batch, headers, queueTime);
+                resp.setContentType(RpcServlet.TYPE_OCTET);
+                sendSuccessfulResponse(resp, rpcRequest, batchResponse);
+                return;
+            }
+
             span = getSpan(methodName, headers, context);
 
-            ServiceMethodHandler handler = handlers.getMethodHandler(methodName);
-            if (handler == null) {
+            ServiceMethodDescriptor method = handlers.getDescriptor(methodName);
+            if (method == null) {
                 incrementFailureCounter(methodName, context.getRpcOriginService(),
                         context.getRpcOriginMethod());
                 throw new IllegalArgumentException("Invalid method: " +
                         rpcRequest.getServiceMethod());
             }
 
-            Class<? extends Message> requestClass = (Class<? extends Message>)
-                    ReflectionUtil.findSubClassParameterType(handler, 0);
+            //before reading the body, so that rejecting is cheap
+            admit(method, context, queueTime);
+            admitted = true;
 
-            Message pbRequest = readRpcBody(in, requestClass);
+            Message pbRequest = readRpcBody(in, method.getRequestClass());
 
             GoTimer methodTimer = getMethodTimer(methodName, context.getRpcOriginService(),
                     context.getRpcOriginMethod());
             long startTime = methodTimer.start();
 
-            Message pbResponse = invokeHandlerChain(methodName, handler, pbRequest, context);
+            Message pbResponse = invokeHandlerChain(method, pbRequest, context);
 
             resp.setContentType(RpcServlet.TYPE_OCTET);
             sendSuccessfulResponse(resp, rpcRequest, pbResponse);
@@ -120,6 +156,9 @@ public class ProtobufHandler extends RpcHandler {
             incrementFailureCounter(methodName, context.getRpcOriginService(),
                     context.getRpcOriginMethod());
         } finally {
+            if (admitted) {
+                admissionController.release(methodName);
+            }
             if (span != null) {
                 span.finish();
             }
@@ -127,30 +166,371 @@ public class ProtobufHandler extends RpcHandler {
         }
     }
 
+    /**
+     * Reads the request with non-blocking i/o and keeps the jetty thread only until the
+     * handler chain returned its future.  The response is written when the future completes,
+     * or with RequestTimedOut once the time budget of the request is used up.
+     */
+    private void doPostAsync(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        Map<String, String> headers = gatherHttpHeaders(req);
+        OrangeContext context = new OrangeContext(headers);
+        long queueTime = getQueueTime(req);
+        //the future the response is written from, once the handler chain is running
+        AtomicReference<CompletableFuture<Message>> pending = new AtomicReference<>();
+        AsyncRpcExchange.start(req, resp, getAsyncTimeout(context),
+                (exchange, data) -> handleAsyncRequest(exchange, req, data, headers, context,
+                        queueTime, pending),
+                exchange -> timeoutAsyncRequest(exchange, pending.get()));
+    }
+
+    private long getAsyncTimeout(OrangeContext context) {
+        if (context.hasDeadline()) {
+            return context.getRemainingTimeBudget();
+        }
+        return FeatureFlags.getAsyncRpcTimeout(serviceProps);
+    }
+
+    private void timeoutAsyncRequest(AsyncRpcExchange exchange, CompletableFuture<Message> pending) {
+        RpcCallException timeout = new RpcCallException(RpcCallException.Category.RequestTimedOut,
+                "Request was not answered in time");
+        //answers the request with the error, the handler keeps its admission until it
+        //  completes, its result is ignored then
+        if (pending == null || ! pending.completeExceptionally(timeout)) {
+            //still reading the request, there is no envelope to answer with
+            exchange.respond(timeout.getCategory().getHttpStatus(), null, null);
+        }
+    }
+
+    private void handleAsyncRequest(AsyncRpcExchange exchange, HttpServletRequest req,
+                                    byte[] data, Map<String, String> headers, OrangeContext context,
+                                    long queueTime, AtomicReference<CompletableFuture<Message>> pending) {
+        RpcEnvelope.Request rpcRequest = null;
+        String methodName = null;
+        Span span = null;
+        boolean admitted = false;
+        try {
+            MDC.put(OrangeContext.CORRELATION_ID, context.getCorrelationId());
+
+            InputStream in = new ByteArrayInputStream(data);
+            rpcRequest = readRpcEnvelope(in);
+
+            methodName = rpcRequest.getServiceMethod();
+
+            if (ProtobufRpcRequest.BATCH_METHOD.equals(methodName)) {
+                RpcEnvelope.BatchRequest batch = (RpcEnvelope.BatchRequest) readRpcBody(in,
+                        RpcEnvelope.BatchRequest.class);
+                RpcEnvelope.Request envelope = rpcRequest;
+                String name = methodName;
+                CompletableFuture<Message> asyncResponse = new CompletableFuture<>();
+                pending.set(asyncResponse);
+                asyncResponse.whenComplete((batchResponse, error) -> {
+                    if (error == null) {
+                        exchange.respond(HttpServletResponse.SC_OK, RpcServlet.TYPE_OCTET,
+                                buildSuccessfulResponse(envelope, batchResponse));
+                    } else {
+                        failAsyncRequest(exchange, req, envelope, unwrapCompletionException(error),
+                                name, context, null);
+                    }
+                });
+                handleBatchAsync(batch, headers, queueTime).whenComplete((batchResponse, error) -> {
+                    if (error == null) {
+                        asyncResponse.complete(batchResponse);
+                    } else {
+                        asyncResponse.completeExceptionally(error);
+                    }
+                });
+                return;
+            }
+
+            span = getSpan(methodName, headers, context);
+
+            ServiceMethodDescriptor method = handlers.getDescriptor(methodName);
+            if (method == null) {
+                throw new IllegalArgumentException("Invalid method: " + methodName);
+            }
+
+            //before parsing the body, so that rejecting is cheap
+            admit(method, context, queueTime);
+            admitted = true;
+
+            Message pbRequest = readRpcBody(in, method.getRequestClass());
+
+            GoTimer methodTimer = getMethodTimer(methodName, context.getRpcOriginService(),
+                    context.getRpcOriginMethod());
+            long startTime = methodTimer.start();
+
+            RpcEnvelope.Request envelope = rpcRequest;
+            String name = methodName;
+            Span methodSpan = span;
+            CompletableFuture<Message> asyncResponse = new CompletableFuture<>();
+            pending.set(asyncResponse);
+            asyncResponse.whenComplete((pbResponse, error) -> {
+                if (error == null) {
+                    exchange.respond(HttpServletResponse.SC_OK, RpcServlet.TYPE_OCTET,
+                            buildSuccessfulResponse(envelope, pbResponse));
+                    methodTimer.recordSuccess(startTime);
+                    incrementSuccessCounter(name, context.getRpcOriginService(),
+                            context.getRpcOriginMethod());
+                } else {
+                    failAsyncRequest(exchange, req, envelope, unwrapCompletionException(error),
+                            name, context, methodSpan);
+                }
+                if (methodSpan != null) {
+                    methodSpan.finish();
+                }
+            });
+            //completing the response early (on timeout) doesn't end the handler, it is still
+            //  admitted and holds its room in the bulkhead until its own future completes
+            invokeHandlerChainAsync(method, pbRequest, context).whenComplete((pbResponse, error) -> {
+                admissionController.release(name);
+                if (error == null) {
+                    asyncResponse.complete(pbResponse);
+                } else {
+                    asyncResponse.completeExceptionally(error);
+                }
+            });
+            //released when the handler completes, the span when the response is written
+            admitted = false;
+            span = null;
+        } catch (Exception ex) {
+            failAsyncRequest(exchange, req, rpcRequest, ex, methodName, context, span);
+        } finally {
+            if (admitted) {
+                admissionController.release(methodName);
+            }
+            if (span != null) {
+                span.finish();
+            }
+            MDC.remove(OrangeContext.CORRELATION_ID);
+        }
+    }
+
+    private void failAsyncRequest(AsyncRpcExchange exchange, HttpServletRequest req,
+                                  RpcEnvelope.Request rpcRequest, Throwable ex, String methodName,
+                                  OrangeContext context, Span span) {
+        String message;
+        int httpStatusCode;
+        if (ex instanceof RpcCallException) {
+            message = ex.toString();
+            httpStatusCode = ((RpcCallException) ex).getCategory().getHttpStatus();
+        } else if (ex instanceof RpcReadException) {
+            logger.warn("Bad request, cannot decode rpc message: {}", ((RpcReadException) ex).toJson(req));
+            message = ex.getMessage();
+            httpStatusCode = HttpServletResponse.SC_BAD_REQUEST;
+        } else {
+            logger.warn("Uncaught exception", ex);
+            message = ex.getMessage();
+            httpStatusCode = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+        }
+        if (span != null) {
+            Tags.ERROR.set(span, true);
+        }
+        incrementFailureCounter(methodName, context.getRpcOriginService(),
+                context.getRpcOriginMethod());
+        if (rpcRequest == null) {
+            //same as the blocking path: without an envelope, there is nothing to answer
+            exchange.respond(HttpServletResponse.SC_OK, null, null);
+        } else {
+            exchange.respond(getErrorStatus(httpStatusCode), null, buildErrorResponse(rpcRequest, message));
+        }
+    }
+
+    /**
+     * The calls of a batch are handled concurrently, each with its own OrangeContext
+     * built from the headers of the batch request.  Failures are reported per call.
+     */
+    private RpcEnvelope.BatchResponse handleBatch(RpcEnvelope.BatchRequest batch,
+                                                  Map<String, String> headers, long queueTime) {
+        List<Supplier<RpcEnvelope.BatchResponse.Frame>> calls = new ArrayList<>(batch.getFramesCount());
+        long dispatched = System.currentTimeMillis();
+        for (RpcEnvelope.BatchRequest.Frame frame : batch.getFramesList()) {
+            //measured when the call gets a thread, not when the batch arrived
+            calls.add(() -> handleBatchFrame(frame, headers, getQueueTime(queueTime, dispatched)));
+        }
+        return RpcEnvelope.BatchResponse.newBuilder().
+                addAllFrames(dispatchConcurrently(calls)).build();
+    }
+
+    @SuppressWarnings("unchecked")
+    RpcEnvelope.BatchResponse.Frame handleBatchFrame(RpcEnvelope.BatchRequest.Frame frame,
+                                                     Map<String, String> httpHeaders, long queueTime) {
+        String methodName = frame.getServiceMethod();
+        Map<String, String> headers = getBatchFrameHeaders(frame, httpHeaders);
+        OrangeContext context = new OrangeContext(headers);
+        RpcEnvelope.BatchResponse.Frame.Builder retval = RpcEnvelope.BatchResponse.Frame.newBuilder().
+                setServiceMethod(methodName).
+                setSequenceNumber(frame.getSequenceNumber());
+        Span span = null;
+        boolean admitted = false;
+        try {
+            MDC.put(OrangeContext.CORRELATION_ID, context.getCorrelationId());
+            span = getSpan(methodName, headers, context);
+
+            ServiceMethodDescriptor method = handlers.getDescriptor(methodName);
+            if (method == null) {
+                throw new IllegalArgumentException("Invalid method: " + methodName);
+            }
+            admit(method, context, queueTime);
+            admitted = true;
+            Message pbRequest = readBatchFrameBody(frame, method);
+
+            GoTimer methodTimer = getMethodTimer(methodName, context.getRpcOriginService(),
+                    context.getRpcOriginMethod());
+            long startTime = methodTimer.start();
+
+            Message pbResponse = invokeHandlerChain(method, pbRequest, context);
+            if (pbResponse != null) {
+                retval.setBody(pbResponse.toByteString());
+            }
+
+            methodTimer.recordSuccess(startTime);
+            incrementSuccessCounter(methodName, context.getRpcOriginService(),
+                    context.getRpcOriginMethod());
+        } catch (Exception ex) {
+            failBatchFrame(retval, ex, methodName, context, span);
+        } finally {
+            if (admitted) {
+                admissionController.release(methodName);
+            }
+            if (span != null) {
+                span.finish();
+            }
+            MDC.remove(OrangeContext.CORRELATION_ID);
+        }
+        return retval.build();
+    }
+
+    /**
+     * Like handleBatch, but doesn't wait for the calls on the calling thread: calls of
+     * AsyncServiceMethodHandlers and of methods with a bulkhead are started with
+     * invokeHandlerChainAsync, the other ones are handled on the batch threads.
+     */
+    private CompletableFuture<RpcEnvelope.BatchResponse> handleBatchAsync(RpcEnvelope.BatchRequest batch,
+                                                                         Map<String, String> headers,
+                                                                         long queueTime) {
+        List<CompletableFuture<RpcEnvelope.BatchResponse.Frame>> calls = new ArrayList<>(batch.getFramesCount());
+        long dispatched = System.currentTimeMillis();
+        for (RpcEnvelope.BatchRequest.Frame frame : batch.getFramesList()) {
+            calls.add(handleBatchFrameAsync(frame, headers, queueTime, dispatched));
+        }
+        return CompletableFuture.allOf(calls.toArray(new CompletableFuture[0])).thenApply(done -> {
+            RpcEnvelope.BatchResponse.Builder retval = RpcEnvelope.BatchResponse.newBuilder();
+            calls.forEach(call -> retval.addFrames(call.join()));
+            return retval.build();
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    CompletableFuture<RpcEnvelope.BatchResponse.Frame> handleBatchFrameAsync(
+            RpcEnvelope.BatchRequest.Frame frame, Map<String, String> httpHeaders,
+            long requestQueueTime, long dispatched) {
+        String methodName = frame.getServiceMethod();
+        ServiceMethodDescriptor method = handlers.getDescriptor(methodName);
+        if (method == null || ! (method.getHandler() instanceof AsyncServiceMethodHandler ||
+                bulkheads.hasBulkhead(method))) {
+            //measured when the call gets a thread, not when the batch arrived
+            return dispatchAsync(() -> handleBatchFrame(frame, httpHeaders,
+                    getQueueTime(requestQueueTime, dispatched)));
+        }
+        Map<String, String> headers = getBatchFrameHeaders(frame, httpHeaders);
+        OrangeContext context = new OrangeContext(headers);
+        RpcEnvelope.BatchResponse.Frame.Builder retval = RpcEnvelope.BatchResponse.Frame.newBuilder().
+                setServiceMethod(methodName).
+                setSequenceNumber(frame.getSequenceNumber());
+        Span span = null;
+        boolean admitted = false;
+        try {
+            MDC.put(OrangeContext.CORRELATION_ID, context.getCorrelationId());
+            span = getSpan(methodName, headers, context);
+
+            admit(method, context, getQueueTime(requestQueueTime, dispatched));
+            admitted = true;
+            Message pbRequest = readBatchFrameBody(frame, method);
+
+            GoTimer methodTimer = getMethodTimer(methodName, context.getRpcOriginService(),
+                    context.getRpcOriginMethod());
+            long startTime = methodTimer.start();
+
+            Span frameSpan = span;
+            CompletableFuture<RpcEnvelope.BatchResponse.Frame> response =
+                    invokeHandlerChainAsync(method, pbRequest, context).handle((pbResponse, error) -> {
+                        admissionController.release(methodName);
+                        if (error == null) {
+                            if (pbResponse != null) {
+                                retval.setBody(pbResponse.toByteString());
+                            }
+                            methodTimer.recordSuccess(startTime);
+                            incrementSuccessCounter(methodName, context.getRpcOriginService(),
+                                    context.getRpcOriginMethod());
+                        } else {
+                            failBatchFrame(retval, unwrapCompletionException(error), methodName,
+                                    context, frameSpan);
+                        }
+                        if (frameSpan != null) {
+                            frameSpan.finish();
+                        }
+                        return retval.build();
+                    });
+            //both finished when the handler completes
+            admitted = false;
+            span = null;
+            return response;
+        } catch (Exception ex) {
+            failBatchFrame(retval, ex, methodName, context, span);
+            return CompletableFuture.completedFuture(retval.build());
+        } finally {
+            if (admitted) {
+                admissionController.release(methodName);
+            }
+            if (span != null) {
+                span.finish();
+            }
+            MDC.remove(OrangeContext.CORRELATION_ID);
+        }
+    }
+
+    /**
+     * Every call of a batch has its own correlation id, time budget etc.
+     */
+    private Map<String, String> getBatchFrameHeaders(RpcEnvelope.BatchRequest.Frame frame,
+                                                     Map<String, String> httpHeaders) {
+        Map<String, String> headers = new HashMap<>(httpHeaders);
+        frame.getHeadersMap().forEach((key, value) -> headers.put(key.toLowerCase(), value));
+        return headers;
+    }
+
+    private Message readBatchFrameBody(RpcEnvelope.BatchRequest.Frame frame,
+                                       ServiceMethodDescriptor method) throws Exception {
+        Class<? extends Message> requestClass = method.getRequestClass();
+        return frame.getBody().isEmpty() ? ProtobufUtil.newEmptyMessage(requestClass) :
+                ProtobufUtil.byteStringToProtobuf(frame.getBody(), requestClass);
+    }
+
+    private void failBatchFrame(RpcEnvelope.BatchResponse.Frame.Builder retval, Throwable ex,
+                                String methodName, OrangeContext context, Span span) {
+        if (ex instanceof RpcCallException) {
+            retval.setError(ex.toString());
+        } else {
+            logger.warn("Uncaught exception", ex);
+            retval.setError(String.valueOf(ex.getMessage()));
+        }
+        if (span != null) {
+            Tags.ERROR.set(span, true);
+        }
+        incrementFailureCounter(methodName, context.getRpcOriginService(),
+                context.getRpcOriginMethod());
+    }
+
     private void sendSuccessfulResponse(HttpServletResponse response,
                                         RpcEnvelope.Request rpcRequest,
                                         Message pbResponse) throws IOException {
         response.setStatus(HttpServletResponse.SC_OK);
 
-        RpcEnvelope.Response rpcResponse = RpcEnvelope.Response.newBuilder().
-                setServiceMethod(rpcRequest.getServiceMethod()).
-                setSequenceNumber(rpcRequest.getSequenceNumber()).build();
-        byte responseHeader[] = rpcResponse.toByteArray();
-        byte responseBody[];
-        if (pbResponse == null) {
-            responseBody = new byte[0];
-        } else {
-            responseBody = pbResponse.toByteArray();
-        }
+        byte responseData[] = buildSuccessfulResponse(rpcRequest, pbResponse);
 
         try {
             ServletOutputStream out = response.getOutputStream();
-
-            out.write(Ints.toByteArray(responseHeader.length));
-            out.write(responseHeader);
-
-            out.write(Ints.toByteArray(responseBody.length));
-            out.write(responseBody);
+            out.write(responseData);
         } catch (IOException ioex) {
             //there is nothing we can do, client probably went away
             logger.debug("Caught IOException, assuming client disconnected");
@@ -163,30 +543,55 @@ public class ProtobufHandler extends RpcHandler {
                                    int httpStatusCode) {
         if (rpcRequest != null) {
             try {
-                if (FeatureFlags.shouldExposeErrorsToHttp(serviceProps)) {
-                    resp.setStatus(httpStatusCode);
-                } else {
-                    resp.setStatus(HttpServletResponse.SC_OK);
-                }
-                if (message == null) {
-                    message = "null";
-                }
-                RpcEnvelope.Response rpcResponse = RpcEnvelope.Response.newBuilder().
-                        setServiceMethod(rpcRequest.getServiceMethod()).
-                        setSequenceNumber(rpcRequest.getSequenceNumber()).
-                        setError(message).build();
-                byte responseHeader[] = rpcResponse.toByteArray();
+                resp.setStatus(getErrorStatus(httpStatusCode));
                 ServletOutputStream out = resp.getOutputStream();
-                out.write(Ints.toByteArray(responseHeader.length));
-                out.write(responseHeader);
-                out.write(Ints.toByteArray(0)); //zero-length (no) body
+                out.write(buildErrorResponse(rpcRequest, message));
             } catch (Exception ex) {
                 logger.warn("Error writing error response", ex);
             }
         }
     }
 
-    private RpcEnvelope.Request readRpcEnvelope(ServletInputStream in) throws Exception {
+    private int getErrorStatus(int httpStatusCode) {
+        if (FeatureFlags.shouldExposeErrorsToHttp(serviceProps)) {
+            return httpStatusCode;
+        } else {
+            return HttpServletResponse.SC_OK;
+        }
+    }
+
+    private byte[] buildSuccessfulResponse(RpcEnvelope.Request rpcRequest, Message pbResponse) {
+        RpcEnvelope.Response rpcResponse = RpcEnvelope.Response.newBuilder().
+                setServiceMethod(rpcRequest.getServiceMethod()).
+                setSequenceNumber(rpcRequest.getSequenceNumber()).build();
+        byte responseBody[] = pbResponse == null ? new byte[0] : pbResponse.toByteArray();
+        return frame(rpcResponse.toByteArray(), responseBody);
+    }
+
+    private byte[] buildErrorResponse(RpcEnvelope.Request rpcRequest, String message) {
+        if (message == null) {
+            message = "null";
+        }
+        RpcEnvelope.Response rpcResponse = RpcEnvelope.Response.newBuilder().
+                setServiceMethod(rpcRequest.getServiceMethod()).
+                setSequenceNumber(rpcRequest.getSequenceNumber()).
+                setError(message).build();
+        return frame(rpcResponse.toByteArray(), new byte[0]); //zero-length (no) body
+    }
+
+    /**
+     * Both chunks prefixed with their length, as expected by RpcClient
+     */
+    private byte[] frame(byte responseHeader[], byte responseBody[]) {
+        byte retval[] = new byte[8 + responseHeader.length + responseBody.length];
+        System.arraycopy(Ints.toByteArray(responseHeader.length), 0, retval, 0, 4);
+        System.arraycopy(responseHeader, 0, retval, 4, responseHeader.length);
+        System.arraycopy(Ints.toByteArray(responseBody.length), 0, retval, 4 + responseHeader.length, 4);
+        System.arraycopy(responseBody, 0, retval, 8 + responseHeader.length, responseBody.length);
+        return retval;
+    }
+
+    private RpcEnvelope.Request readRpcEnvelope(InputStream in) throws Exception {
         byte chunkSize[] = new byte[4];
         in.read(chunkSize);
         int size = Ints.fromByteArray(chunkSize);
@@ -199,7 +604,7 @@ public class ProtobufHandler extends RpcHandler {
         return rpcRequest;
     }
 
-    private Message readRpcBody(ServletInputStream in,
+    private Message readRpcBody(InputStream in,
                                 Class<? extends Message> requestClass) throws Exception {
         byte chunkSize[] = new byte[4];
         in.read(chunkSize);
@@ -216,7 +621,7 @@ public class ProtobufHandler extends RpcHandler {
         return pbRequest;
     }
 
-    private byte[] readyFully(ServletInputStream in, int totalSize) throws Exception {
+    private byte[] readyFully(InputStream in, int totalSize) throws Exception {
         byte[] retval = new byte[totalSize];
         int bytesRead = 0;
         while (bytesRead < totalSize) {
@@ -13,6 +13,7 @@
 package com.sixt.service.framework.jetty;
 
 import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.Message;
 import com.sixt.service.framework.*;
 import com.sixt.service.framework.metrics.GoTimer;
@@ -23,6 +24,7 @@ import io.opentracing.Tracer;
 import io.opentracing.propagation.Format;
 import io.opentracing.propagation.TextMapExtractAdapter;
 import io.opentracing.tag.Tags;
+import org.eclipse.jetty.server.Request;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,6 +32,15 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
 import static com.google.common.collect.ImmutableSortedSet.of;
 
@@ -42,6 +53,9 @@ public abstract class RpcHandler {
     protected final RpcHandlerMetrics handlerMetrics;
     protected final ServiceProperties serviceProps;
     protected final Tracer tracer;
+    protected final AdmissionController admissionController;
+    protected final Bulkheads bulkheads;
+    private volatile ExecutorService batchExecutor;
 
     //For now, we block services from getting certain input headers.
     //The reason is that these headers are also then used for outgoing requests.
@@ -53,11 +67,21 @@ public abstract class RpcHandler {
     public RpcHandler(MethodHandlerDictionary handlers, MetricRegistry registry,
                       RpcHandlerMetrics handlerMetrics, ServiceProperties serviceProperties,
                       Tracer tracer) {
+        this(handlers, registry, handlerMetrics, serviceProperties, tracer,
+                new AdmissionController(serviceProperties, handlerMetrics),
+                new Bulkheads(serviceProperties, handlerMetrics));
+    }
+
+    public RpcHandler(MethodHandlerDictionary handlers, MetricRegistry registry,
+                      RpcHandlerMetrics handlerMetrics, ServiceProperties serviceProperties,
+                      Tracer tracer, AdmissionController admissionController, Bulkheads bulkheads) {
         this.handlers = handlers;
         this.metricRegistry = registry;
         this.handlerMetrics = handlerMetrics;
         this.serviceProps = serviceProperties;
         this.tracer = tracer;
+        this.admissionController = admissionController;
+        this.bulkheads = bulkheads;
     }
 
     protected void incrementFailureCounter(String methodName, String originService,
@@ -93,6 +117,32 @@ public abstract class RpcHandler {
         return span;
     }
 
+    /**
+     * @return milliseconds since jetty received the request, including the wait for a
+     * thread to read it with, or -1 if not known
+     */
+    protected long getQueueTime(HttpServletRequest req) {
+        Request baseRequest = Request.getBaseRequest(req);
+        if (baseRequest == null || baseRequest.getTimeStamp() <= 0) {
+            return -1;
+        }
+        long received = baseRequest.getTimeStamp();
+        //the wait for a thread to read the request with is before the timestamp
+        return Math.max(0, System.currentTimeMillis() - received) +
+                InstrumentedQueuedThreadPool.takeQueueDelay(received);
+    }
+
+    /**
+     * @return the queue time of a call of a batch request: the queue time of the request,
+     * plus the time the call waited since the batch was dispatched, or -1 if not known
+     */
+    protected long getQueueTime(long requestQueueTime, long dispatched) {
+        if (requestQueueTime < 0) {
+            return -1;
+        }
+        return requestQueueTime + Math.max(0, System.currentTimeMillis() - dispatched);
+    }
+
     protected Map<String, String> gatherHttpHeaders(HttpServletRequest req) {
         Map<String, String> headers = new HashMap<>();
 
@@ -125,6 +175,20 @@ public abstract class RpcHandler {
         return headers;
     }
 
+    /**
+     * Lets admission control decide whether the request is handled.  Requests without a
+     * criticality get the one of the method, which is then also propagated to the calls
+     * made while handling them.  If admitted, admissionController.release must be called
+     * once the request was handled.
+     */
+    protected void admit(ServiceMethodDescriptor method, OrangeContext context,
+                         long queueTime) throws RpcCallException {
+        if (! context.hasCriticality()) {
+            context.setCriticality(method.getCriticality());
+        }
+        admissionController.acquire(method.getMethodName(), queueTime, context.getCriticality());
+    }
+
     /**
      * Invoke in the following order:
      * <ol><li>Global pre-handler hooks</li>
@@ -132,30 +196,184 @@ public abstract class RpcHandler {
      * <li>The handler</li>
      * <li>Post-handler hooks for this methodName</li>
      * <li>Global post-handler hooks</li></ol>
+     * If the method has a bulkhead or an AsyncServiceMethodHandler, the calling thread waits
+     * for the chain, at most until the deadline of the request.  The request must have been
+     * admitted: if the deadline passes first, the chain keeps a slot of its method until it
+     * completes, while the caller releases its own one as usual.
      */
-    @SuppressWarnings("unchecked")
-    protected Message invokeHandlerChain(String methodName, ServiceMethodHandler handler,
+    protected Message invokeHandlerChain(ServiceMethodDescriptor method,
                                          Message request, OrangeContext context) throws RpcCallException {
-        List<ServiceMethodPreHook<? extends Message>> preHooks = handlers.getPreHooksFor(methodName);
-        for (ServiceMethodPreHook hook : preHooks) {
+        if (! bulkheads.hasBulkhead(method) && ! (method.getHandler() instanceof AsyncServiceMethodHandler)) {
+            return invokeHandlerChainDirectly(method, request, context);
+        }
+        CompletableFuture<Message> response = invokeHandlerChainAsync(method, request, context);
+        try {
+            if (context.hasDeadline()) {
+                return response.get(Math.max(0, context.getRemainingTimeBudget()), TimeUnit.MILLISECONDS);
+            }
+            return response.get();
+        } catch (TimeoutException ex) {
+            admissionController.retain(method.getMethodName());
+            response.whenComplete((result, error) -> admissionController.release(method.getMethodName()));
+            throw new RpcCallException(RpcCallException.Category.RequestTimedOut,
+                    "Deadline exceeded while handling " + method.getMethodName()).withRetriable(false);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RpcCallException(RpcCallException.Category.InternalServerError,
+                    "Interrupted while waiting for " + method.getMethodName());
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RpcCallException) {
+                throw (RpcCallException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Message invokeHandlerChainDirectly(ServiceMethodDescriptor method,
+                                               Message request, OrangeContext context) throws RpcCallException {
+        request = invokePreHooks(method, request, context);
+        Message response = ((ServiceMethodHandler) method.getHandler()).handleRequest(request, context);
+        return invokePostHooks(method, response, context);
+    }
+
+    /**
+     * Same chain as invokeHandlerChain, but an AsyncServiceMethodHandler is not waited for:
+     * the post-hooks run on the thread completing its future.  Other handlers are invoked
+     * on the calling thread, or on the bulkhead of the method without waiting for it.  An
+     * AsyncServiceMethodHandler with a bulkhead only takes room in it, not one of its threads.
+     * Failures, including the ones of the pre-hooks, complete the returned future exceptionally.
+     */
+    protected CompletableFuture<Message> invokeHandlerChainAsync(ServiceMethodDescriptor method,
+                                                                 Message request, OrangeContext context) {
+        try {
+            boolean async = method.getHandler() instanceof AsyncServiceMethodHandler;
+            if (bulkheads.hasBulkhead(method)) {
+                if (async) {
+                    return bulkheads.submitAsync(method, context.getCriticality(),
+                            () -> invokeAsyncHandlerChain(method, request, context));
+                }
+                return bulkheads.submit(method, context.getCriticality(),
+                        () -> invokeHandlerChainDirectly(method, request, context));
+            }
+            if (! async) {
+                return CompletableFuture.completedFuture(invokeHandlerChainDirectly(method, request, context));
+            }
+            return invokeAsyncHandlerChain(method, request, context);
+        } catch (Exception ex) {
+            CompletableFuture<Message> response = new CompletableFuture<>();
+            response.completeExceptionally(ex);
+            return response;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Message> invokeAsyncHandlerChain(ServiceMethodDescriptor method, Message request,
+                                                               OrangeContext context) throws RpcCallException {
+        request = invokePreHooks(method, request, context);
+        CompletableFuture<Message> response = ((AsyncServiceMethodHandler) method.getHandler())
+                .handleRequestAsync(request, context);
+        return response.thenApply(message -> {
+            try {
+                return invokePostHooks(method, message, context);
+            } catch (RpcCallException ex) {
+                throw new CompletionException(ex);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private Message invokePreHooks(ServiceMethodDescriptor method, Message request,
+                                   OrangeContext context) throws RpcCallException {
+        if (context.isDeadlineExceeded()) {
+            //the caller isn't waiting for the result anymore, so don't waste any work on it
+            throw new RpcCallException(RpcCallException.Category.RequestTimedOut,
+                    "Deadline exceeded before handling " + method.getMethodName()).withRetriable(false);
+        }
+        for (ServiceMethodPreHook hook : method.getPreHooks()) {
             request = hook.handleRequest(request, context);
         }
-        Message response = handler.handleRequest(request, context);
-        List<ServiceMethodPostHook<? extends Message>> postHooks = handlers.getPostHooksFor(methodName);
-        for (ServiceMethodPostHook hook : postHooks) {
+        return request;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Message invokePostHooks(ServiceMethodDescriptor method, Message response,
+                                    OrangeContext context) throws RpcCallException {
+        for (ServiceMethodPostHook hook : method.getPostHooks()) {
             response = hook.handleRequest(response, context);
         }
         return response;
     }
 
+    /**
+     * @return the exception a future was completed with, without the CompletionException
+     * wrapped around it by dependent stages
+     */
+    protected static Throwable unwrapCompletionException(Throwable throwable) {
+        if (throwable instanceof CompletionException && throwable.getCause() != null) {
+            return throwable.getCause();
+        }
+        return throwable;
+    }
+
+    /**
+     * Handles the calls of a batch concurrently, the last one on the calling thread.
+     * If all batch threads are busy, calls are handled on the calling thread, too.
+     * @return the results in the order of the calls
+     */
+    protected <T> List<T> dispatchConcurrently(List<Supplier<T>> calls) {
+        List<CompletableFuture<T>> futures = new ArrayList<>(calls.size());
+        for (int i = 0; i < calls.size() - 1; i++) {
+            futures.add(CompletableFuture.supplyAsync(calls.get(i), getBatchExecutor()));
+        }
+        if (! calls.isEmpty()) {
+            futures.add(CompletableFuture.completedFuture(calls.get(calls.size() - 1).get()));
+        }
+        List<T> retval = new ArrayList<>(calls.size());
+        for (CompletableFuture<T> future : futures) {
+            retval.add(future.join());
+        }
+        return retval;
+    }
+
+    /**
+     * Handles a call of a batch on a batch thread, or on the calling thread if all are busy
+     */
+    protected <T> CompletableFuture<T> dispatchAsync(Supplier<T> call) {
+        return CompletableFuture.supplyAsync(call, getBatchExecutor());
+    }
+
+    private ExecutorService getBatchExecutor() {
+        if (batchExecutor == null) {
+            synchronized (this) {
+                if (batchExecutor == null) {
+                    batchExecutor = new ThreadPoolExecutor(0, FeatureFlags.getRpcBatchThreads(serviceProps),
+                            60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                            new ThreadFactoryBuilder().setNameFormat("rpc-batch-%d").setDaemon(true).build(),
+                            new ThreadPoolExecutor.CallerRunsPolicy());
+                }
+            }
+        }
+        return batchExecutor;
+    }
+
     protected void writeResponse(HttpServletResponse resp, int statusCode, String s) throws IOException {
+        setResponseStatus(resp, statusCode);
+        resp.getWriter().write(s);
+        resp.getWriter().flush();
+    }
+
+    protected void setResponseStatus(HttpServletResponse resp, int statusCode) {
         if (statusCode != 200 && FeatureFlags.shouldExposeErrorsToHttp(serviceProps)) {
             resp.setStatus(statusCode);
         } else {
             resp.setStatus(HttpServletResponse.SC_OK);
         }
-        resp.getWriter().write(s);
-        resp.getWriter().flush();
     }
 
 }
@@ -14,7 +14,9 @@ package com.sixt.service.framework.jetty;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.sixt.service.framework.Criticality;
 import com.sixt.service.framework.metrics.GoCounter;
+import com.sixt.service.framework.metrics.GoGauge;
 import com.sixt.service.framework.metrics.GoTimer;
 import com.sixt.service.framework.metrics.MetricBuilderFactory;
 import org.apache.commons.lang3.StringUtils;
@@ -74,6 +76,38 @@ public class RpcHandlerMetrics {
         return counter;
     }
 
+    /**
+     * Counts the requests rejected by admission control
+     * @param reason why the request was rejected, e.g. "concurrency" or "queue_time"
+     */
+    public synchronized void incrementRejectionCounter(String methodName, String reason,
+                                                       Criticality criticality) {
+        if (StringUtils.isBlank(methodName)) {
+            methodName = UNKNOWN;
+        }
+        String key = "rejected:" + methodName + ":" + reason + ":" + criticality;
+        GoCounter counter = counters.get(key);
+        if (counter == null) {
+            counter = metricBuilderFactory.newMetric("server_handler_rejected").
+                    withTag("method", methodName).
+                    withTag("reason", reason).
+                    withTag("criticality", criticality.name().toLowerCase()).buildCounter();
+            counters.put(key, counter);
+        }
+        counter.incFailure();
+    }
+
+    /**
+     * Thread and queue usage of the bulkhead of a method
+     */
+    public synchronized GoGauge getBulkheadGauge(String methodName) {
+        if (StringUtils.isBlank(methodName)) {
+            methodName = UNKNOWN;
+        }
+        return metricBuilderFactory.newMetric("server_handler_bulkhead").
+                withTag("method", methodName).buildGauge();
+    }
+
     public synchronized GoTimer getMethodTimer(String methodName, String originService, String originMethod) {
         if (StringUtils.isBlank(methodName)) {
             methodName = UNKNOWN;
@@ -15,16 +15,16 @@ package com.sixt.service.framework.jetty;
 import com.google.gson.JsonObject;
 import org.apache.commons.io.IOUtils;
 
-import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
+import java.io.InputStream;
 import java.util.Base64;
 import java.util.Enumeration;
 
 public class RpcReadException extends Exception {
-    private ServletInputStream in;
+    private InputStream in;
     private byte[] incomplete;
 
-    public RpcReadException(byte[] incomplete, ServletInputStream in, String message) {
+    public RpcReadException(byte[] incomplete, InputStream in, String message) {
         super(message);
         this.in = in;
         this.incomplete = incomplete;
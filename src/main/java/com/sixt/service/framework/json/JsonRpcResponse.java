@@ -16,11 +16,14 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.protobuf.Message;
+import com.sixt.service.framework.protobuf.ProtobufUtil;
 import com.sixt.service.framework.rpc.RpcCallException;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 
 public class JsonRpcResponse {
 
@@ -30,6 +33,9 @@ public class JsonRpcResponse {
 
     private JsonElement id;
     private JsonElement result;
+    // when set, the result was printed directly from the protobuf message instead of from 'result'
+    private Message resultMessage;
+    private String resultJson;
     private JsonElement error;
     // HTTP status code, not part of the JSON-RPC spec, used for internal purposes only
     private int statusCode;
@@ -45,10 +51,30 @@ public class JsonRpcResponse {
         JsonObject retval = new JsonObject();
         retval.add(ID_FIELD, id);
         retval.add(ERROR_FIELD, error);
-        retval.add(RESULT_FIELD, result);
+        retval.add(RESULT_FIELD, getResult());
         return retval;
     }
 
+    /**
+     * Writes the same document as toJson(), but writes a protobuf result as the json text
+     * it was printed to instead of converting it to a JsonElement first
+     */
+    public void writeTo(Appendable out) throws IOException {
+        out.append("{\"").append(ID_FIELD).append("\":").append(toJsonText(id));
+        out.append(",\"").append(ERROR_FIELD).append("\":").append(toJsonText(error));
+        out.append(",\"").append(RESULT_FIELD).append("\":");
+        if (resultJson != null) {
+            out.append(resultJson);
+        } else {
+            out.append(toJsonText(result));
+        }
+        out.append('}');
+    }
+
+    private static String toJsonText(JsonElement element) {
+        return element == null ? JsonNull.INSTANCE.toString() : element.toString();
+    }
+
     @Override
     public String toString() {
         ToStringBuilder builder = new ToStringBuilder(this);
@@ -60,7 +86,10 @@ public class JsonRpcResponse {
 
     public static JsonRpcResponse fromString(String rawResponse) {
         JsonParser parser = new JsonParser();
-        JsonObject response = parser.parse(rawResponse).getAsJsonObject();
+        return fromJson(parser.parse(rawResponse).getAsJsonObject());
+    }
+
+    public static JsonRpcResponse fromJson(JsonObject response) {
         JsonElement id = response.get("id");
         JsonElement errorElement = response.get("error");
         int responseStatus = HttpServletResponse.SC_OK;
@@ -97,11 +126,39 @@ public class JsonRpcResponse {
     }
 
     public JsonElement getResult() {
+        if (result == null && resultJson != null) {
+            result = new JsonParser().parse(resultJson);
+        }
         return result;
     }
 
     public void setResult(JsonElement result) {
         this.result = result;
+        this.resultMessage = null;
+        this.resultJson = null;
+    }
+
+    public Message getResultMessage() {
+        return resultMessage;
+    }
+
+    /**
+     * Sets the result as a protobuf message.  It is printed to json text right away, so
+     * that a message which can't be converted fails here and not while the response is
+     * written.  It's only parsed into a JsonElement when getResult() is called.
+     *
+     * @throws RuntimeException if the message can't be converted to json
+     */
+    public void setResultMessage(Message resultMessage) {
+        StringBuilder json = new StringBuilder();
+        try {
+            ProtobufUtil.protobufToJson(resultMessage, json);
+        } catch (IOException e) {
+            throw new RuntimeException("Error deserializing protobuf to json", e);
+        }
+        this.resultMessage = resultMessage;
+        this.resultJson = json.toString();
+        this.result = null;
     }
 
     public JsonElement getError() {
@@ -0,0 +1,315 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sixt.service.framework.protobuf;
+
+import com.google.common.io.BaseEncoding;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumDescriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.Value;
+import com.google.protobuf.util.JsonFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decodes json straight from a JsonReader into a protobuf message, touching every token once.
+ * Follows JsonFormat.parser().ignoringUnknownFields(), plus the framework convention that
+ * nulls are ignored, also inside of arrays.  Well-known types (Timestamp, Struct, Any, ...)
+ * are read as a tree and handed to JsonFormat.
+ */
+@SuppressWarnings("unchecked")
+public class ProtobufJsonReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProtobufJsonReader.class);
+
+    private static final String WELL_KNOWN_TYPES_PACKAGE = "google.protobuf.";
+    private static final BigInteger MAX_UINT64 = new BigInteger("FFFFFFFFFFFFFFFF", 16);
+    private static final JsonFormat.Parser wellKnownTypeParser = JsonFormat.parser().ignoringUnknownFields();
+    // fields of a message type by json name and by proto name
+    private static final Map<Descriptor, Map<String, FieldDescriptor>> fieldsByName = new ConcurrentHashMap<>();
+
+    private ProtobufJsonReader() {
+    }
+
+    /**
+     * Reads the next json value as a message.  A json null yields null, any other value
+     * that is not an object yields the default instance of the message.
+     *
+     * @throws IOException              if the json is malformed
+     * @throws IllegalArgumentException if a value doesn't match the message definition
+     * @throws IllegalStateException    if the json structure doesn't match the message definition
+     */
+    public static <TYPE extends Message> TYPE read(JsonReader reader, Class<TYPE> messageClass)
+            throws IOException {
+        TYPE defaultInstance = ProtobufParsers.getDefaultInstance(messageClass);
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        if (token != JsonToken.BEGIN_OBJECT) {
+            logger.warn("Parsing json that is not an object to protobuf is deprecated and will be " +
+                    "removed in the next major release");
+            reader.skipValue();
+            return defaultInstance;
+        }
+        Message.Builder builder = defaultInstance.newBuilderForType();
+        mergeMessage(reader, builder);
+        return (TYPE) builder.build();
+    }
+
+    private static void mergeMessage(JsonReader reader, Message.Builder builder) throws IOException {
+        Descriptor descriptor = builder.getDescriptorForType();
+        if (descriptor.getFullName().startsWith(WELL_KNOWN_TYPES_PACKAGE)) {
+            mergeWellKnownType(reader, builder);
+            return;
+        }
+        Map<String, FieldDescriptor> fields = getFields(descriptor);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            FieldDescriptor field = fields.get(reader.nextName());
+            if (field == null) {
+                reader.skipValue();
+            } else if (reader.peek() == JsonToken.NULL && ! isValueType(field)) {
+                reader.nextNull();
+            } else if (field.isMapField()) {
+                mergeMap(reader, field, builder);
+            } else if (field.isRepeated()) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.nextNull();
+                    } else {
+                        builder.addRepeatedField(field, readValue(reader, field, builder));
+                    }
+                }
+                reader.endArray();
+            } else {
+                builder.setField(field, readValue(reader, field, builder));
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void mergeMap(JsonReader reader, FieldDescriptor field, Message.Builder builder)
+            throws IOException {
+        FieldDescriptor keyField = field.getMessageType().findFieldByName("key");
+        FieldDescriptor valueField = field.getMessageType().findFieldByName("value");
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (reader.peek() == JsonToken.NULL && ! isValueType(valueField)) {
+                throw new IllegalArgumentException("Map value cannot be null: " + field.getFullName());
+            }
+            Message.Builder entry = builder.newBuilderForField(field);
+            entry.setField(keyField, parseMapKey(key, keyField));
+            entry.setField(valueField, readValue(reader, valueField, entry));
+            builder.addRepeatedField(field, entry.build());
+        }
+        reader.endObject();
+    }
+
+    private static Object readValue(JsonReader reader, FieldDescriptor field, Message.Builder parent)
+            throws IOException {
+        switch (field.getType()) {
+            case MESSAGE:
+            case GROUP:
+                Message.Builder builder = parent.newBuilderForField(field);
+                mergeMessage(reader, builder);
+                return builder.build();
+            case INT32:
+            case SINT32:
+            case SFIXED32:
+                return parseInt32(reader.nextString());
+            case INT64:
+            case SINT64:
+            case SFIXED64:
+                return parseInt64(reader.nextString());
+            case UINT32:
+            case FIXED32:
+                return parseUint32(reader.nextString());
+            case UINT64:
+            case FIXED64:
+                return parseUint64(reader.nextString());
+            case FLOAT:
+                return parseFloat(reader.nextString());
+            case DOUBLE:
+                return Double.parseDouble(reader.nextString());
+            case BOOL:
+                return readBoolean(reader);
+            case STRING:
+                return reader.peek() == JsonToken.BOOLEAN ? String.valueOf(reader.nextBoolean()) : reader.nextString();
+            case BYTES:
+                return ByteString.copyFrom(decodeBase64(reader.nextString()));
+            case ENUM:
+                return parseEnum(reader.nextString(), field.getEnumType());
+            default:
+                throw new IllegalArgumentException("Unsupported field type: " + field.getType());
+        }
+    }
+
+    private static Object parseMapKey(String key, FieldDescriptor keyField) {
+        switch (keyField.getType()) {
+            case BOOL:
+                if ("true".equals(key) || "false".equals(key)) {
+                    return Boolean.valueOf(key);
+                }
+                throw new IllegalArgumentException("Invalid bool map key: " + key);
+            case INT32:
+            case SINT32:
+            case SFIXED32:
+                return parseInt32(key);
+            case INT64:
+            case SINT64:
+            case SFIXED64:
+                return parseInt64(key);
+            case UINT32:
+            case FIXED32:
+                return parseUint32(key);
+            case UINT64:
+            case FIXED64:
+                return parseUint64(key);
+            default:
+                return key;
+        }
+    }
+
+    private static void mergeWellKnownType(JsonReader reader, Message.Builder builder) throws IOException {
+        JsonElement element;
+        try {
+            element = new JsonParser().parse(reader);
+        } catch (JsonParseException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+        ProtobufUtil.cleanJsonElement(element);
+        try {
+            wellKnownTypeParser.merge(element.toString(), builder);
+        } catch (InvalidProtocolBufferException ex) {
+            throw new IllegalArgumentException(ex.getMessage(), ex);
+        }
+    }
+
+    // a json null is a valid google.protobuf.Value, for every other field it means "not set"
+    private static boolean isValueType(FieldDescriptor field) {
+        return field.getJavaType() == FieldDescriptor.JavaType.MESSAGE &&
+                field.getMessageType().getFullName().equals(Value.getDescriptor().getFullName());
+    }
+
+    private static Map<String, FieldDescriptor> getFields(Descriptor descriptor) {
+        return fieldsByName.computeIfAbsent(descriptor, type -> {
+            Map<String, FieldDescriptor> retval = new HashMap<>();
+            for (FieldDescriptor field : type.getFields()) {
+                retval.put(field.getName(), field);
+                retval.put(field.getJsonName(), field);
+            }
+            return retval;
+        });
+    }
+
+    private static int parseInt32(String text) {
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException ex) {
+            return new BigDecimal(text).intValueExact();
+        }
+    }
+
+    private static long parseInt64(String text) {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException ex) {
+            return new BigDecimal(text).longValueExact();
+        }
+    }
+
+    private static int parseUint32(String text) {
+        long value = parseInt64(text);
+        if (value < 0 || value > 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("Out of range uint32 value: " + text);
+        }
+        return (int) value;
+    }
+
+    private static long parseUint64(String text) {
+        BigInteger value = new BigDecimal(text).toBigIntegerExact();
+        if (value.signum() < 0 || value.compareTo(MAX_UINT64) > 0) {
+            throw new IllegalArgumentException("Out of range uint64 value: " + text);
+        }
+        return value.longValue();
+    }
+
+    private static float parseFloat(String text) {
+        double value = Double.parseDouble(text);
+        if (! Double.isNaN(value) && ! Double.isInfinite(value) && Math.abs(value) > Float.MAX_VALUE * (1.0 + 1e-6)) {
+            throw new IllegalArgumentException("Out of range float value: " + text);
+        }
+        return (float) value;
+    }
+
+    private static boolean readBoolean(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.BOOLEAN) {
+            return reader.nextBoolean();
+        }
+        String text = reader.nextString();
+        if ("true".equals(text) || "false".equals(text)) {
+            return Boolean.valueOf(text);
+        }
+        throw new IllegalArgumentException("Invalid bool value: " + text);
+    }
+
+    private static byte[] decodeBase64(String text) {
+        try {
+            return BaseEncoding.base64().decode(text);
+        } catch (IllegalArgumentException ex) {
+            return BaseEncoding.base64Url().decode(text);
+        }
+    }
+
+    private static EnumValueDescriptor parseEnum(String text, EnumDescriptor enumType) {
+        EnumValueDescriptor value = enumType.findValueByName(text);
+        if (value == null) {
+            int number;
+            try {
+                number = parseInt32(text);
+            } catch (RuntimeException ex) {
+                throw new IllegalArgumentException("Invalid enum value: " + text + " for enum type: " +
+                        enumType.getFullName());
+            }
+            value = enumType.getFile().getSyntax() == FileDescriptor.Syntax.PROTO3 ?
+                    enumType.findValueByNumberCreatingIfUnknown(number) : enumType.findValueByNumber(number);
+            if (value == null) {
+                throw new IllegalArgumentException("Invalid enum value: " + text + " for enum type: " +
+                        enumType.getFullName());
+            }
+        }
+        return value;
+    }
+
+}
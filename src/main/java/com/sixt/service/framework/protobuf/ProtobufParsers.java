@@ -0,0 +1,54 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sixt.service.framework.protobuf;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+
+/**
+ * Registry of the default instance and parser of protobuf message classes.  They are looked
+ * up reflectively the first time a class is seen, every later (de)serialization is a plain
+ * field access.
+ */
+@SuppressWarnings("unchecked")
+public class ProtobufParsers {
+
+    private static final ClassValue<Message> defaultInstances = new ClassValue<Message>() {
+        @Override
+        protected Message computeValue(Class<?> type) {
+            try {
+                return (Message) type.getMethod("getDefaultInstance").invoke(null);
+            } catch (Exception ex) {
+                throw new IllegalArgumentException("Not a generated protobuf message: " + type.getName(), ex);
+            }
+        }
+    };
+
+    private ProtobufParsers() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if the class is not a generated protobuf message
+     */
+    public static <TYPE extends Message> TYPE getDefaultInstance(Class<TYPE> messageClass) {
+        return (TYPE) defaultInstances.get(messageClass);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the class is not a generated protobuf message
+     */
+    public static <TYPE extends Message> Parser<TYPE> getParser(Class<TYPE> messageClass) {
+        return (Parser<TYPE>) defaultInstances.get(messageClass).getParserForType();
+    }
+
+}
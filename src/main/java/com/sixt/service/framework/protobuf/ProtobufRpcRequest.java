@@ -21,6 +21,9 @@ import com.google.protobuf.Message;
  */
 public class ProtobufRpcRequest {
 
+    // service method of a request whose body is an RpcEnvelope.BatchRequest
+    public final static String BATCH_METHOD = "rpc.Batch";
+
     private String serviceMethod;
     private Long sequenceNumber;
     private Message payload;
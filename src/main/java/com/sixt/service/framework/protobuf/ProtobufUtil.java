@@ -13,6 +13,10 @@
 package com.sixt.service.framework.protobuf;
 
 import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Message;
 import com.google.protobuf.util.JsonFormat;
 import com.sixt.service.framework.rpc.RpcCallException;
@@ -21,7 +25,8 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.reflect.Constructor;
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -33,15 +38,15 @@ public class ProtobufUtil {
     public static final int MAX_BODY_CHUNK_SIZE = 10_000_000;
     private static final Logger logger = LoggerFactory.getLogger(ProtobufUtil.class);
 
-    private static <TYPE extends Message> TYPE.Builder getBuilder(Class<TYPE> messageClass) throws NoSuchMethodException,
-            InstantiationException, IllegalAccessException, java.lang.reflect.InvocationTargetException {
-
-        Constructor<TYPE> constructor = messageClass.getDeclaredConstructor();
-        constructor.setAccessible(true);
-        TYPE instance = constructor.newInstance();
-
-        return instance.newBuilderForType();
-    }
+    // printers are immutable and thread-safe, but building one walks its whole configuration
+    private static final JsonFormat.Printer protoFieldNamePrinter = JsonFormat.printer()
+            .preservingProtoFieldNames();
+    private static final JsonFormat.Printer camelCasePrinter = JsonFormat.printer();
+    private static final JsonFormat.Printer defaultValuePrinter = JsonFormat.printer()
+            .preservingProtoFieldNames()
+            .includingDefaultValueFields();
+    private static final JsonFormat.Printer compactPrinter = protoFieldNamePrinter
+            .omittingInsignificantWhitespace();
 
     /**
      * NOTE: this is only using the first element of the JsonArray
@@ -67,27 +72,32 @@ public class ProtobufUtil {
             return null;
         }
 
-        if (!isValidJSON(input)) {
+        if (!isJsonObject(input)) {
             try {
-                return (TYPE) getBuilder(messageClass).getDefaultInstanceForType();
+                return ProtobufParsers.getDefaultInstance(messageClass);
             } catch (Exception e) {
                 logger.warn("Error building protobuf object of type {} from json: {}",
                         messageClass.getName(), input);
             }
         }
 
+        JsonReader reader = new JsonReader(new StringReader(input));
+        reader.setLenient(true);
         try {
-            TYPE.Builder builder = getBuilder(messageClass);
-            JsonElement element = new JsonParser().parse(input);
-            cleanJsonElement(element);
-            JsonFormat.parser().ignoringUnknownFields().merge(element.toString(), builder);
-            return (TYPE) builder.build();
+            TYPE retval = ProtobufJsonReader.read(reader, messageClass);
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new MalformedJsonException("Did not consume the entire document");
+            }
+            return retval;
+        } catch (IOException e) {
+            //malformed json has always been treated like an empty message
+            return ProtobufParsers.getDefaultInstance(messageClass);
         } catch (Exception e) {
             throw new RuntimeException("Error deserializing json to protobuf. Input = " + input, e);
         }
     }
 
-    private static void cleanJsonElement(JsonElement element) {
+    static void cleanJsonElement(JsonElement element) {
         if (element.isJsonNull() || element.isJsonPrimitive()) {
             return;
         }
@@ -122,7 +132,7 @@ public class ProtobufUtil {
         }
     }
 
-    private static boolean isValidJSON(String input) {
+    private static boolean isJsonObject(String input) {
         if (StringUtils.isBlank(input)) {
             logger.warn("Parsing empty json string to protobuf is deprecated and will be removed in " +
                     "the next major release");
@@ -135,12 +145,6 @@ public class ProtobufUtil {
             return false;
         }
 
-        try {
-            new JsonParser().parse(input);
-        } catch (JsonParseException ex) {
-            return false;
-        }
-
         return true;
     }
 
@@ -155,14 +159,31 @@ public class ProtobufUtil {
     public static <TYPE extends Message> TYPE byteArrayToProtobuf(byte data[], Class<TYPE> messageClass)
             throws RpcCallException {
         try {
-            Message.Builder builder = getBuilder(messageClass);
-            return (TYPE) builder.mergeFrom(data).build();
+            return ProtobufParsers.getParser(messageClass).parseFrom(data);
         } catch (Exception e) {
             throw new RpcCallException(RpcCallException.Category.InternalServerError,
                     "Error deserializing byte array to protobuf: " + e);
         }
     }
 
+    /**
+     * Converts a ByteString to a protobuf message without copying it into a byte array first
+     *
+     * @param data         the bytes to convert
+     * @param messageClass the protobuf message class to convert into
+     * @return the converted protobuf message
+     * @throws RpcCallException if something goes wrong during the deserialization
+     */
+    public static <TYPE extends Message> TYPE byteStringToProtobuf(ByteString data, Class<TYPE> messageClass)
+            throws RpcCallException {
+        try {
+            return ProtobufParsers.getParser(messageClass).parseFrom(data);
+        } catch (Exception e) {
+            throw new RpcCallException(RpcCallException.Category.InternalServerError,
+                    "Error deserializing byte string to protobuf: " + e);
+        }
+    }
+
     /**
      * Creates an empty protobuf message of the specified type
      *
@@ -171,8 +192,7 @@ public class ProtobufUtil {
      */
     public static <TYPE extends Message> TYPE newEmptyMessage(Class<TYPE> klass) {
         try {
-            Message.Builder builder = getBuilder(klass);
-            return (TYPE) builder.build();
+            return ProtobufParsers.getDefaultInstance(klass);
         } catch (Exception e) {
             throw new RuntimeException("Error deserializing byte array to protobuf", e);
         }
@@ -192,9 +212,7 @@ public class ProtobufUtil {
             logger.warn("Protobuf message was null");
         } else {
             try {
-                String jsonString = JsonFormat.printer()
-                        .preservingProtoFieldNames()
-                        .print(input);
+                String jsonString = protoFieldNamePrinter.print(input);
                 object = new JsonParser().parse(jsonString).getAsJsonObject();
             } catch (Exception e) {
                 throw new RuntimeException("Error deserializing protobuf to json", e);
@@ -203,6 +221,24 @@ public class ProtobufUtil {
         return object;
     }
 
+    /**
+     * Prints a protobuf message as compact JSON straight into the output, without
+     * building an intermediate JSON object
+     * <p>
+     * Note: Preserves the field names as defined in the proto definition
+     *
+     * @param input  the protobuf message to convert (null is printed as an empty object)
+     * @param output where to append the JSON text to
+     */
+    public static void protobufToJson(Message input, Appendable output) throws IOException {
+        if (input == null) {
+            logger.warn("Protobuf message was null");
+            output.append("{}");
+        } else {
+            compactPrinter.appendTo(input, output);
+        }
+    }
+
     /**
      * Converts a protobuf message to a JSON object
      * <p>
@@ -217,8 +253,7 @@ public class ProtobufUtil {
             logger.warn("Protobuf message was null");
         } else {
             try {
-                String jsonString = JsonFormat.printer()
-                        .print(input);
+                String jsonString = camelCasePrinter.print(input);
                 object = new JsonParser().parse(jsonString).getAsJsonObject();
             } catch (Exception e) {
                 throw new RuntimeException("Error deserializing protobuf to json", e);
@@ -242,10 +277,7 @@ public class ProtobufUtil {
             logger.warn("Protobuf message was null");
         } else {
             try {
-                String jsonString = JsonFormat.printer()
-                    .preservingProtoFieldNames()
-                    .includingDefaultValueFields()
-                    .print(input);
+                String jsonString = defaultValuePrinter.print(input);
                 object = new JsonParser().parse(jsonString).getAsJsonObject();
             } catch (Exception e) {
                 throw new RuntimeException("Error deserializing protobuf to json", e);
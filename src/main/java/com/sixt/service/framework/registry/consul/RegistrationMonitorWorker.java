@@ -28,7 +28,6 @@ import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -49,7 +48,6 @@ public class RegistrationMonitorWorker implements Runnable {
     protected Semaphore shutdownSemaphore = new Semaphore(0);
     protected String consulIndex;
     protected LoadBalancer loadbalancer;
-    protected ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2);
     protected AtomicBoolean healthEndpointCalled = new AtomicBoolean(false);
     protected AtomicBoolean isShutdown = new AtomicBoolean(false);
     protected ServiceDependencyHealthCheck dependencyHealthCheck;
@@ -231,8 +229,8 @@ public class RegistrationMonitorWorker implements Runnable {
     }
 
     protected ServiceEndpoint newServiceEndpoint(ConsulHealthEntry entry) {
-        ServiceEndpoint retval = new ServiceEndpoint(executor,
-                entry.getAddressAndPort(), entry.getAvailZone(), dependencyHealthCheck);
+        ServiceEndpoint retval = new ServiceEndpoint(entry.getAddressAndPort(), entry.getAvailZone(),
+                CircuitBreaker.forService(serviceProps, serviceName), dependencyHealthCheck);
         retval.setServiceName(serviceName);
         if (ConsulHealthEntry.Status.Passing.equals(entry.getStatus())) {
             //TODO: this might need some more work.  a flapping service in consul should
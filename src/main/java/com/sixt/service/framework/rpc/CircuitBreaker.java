@@ -0,0 +1,52 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import com.sixt.service.framework.FeatureFlags;
+import com.sixt.service.framework.ServiceProperties;
+
+/**
+ * Decides whether a ServiceEndpoint may receive requests, based on the outcome of the
+ * previous ones.  Implementations use the states of CircuitBreakerState, so that health
+ * updates from the service registry and monitoring work for all of them.
+ */
+public interface CircuitBreaker {
+
+    String SLIDING_WINDOW = "sliding_window";
+
+    void setState(CircuitBreakerState.State state);
+
+    CircuitBreakerState.State getState();
+
+    /**
+     * @param oneAlreadyQueued whether the endpoint is already serving a request
+     */
+    boolean canServeRequests(boolean oneAlreadyQueued);
+
+    void requestComplete(boolean resultGood);
+
+    default void requestComplete(boolean resultGood, long latencyNanos) {
+        requestComplete(resultGood);
+    }
+
+    /**
+     * @return a new breaker of the type configured for the given destination service
+     */
+    static CircuitBreaker forService(ServiceProperties serviceProps, String serviceName) {
+        if (SLIDING_WINDOW.equals(FeatureFlags.getCircuitBreaker(serviceProps, serviceName))) {
+            return new SlidingWindowCircuitBreaker(serviceProps, serviceName);
+        }
+        return new CircuitBreakerState();
+    }
+
+}
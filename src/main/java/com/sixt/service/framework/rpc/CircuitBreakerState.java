@@ -12,15 +12,12 @@
 
 package com.sixt.service.framework.rpc;
 
-import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.sixt.service.framework.rpc.CircuitBreakerState.State.PRIMARY_HEALTHY;
 import static com.sixt.service.framework.rpc.CircuitBreakerState.State.PRIMARY_PROBE;
@@ -33,7 +30,14 @@ import static com.sixt.service.framework.rpc.CircuitBreakerState.State.TERTIARY_
 import static com.sixt.service.framework.rpc.CircuitBreakerState.State.TERTIARY_TRIPPED;
 import static com.sixt.service.framework.rpc.CircuitBreakerState.State.UNHEALTHY;
 
-public class CircuitBreakerState {
+/**
+ * Lock-free circuit breaker.  The state, the history of the last responses (as a ring
+ * of bits) and a generation counter are packed into one long that is only changed by
+ * compare-and-set, so completing a request allocates nothing and only the thread that
+ * wins a transition schedules its timer.  Timers carry the generation they were
+ * scheduled in and are ignored if the breaker changed state in the meantime.
+ */
+public class CircuitBreakerState implements CircuitBreaker {
 
     private static final Logger logger = LoggerFactory.getLogger(CircuitBreakerState.class);
 
@@ -42,8 +46,6 @@ public class CircuitBreakerState {
     public final static int SECONDARY_TRIP_TIME = 30;
     public final static int TERTIARY_TRIP_TIME = 60;
 
-    private ScheduledThreadPoolExecutor executor;
-
     public enum State {
         PRIMARY_HEALTHY,
         PRIMARY_TRIPPED,
@@ -57,23 +59,63 @@ public class CircuitBreakerState {
         UNHEALTHY
     }
 
-    private volatile State state;
-    private List<Boolean> responseHistory = new LinkedList<>();
+    private static final State[] STATES = State.values();
 
+    // layout of the packed state: | generation | failure bits | sample count | state |
+    private static final int STATE_BITS = 4;
+    private static final int COUNT_BITS = 6;
+    private static final int HISTORY_BITS = 32;
+    private static final int COUNT_SHIFT = STATE_BITS;
+    private static final int HISTORY_SHIFT = COUNT_SHIFT + COUNT_BITS;
+    private static final int GENERATION_SHIFT = HISTORY_SHIFT + HISTORY_BITS;
+    private static final long STATE_MASK = (1L << STATE_BITS) - 1;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    private static final long HISTORY_MASK = (1L << HISTORY_SIZE) - 1;
+    private static final long GENERATION_MASK = (1L << (64 - GENERATION_SHIFT)) - 1;
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final HashedTimerWheel timer;
+    private final AtomicLong packed = new AtomicLong(pack(PRIMARY_HEALTHY, 0, 0, 0));
+
+    /**
+     * Transitions are driven by the timer wheel shared by all breakers
+     */
+    public CircuitBreakerState() {
+        this(HashedTimerWheel.getShared());
+    }
+
+    public CircuitBreakerState(HashedTimerWheel timer) {
+        this.executor = null;
+        this.timer = timer;
+    }
+
+    /**
+     * Transitions are scheduled on the given executor instead of the shared timer wheel.
+     * If the executor is null, the shared timer wheel is used.
+     */
     public CircuitBreakerState(ScheduledThreadPoolExecutor executor) {
         this.executor = executor;
-        this.state = PRIMARY_HEALTHY;
+        this.timer = executor == null ? HashedTimerWheel.getShared() : null;
     }
 
-    public synchronized void setState(State state) {
-        this.state = state;
+    @Override
+    public void setState(State state) {
+        while (true) {
+            long current = packed.get();
+            if (packed.compareAndSet(current, pack(state, 0, 0, nextGeneration(current)))) {
+                return;
+            }
+        }
     }
 
+    @Override
     public State getState() {
-        return state;
+        return stateOf(packed.get());
     }
 
-    public synchronized boolean canServeRequests(boolean oneAlreadyQueued) {
+    @Override
+    public boolean canServeRequests(boolean oneAlreadyQueued) {
+        State state = getState();
         switch (state) {
             case PRIMARY_HEALTHY:
             case SECONDARY_HEALTHY:
@@ -93,166 +135,186 @@ public class CircuitBreakerState {
         }
     }
 
-    public synchronized void requestComplete(boolean resultGood) {
-        switch (state) {
+    @Override
+    public void requestComplete(boolean resultGood) {
+        while (true) {
+            long current = packed.get();
+            State state = stateOf(current);
+            long newGeneration = nextGeneration(current);
+            switch (state) {
+                case PRIMARY_HEALTHY:
+                case SECONDARY_HEALTHY:
+                case TERTIARY_HEALTHY:
+                    int count = countOf(current);
+                    long history = historyOf(current);
+                    if (resultGood && count == HISTORY_SIZE && history == 0) {
+                        //nothing to remember, don't write
+                        return;
+                    }
+                    history = ((history << 1) | (resultGood ? 0 : 1)) & HISTORY_MASK;
+                    count = Math.min(count + 1, HISTORY_SIZE);
+                    if (count == HISTORY_SIZE && Long.bitCount(history) >= HISTORY_SIZE) {
+                        State tripped = tripped(state);
+                        if (packed.compareAndSet(current, pack(tripped, 0, 0, newGeneration))) {
+                            logger.debug("CircuitBreaker tripped!");
+                            schedule(tripped, probe(tripped), newGeneration, tripTime(tripped));
+                            return;
+                        }
+                    } else if (packed.compareAndSet(current, pack(state, count, history,
+                            generationOf(current)))) {
+                        return;
+                    }
+                    break;
+                case PRIMARY_TRIPPED:
+                case SECONDARY_TRIPPED:
+                case TERTIARY_TRIPPED:
+                case UNHEALTHY:
+                    return;
+                case PRIMARY_PROBE:
+                case SECONDARY_PROBE:
+                case TERTIARY_PROBE:
+                    State next = resultGood ? healthyAfterProbe(state) : trippedAfterProbe(state);
+                    if (packed.compareAndSet(current, pack(next, 0, 0, newGeneration))) {
+                        if (resultGood) {
+                            logger.debug("CircuitBreaker was tripped, became healthy");
+                            schedule(next, promoted(next), newGeneration, probeTime(state));
+                        } else {
+                            logger.debug("CircuitBreaker tripped!");
+                            schedule(next, probe(next), newGeneration, tripTime(next));
+                        }
+                        return;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected state: " + state);
+            }
+        }
+    }
+
+    public static boolean isTripped(State state) {
+        return state.equals(SECONDARY_TRIPPED) || state.equals(TERTIARY_TRIPPED) ||
+                state.equals(UNHEALTHY);
+    }
+
+    private void schedule(State fromState, State toState, long generation, int seconds) {
+        StateChanger changer = new StateChanger(fromState, toState, generation);
+        if (executor != null) {
+            executor.schedule(changer, seconds, TimeUnit.SECONDS);
+        } else {
+            timer.schedule(changer, seconds, TimeUnit.SECONDS);
+        }
+    }
+
+    private static State tripped(State healthy) {
+        switch (healthy) {
             case PRIMARY_HEALTHY:
+                return PRIMARY_TRIPPED;
             case SECONDARY_HEALTHY:
-            case TERTIARY_HEALTHY:
-                responseHistory.add(resultGood);
-                if (responseHistory.size() > HISTORY_SIZE) {
-                    responseHistory.remove(0);
-                }
-                if (hasFailed()) {
-                    logger.debug("CircuitBreaker tripped!");
-                    if (state.equals(PRIMARY_HEALTHY)) {
-                        setState(PRIMARY_TRIPPED);
-                        executor.schedule(primaryTrippedToPrimaryProbe,
-                                PRIMARY_TRIP_TIME, TimeUnit.SECONDS);
-                    } else if (state.equals(SECONDARY_HEALTHY)) {
-                        setState(SECONDARY_TRIPPED);
-                        executor.schedule(secondaryTrippedToSecondaryProbe,
-                                SECONDARY_TRIP_TIME, TimeUnit.SECONDS);
-                    } else {
-                        setState(TERTIARY_TRIPPED);
-                        executor.schedule(tertiaryTrippedToTertiaryProbe,
-                                TERTIARY_TRIP_TIME, TimeUnit.SECONDS);
-                    }
-                }
-                break;
+                return SECONDARY_TRIPPED;
+            default:
+                return TERTIARY_TRIPPED;
+        }
+    }
+
+    private static State probe(State tripped) {
+        switch (tripped) {
             case PRIMARY_TRIPPED:
+                return PRIMARY_PROBE;
             case SECONDARY_TRIPPED:
-            case TERTIARY_TRIPPED:
-            case UNHEALTHY:
-                return;
+                return SECONDARY_PROBE;
+            default:
+                return TERTIARY_PROBE;
+        }
+    }
+
+    private static int tripTime(State tripped) {
+        switch (tripped) {
+            case PRIMARY_TRIPPED:
+                return PRIMARY_TRIP_TIME;
+            case SECONDARY_TRIPPED:
+                return SECONDARY_TRIP_TIME;
+            default:
+                return TERTIARY_TRIP_TIME;
+        }
+    }
+
+    private static State healthyAfterProbe(State probe) {
+        return probe.equals(TERTIARY_PROBE) ? TERTIARY_HEALTHY : SECONDARY_HEALTHY;
+    }
+
+    private static State trippedAfterProbe(State probe) {
+        return probe.equals(PRIMARY_PROBE) ? SECONDARY_TRIPPED : TERTIARY_TRIPPED;
+    }
+
+    //how long a breaker stays in the healthy state reached by a successful probe
+    private static int probeTime(State probe) {
+        switch (probe) {
             case PRIMARY_PROBE:
-                if (resultGood) {
-                    logger.debug("CircuitBreaker was tripped, became healthy");
-                    setState(SECONDARY_HEALTHY);
-                    responseHistory.clear();
-                    executor.schedule(secondaryHealthyToPrimaryHealthy,
-                            PRIMARY_TRIP_TIME, TimeUnit.SECONDS);
-                } else {
-                    logger.debug("CircuitBreaker tripped!");
-                    setState(SECONDARY_TRIPPED);
-                    executor.schedule(secondaryTrippedToSecondaryProbe,
-                            SECONDARY_TRIP_TIME, TimeUnit.SECONDS);
-                }
-                break;
+                return PRIMARY_TRIP_TIME;
             case SECONDARY_PROBE:
-                if (resultGood) {
-                    logger.debug("CircuitBreaker was tripped, became healthy");
-                    setState(SECONDARY_HEALTHY);
-                    responseHistory.clear();
-                    executor.schedule(secondaryHealthyToPrimaryHealthy,
-                            SECONDARY_TRIP_TIME, TimeUnit.SECONDS);
-                } else {
-                    logger.debug("CircuitBreaker tripped!");
-                    setState(TERTIARY_TRIPPED);
-                    executor.schedule(tertiaryTrippedToTertiaryProbe,
-                            TERTIARY_TRIP_TIME, TimeUnit.SECONDS);
-                }
-                break;
-            case TERTIARY_PROBE:
-                if (resultGood) {
-                    logger.debug("CircuitBreaker was tripped, became healthy");
-                    setState(TERTIARY_HEALTHY);
-                    responseHistory.clear();
-                    executor.schedule(tertiaryHealthyToSecondaryHealthy,
-                            TERTIARY_TRIP_TIME, TimeUnit.SECONDS);
-                } else {
-                    logger.debug("CircuitBreaker tripped!");
-                    setState(TERTIARY_TRIPPED);
-                    executor.schedule(tertiaryTrippedToTertiaryProbe,
-                            TERTIARY_TRIP_TIME, TimeUnit.SECONDS);
-                }
-                break;
+                return SECONDARY_TRIP_TIME;
             default:
-                throw new IllegalStateException("Unexpected state: " + state);
+                return TERTIARY_TRIP_TIME;
         }
     }
 
-    public static boolean isTripped(State state) {
-        return state.equals(SECONDARY_TRIPPED) || state.equals(TERTIARY_TRIPPED) ||
-                state.equals(UNHEALTHY);
+    private static State promoted(State healthy) {
+        return healthy.equals(TERTIARY_HEALTHY) ? SECONDARY_HEALTHY : PRIMARY_HEALTHY;
     }
 
-    private boolean hasFailed() {
-        int size = responseHistory.size();
-        if (size < HISTORY_SIZE) {
-            return false;
-        } else if (size > HISTORY_SIZE) {
-            logger.warn("Unexpected responseHistory size: {}", size);
-            return false;
-        } else {
-            int occurrences = Collections.frequency(responseHistory, Boolean.FALSE);
-            return occurrences >= HISTORY_SIZE;
-        }
+    private static long pack(State state, int count, long history, long generation) {
+        return state.ordinal() | ((long) count << COUNT_SHIFT) | (history << HISTORY_SHIFT) |
+                (generation << GENERATION_SHIFT);
+    }
+
+    private static long nextGeneration(long packed) {
+        return (generationOf(packed) + 1) & GENERATION_MASK;
+    }
+
+    private static State stateOf(long packed) {
+        return STATES[(int) (packed & STATE_MASK)];
+    }
+
+    private static int countOf(long packed) {
+        return (int) ((packed >>> COUNT_SHIFT) & COUNT_MASK);
+    }
+
+    private static long historyOf(long packed) {
+        return (packed >>> HISTORY_SHIFT) & HISTORY_MASK;
+    }
+
+    private static long generationOf(long packed) {
+        return packed >>> GENERATION_SHIFT;
     }
 
     protected class StateChanger implements Runnable {
-        private State fromState;
-        private State toState;
+        private final State fromState;
+        private final State toState;
+        private final long generation;
 
-        public StateChanger(State fromState, State toState) {
+        public StateChanger(State fromState, State toState, long generation) {
             this.fromState = fromState;
             this.toState = toState;
+            this.generation = generation;
         }
 
         @Override
         public void run() {
-            try {
-                synchronized (CircuitBreakerState.this) {
-                    if (CircuitBreakerState.this.getState().equals(fromState)) {
-                        logger.debug("CircuitBreaker timer elapsed -> {}", toState);
-                        CircuitBreakerState.this.setState(toState);
-                        if (toState.equals(SECONDARY_HEALTHY)) {
-                            executor.schedule(secondaryHealthyToPrimaryHealthy,
-                                    SECONDARY_TRIP_TIME, TimeUnit.SECONDS);
-                        }
-                    } else if (isHealthy(fromState) &&
-                            isTripped(CircuitBreakerState.this.getState())) {
-                        // don't warn, because this could happen.
-                        logger.trace("Not changing {} to {}, is tripped", fromState, toState);
-                    } else if (CircuitBreakerState.this.getState().equals(PRIMARY_HEALTHY) &&
-                            fromState.equals(PRIMARY_TRIPPED) && toState.equals(PRIMARY_PROBE)) {
-                        //do nothing, this can happen
-                    } else if (CircuitBreakerState.this.getState().equals(SECONDARY_HEALTHY) &&
-                            fromState.equals(SECONDARY_TRIPPED) && toState.equals(SECONDARY_PROBE)) {
-                        //do nothing, this can happen
-                    } else if (CircuitBreakerState.this.getState().equals(TERTIARY_HEALTHY) &&
-                            fromState.equals(TERTIARY_TRIPPED) && toState.equals(TERTIARY_PROBE)) {
-                        //do nothing, this can happen
-                    } else {
-                        //multiple failures to a service can result in multiple timers being created,
-                        //and then when one of those timers fire, another timer could have changed the
-                        //fromState already.  we haven't seen any actual bugs in this code, but
-                        //it would also be possible to refactor the timers so these else cases
-                        //wouldn't happen
-                        logger.debug("CircuitBreaker wasn't in state {}" +
-                                ", so not changing it to {}. Current state = {}",
-                                fromState, toState, getState());
-                    }
+            long current = packed.get();
+            if (! stateOf(current).equals(fromState) || generationOf(current) != generation) {
+                //the breaker changed state since this timer was scheduled
+                logger.trace("Not changing {} to {}, current state = {}", fromState, toState,
+                        stateOf(current));
+                return;
+            }
+            long next = nextGeneration(current);
+            if (packed.compareAndSet(current, pack(toState, 0, 0, next))) {
+                logger.debug("CircuitBreaker timer elapsed -> {}", toState);
+                if (toState.equals(SECONDARY_HEALTHY)) {
+                    schedule(SECONDARY_HEALTHY, PRIMARY_HEALTHY, next, SECONDARY_TRIP_TIME);
                 }
-            } catch (Exception ex) {
-                logger.error("Caught exception changing state", ex);
             }
         }
-
-        private boolean isHealthy(State state) {
-            return state.equals(SECONDARY_HEALTHY) ||
-                    state.equals(TERTIARY_HEALTHY);
-        }
     }
 
-    @VisibleForTesting
-    protected StateChanger primaryTrippedToPrimaryProbe = new StateChanger(
-            State.PRIMARY_TRIPPED, State.PRIMARY_PROBE);
-    protected StateChanger secondaryHealthyToPrimaryHealthy = new StateChanger(
-            State.SECONDARY_HEALTHY, State.PRIMARY_HEALTHY);
-    protected StateChanger secondaryTrippedToSecondaryProbe = new StateChanger(
-            State.SECONDARY_TRIPPED, State.SECONDARY_PROBE);
-    protected StateChanger tertiaryTrippedToTertiaryProbe = new StateChanger(
-            State.TERTIARY_TRIPPED, State.TERTIARY_PROBE);
-    protected StateChanger tertiaryHealthyToSecondaryHealthy = new StateChanger(
-            State.TERTIARY_HEALTHY, State.SECONDARY_HEALTHY);
 }
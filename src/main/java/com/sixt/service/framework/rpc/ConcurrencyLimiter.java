@@ -0,0 +1,130 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import com.sixt.service.framework.FeatureFlags;
+import com.sixt.service.framework.ServiceProperties;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the requests in flight to a called service, so that callers fail fast instead of
+ * piling up requests (and threads) when the service slows down.
+ * The limit is adapted with AIMD: it grows by one for every good request while it is
+ * being used, and shrinks by a factor when a request failed, timed out or when the
+ * smoothed round-trip time is much longer than the lowest recently seen one.
+ */
+public class ConcurrencyLimiter {
+
+    public final static double BACKOFF_RATIO = 0.9;
+    // a smoothed round-trip time of more than this times the lowest one is a sign of queueing
+    public final static double RTT_TOLERANCE = 2.0;
+    // weight of a new sample in the smoothed round-trip time, so that single slow
+    // requests don't shrink the limit
+    public final static double RTT_SMOOTHING = 0.1;
+    // the lowest round-trip time is forgotten after this many samples, so that a
+    // permanent change of the called service's latency is picked up
+    public final static int RTT_RESET_SAMPLES = 1000;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private volatile int limit;
+    // guarded by this
+    private double preciseLimit;
+    private long minRtt = Long.MAX_VALUE;
+    private double smoothedRtt = 0;
+    private int samples = 0;
+
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) {
+            throw new IllegalArgumentException("Concurrency limits must satisfy 1 <= min <= initial <= max");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.preciseLimit = initialLimit;
+    }
+
+    /**
+     * @return a limiter configured for the given destination service, or null if
+     * limiting is disabled
+     */
+    public static ConcurrencyLimiter forService(ServiceProperties serviceProps, String serviceName) {
+        int initialLimit = FeatureFlags.getRpcClientConcurrencyLimit(serviceProps, serviceName);
+        if (initialLimit <= 0) {
+            return null;
+        }
+        int maxLimit = FeatureFlags.getRpcClientMaxConcurrencyLimit(serviceProps, serviceName);
+        return new ConcurrencyLimiter(initialLimit, 1, Math.max(initialLimit, maxLimit));
+    }
+
+    /**
+     * @return true if the request may be sent.  It must then be followed by exactly
+     * one call to requestComplete or requestCancelled.
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param resultGood false if the request failed in a way that indicates overload
+     *                   of the called service (5xx, timeout)
+     */
+    public void requestComplete(boolean resultGood, long rttNanos) {
+        int current = inFlight.getAndDecrement();
+        synchronized (this) {
+            if (++samples >= RTT_RESET_SAMPLES) {
+                samples = 0;
+                minRtt = Long.MAX_VALUE;
+            }
+            if (rttNanos > 0) {
+                minRtt = Math.min(minRtt, rttNanos);
+                smoothedRtt = smoothedRtt == 0 ? rttNanos
+                        : smoothedRtt + RTT_SMOOTHING * (rttNanos - smoothedRtt);
+            }
+            boolean congested = ! resultGood || smoothedRtt > minRtt * RTT_TOLERANCE;
+            if (congested) {
+                preciseLimit = Math.max(minLimit, preciseLimit * BACKOFF_RATIO);
+            } else if (current * 2 >= limit) {
+                //only grow while the limit is actually used
+                preciseLimit = Math.min(maxLimit, preciseLimit + 1);
+            }
+            limit = (int) preciseLimit;
+        }
+    }
+
+    /**
+     * The request was not sent or its result is meaningless for the limit
+     */
+    public void requestCancelled() {
+        inFlight.decrementAndGet();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+}
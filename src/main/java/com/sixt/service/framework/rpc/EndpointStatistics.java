@@ -0,0 +1,83 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exponentially-weighted moving averages of the latency and error rate of a ServiceEndpoint.
+ * Samples are weighted by the time since the previous sample, so the averages reflect
+ * roughly the last DECAY_TIME regardless of the request rate.
+ */
+public class EndpointStatistics {
+
+    public final static long DECAY_TIME = TimeUnit.SECONDS.toNanos(10);
+
+    private final AtomicReference<Averages> averages = new AtomicReference<>();
+
+    public void record(long latencyNanos, boolean success) {
+        record(latencyNanos, success, System.nanoTime());
+    }
+
+    void record(long latencyNanos, boolean success, long now) {
+        double error = success ? 0 : 1;
+        while (true) {
+            Averages current = averages.get();
+            Averages updated;
+            if (current == null) {
+                updated = new Averages(latencyNanos, error, now);
+            } else {
+                double weight = Math.exp(-(double) Math.max(0, now - current.timestamp) / DECAY_TIME);
+                updated = new Averages(current.latency * weight + latencyNanos * (1 - weight),
+                        current.errorRate * weight + error * (1 - weight), now);
+            }
+            if (averages.compareAndSet(current, updated)) {
+                return;
+            }
+        }
+    }
+
+    public boolean hasSamples() {
+        return averages.get() != null;
+    }
+
+    /**
+     * @return average latency in nanoseconds, 0 without samples
+     */
+    public double getLatency() {
+        Averages current = averages.get();
+        return current == null ? 0 : current.latency;
+    }
+
+    /**
+     * @return average fraction of failed requests, 0 without samples
+     */
+    public double getErrorRate() {
+        Averages current = averages.get();
+        return current == null ? 0 : current.errorRate;
+    }
+
+    private static class Averages {
+        final double latency;
+        final double errorRate;
+        final long timestamp;
+
+        Averages(double latency, double errorRate, long timestamp) {
+            this.latency = latency;
+            this.errorRate = errorRate;
+            this.timestamp = timestamp;
+        }
+    }
+
+}
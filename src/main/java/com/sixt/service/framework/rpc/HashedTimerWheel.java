@@ -0,0 +1,149 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Low-resolution timer for a large number of timeouts, like the state transitions of
+ * all circuit breakers.  Scheduling is lock-free; a single daemon thread advances the
+ * wheel every tick and runs the expired tasks, so tasks must be short.
+ */
+public class HashedTimerWheel {
+
+    private static final Logger logger = LoggerFactory.getLogger(HashedTimerWheel.class);
+
+    public final static long DEFAULT_TICK_MILLIS = 100;
+    public final static int DEFAULT_WHEEL_SIZE = 512;
+
+    private static volatile HashedTimerWheel shared;
+
+    private final long tickNanos;
+    private final Queue<Timeout>[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final long startTime;
+    private long tick = 0;
+
+    /**
+     * The timer shared by all circuit breakers
+     */
+    public static HashedTimerWheel getShared() {
+        if (shared == null) {
+            synchronized (HashedTimerWheel.class) {
+                if (shared == null) {
+                    shared = new HashedTimerWheel(DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS,
+                            DEFAULT_WHEEL_SIZE);
+                }
+            }
+        }
+        return shared;
+    }
+
+    @SuppressWarnings("unchecked")
+    public HashedTimerWheel(long tickDuration, TimeUnit unit, int wheelSize) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive");
+        }
+        if (wheelSize <= 0 || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Wheel size must be a power of 2");
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = new Queue[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        this.mask = wheelSize - 1;
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * Run the task once the delay has elapsed, rounded up to the next tick
+     */
+    public void schedule(Runnable task, long delay, TimeUnit unit) {
+        if (started.compareAndSet(false, true)) {
+            Thread worker = new Thread(this::run, "hashed-timer-wheel");
+            worker.setDaemon(true);
+            worker.start();
+        }
+        pending.add(new Timeout(task, System.nanoTime() - startTime + unit.toNanos(delay)));
+    }
+
+    private void run() {
+        while (true) {
+            long deadline = tickNanos * (tick + 1);
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    logger.warn("Timer thread was interrupted");
+                    return;
+                }
+                continue;
+            }
+            transferPending();
+            expire(wheel[(int) (tick & mask)], deadline);
+            tick++;
+        }
+    }
+
+    //only called from the worker thread
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            long expiryTick = (timeout.deadline + tickNanos - 1) / tickNanos - 1;
+            timeout.remainingRounds = Math.max(0, (expiryTick - tick) / wheel.length);
+            wheel[(int) (Math.max(expiryTick, tick) & mask)].add(timeout);
+        }
+    }
+
+    //only called from the worker thread
+    private void expire(Queue<Timeout> bucket, long deadline) {
+        Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+            } else if (timeout.deadline <= deadline) {
+                iterator.remove();
+                try {
+                    timeout.task.run();
+                } catch (Exception ex) {
+                    logger.error("Caught exception running timer task", ex);
+                }
+            }
+        }
+    }
+
+    private static class Timeout {
+        final Runnable task;
+        final long deadline;
+        long remainingRounds;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import com.codahale.metrics.Snapshot;
+import com.sixt.service.framework.metrics.GoTimer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Configures hedged requests for an RpcClient: if the first attempt of a call hasn't been
+ * answered after a delay, a second request is sent to a different instance and the first
+ * answer wins.  The delay is either fixed or a percentile of the recently observed latency
+ * of the called method.
+ * To limit the extra load put on the called service, hedges are taken from a budget that
+ * grows with every call (by default, hedges never exceed 10% of the calls).
+ * Instances are stateful and must not be shared between RpcClients: the RpcClientBuilder
+ * gives every client it builds its own copy.
+ */
+public class HedgingPolicy {
+
+    public final static double DEFAULT_MAX_HEDGE_RATIO = 0.1;
+    // number of samples needed before a percentile is considered meaningful
+    public final static long MIN_LATENCY_SAMPLES = 20;
+
+    // budget is kept in thousandths of a hedge, so that we don't need floating point CAS
+    private final static long SCALE = 1000;
+
+    private final long fixedDelay;
+    private final double percentile;
+    private long budgetIncrement = (long) (DEFAULT_MAX_HEDGE_RATIO * SCALE);
+    private long maxBudget = 10 * SCALE;
+    private final AtomicLong budget = new AtomicLong(0);
+
+    private HedgingPolicy(long fixedDelay, double percentile) {
+        this.fixedDelay = fixedDelay;
+        this.percentile = percentile;
+    }
+
+    /**
+     * Hedge every call that takes longer than the given delay
+     * @param delay milliseconds
+     */
+    public static HedgingPolicy afterDelay(long delay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("Hedging delay cannot be negative");
+        }
+        return new HedgingPolicy(delay, -1);
+    }
+
+    /**
+     * Hedge every call that takes longer than the given percentile of the recent
+     * successful calls to the same method, e.g. 0.95
+     */
+    public static HedgingPolicy atPercentile(double percentile) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("Hedging percentile must be between 0 and 1");
+        }
+        return new HedgingPolicy(-1, percentile);
+    }
+
+    /**
+     * Modify the hedge budget from default
+     * @param maxHedgeRatio maximum number of hedges per call, e.g. 0.05 for 5% extra load
+     */
+    public HedgingPolicy withMaxHedgeRatio(double maxHedgeRatio) {
+        if (maxHedgeRatio <= 0 || maxHedgeRatio > 1) {
+            throw new IllegalArgumentException("Hedge ratio must be between 0 and 1");
+        }
+        this.budgetIncrement = (long) (maxHedgeRatio * SCALE);
+        return this;
+    }
+
+    /**
+     * @return a policy with the same configuration, but with its own (empty) hedge budget
+     */
+    public HedgingPolicy copy() {
+        HedgingPolicy retval = new HedgingPolicy(fixedDelay, percentile);
+        retval.budgetIncrement = budgetIncrement;
+        retval.maxBudget = maxBudget;
+        return retval;
+    }
+
+    /**
+     * @return the delay in milliseconds after which to hedge, or -1 if there are not
+     * enough latency samples yet
+     */
+    public long getHedgeDelay(GoTimer methodTimer) {
+        if (fixedDelay >= 0) {
+            return fixedDelay;
+        }
+        if (methodTimer == null || methodTimer.getSuccessTimer().getCount() < MIN_LATENCY_SAMPLES) {
+            return -1;
+        }
+        Snapshot snapshot = methodTimer.getSuccessTimer().getSnapshot();
+        return TimeUnit.NANOSECONDS.toMillis((long) snapshot.getValue(percentile));
+    }
+
+    /**
+     * Every call earns a fraction of a hedge
+     */
+    public void callStarted() {
+        budget.accumulateAndGet(budgetIncrement, (current, increment) ->
+                Math.min(maxBudget, current + increment));
+    }
+
+    /**
+     * @return true if a hedge may be sent, consuming it from the budget
+     */
+    public boolean tryAcquireHedge() {
+        while (true) {
+            long current = budget.get();
+            if (current < SCALE) {
+                return false;
+            }
+            if (budget.compareAndSet(current, current - SCALE)) {
+                return true;
+            }
+        }
+    }
+
+}
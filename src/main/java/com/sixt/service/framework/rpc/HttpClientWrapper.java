@@ -13,6 +13,7 @@
 package com.sixt.service.framework.rpc;
 
 import com.google.inject.Inject;
+import com.sixt.service.framework.FeatureFlags;
 import com.sixt.service.framework.OrangeContext;
 import com.sixt.service.framework.ServiceProperties;
 import com.sixt.service.framework.metrics.GoTimer;
@@ -23,15 +24,28 @@ import io.opentracing.propagation.Format;
 import io.opentracing.propagation.TextMapInjectAdapter;
 import io.opentracing.tag.Tags;
 import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpContentResponse;
 import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.util.thread.Scheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Marker;
 
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
 import static com.sixt.service.framework.FeatureFlags.shouldExposeErrorsToHttp;
 import static net.logstash.logback.marker.Markers.append;
@@ -44,8 +58,14 @@ public class HttpClientWrapper {
     protected LoadBalancer loadBalancer;
     protected HttpClient httpClient;
     protected RpcClientMetrics rpcClientMetrics;
-    protected RpcClient client;
     protected Tracer tracer;
+    protected volatile ConcurrencyLimiter concurrencyLimiter;
+    protected volatile RetryBudget retryBudget;
+    protected final Map<Object, RpcBatcher> rpcBatchers = new HashMap<>();
+    // null if the HttpClient doesn't size its connection pools per destination service
+    private final RpcConnectionPools connectionPools;
+    // resolved on first use, the regular client if the http/2 client could not be started
+    private volatile HttpClient http2Client;
 
     @Inject
     public HttpClientWrapper(ServiceProperties serviceProps, HttpClient httpClient,
@@ -54,18 +74,34 @@ public class HttpClientWrapper {
         this.httpClient = httpClient;
         this.rpcClientMetrics = rpcClientMetrics;
         this.tracer = tracer;
+        this.connectionPools = httpClient == null ? null :
+                httpClient.getBean(RpcConnectionPools.class);
+        if (connectionPools == null) {
+            logger.debug("HttpClient has no RpcConnectionPools, connection pools use jetty's defaults");
+        } else if (rpcClientMetrics != null) {
+            connectionPools.setMetrics(rpcClientMetrics);
+        }
     }
 
+    /**
+     * The wrapper is shared by all clients of the called service, so the returned request
+     * carries the client whose retries, timeout and hedging policy apply to it
+     */
     public HttpRequestWrapper createHttpPost(RpcClient client)
             throws RpcCallException {
-        this.client = client;
         ServiceEndpoint instance = loadBalancer.getHealthyInstance();
         if (instance == null) {
             throw new RpcCallException(RpcCallException.Category.InternalServerError,
                     "No available instance of " + loadBalancer.getServiceName()).
                     withSource(serviceProps.getServiceName());
         }
-        return new HttpRequestWrapper("POST", instance);
+        HttpRequestWrapper retval = new HttpRequestWrapper("POST", instance);
+        retval.setRpcClient(client);
+        if (FeatureFlags.shouldCloseRpcConnections(serviceProps, client.getServiceName())
+                && ! FeatureFlags.shouldUseHttp2(serviceProps, client.getServiceName())) {
+            retval.setHeader("Connection", "close");
+        }
+        return retval;
     }
 
     private HttpRequestWrapper createHttpPost(HttpRequestWrapper previous, List<ServiceEndpoint> triedEndpoints)
@@ -79,6 +115,7 @@ public class HttpClientWrapper {
         //TODO: There may still be a problem where retries are setting chunked encoding
         // or the content-length gets munged
         HttpRequestWrapper retval =  new HttpRequestWrapper("POST", instance);
+        retval.setRpcClient(previous.getRpcClient());
         retval.setHeaders(previous.getHeaders());
         retval.setContentProvider(previous.getContentProvider());
         return retval;
@@ -88,9 +125,81 @@ public class HttpClientWrapper {
         this.loadBalancer = loadBalancer;
     }
 
+    /**
+     * @param concurrencyLimiter limits the requests in flight to the called service,
+     *                           null to not limit them
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * @param retryBudget limits the retries to the called service, null to only limit
+     *                    them by the retries of the RpcClient
+     */
+    public void setRetryBudget(RetryBudget retryBudget) {
+        if (retryBudget != null && rpcClientMetrics != null) {
+            retryBudget.setRetryCounter(rpcClientMetrics.getRetryCounter(loadBalancer.getServiceName()));
+        }
+        this.retryBudget = retryBudget;
+    }
+
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    /**
+     * Clients of the called service share a batcher if they ask for it with equal keys,
+     * e.g. the same retries, timeout and batch settings
+     */
+    public synchronized RpcBatcher getRpcBatcher(Object key, Supplier<RpcBatcher> factory) {
+        return rpcBatchers.computeIfAbsent(key, k -> factory.get());
+    }
+
+    public Scheduler getScheduler() {
+        return httpClient.getScheduler();
+    }
+
+    private HttpClient getHttpClient(RpcClient client) {
+        if (! FeatureFlags.shouldUseHttp2(serviceProps, client.getServiceName())) {
+            return httpClient;
+        }
+        HttpClient retval = http2Client;
+        if (retval == null) {
+            synchronized (this) {
+                retval = http2Client;
+                if (retval == null) {
+                    retval = RpcHttp2Client.forClient(httpClient);
+                    if (retval == null) {
+                        logger.warn("Calling {} over http/1.1, the http/2 client could not be started",
+                                client.getServiceName());
+                        retval = httpClient;
+                    }
+                    http2Client = retval;
+                }
+            }
+        }
+        return retval;
+    }
+
+    private Request newRequest(HttpRequestWrapper request, RpcClient client) {
+        HttpClient target = getHttpClient(client);
+        //http/2 multiplexes all requests to an instance over a single connection, there is
+        //no connection pool to size for it
+        return request.newRequest(target, target == httpClient ? connectionPools : null);
+    }
+
     public ContentResponse execute(HttpRequestWrapper request, RpcCallExceptionDecoder decoder,
                                    OrangeContext orangeContext)
             throws RpcCallException {
+        RpcClient client = request.getRpcClient();
+        if (client.getHedgingPolicy() != null) {
+            return waitForResponse(executeAsync(request, decoder, orangeContext));
+        }
         ContentResponse retval = null;
         Span span = null;
         List<ServiceEndpoint> triedEndpoints = new ArrayList<>();
@@ -98,55 +207,61 @@ public class HttpClientWrapper {
         int lastStatusCode;
         int tryCount = 0;
         do {
+            if (! tryAcquireConcurrency()) {
+                request.getServiceEndpoint().requestCancelled();
+                throw concurrencyLimitReached();
+            }
             triedEndpoints.add(request.getServiceEndpoint());
-            GoTimer methodTimer = getMethodTimer();
+            long attemptTimeout = getAttemptTimeout(client, request, orangeContext);
+            boolean limitedByDeadline = attemptTimeout != client.getTimeout();
+            GoTimer methodTimer = getMethodTimer(client);
             long startTime = methodTimer.start();
             try {
                 Marker logMarker = append("serviceMethod", request.getMethod())
                         .and(append("serviceEndpoint", request.getServiceEndpoint()));
                 logger.debug(logMarker,
                         "Sending http request to {}", request.getServiceEndpoint());
-                if (tracer != null) {
-                    SpanContext spanContext = null;
-                    if (orangeContext != null) {
-                        spanContext = orangeContext.getTracingContext();
-                    }
-                    if (spanContext != null) {
-                        span = tracer.buildSpan(client.getMethodName()).asChildOf(spanContext).start();
-                    } else {
-                        span = tracer.buildSpan(client.getMethodName()).start();
-                    }
-                    Tags.SPAN_KIND.set(span, Tags.SPAN_KIND_CLIENT);
-                    Tags.PEER_SERVICE.set(span, loadBalancer.getServiceName());
-                    span.setTag("rpc.call", client.getServiceMethodName());
-                    if (orangeContext != null) {
-                        span.setTag("correlation_id", orangeContext.getCorrelationId());
-                    }
-                    tracer.inject(span.context(), Format.Builtin.HTTP_HEADERS, new TextMapInjectAdapter(request.getHeaders()));
-                }
-                retval = request.newRequest(httpClient).timeout(client.getTimeout(),
+                span = startSpan(client, request, orangeContext);
+                retval = newRequest(request, client).timeout(attemptTimeout,
                         TimeUnit.MILLISECONDS).send();
                 logger.debug(logMarker, "Http send completed");
                 lastStatusCode = retval.getStatus();
             } catch (TimeoutException timeout) {
                 lastStatusCode = RpcCallException.Category.RequestTimedOut.getHttpStatus();
                 lastException = new RpcCallException(RpcCallException.Category.RequestTimedOut, "Http-client timeout");
-                //TODO: RequestTimedOut should be retried as long as there is time budget left
-                logger.info(getRemoteMethod(), "Caught TimeoutException executing request");
+                logger.info(getRemoteMethod(client), "Caught TimeoutException executing request");
             } catch (Exception ex) {
                 lastStatusCode = RpcCallException.Category.InternalServerError.getHttpStatus();
-                logger.debug(getRemoteMethod(), "Caught exception executing request", ex);
+                logger.debug(getRemoteMethod(client), "Caught exception executing request", ex);
             }
 
             logger.debug("Response status code = {}", lastStatusCode);
 
-            if (responseWasSuccessful(decoder, retval, lastStatusCode)) {
+            boolean success;
+            try {
+                success = responseWasSuccessful(decoder, retval, lastStatusCode);
+            } catch (RpcCallException ex) {
+                //a response we can't decode is not retried
+                if (span != null) {
+                    Tags.ERROR.set(span, true);
+                    span.finish();
+                }
+                methodTimer.recordFailure(startTime);
+                long latency = System.nanoTime() - startTime;
+                request.getServiceEndpoint().requestComplete(lastStatusCode < 500, latency);
+                concurrencyComplete(lastStatusCode < 500, latency);
+                throw ex;
+            }
+            if (success) {
                 if (span != null) {
                     Tags.HTTP_STATUS.set(span, lastStatusCode);
                     span.finish();
                 }
                 methodTimer.recordSuccess(startTime);
-                request.getServiceEndpoint().requestComplete(true);
+                long latency = System.nanoTime() - startTime;
+                request.getServiceEndpoint().requestComplete(true, latency);
+                concurrencyComplete(true, latency);
+                retryBudgetDeposit();
                 return retval;
             } else {
                 if (span != null) {
@@ -155,8 +270,12 @@ public class HttpClientWrapper {
                     span.finish();
                 }
                 methodTimer.recordFailure(startTime);
-                //4xx errors should not change circuit-breaker state
-                request.getServiceEndpoint().requestComplete(lastStatusCode < 500);
+                //4xx errors should not change circuit-breaker state, neither should a timeout
+                //that was only caused by the caller's deadline
+                boolean serviceHealthy = lastStatusCode < 500 || (limitedByDeadline && isTimeout(lastStatusCode));
+                long latency = System.nanoTime() - startTime;
+                request.getServiceEndpoint().requestComplete(serviceHealthy, latency);
+                concurrencyComplete(serviceHealthy, latency);
 
                 if (lastStatusCode != RpcCallException.Category.RequestTimedOut.getHttpStatus()) {
                     lastException = decoder.decodeException(retval);
@@ -165,6 +284,14 @@ public class HttpClientWrapper {
                     }
                 }
                 if (tryCount < client.getRetries()) {
+                    if (! hasTimeBudgetForRetry(client, tryCount, orangeContext)) {
+                        logger.debug(getRemoteMethod(client), "Not retrying, deadline of caller reached");
+                        break;
+                    }
+                    if (! tryAcquireRetry()) {
+                        logger.debug(getRemoteMethod(client), "Not retrying, retry budget exhausted");
+                        break;
+                    }
                     if (client.hasRetryBackOffFunction()) {
                         client.getRetryBackOffFunction().execute(tryCount);
                     }
@@ -182,6 +309,467 @@ public class HttpClientWrapper {
         }
     }
 
+    /**
+     * Non-blocking variant of {@link #execute(HttpRequestWrapper, RpcCallExceptionDecoder, OrangeContext)}.
+     * No thread is held while a request is in flight: retries, back-off, circuit-breaker
+     * bookkeeping, tracing and metrics are all driven from http client callbacks.
+     * The returned future completes exceptionally with an {@link RpcCallException}.
+     */
+    public CompletableFuture<ContentResponse> executeAsync(HttpRequestWrapper request,
+                                                           RpcCallExceptionDecoder decoder,
+                                                           OrangeContext orangeContext) {
+        RpcClient client = request.getRpcClient();
+        if (client.getHedgingPolicy() != null) {
+            return executeHedged(client, request, decoder, orangeContext);
+        }
+        AsyncExecution execution = new AsyncExecution(client, decoder, orangeContext, client.getRetries());
+        execution.send(request);
+        return execution.future;
+    }
+
+    /**
+     * Sends the request, and if it hasn't been answered after the delay determined by the
+     * client's HedgingPolicy, a single hedge to a different instance.  The first successful
+     * response wins and the other request is aborted.
+     */
+    private CompletableFuture<ContentResponse> executeHedged(RpcClient client, HttpRequestWrapper request,
+                                                             RpcCallExceptionDecoder decoder,
+                                                             OrangeContext orangeContext) {
+        HedgingPolicy policy = client.getHedgingPolicy();
+        policy.callStarted();
+        //copy now, the primary request modifies its headers while in flight
+        Map<String, String> hedgeHeaders = new HashMap<>(request.getHeaders());
+        HedgedExecution hedged = new HedgedExecution();
+        AsyncExecution primary = new AsyncExecution(client, decoder, orangeContext, client.getRetries());
+        hedged.add(primary);
+        primary.send(request);
+
+        long delay = policy.getHedgeDelay(getMethodTimer(client));
+        if (delay >= 0 && ! hedged.future.isDone()) {
+            httpClient.getScheduler().schedule(() -> {
+                try {
+                    sendHedge(client, policy, hedged, primary, request, hedgeHeaders, decoder, orangeContext);
+                } catch (Exception ex) {
+                    logger.warn(getRemoteMethod(client), "Caught exception sending hedged request", ex);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        return hedged.future;
+    }
+
+    private void sendHedge(RpcClient client, HedgingPolicy policy, HedgedExecution hedged,
+                           AsyncExecution primary, HttpRequestWrapper request, Map<String, String> headers,
+                           RpcCallExceptionDecoder decoder, OrangeContext orangeContext) {
+        if (hedged.future.isDone()) {
+            return;
+        }
+        ServiceEndpoint instance = loadBalancer.getHealthyInstanceExclude(primary.triedEndpoints);
+        if (instance == null) {
+            return;
+        }
+        if (primary.triedEndpoints.contains(instance) || ! policy.tryAcquireHedge()) {
+            instance.requestCancelled();
+            return;
+        }
+        //a hedge is never worth exceeding the concurrency limit
+        if (! tryAcquireConcurrency()) {
+            instance.requestCancelled();
+            return;
+        }
+        logger.debug(getRemoteMethod(client), "Sending hedged request to {}", instance);
+        HttpRequestWrapper hedge = new HttpRequestWrapper("POST", instance);
+        hedge.setRpcClient(client);
+        hedge.setHeaders(headers);
+        hedge.setContentProvider(request.getContentProvider());
+        AsyncExecution execution = new AsyncExecution(client, decoder, orangeContext, 0);
+        if (hedged.add(execution)) {
+            execution.sendAcquired(hedge);
+        } else {
+            instance.requestCancelled();
+            concurrencyCancelled();
+        }
+    }
+
+    private ContentResponse waitForResponse(CompletableFuture<ContentResponse> future) throws RpcCallException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RpcCallException(RpcCallException.Category.InternalServerError,
+                    "Interrupted waiting for response").withSource(serviceProps.getServiceName());
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RpcCallException) {
+                throw (RpcCallException) ex.getCause();
+            }
+            throw new RpcCallException(RpcCallException.Category.InternalServerError,
+                    RpcCallExceptionDecoder.exceptionToString(ex.getCause())).withSource(serviceProps.getServiceName());
+        }
+    }
+
+    /**
+     * The timeout for a single attempt is the configured client timeout, but never more
+     * than the time budget the caller has left.  The budget is passed on to the called
+     * service so that it can stop working on requests nobody is waiting for anymore.
+     */
+    private long getAttemptTimeout(RpcClient client, HttpRequestWrapper request,
+                                   OrangeContext orangeContext) {
+        long timeout = client.getTimeout();
+        if (orangeContext != null && orangeContext.hasDeadline()) {
+            long remaining = Math.max(1, orangeContext.getRemainingTimeBudget());
+            if (timeout <= 0 || remaining < timeout) {
+                timeout = remaining;
+            }
+        }
+        if (timeout > 0) {
+            request.setHeader(OrangeContext.RPC_TIME_BUDGET, String.valueOf(timeout));
+        }
+        return timeout;
+    }
+
+    private boolean hasTimeBudgetForRetry(RpcClient client, int tryCount, OrangeContext orangeContext) {
+        if (orangeContext == null || ! orangeContext.hasDeadline()) {
+            return true;
+        }
+        long backOff = 0;
+        if (client.hasRetryBackOffFunction()) {
+            Duration timeout = client.getRetryBackOffFunction().timeout(tryCount);
+            if (timeout != null) {
+                backOff = timeout.toMillis();
+            }
+        }
+        return orangeContext.getRemainingTimeBudget() > backOff;
+    }
+
+    private boolean tryAcquireConcurrency() {
+        ConcurrencyLimiter limiter = concurrencyLimiter;
+        return limiter == null || limiter.tryAcquire();
+    }
+
+    private void concurrencyComplete(boolean resultGood, long latencyNanos) {
+        ConcurrencyLimiter limiter = concurrencyLimiter;
+        if (limiter != null) {
+            limiter.requestComplete(resultGood, latencyNanos);
+        }
+    }
+
+    private void concurrencyCancelled() {
+        ConcurrencyLimiter limiter = concurrencyLimiter;
+        if (limiter != null) {
+            limiter.requestCancelled();
+        }
+    }
+
+    private void retryBudgetDeposit() {
+        RetryBudget budget = retryBudget;
+        if (budget != null) {
+            budget.requestSucceeded();
+        }
+    }
+
+    private boolean tryAcquireRetry() {
+        RetryBudget budget = retryBudget;
+        return budget == null || budget.tryAcquireRetry();
+    }
+
+    private RpcCallException concurrencyLimitReached() {
+        ConcurrencyLimiter limiter = concurrencyLimiter;
+        //the request was shed locally, it never reached the called service
+        return new RpcCallException(RpcCallException.Category.ServiceUnavailable,
+                "Concurrency limit of " + (limiter == null ? 0 : limiter.getLimit()) +
+                        " requests to " + loadBalancer.getServiceName() + " reached").
+                withRetriable(true).withSource(serviceProps.getServiceName());
+    }
+
+    private static boolean isTimeout(int statusCode) {
+        return statusCode == RpcCallException.Category.RequestTimedOut.getHttpStatus();
+    }
+
+    private Span startSpan(RpcClient client, HttpRequestWrapper request, OrangeContext orangeContext) {
+        if (tracer == null) {
+            return null;
+        }
+        Span span;
+        SpanContext spanContext = null;
+        if (orangeContext != null) {
+            spanContext = orangeContext.getTracingContext();
+        }
+        if (spanContext != null) {
+            span = tracer.buildSpan(client.getMethodName()).asChildOf(spanContext).start();
+        } else {
+            span = tracer.buildSpan(client.getMethodName()).start();
+        }
+        Tags.SPAN_KIND.set(span, Tags.SPAN_KIND_CLIENT);
+        Tags.PEER_SERVICE.set(span, loadBalancer.getServiceName());
+        span.setTag("rpc.call", client.getServiceMethodName());
+        if (orangeContext != null) {
+            span.setTag("correlation_id", orangeContext.getCorrelationId());
+        }
+        tracer.inject(span.context(), Format.Builtin.HTTP_HEADERS, new TextMapInjectAdapter(request.getHeaders()));
+        return span;
+    }
+
+    /**
+     * State of a single asynchronous rpc call across all of its attempts.
+     */
+    private class AsyncExecution {
+
+        private final RpcClient client;
+        private final RpcCallExceptionDecoder decoder;
+        private final OrangeContext orangeContext;
+        private final int maxRetries;
+        private final CompletableFuture<ContentResponse> future = new CompletableFuture<>();
+        private final List<ServiceEndpoint> triedEndpoints = new CopyOnWriteArrayList<>();
+        private RpcCallException lastException;
+        private int lastStatusCode;
+        private int tryCount = 0;
+        private volatile boolean cancelled = false;
+        private volatile Request inFlight;
+
+        AsyncExecution(RpcClient client, RpcCallExceptionDecoder decoder, OrangeContext orangeContext,
+                       int maxRetries) {
+            this.client = client;
+            this.decoder = decoder;
+            this.orangeContext = orangeContext;
+            this.maxRetries = maxRetries;
+        }
+
+        /**
+         * Abort the request in flight (if any) and don't retry
+         */
+        void cancel() {
+            cancelled = true;
+            Request request = inFlight;
+            if (request != null) {
+                request.abort(new CancellationException("Request was cancelled"));
+            }
+        }
+
+        void send(HttpRequestWrapper request) {
+            if (cancelled) {
+                request.getServiceEndpoint().requestCancelled();
+                future.completeExceptionally(new CancellationException("Request was cancelled"));
+                return;
+            }
+            if (! tryAcquireConcurrency()) {
+                request.getServiceEndpoint().requestCancelled();
+                future.completeExceptionally(concurrencyLimitReached());
+                return;
+            }
+            sendAcquired(request);
+        }
+
+        /**
+         * Send the request, a slot of the concurrency limiter was already acquired for it
+         */
+        void sendAcquired(HttpRequestWrapper request) {
+            if (cancelled) {
+                request.getServiceEndpoint().requestCancelled();
+                concurrencyCancelled();
+                future.completeExceptionally(new CancellationException("Request was cancelled"));
+                return;
+            }
+            triedEndpoints.add(request.getServiceEndpoint());
+            long attemptTimeout = getAttemptTimeout(client, request, orangeContext);
+            boolean limitedByDeadline = attemptTimeout != client.getTimeout();
+            GoTimer methodTimer = getMethodTimer(client);
+            long startTime = methodTimer.start();
+            Span span = null;
+            try {
+                logger.debug(append("serviceMethod", request.getMethod())
+                                .and(append("serviceEndpoint", request.getServiceEndpoint())),
+                        "Sending async http request to {}", request.getServiceEndpoint());
+                span = startSpan(client, request, orangeContext);
+                Span attemptSpan = span;
+                Request httpRequest = newRequest(request, client).timeout(attemptTimeout, TimeUnit.MILLISECONDS);
+                inFlight = httpRequest;
+                httpRequest.send(new BufferingResponseListener() {
+                            @Override
+                            public void onComplete(Result result) {
+                                ContentResponse response = null;
+                                int statusCode;
+                                if (result.isFailed()) {
+                                    statusCode = failureStatus(result.getFailure());
+                                } else {
+                                    response = new HttpContentResponse(result.getResponse(),
+                                            getContent(), getMediaType(), getEncoding());
+                                    statusCode = response.getStatus();
+                                }
+                                attemptComplete(request, response, statusCode, limitedByDeadline,
+                                        methodTimer, startTime, attemptSpan);
+                            }
+                        });
+            } catch (Exception ex) {
+                logger.debug(getRemoteMethod(client), "Caught exception sending request", ex);
+                attemptComplete(request, null, RpcCallException.Category.InternalServerError.getHttpStatus(),
+                        limitedByDeadline, methodTimer, startTime, span);
+            }
+        }
+
+        private int failureStatus(Throwable failure) {
+            if (failure instanceof TimeoutException) {
+                lastException = new RpcCallException(RpcCallException.Category.RequestTimedOut, "Http-client timeout");
+                logger.info(getRemoteMethod(client), "Caught TimeoutException executing request");
+                return RpcCallException.Category.RequestTimedOut.getHttpStatus();
+            }
+            logger.debug(getRemoteMethod(client), "Caught exception executing request", failure);
+            return RpcCallException.Category.InternalServerError.getHttpStatus();
+        }
+
+        private void attemptComplete(HttpRequestWrapper request, ContentResponse response, int statusCode,
+                                     boolean limitedByDeadline, GoTimer methodTimer, long startTime,
+                                     Span span) {
+            try {
+                inFlight = null;
+                if (cancelled) {
+                    if (span != null) {
+                        span.setTag("cancelled", true);
+                        span.finish();
+                    }
+                    request.getServiceEndpoint().requestCancelled();
+                    concurrencyCancelled();
+                    future.completeExceptionally(new CancellationException("Request was cancelled"));
+                    return;
+                }
+                lastStatusCode = statusCode;
+                logger.debug("Response status code = {}", statusCode);
+                boolean success;
+                try {
+                    success = responseWasSuccessful(decoder, response, statusCode);
+                } catch (RpcCallException ex) {
+                    //same as the synchronous path: a response we can't decode is not retried
+                    finishAttempt(request, span, methodTimer, startTime, false, false);
+                    future.completeExceptionally(ex);
+                    return;
+                }
+                finishAttempt(request, span, methodTimer, startTime, success,
+                        limitedByDeadline && isTimeout(statusCode));
+                if (success) {
+                    future.complete(response);
+                    return;
+                }
+                if (statusCode != RpcCallException.Category.RequestTimedOut.getHttpStatus()) {
+                    lastException = decoder.decodeException(response);
+                    if (lastException != null && ! lastException.isRetriable()) {
+                        future.completeExceptionally(lastException);
+                        return;
+                    }
+                }
+                if (tryCount < maxRetries && hasTimeBudgetForRetry(client, tryCount, orangeContext) &&
+                        tryAcquireRetry()) {
+                    scheduleRetry(request);
+                } else {
+                    future.completeExceptionally(finalException());
+                }
+            } catch (Exception ex) {
+                future.completeExceptionally(ex);
+            }
+        }
+
+        private void finishAttempt(HttpRequestWrapper request, Span span, GoTimer methodTimer,
+                                   long startTime, boolean success, boolean callerTimeout) {
+            if (span != null) {
+                Tags.HTTP_STATUS.set(span, lastStatusCode);
+                if (! success) {
+                    Tags.ERROR.set(span, true);
+                }
+                span.finish();
+            }
+            long latency = System.nanoTime() - startTime;
+            if (success) {
+                methodTimer.recordSuccess(startTime);
+                request.getServiceEndpoint().requestComplete(true, latency);
+                concurrencyComplete(true, latency);
+                retryBudgetDeposit();
+            } else {
+                methodTimer.recordFailure(startTime);
+                //4xx errors should not change circuit-breaker state, neither should a timeout
+                //that was only caused by the caller's deadline
+                boolean serviceHealthy = lastStatusCode < 500 || callerTimeout;
+                request.getServiceEndpoint().requestComplete(serviceHealthy, latency);
+                concurrencyComplete(serviceHealthy, latency);
+            }
+        }
+
+        private void scheduleRetry(HttpRequestWrapper previous) {
+            Runnable retry = () -> {
+                try {
+                    HttpRequestWrapper next = createHttpPost(previous, triedEndpoints);
+                    tryCount++;
+                    send(next);
+                } catch (RpcCallException ex) {
+                    future.completeExceptionally(ex);
+                }
+            };
+            long delay = 0;
+            if (client.hasRetryBackOffFunction()) {
+                Duration backOff = client.getRetryBackOffFunction().timeout(tryCount);
+                if (backOff == null || backOff.isNegative()) {
+                    future.completeExceptionally(new RpcCallException(
+                            RpcCallException.Category.InternalServerError,
+                            "Retry timeout cannot be null or negative.").withRetriable(false)
+                            .withSource(serviceProps.getServiceName()));
+                    return;
+                }
+                delay = backOff.toMillis();
+            }
+            if (delay > 0) {
+                httpClient.getScheduler().schedule(retry, delay, TimeUnit.MILLISECONDS);
+            } else {
+                retry.run();
+            }
+        }
+
+        private RpcCallException finalException() {
+            if (lastException == null) {
+                return new RpcCallException(RpcCallException.Category.fromStatus(lastStatusCode),
+                        "Null response in execute").withSource(serviceProps.getServiceName());
+            }
+            return lastException;
+        }
+    }
+
+    /**
+     * Combines the primary request of a call and its hedge into a single future
+     */
+    private static class HedgedExecution {
+
+        private final CompletableFuture<ContentResponse> future = new CompletableFuture<>();
+        private final List<AsyncExecution> executions = new ArrayList<>();
+        private int pending = 0;
+        private Throwable firstFailure;
+
+        synchronized boolean add(AsyncExecution execution) {
+            if (future.isDone()) {
+                return false;
+            }
+            executions.add(execution);
+            pending++;
+            execution.future.whenComplete((response, ex) -> executionComplete(execution, response, ex));
+            return true;
+        }
+
+        private synchronized void executionComplete(AsyncExecution execution, ContentResponse response,
+                                                    Throwable ex) {
+            pending--;
+            if (ex == null) {
+                if (future.complete(response)) {
+                    for (AsyncExecution other : executions) {
+                        if (other != execution) {
+                            other.cancel();
+                        }
+                    }
+                }
+            } else {
+                if (firstFailure == null && ! (ex instanceof CancellationException)) {
+                    firstFailure = ex;
+                }
+                if (pending == 0 && firstFailure != null) {
+                    future.completeExceptionally(firstFailure);
+                }
+            }
+        }
+    }
+
     private boolean responseWasSuccessful(RpcCallExceptionDecoder decoder,
                                           ContentResponse response, int lastStatusCode) throws RpcCallException {
         if (shouldExposeErrorsToHttp(serviceProps)) {
@@ -195,7 +783,7 @@ public class HttpClientWrapper {
         return (exception == null);
     }
 
-    private GoTimer getMethodTimer() {
+    private GoTimer getMethodTimer(RpcClient client) {
         if (rpcClientMetrics == null) {
             return new GoTimer("");
         } else {
@@ -204,7 +792,7 @@ public class HttpClientWrapper {
         }
     }
 
-    private Marker getRemoteMethod() {
+    private Marker getRemoteMethod(RpcClient client) {
         return append("method", client.getServiceMethodName());
     }
 
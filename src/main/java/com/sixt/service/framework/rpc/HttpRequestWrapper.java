@@ -27,6 +27,8 @@ public class HttpRequestWrapper {
     private URI uri;
     private String method;
     private ServiceEndpoint instance;
+    // the client the request is sent for, its retries, timeout and hedging policy apply
+    private RpcClient rpcClient;
     private ContentProvider contentProvider;
     private Map<String, String> headers = new HashMap<>();
 
@@ -39,6 +41,17 @@ public class HttpRequestWrapper {
     }
 
     public Request newRequest(HttpClient httpClient) {
+        return newRequest(httpClient, httpClient.getBean(RpcConnectionPools.class));
+    }
+
+    /**
+     * @param connectionPools the connection pools of the httpClient, null if it doesn't
+     *                        size its pools per destination service
+     */
+    public Request newRequest(HttpClient httpClient, RpcConnectionPools connectionPools) {
+        if (connectionPools != null) {
+            connectionPools.registerEndpoint(instance);
+        }
         Request request = httpClient.newRequest(uri);
         request.content(contentProvider).method(method);
 
@@ -82,4 +95,12 @@ public class HttpRequestWrapper {
     public ContentProvider getContentProvider() {
         return contentProvider;
     }
+
+    public RpcClient getRpcClient() {
+        return rpcClient;
+    }
+
+    public void setRpcClient(RpcClient rpcClient) {
+        this.rpcClient = rpcClient;
+    }
 }
@@ -15,6 +15,7 @@ package com.sixt.service.framework.rpc;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.sixt.service.framework.json.JsonRpcResponse;
 import org.eclipse.jetty.client.api.ContentResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,11 +24,16 @@ public class JsonRpcCallExceptionDecoder implements RpcCallExceptionDecoder {
 
     private static final Logger logger = LoggerFactory.getLogger(JsonRpcCallExceptionDecoder.class);
 
+    // the json tree parsed while checking the last response for an error, so that
+    // the result can be extracted without parsing the response a second time
+    private volatile Decoded lastDecoded;
+
     @Override
     public RpcCallException decodeException(ContentResponse response) throws RpcCallException {
         try {
             if (response != null) {
                 JsonObject json = (JsonObject) new JsonParser().parse(response.getContentAsString());
+                lastDecoded = new Decoded(response, json);
                 JsonElement error = json.get("error");
                 if (error != null) {
                     return RpcCallException.fromJson(error.toString());
@@ -41,4 +47,26 @@ public class JsonRpcCallExceptionDecoder implements RpcCallExceptionDecoder {
         return null;
     }
 
+    /**
+     * @return the json-rpc response of the given http response, reusing the json tree
+     * parsed by {@link #decodeException(ContentResponse)} if it was the last response decoded
+     */
+    public JsonRpcResponse getJsonRpcResponse(ContentResponse response) {
+        Decoded decoded = lastDecoded;
+        if (decoded != null && decoded.response == response) {
+            return JsonRpcResponse.fromJson(decoded.json);
+        }
+        return JsonRpcResponse.fromString(response.getContentAsString());
+    }
+
+    private static class Decoded {
+        private final ContentResponse response;
+        private final JsonObject json;
+
+        Decoded(ContentResponse response, JsonObject json) {
+            this.response = response;
+            this.json = json;
+        }
+    }
+
 }
@@ -12,6 +12,8 @@
 
 package com.sixt.service.framework.rpc;
 
+import com.sixt.service.framework.rpc.balancing.LoadBalancingStrategy;
+
 import java.util.List;
 
 /**
@@ -58,4 +60,11 @@ public interface LoadBalancer {
      */
     void updateServiceEndpoints(LoadBalancerUpdate updates);
 
+    /**
+     * Change how requests are distributed between the instances of an availability zone.
+     * Ignored by implementations that don't support strategies.
+     */
+    default void setLoadBalancingStrategy(LoadBalancingStrategy strategy) {
+    }
+
 }
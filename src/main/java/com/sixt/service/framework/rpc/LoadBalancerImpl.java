@@ -15,18 +15,20 @@ package com.sixt.service.framework.rpc;
 import com.google.inject.Inject;
 import com.sixt.service.framework.FeatureFlags;
 import com.sixt.service.framework.ServiceProperties;
+import com.sixt.service.framework.rpc.balancing.LoadBalancingStrategy;
+import com.sixt.service.framework.rpc.balancing.RoundRobinStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Marker;
 
-import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static net.logstash.logback.marker.Markers.append;
 
@@ -37,17 +39,20 @@ public class LoadBalancerImpl implements LoadBalancer {
     protected ServiceProperties serviceProps;
     protected HttpClientWrapper httpClientWrapper;
     protected String serviceName;
-    //we don't expect more than 3, so hashmap doesn't necessarily make sense
-    protected List<AvailabilityZone> availabilityZones = new ArrayList<>();
-    protected ReentrantReadWriteLock mutex = new ReentrantReadWriteLock();
+    //we don't expect more than 3, so hashmap doesn't necessarily make sense.
+    //updates are serialized, selecting an instance works on a snapshot without locking
+    protected List<AvailabilityZone> availabilityZones = new CopyOnWriteArrayList<>();
     protected Semaphore notificationSemaphore = new Semaphore(0);
     protected AtomicBoolean haveEndpoints = new AtomicBoolean(false);
+    protected volatile LoadBalancingStrategy strategy = new RoundRobinStrategy();
+    protected int spilloverThreshold;
 
     @Inject
     public LoadBalancerImpl(ServiceProperties serviceProps,
                             HttpClientWrapper wrapper) {
         this.serviceProps = serviceProps;
         this.httpClientWrapper = wrapper;
+        this.spilloverThreshold = FeatureFlags.getZoneSpilloverThreshold(serviceProps);
         httpClientWrapper.setLoadBalancer(this);
     }
 
@@ -59,31 +64,38 @@ public class LoadBalancerImpl implements LoadBalancer {
     @Override
     public void setServiceName(String serviceName) {
         this.serviceName = serviceName;
+        httpClientWrapper.setConcurrencyLimiter(ConcurrencyLimiter.forService(serviceProps, serviceName));
+        httpClientWrapper.setRetryBudget(RetryBudget.forService(serviceProps, serviceName));
+        setLoadBalancingStrategy(LoadBalancingStrategy.forName(
+                FeatureFlags.getLoadBalancingStrategy(serviceProps, serviceName)));
     }
 
     @Override
-    public void updateServiceEndpoints(LoadBalancerUpdate updates) {
-        mutex.writeLock().lock();
-        try {
-            Marker logMarker = append("serviceName", this.serviceName);
-            for (ServiceEndpoint ep : updates.getNewServices()) {
-                logger.debug(logMarker,
-                        "Endpoint for {} became available: {}", this.serviceName, ep.getHostAndPort());
-                addServiceEndpoint(ep);
-            }
-            for (ServiceEndpoint ep : updates.getDeletedServices()) {
-                logger.debug(logMarker,
-                        "Endpoint for {} became unavailable: {}", this.serviceName, ep.getHostAndPort());
-                updateEndpointHealth(ep, CircuitBreakerState.State.UNHEALTHY);
-            }
-            for (ServiceEndpoint ep : updates.getUpdatedServices()) {
-                logger.debug(logMarker,
-                        "Health of endpoint {} of {} changed to {}", ep.getHostAndPort(), this.serviceName,
-                        ep.getCircuitBreakerState());
-                updateEndpointHealth(ep, ep.getCircuitBreakerState());
-            }
-        } finally {
-            mutex.writeLock().unlock();
+    public synchronized void setLoadBalancingStrategy(LoadBalancingStrategy strategy) {
+        this.strategy = strategy;
+        for (AvailabilityZone az : availabilityZones) {
+            az.setStrategy(strategy);
+        }
+    }
+
+    @Override
+    public synchronized void updateServiceEndpoints(LoadBalancerUpdate updates) {
+        Marker logMarker = append("serviceName", this.serviceName);
+        for (ServiceEndpoint ep : updates.getNewServices()) {
+            logger.debug(logMarker,
+                    "Endpoint for {} became available: {}", this.serviceName, ep.getHostAndPort());
+            addServiceEndpoint(ep);
+        }
+        for (ServiceEndpoint ep : updates.getDeletedServices()) {
+            logger.debug(logMarker,
+                    "Endpoint for {} became unavailable: {}", this.serviceName, ep.getHostAndPort());
+            updateEndpointHealth(ep, CircuitBreakerState.State.UNHEALTHY);
+        }
+        for (ServiceEndpoint ep : updates.getUpdatedServices()) {
+            logger.debug(logMarker,
+                    "Health of endpoint {} of {} changed to {}", ep.getHostAndPort(), this.serviceName,
+                    ep.getCircuitBreakerState());
+            updateEndpointHealth(ep, ep.getCircuitBreakerState());
         }
     }
 
@@ -92,7 +104,7 @@ public class LoadBalancerImpl implements LoadBalancer {
      * with primary first, then going nearest to furthest. (implying priority)
      * Only to be used from this class or tests
      */
-    void addServiceEndpoint(ServiceEndpoint endpoint) {
+    synchronized void addServiceEndpoint(ServiceEndpoint endpoint) {
         boolean found = false;
         for (AvailabilityZone az : availabilityZones) {
             if (az.getName().equals(endpoint.getAvailZone())) {
@@ -101,7 +113,7 @@ public class LoadBalancerImpl implements LoadBalancer {
             }
         }
         if (! found) {
-            AvailabilityZone az = new AvailabilityZone();
+            AvailabilityZone az = new AvailabilityZone(strategy);
             az.addServiceEndpoint(endpoint);
             availabilityZones.add(az);
         }
@@ -125,6 +137,8 @@ public class LoadBalancerImpl implements LoadBalancer {
 
     /**
      * Try to find an endpoint in our primary AZ.  If none found, try further AZs.
+     * Once the share of healthy endpoints in the primary AZ falls below the spillover
+     * threshold, a proportional part of the requests is sent to the further AZs.
      * Modifies state
      */
     @Override
@@ -136,44 +150,84 @@ public class LoadBalancerImpl implements LoadBalancer {
             } catch (InterruptedException e) {
             }
         }
-        mutex.readLock().lock();
-        try {
-            for (AvailabilityZone az : availabilityZones) {
-                ServiceEndpoint next = az.nextEndpoint();
-                if (next != null) {
-                    logger.debug("Returning instance {} for {}", next.getHostAndPort(), serviceName);
-                    return next;
-                }
+        AvailabilityZone spillover = chooseSpilloverZone();
+        if (spillover != null) {
+            ServiceEndpoint next = spillover.nextEndpoint();
+            if (next != null) {
+                logger.debug("Returning instance {} of {} for {}", next.getHostAndPort(),
+                        spillover.getName(), serviceName);
+                return next;
             }
+        }
+        for (AvailabilityZone az : availabilityZones) {
+            ServiceEndpoint next = az.nextEndpoint();
+            if (next != null) {
+                logger.debug("Returning instance {} for {}", next.getHostAndPort(), serviceName);
+                return next;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * If the primary AZ has less healthy capacity than the threshold, returns one of the
+     * further AZs (weighted by their healthy endpoints) for a part of the requests that
+     * grows as the primary AZ's capacity shrinks.
+     * @return null to use the AZs in order of priority
+     */
+    protected AvailabilityZone chooseSpilloverZone() {
+        if (spilloverThreshold <= 0 || availabilityZones.size() < 2) {
             return null;
-        } finally {
-            mutex.readLock().unlock();
         }
+        AvailabilityZone[] zones = availabilityZones.toArray(new AvailabilityZone[0]);
+        AvailabilityZone primary = zones[0];
+        int primaryCount = primary.getEndpointCount();
+        double primaryCapacity = primaryCount == 0 ? 0 :
+                100.0 * primary.getHealthyEndpointCount() / primaryCount;
+        if (primaryCapacity >= spilloverThreshold) {
+            return null;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() * spilloverThreshold < primaryCapacity) {
+            return null;
+        }
+        int[] healthyCounts = new int[zones.length];
+        int totalHealthy = 0;
+        for (int i = 1; i < zones.length; i++) {
+            healthyCounts[i] = zones[i].getHealthyEndpointCount();
+            totalHealthy += healthyCounts[i];
+        }
+        if (totalHealthy == 0) {
+            return null;
+        }
+        int target = random.nextInt(totalHealthy);
+        for (int i = 1; i < zones.length; i++) {
+            target -= healthyCounts[i];
+            if (target < 0) {
+                return zones[i];
+            }
+        }
+        return null;
     }
 
     //modifies state
     @Override
     public ServiceEndpoint getHealthyInstanceExclude(List<ServiceEndpoint> triedEndpoints) {
-        mutex.readLock().lock();
-        try {
-            Set<ServiceEndpoint> set = new HashSet<>(triedEndpoints);
-            Set<ServiceEndpoint> seenInstances = new HashSet<>();
-            while (true) {
-                ServiceEndpoint retval = getHealthyInstance();
-                if (FeatureFlags.shouldDisableRpcInstanceRetry(serviceProps)) {
-                    if (seenInstances.contains(retval)) {
-                        //we've made a complete loop
-                        return null;
-                    }
-                    if (set.contains(retval)) {
-                        seenInstances.add(retval);
-                        continue;
-                    }
+        Set<ServiceEndpoint> set = new HashSet<>(triedEndpoints);
+        Set<ServiceEndpoint> seenInstances = new HashSet<>();
+        while (true) {
+            ServiceEndpoint retval = getHealthyInstance();
+            if (FeatureFlags.shouldDisableRpcInstanceRetry(serviceProps)) {
+                if (seenInstances.contains(retval)) {
+                    //we've made a complete loop
+                    return null;
+                }
+                if (set.contains(retval)) {
+                    seenInstances.add(retval);
+                    continue;
                 }
-                return retval;
             }
-        } finally {
-            mutex.readLock().unlock();
+            return retval;
         }
     }
 
@@ -208,7 +262,11 @@ public class LoadBalancerImpl implements LoadBalancer {
 class AvailabilityZone {
 
     private String name = "";
-    private ServiceEndpointList serviceEndpoints = new ServiceEndpointList();
+    private final ServiceEndpointList serviceEndpoints;
+
+    public AvailabilityZone(LoadBalancingStrategy strategy) {
+        serviceEndpoints = new ServiceEndpointList(strategy);
+    }
 
     public String getName() {
         return name;
@@ -230,6 +288,18 @@ class AvailabilityZone {
         serviceEndpoints.updateEndpointHealth(ep, state);
     }
 
+    public void setStrategy(LoadBalancingStrategy strategy) {
+        serviceEndpoints.setStrategy(strategy);
+    }
+
+    public int getEndpointCount() {
+        return serviceEndpoints.size();
+    }
+
+    public int getHealthyEndpointCount() {
+        return serviceEndpoints.getHealthyCount();
+    }
+
     //intended only for debugging
     public ServiceEndpointList getServiceEndpoints() {
         return serviceEndpoints;
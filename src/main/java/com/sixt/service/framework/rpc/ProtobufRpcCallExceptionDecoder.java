@@ -22,6 +22,10 @@ public class ProtobufRpcCallExceptionDecoder implements RpcCallExceptionDecoder
 
     private static final Logger logger = LoggerFactory.getLogger(ProtobufRpcCallExceptionDecoder.class);
 
+    // the envelope parsed while checking the last response for an error, so that
+    // the payload can be extracted without parsing the response a second time
+    private volatile Decoded lastDecoded;
+
     @Override
     public RpcCallException decodeException(ContentResponse response) throws RpcCallException {
         try {
@@ -33,6 +37,7 @@ public class ProtobufRpcCallExceptionDecoder implements RpcCallExceptionDecoder
                             "Empty response received");
                 }
                 ProtobufRpcResponse pbResponse = new ProtobufRpcResponse(data);
+                lastDecoded = new Decoded(response, pbResponse);
                 String error = pbResponse.getErrorMessage();
                 if (error != null) {
                     return RpcCallException.fromJson(error);
@@ -46,6 +51,26 @@ public class ProtobufRpcCallExceptionDecoder implements RpcCallExceptionDecoder
         return null;
     }
 
+    /**
+     * @return the envelope of the given response, reusing the one parsed by
+     * {@link #decodeException(ContentResponse)} if it was the last response decoded
+     */
+    public ProtobufRpcResponse getEnvelope(ContentResponse response) throws RpcCallException {
+        Decoded decoded = lastDecoded;
+        if (decoded != null && decoded.response == response) {
+            return decoded.envelope;
+        }
+        return new ProtobufRpcResponse(response.getContent());
+    }
+
+    private static class Decoded {
+        private final ContentResponse response;
+        private final ProtobufRpcResponse envelope;
 
+        Decoded(ContentResponse response, ProtobufRpcResponse envelope) {
+            this.response = response;
+            this.envelope = envelope;
+        }
+    }
 
 }
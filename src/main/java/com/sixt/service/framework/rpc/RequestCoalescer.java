@@ -0,0 +1,108 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Lets concurrent identical calls (same method, same serialized request) share a single
+ * request in flight.  The first caller sends the request, the ones arriving before it
+ * completes receive the same response (or failure).  Only meant for idempotent methods,
+ * and the callers share the OrangeContext (headers, deadline) of the first one.
+ */
+class RequestCoalescer<RESPONSE> {
+
+    private final ConcurrentMap<Key, CompletableFuture<RESPONSE>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * @param call sends the request if no identical one is in flight
+     * @return a future of its own for every caller, so that one of them cancelling
+     * doesn't affect the others
+     */
+    CompletableFuture<RESPONSE> call(String methodName, Message request,
+                                     Supplier<CompletableFuture<RESPONSE>> call) {
+        Key key = new Key(methodName, request.toByteString());
+        CompletableFuture<RESPONSE> shared = inFlight.get(key);
+        if (shared == null) {
+            CompletableFuture<RESPONSE> promise = new CompletableFuture<>();
+            shared = inFlight.putIfAbsent(key, promise);
+            if (shared == null) {
+                shared = promise;
+                send(key, promise, call);
+            }
+        }
+        return shared.thenApply(Function.identity());
+    }
+
+    private void send(Key key, CompletableFuture<RESPONSE> promise, Supplier<CompletableFuture<RESPONSE>> call) {
+        CompletableFuture<RESPONSE> response;
+        try {
+            response = call.get();
+        } catch (RuntimeException ex) {
+            inFlight.remove(key, promise);
+            promise.completeExceptionally(ex);
+            return;
+        }
+        response.whenComplete((result, ex) -> {
+            //identical calls arriving from now on need a fresh response
+            inFlight.remove(key, promise);
+            if (ex == null) {
+                promise.complete(result);
+            } else {
+                promise.completeExceptionally(ex);
+            }
+        });
+    }
+
+    int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    private static class Key {
+
+        private final String methodName;
+        private final ByteString request;
+        private final int hash;
+
+        Key(String methodName, ByteString request) {
+            this.methodName = methodName;
+            this.request = request;
+            this.hash = 31 * methodName.hashCode() + request.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (! (other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return hash == key.hash && methodName.equals(key.methodName) && request.equals(key.request);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+}
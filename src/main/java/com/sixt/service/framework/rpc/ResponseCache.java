@@ -0,0 +1,180 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import com.sixt.service.framework.metrics.GoCounter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Caches the responses of an RpcClient, keyed by the serialized request.
+ * Hits, misses and evictions are counted in the client_rpc_cache metric.
+ */
+class ResponseCache<RESPONSE extends Message> {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResponseCache.class);
+
+    private final ResponseCachePolicy policy;
+    private final LongSupplier clock;
+    private final GoCounter hits;
+    private final GoCounter misses;
+    private final GoCounter evictions;
+    // guarded by this, in access order
+    private final LinkedHashMap<ByteString, Entry<RESPONSE>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    ResponseCache(ResponseCachePolicy policy, RpcClientMetrics metrics, String serviceName, String methodName) {
+        this(policy, System::nanoTime,
+                metrics == null ? null : metrics.getResponseCacheCounter(serviceName, methodName, "hit"),
+                metrics == null ? null : metrics.getResponseCacheCounter(serviceName, methodName, "miss"),
+                metrics == null ? null : metrics.getResponseCacheCounter(serviceName, methodName, "eviction"));
+    }
+
+    ResponseCache(ResponseCachePolicy policy, LongSupplier clock, GoCounter hits, GoCounter misses,
+                  GoCounter evictions) {
+        this.policy = policy;
+        this.clock = clock;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+    }
+
+    /**
+     * @param load sends the request if there is no fresh response cached, or refreshes a
+     *             stale one in the background
+     */
+    CompletableFuture<RESPONSE> get(Message request, Supplier<CompletableFuture<RESPONSE>> load) {
+        ByteString key = request.toByteString();
+        long now = clock.getAsLong();
+        Entry<RESPONSE> entry;
+        boolean refresh = false;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && now - entry.expiresAt >= 0) {
+                if (now - entry.staleUntil < 0) {
+                    refresh = ! entry.refreshing;
+                    entry.refreshing = true;
+                } else {
+                    remove(key, entry);
+                    entry = null;
+                }
+            }
+        }
+        if (entry == null) {
+            increment(misses);
+            return load.get().thenApply(response -> {
+                put(key, response);
+                return response;
+            });
+        }
+        increment(hits);
+        if (refresh) {
+            refresh(key, entry, load);
+        }
+        return CompletableFuture.completedFuture(entry.response);
+    }
+
+    private void refresh(ByteString key, Entry<RESPONSE> stale, Supplier<CompletableFuture<RESPONSE>> load) {
+        CompletableFuture<RESPONSE> future;
+        try {
+            future = load.get();
+        } catch (RuntimeException ex) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(ex);
+        }
+        future.whenComplete((response, ex) -> {
+            if (ex == null) {
+                put(key, response);
+            } else {
+                //keep serving the stale response, the next call will try again
+                logger.debug("Refreshing cached response failed", ex);
+                synchronized (this) {
+                    stale.refreshing = false;
+                }
+            }
+        });
+    }
+
+    private synchronized void put(ByteString key, RESPONSE response) {
+        long now = clock.getAsLong();
+        long expiresAt = now + policy.getTtlNanos();
+        Entry<RESPONSE> entry = new Entry<>(response, expiresAt,
+                expiresAt + policy.getStaleWhileRevalidateNanos(), key.size() + response.getSerializedSize());
+        Entry<RESPONSE> previous = entries.put(key, entry);
+        if (previous != null) {
+            bytes -= previous.size;
+        }
+        bytes += entry.size;
+        evict();
+    }
+
+    //guarded by this
+    private void evict() {
+        long maxBytes = policy.getMaxBytes();
+        Iterator<Map.Entry<ByteString, Entry<RESPONSE>>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext() && (entries.size() > policy.getMaxEntries() ||
+                (maxBytes > 0 && bytes > maxBytes))) {
+            Map.Entry<ByteString, Entry<RESPONSE>> eldest = iterator.next();
+            bytes -= eldest.getValue().size;
+            iterator.remove();
+            increment(evictions);
+        }
+    }
+
+    //guarded by this
+    private void remove(ByteString key, Entry<RESPONSE> entry) {
+        if (entries.remove(key, entry)) {
+            bytes -= entry.size;
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    private static void increment(GoCounter counter) {
+        if (counter != null) {
+            counter.incSuccess();
+        }
+    }
+
+    private static class Entry<RESPONSE> {
+
+        private final RESPONSE response;
+        private final long expiresAt;
+        private final long staleUntil;
+        private final int size;
+        private boolean refreshing = false;
+
+        Entry(RESPONSE response, long expiresAt, long staleUntil, int size) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+            this.staleUntil = staleUntil;
+            this.size = size;
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configures the response cache of an RpcClient: how long responses are fresh, how many
+ * of them (or how many bytes) are kept, and optionally how long a stale response may
+ * still be returned while it is refreshed in the background.
+ * Entries beyond the limits are evicted least recently used first.
+ */
+public class ResponseCachePolicy {
+
+    public final static int DEFAULT_MAX_ENTRIES = 1000;
+
+    private final long ttl;
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private long maxBytes = 0;
+    private long staleWhileRevalidate = 0;
+
+    private ResponseCachePolicy(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Cache responses for the given time
+     * @param ttl milliseconds
+     */
+    public static ResponseCachePolicy withTtl(long ttl) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Cache ttl must be positive");
+        }
+        return new ResponseCachePolicy(ttl);
+    }
+
+    /**
+     * Modify the maximum number of cached responses from default
+     */
+    public ResponseCachePolicy withMaxEntries(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Maximum cache entries must be positive");
+        }
+        this.maxEntries = maxEntries;
+        return this;
+    }
+
+    /**
+     * Also limit the cache by the serialized size of requests and responses
+     */
+    public ResponseCachePolicy withMaxBytes(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Maximum cache bytes must be positive");
+        }
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * After the ttl, keep returning a response for up to the given time while a single
+     * request refreshes it in the background
+     * @param staleWhileRevalidate milliseconds
+     */
+    public ResponseCachePolicy withStaleWhileRevalidate(long staleWhileRevalidate) {
+        if (staleWhileRevalidate < 0) {
+            throw new IllegalArgumentException("Stale-while-revalidate time cannot be negative");
+        }
+        this.staleWhileRevalidate = staleWhileRevalidate;
+        return this;
+    }
+
+    public long getTtlNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(ttl);
+    }
+
+    public long getStaleWhileRevalidateNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(staleWhileRevalidate);
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    //0 if not limited
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import com.sixt.service.framework.FeatureFlags;
+import com.sixt.service.framework.ServiceProperties;
+import com.sixt.service.framework.metrics.GoCounter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limiting the retries to a called service: every successful request earns
+ * a fraction of a retry, every retry spends a whole one.  When a called service fails
+ * for everybody, the retries die down to the given ratio of the requests that still
+ * succeed, instead of multiplying the load on it.
+ * The bucket starts full, so that occasional failures are always retried.
+ */
+public class RetryBudget {
+
+    // tokens are kept in thousandths of a retry, so that we don't need floating point CAS
+    private final static long SCALE = 1000;
+
+    private final long deposit;
+    private final long maxTokens;
+    private final AtomicLong tokens;
+    private volatile GoCounter retryCounter;
+
+    /**
+     * @param ratio percentage of the successful requests that may be retried
+     * @param burst retries that may be taken in a row when the budget is full
+     */
+    public RetryBudget(int ratio, int burst) {
+        if (ratio <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Retry budget ratio and burst must be positive");
+        }
+        this.deposit = ratio * SCALE / 100;
+        this.maxTokens = burst * SCALE;
+        this.tokens = new AtomicLong(maxTokens);
+    }
+
+    /**
+     * @return a budget configured for the given destination service, or null if
+     * retries are not limited
+     */
+    public static RetryBudget forService(ServiceProperties serviceProps, String serviceName) {
+        int ratio = FeatureFlags.getRpcClientRetryBudgetRatio(serviceProps, serviceName);
+        if (ratio <= 0) {
+            return null;
+        }
+        return new RetryBudget(ratio, Math.max(1, FeatureFlags.getRpcClientRetryBudgetBurst(
+                serviceProps, serviceName)));
+    }
+
+    public void setRetryCounter(GoCounter retryCounter) {
+        this.retryCounter = retryCounter;
+    }
+
+    public void requestSucceeded() {
+        if (tokens.get() < maxTokens) {
+            tokens.accumulateAndGet(deposit, (current, increment) -> Math.min(maxTokens, current + increment));
+        }
+    }
+
+    /**
+     * @return true if a retry may be sent, consuming it from the budget
+     */
+    public boolean tryAcquireRetry() {
+        GoCounter counter = retryCounter;
+        while (true) {
+            long current = tokens.get();
+            if (current < SCALE) {
+                if (counter != null) {
+                    counter.incFailure();
+                }
+                return false;
+            }
+            if (tokens.compareAndSet(current, current - SCALE)) {
+                if (counter != null) {
+                    counter.incSuccess();
+                }
+                return true;
+            }
+        }
+    }
+
+    //in retries, for monitoring and tests
+    public double getAvailableRetries() {
+        return (double) tokens.get() / SCALE;
+    }
+
+}
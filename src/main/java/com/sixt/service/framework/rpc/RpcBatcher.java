@@ -0,0 +1,239 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import com.google.protobuf.Message;
+import com.sixt.service.framework.Criticality;
+import com.sixt.service.framework.OrangeContext;
+import com.sixt.service.framework.protobuf.ProtobufUtil;
+import com.sixt.service.framework.protobuf.RpcEnvelope;
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jetty.util.thread.Scheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects protobuf calls to one service and sends them in a single http request
+ * (an RpcEnvelope.BatchRequest), once the batch is full or the first call of the batch
+ * waited for the batch window.  The called service handles the calls concurrently and
+ * answers every one of them separately.
+ * Every call carries its own headers (correlation id, time budget, criticality) in its
+ * frame.  The batch itself is sent with the latest deadline of its calls, and calls
+ * whose deadline passes before the batch is answered fail on their own.
+ */
+public class RpcBatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(RpcBatcher.class);
+
+    private final static String CORRELATION_ID_HEADER = "x-correlation-id";
+
+    private final RpcClient<RpcEnvelope.BatchResponse> batchClient;
+    private final Scheduler scheduler;
+    private final long window;
+    private final int maxBatchSize;
+    private final AtomicLong sequenceNumber = new AtomicLong(0);
+    // guarded by this
+    private List<PendingCall<?>> pending = new ArrayList<>();
+
+    /**
+     * @param batchClient sends the batches, its method is ProtobufRpcRequest.BATCH_METHOD
+     * @param window milliseconds the first call of a batch waits for further calls
+     * @param maxBatchSize calls after which a batch is sent without waiting
+     */
+    public RpcBatcher(RpcClient<RpcEnvelope.BatchResponse> batchClient, Scheduler scheduler,
+                      long window, int maxBatchSize) {
+        if (window < 0 || maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Batch window cannot be negative, batch size must be positive");
+        }
+        this.batchClient = batchClient;
+        this.scheduler = scheduler;
+        this.window = window;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public <RESPONSE extends Message> CompletableFuture<RESPONSE> call(String methodName, Message request,
+                                                                     Class<RESPONSE> responseClass,
+                                                                     OrangeContext orangeContext) {
+        return call(methodName, request, responseClass, orangeContext, null);
+    }
+
+    /**
+     * @param criticality sent instead of the one of the orangeContext, unless null
+     */
+    public <RESPONSE extends Message> CompletableFuture<RESPONSE> call(String methodName, Message request,
+                                                                     Class<RESPONSE> responseClass,
+                                                                     OrangeContext orangeContext,
+                                                                     Criticality criticality) {
+        PendingCall<RESPONSE> call = new PendingCall<>(methodName, sequenceNumber.incrementAndGet(),
+                request, responseClass, orangeContext, criticality);
+        if (orangeContext != null && orangeContext.hasDeadline()) {
+            scheduler.schedule(() -> call.future.completeExceptionally(new RpcCallException(
+                    RpcCallException.Category.RequestTimedOut, "Deadline exceeded waiting for " +
+                    methodName + " in batch")), Math.max(0, orangeContext.getRemainingTimeBudget()),
+                    TimeUnit.MILLISECONDS);
+        }
+        List<PendingCall<?>> full = null;
+        synchronized (this) {
+            pending.add(call);
+            if (pending.size() >= maxBatchSize || window == 0) {
+                full = pending;
+                pending = new ArrayList<>();
+            } else if (pending.size() == 1) {
+                List<PendingCall<?>> batch = pending;
+                scheduler.schedule(() -> flush(batch), window, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+        return call.future;
+    }
+
+    private void flush(List<PendingCall<?>> batch) {
+        synchronized (this) {
+            if (pending != batch) {
+                //already sent because it was full
+                return;
+            }
+            pending = new ArrayList<>();
+        }
+        send(batch);
+    }
+
+    private void send(List<PendingCall<?>> pendingCalls) {
+        RpcEnvelope.BatchRequest.Builder request = RpcEnvelope.BatchRequest.newBuilder();
+        Map<Long, PendingCall<?>> calls = new HashMap<>();
+        List<PendingCall<?>> batch = new ArrayList<>(pendingCalls.size());
+        long deadline = 0;
+        for (PendingCall<?> call : pendingCalls) {
+            if (call.future.isDone()) {
+                //its deadline passed while it waited for the batch
+                continue;
+            }
+            RpcEnvelope.BatchRequest.Frame.Builder frame = RpcEnvelope.BatchRequest.Frame.newBuilder().
+                    setServiceMethod(call.methodName).
+                    setSequenceNumber(call.sequenceNumber).
+                    setBody(call.request.toByteString()).
+                    putAllHeaders(call.headers);
+            if (call.hasDeadline()) {
+                frame.putHeaders(OrangeContext.RPC_TIME_BUDGET.toLowerCase(),
+                        String.valueOf(Math.max(1, call.orangeContext.getRemainingTimeBudget())));
+            }
+            if (deadline != Long.MAX_VALUE) {
+                deadline = call.hasDeadline() ? Math.max(deadline, call.orangeContext.getDeadline())
+                        : Long.MAX_VALUE;
+            }
+            request.addFrames(frame);
+            calls.put(call.sequenceNumber, call);
+            batch.add(call);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        //the call's own headers are in the frames, the batch only needs to live long enough
+        OrangeContext batchContext = new OrangeContext();
+        if (deadline != Long.MAX_VALUE) {
+            batchContext.setDeadline(deadline);
+        }
+        logger.debug("Sending batch of {} calls to {}", batch.size(), batchClient.getServiceName());
+        CompletableFuture<RpcEnvelope.BatchResponse> response;
+        try {
+            response = batchClient.callAsync(request.build(), batchContext);
+        } catch (RuntimeException ex) {
+            batch.forEach(call -> call.future.completeExceptionally(ex));
+            return;
+        }
+        response.whenComplete((batchResponse, ex) -> {
+            if (ex != null) {
+                Throwable cause = ex.getCause() instanceof RpcCallException ? ex.getCause() : ex;
+                batch.forEach(call -> call.future.completeExceptionally(cause));
+                return;
+            }
+            for (RpcEnvelope.BatchResponse.Frame frame : batchResponse.getFramesList()) {
+                PendingCall<?> call = calls.remove(frame.getSequenceNumber());
+                if (call != null) {
+                    call.complete(frame);
+                }
+            }
+            for (PendingCall<?> call : calls.values()) {
+                call.future.completeExceptionally(new RpcCallException(RpcCallException.Category.InternalServerError,
+                        "No response for " + call.methodName + " in batch response"));
+            }
+        });
+    }
+
+    private static class PendingCall<RESPONSE extends Message> {
+
+        private final String methodName;
+        private final long sequenceNumber;
+        private final Message request;
+        private final Class<RESPONSE> responseClass;
+        private final OrangeContext orangeContext;
+        private final Map<String, String> headers = new HashMap<>();
+        private final CompletableFuture<RESPONSE> future = new CompletableFuture<>();
+
+        PendingCall(String methodName, long sequenceNumber, Message request, Class<RESPONSE> responseClass,
+                    OrangeContext orangeContext, Criticality criticality) {
+            this.methodName = methodName;
+            this.sequenceNumber = sequenceNumber;
+            this.request = request;
+            this.responseClass = responseClass;
+            this.orangeContext = orangeContext;
+            //same headers as a call sent on its own, taken while still on the caller's thread
+            if (orangeContext != null) {
+                headers.putAll(orangeContext.getProperties());
+            }
+            String correlationId = MDC.get(OrangeContext.CORRELATION_ID);
+            if (correlationId == null && orangeContext != null) {
+                correlationId = orangeContext.getCorrelationId();
+            }
+            if (correlationId != null) {
+                headers.put(CORRELATION_ID_HEADER, correlationId);
+            }
+            if (criticality != null) {
+                headers.put(OrangeContext.RPC_CRITICALITY.toLowerCase(), criticality.name());
+            }
+        }
+
+        boolean hasDeadline() {
+            return orangeContext != null && orangeContext.hasDeadline();
+        }
+
+        void complete(RpcEnvelope.BatchResponse.Frame frame) {
+            try {
+                if (StringUtils.isNotEmpty(frame.getError())) {
+                    RpcCallException error = RpcCallException.fromJson(frame.getError());
+                    if (error == null) {
+                        error = new RpcCallException(RpcCallException.Category.InternalServerError,
+                                frame.getError());
+                    }
+                    future.completeExceptionally(error);
+                } else {
+                    future.complete(ProtobufUtil.byteStringToProtobuf(frame.getBody(), responseClass));
+                }
+            } catch (Exception ex) {
+                future.completeExceptionally(ex);
+            }
+        }
+    }
+
+}
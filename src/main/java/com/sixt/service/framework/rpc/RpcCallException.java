@@ -47,6 +47,7 @@ public class RpcCallException extends Exception {
         Conflict(409, false),                 //resource conflict
         InternalServerError(500, true),       //unexpected exception
         BackendError(501, false),             //business logic failure
+        ServiceUnavailable(503, true),        //overloaded, request was not handled
         RequestTimedOut(504, true);
 
         private int httpStatus;
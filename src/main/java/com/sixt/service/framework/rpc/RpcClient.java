@@ -15,11 +15,10 @@ package com.sixt.service.framework.rpc;
 import static com.sixt.service.framework.jetty.RpcServlet.TYPE_JSON;
 import static com.sixt.service.framework.jetty.RpcServlet.TYPE_OCTET;
 
+import com.sixt.service.framework.Criticality;
 import com.sixt.service.framework.OrangeContext;
 import com.sixt.service.framework.json.JsonRpcRequest;
-import com.sixt.service.framework.json.JsonRpcResponse;
 import com.sixt.service.framework.protobuf.ProtobufRpcRequest;
-import com.sixt.service.framework.protobuf.ProtobufRpcResponse;
 import com.sixt.service.framework.protobuf.ProtobufUtil;
 import com.sixt.service.framework.rpc.backoff.RetryBackOffFunction;
 
@@ -33,9 +32,12 @@ import org.eclipse.jetty.client.util.StringContentProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
 /**
  * Interface to call a method on a remote service
- * TODO: add asynchronous call support
  * To make multiple simultaneous calls to multiple services, utilize async calls and
  * https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/CompletableFuture.html (allOf)
  */
@@ -50,6 +52,11 @@ public class RpcClient<RESPONSE extends Message> {
     private int retries;
     private int timeout;
     private RetryBackOffFunction retryBackOffFunction;
+    private HedgingPolicy hedgingPolicy;
+    private RequestCoalescer<RESPONSE> coalescer;
+    private ResponseCache<RESPONSE> responseCache;
+    private RpcBatcher batcher;
+    private Criticality criticality;
 
     @Inject
     public RpcClient(
@@ -82,61 +89,192 @@ public class RpcClient<RESPONSE extends Message> {
     public String callSynchronous(JsonArray params, OrangeContext orangeContext)
             throws RpcCallException {
         HttpClientWrapper clientWrapper = loadBalancer.getHttpClientWrapper();
+        HttpRequestWrapper balancedPost = createJsonPost(clientWrapper, params, orangeContext);
+        JsonRpcCallExceptionDecoder decoder = new JsonRpcCallExceptionDecoder();
+        ContentResponse rpcResponse = clientWrapper.execute(balancedPost, decoder, orangeContext);
+        return parseJsonResponse(rpcResponse, decoder);
+    }
+
+    /**
+     * Asynchronous version of {@link #callSynchronous(JsonArray, OrangeContext)}.  The calling
+     * thread is not blocked; the returned future completes exceptionally with an
+     * {@link RpcCallException} if the call fails.
+     */
+    public CompletableFuture<String> callAsync(JsonArray params, OrangeContext orangeContext) {
+        HttpClientWrapper clientWrapper = loadBalancer.getHttpClientWrapper();
+        HttpRequestWrapper balancedPost;
+        try {
+            balancedPost = createJsonPost(clientWrapper, params, orangeContext);
+        } catch (RpcCallException ex) {
+            return failedFuture(ex);
+        }
+        JsonRpcCallExceptionDecoder decoder = new JsonRpcCallExceptionDecoder();
+        return clientWrapper.executeAsync(balancedPost, decoder, orangeContext).
+                thenApply(rpcResponse -> parseJsonResponse(rpcResponse, decoder));
+    }
+
+    /**
+     * @deprecated use {@link #callSynchronous(Message, OrangeContext)} instead and make sure to always pass the {@link OrangeContext}
+     */
+    @Deprecated
+    public RESPONSE callSynchronous(Message request) throws RpcCallException {
+        return callSynchronous(request, null);
+    }
+
+    public RESPONSE callSynchronous(Message request, OrangeContext orangeContext) throws RpcCallException {
+        if (coalescer != null || responseCache != null || batcher != null) {
+            return waitForResponse(callAsync(request, orangeContext));
+        }
+        HttpClientWrapper clientWrapper = loadBalancer.getHttpClientWrapper();
+        HttpRequestWrapper balancedPost = createProtobufPost(clientWrapper, request, orangeContext);
+        ProtobufRpcCallExceptionDecoder decoder = new ProtobufRpcCallExceptionDecoder();
+        ContentResponse rpcResponse = clientWrapper.execute(balancedPost, decoder, orangeContext);
+        return parseProtobufResponse(rpcResponse, decoder);
+    }
+
+    /**
+     * Asynchronous version of {@link #callSynchronous(Message, OrangeContext)}.  The calling
+     * thread is not blocked; the returned future completes exceptionally with an
+     * {@link RpcCallException} if the call fails.
+     */
+    public CompletableFuture<RESPONSE> callAsync(Message request, OrangeContext orangeContext) {
+        ResponseCache<RESPONSE> cache = this.responseCache;
+        if (cache != null) {
+            return cache.get(request, () -> callCoalesced(request, orangeContext));
+        }
+        return callCoalesced(request, orangeContext);
+    }
+
+    private CompletableFuture<RESPONSE> callCoalesced(Message request, OrangeContext orangeContext) {
+        RequestCoalescer<RESPONSE> coalescer = this.coalescer;
+        if (coalescer != null) {
+            return coalescer.call(methodName, request, () -> sendAsync(request, orangeContext));
+        }
+        return sendAsync(request, orangeContext);
+    }
+
+    private CompletableFuture<RESPONSE> sendAsync(Message request, OrangeContext orangeContext) {
+        RpcBatcher batcher = this.batcher;
+        if (batcher != null) {
+            try {
+                verifyDeadline(orangeContext);
+            } catch (RpcCallException ex) {
+                return failedFuture(ex);
+            }
+            return batcher.call(methodName, request, responseClass, orangeContext, criticality);
+        }
+        HttpClientWrapper clientWrapper = loadBalancer.getHttpClientWrapper();
+        HttpRequestWrapper balancedPost;
+        try {
+            balancedPost = createProtobufPost(clientWrapper, request, orangeContext);
+        } catch (RpcCallException ex) {
+            return failedFuture(ex);
+        }
+        ProtobufRpcCallExceptionDecoder decoder = new ProtobufRpcCallExceptionDecoder();
+        return clientWrapper.executeAsync(balancedPost, decoder, orangeContext).
+                thenApply(rpcResponse -> {
+                    try {
+                        return parseProtobufResponse(rpcResponse, decoder);
+                    } catch (RpcCallException ex) {
+                        throw new CompletionException(ex);
+                    }
+                });
+    }
+
+    private HttpRequestWrapper createJsonPost(HttpClientWrapper clientWrapper, JsonArray params,
+                                              OrangeContext orangeContext) throws RpcCallException {
+        verifyDeadline(orangeContext);
         HttpRequestWrapper balancedPost = clientWrapper.createHttpPost(this);
 
         //set custom headers
         if (orangeContext != null) {
             orangeContext.getProperties().forEach(balancedPost::setHeader);
         }
+        if (criticality != null) {
+            //context properties are sent lower-cased, replace an inherited criticality
+            balancedPost.setHeader(OrangeContext.RPC_CRITICALITY.toLowerCase(), criticality.name());
+        }
 
         balancedPost.setHeader("Content-type", TYPE_JSON);
-        //TODO: fix: Temporary workaround below until go services are more http compliant
-        balancedPost.setHeader("Connection", "close");
         JsonRpcRequest jsonRequest = new JsonRpcRequest(null, methodName, params);
         String json = jsonRequest.toString();
         balancedPost.setContentProvider(new StringContentProvider(json));
 
         logger.debug("Sending request of size {}", json.length());
-        ContentResponse rpcResponse = clientWrapper.execute(balancedPost,
-                new JsonRpcCallExceptionDecoder(), orangeContext);
-        String rawResponse = rpcResponse.getContentAsString();
-        logger.debug("Json response from the service: {}", rawResponse);
-
-        return JsonRpcResponse.fromString(rawResponse).getResult().getAsString();
+        return balancedPost;
     }
 
-    /**
-     * @deprecated use {@link #callSynchronous(Message, OrangeContext)} instead and make sure to always pass the {@link OrangeContext}
-     */
-    @Deprecated
-    public RESPONSE callSynchronous(Message request) throws RpcCallException {
-        return callSynchronous(request, null);
+    private String parseJsonResponse(ContentResponse rpcResponse, JsonRpcCallExceptionDecoder decoder) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Json response from the service: {}", rpcResponse.getContentAsString());
+        }
+
+        //the decoder has already parsed the response while checking it for errors
+        return decoder.getJsonRpcResponse(rpcResponse).getResult().getAsString();
     }
 
-    public RESPONSE callSynchronous(Message request, OrangeContext orangeContext) throws RpcCallException {
-        HttpClientWrapper clientWrapper = loadBalancer.getHttpClientWrapper();
+    private HttpRequestWrapper createProtobufPost(HttpClientWrapper clientWrapper, Message request,
+                                                  OrangeContext orangeContext) throws RpcCallException {
+        verifyDeadline(orangeContext);
         HttpRequestWrapper balancedPost = clientWrapper.createHttpPost(this);
 
         //set custom headers
         if (orangeContext != null) {
             orangeContext.getProperties().forEach(balancedPost::setHeader);
         }
+        if (criticality != null) {
+            //context properties are sent lower-cased, replace an inherited criticality
+            balancedPost.setHeader(OrangeContext.RPC_CRITICALITY.toLowerCase(), criticality.name());
+        }
 
         balancedPost.setHeader("Content-type", TYPE_OCTET);
-        //TODO: fix: Temporary workaround below until go services are more http compliant
-        balancedPost.setHeader("Connection", "close");
         ProtobufRpcRequest pbRequest = new ProtobufRpcRequest(methodName, request);
         byte[] protobufData = pbRequest.getProtobufData();
         balancedPost.setContentProvider(new BytesContentProvider(protobufData));
 
         logger.debug("Sending request of size {}", protobufData.length);
-        ContentResponse rpcResponse = clientWrapper.execute(balancedPost,
-                new ProtobufRpcCallExceptionDecoder(), orangeContext);
-        byte[] data = rpcResponse.getContent();
-        logger.debug("Received a proto response of size: {}", data.length);
+        return balancedPost;
+    }
 
+    private RESPONSE parseProtobufResponse(ContentResponse rpcResponse, ProtobufRpcCallExceptionDecoder decoder)
+            throws RpcCallException {
+        logger.debug("Received a proto response of size: {}", rpcResponse.getContent().length);
+
+        //the decoder has already parsed the envelope while checking it for errors
         return ProtobufUtil.byteArrayToProtobuf(
-                new ProtobufRpcResponse(data).getPayloadData(), responseClass);
+                decoder.getEnvelope(rpcResponse).getPayloadData(), responseClass);
+    }
+
+    /**
+     * Don't even start a call if our own caller has already given up on us.
+     */
+    private void verifyDeadline(OrangeContext orangeContext) throws RpcCallException {
+        if (orangeContext != null && orangeContext.isDeadlineExceeded()) {
+            throw new RpcCallException(RpcCallException.Category.RequestTimedOut,
+                    "Deadline exceeded before calling " + getServiceMethodName()).withRetriable(false);
+        }
+    }
+
+    private RESPONSE waitForResponse(CompletableFuture<RESPONSE> future) throws RpcCallException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RpcCallException(RpcCallException.Category.InternalServerError,
+                    "Interrupted waiting for response of " + getServiceMethodName());
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RpcCallException) {
+                throw (RpcCallException) ex.getCause();
+            }
+            throw new RpcCallException(RpcCallException.Category.InternalServerError,
+                    RpcCallExceptionDecoder.exceptionToString(ex.getCause()));
+        }
+    }
+
+    private static <T> CompletableFuture<T> failedFuture(Throwable ex) {
+        CompletableFuture<T> retval = new CompletableFuture<>();
+        retval.completeExceptionally(ex);
+        return retval;
     }
 
     public LoadBalancer getLoadBalancer() {
@@ -178,4 +316,53 @@ public class RpcClient<RESPONSE extends Message> {
     public RetryBackOffFunction getRetryBackOffFunction() {
         return retryBackOffFunction;
     }
+
+    public HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+    }
+
+    /**
+     * Cache the responses of protobuf calls
+     * @param policy null to not cache
+     * @param metrics to count hits, misses and evictions, may be null
+     */
+    public void setResponseCache(ResponseCachePolicy policy, RpcClientMetrics metrics) {
+        this.responseCache = policy == null ? null :
+                new ResponseCache<>(policy, metrics, serviceName, methodName);
+    }
+
+    /**
+     * Send protobuf calls in batches with other calls to the same service
+     * @param batcher null to send every call on its own
+     */
+    public void setBatcher(RpcBatcher batcher) {
+        this.batcher = batcher;
+    }
+
+    public Criticality getCriticality() {
+        return criticality;
+    }
+
+    /**
+     * @param criticality sent with every call instead of the one of the OrangeContext,
+     *                    null to use the one of the OrangeContext
+     */
+    public void setCriticality(Criticality criticality) {
+        this.criticality = criticality;
+    }
+
+    public boolean isCoalescing() {
+        return coalescer != null;
+    }
+
+    /**
+     * Let concurrent identical protobuf calls share a single request in flight
+     */
+    public void setCoalescing(boolean coalescing) {
+        this.coalescer = coalescing ? new RequestCoalescer<>() : null;
+    }
 }
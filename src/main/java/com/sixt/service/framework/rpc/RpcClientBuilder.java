@@ -15,13 +15,20 @@ package com.sixt.service.framework.rpc;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.google.protobuf.Message;
+import com.sixt.service.framework.Criticality;
 import com.sixt.service.framework.ServiceProperties;
+import com.sixt.service.framework.protobuf.ProtobufRpcRequest;
+import com.sixt.service.framework.protobuf.RpcEnvelope;
 import com.sixt.service.framework.rpc.backoff.RetryBackOffFunction;
+import com.sixt.service.framework.rpc.balancing.LoadBalancingStrategy;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Builds RpcClients to interact with remote services.
  */
@@ -39,6 +46,13 @@ public class RpcClientBuilder<RESPONSE extends Message> {
     private RetryBackOffFunction retryBackOffFunction;
     private int timeout;
     private Class<RESPONSE> responseClass;
+    private HedgingPolicy hedgingPolicy;
+    private LoadBalancingStrategy loadBalancingStrategy;
+    private boolean coalescing = false;
+    private ResponseCachePolicy responseCachePolicy;
+    private long batchWindow = -1;
+    private int maxBatchSize;
+    private Criticality criticality;
 
     @Inject
     public RpcClientBuilder(Injector injector) {
@@ -81,6 +95,73 @@ public class RpcClientBuilder<RESPONSE extends Message> {
         return this;
     }
 
+    /**
+     * Send a second request to another instance if the first one is slow.  Only use
+     * this for idempotent methods.
+     *
+     * @param hedgingPolicy - when to hedge and how many hedges may be sent
+     */
+    public RpcClientBuilder<RESPONSE> withHedging(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+        return this;
+    }
+
+    /**
+     * Let concurrent identical calls (same serialized protobuf request) share a single
+     * request in flight and its response.  Only use this for idempotent methods; the
+     * calls share the OrangeContext of the first one.
+     */
+    public RpcClientBuilder<RESPONSE> withCoalescing() {
+        this.coalescing = true;
+        return this;
+    }
+
+    /**
+     * Cache the responses of protobuf calls, keyed by the serialized request.  Only use
+     * this for methods whose responses may be outdated by up to the cache's ttl.
+     *
+     * @param policy - how long and how many responses are cached
+     */
+    public RpcClientBuilder<RESPONSE> withResponseCache(ResponseCachePolicy policy) {
+        this.responseCachePolicy = policy;
+        return this;
+    }
+
+    /**
+     * Send protobuf calls together with other calls to the same service in a single
+     * http request.  The batcher is shared, so the settings of the first client of the
+     * service built with batching apply to all of them.
+     *
+     * @param window - milliseconds the first call of a batch waits for further calls
+     * @param maxBatchSize - calls after which a batch is sent without waiting
+     */
+    public RpcClientBuilder<RESPONSE> withBatching(long window, int maxBatchSize) {
+        if (window < 0 || maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Batch window cannot be negative, batch size must be positive");
+        }
+        this.batchWindow = window;
+        this.maxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    /**
+     * Modify how requests are distributed between the instances of the called service.
+     * The load balancer is shared, so this applies to all clients of the service.
+     */
+    public RpcClientBuilder<RESPONSE> withLoadBalancingStrategy(LoadBalancingStrategy strategy) {
+        this.loadBalancingStrategy = strategy;
+        return this;
+    }
+
+    /**
+     * Send all calls with the given criticality, instead of the one of the OrangeContext
+     * passed to the call (which by default is the one of the request being handled)
+     */
+    public RpcClientBuilder<RESPONSE> withCriticality(Criticality criticality) {
+        this.criticality = criticality;
+        return this;
+    }
+
     public RpcClient<RESPONSE> build() {
         if (StringUtils.isBlank(serviceName)) {
             throw new IllegalStateException("RpcClientBuilder: Service name was not set");
@@ -90,8 +171,28 @@ public class RpcClientBuilder<RESPONSE extends Message> {
         }
         LoadBalancerFactory lbFactory = injector.getInstance(LoadBalancerFactory.class);
         LoadBalancer loadBalancer = lbFactory.getLoadBalancer(serviceName);
-        return new RpcClient<>(loadBalancer, serviceName, methodName, retries, timeout,
-                               retryBackOffFunction, responseClass);
+        if (loadBalancingStrategy != null) {
+            loadBalancer.setLoadBalancingStrategy(loadBalancingStrategy);
+        }
+        RpcClient<RESPONSE> client = new RpcClient<>(loadBalancer, serviceName, methodName, retries,
+                timeout, retryBackOffFunction, responseClass);
+        client.setHedgingPolicy(hedgingPolicy == null ? null : hedgingPolicy.copy());
+        client.setCoalescing(coalescing);
+        client.setCriticality(criticality);
+        if (batchWindow >= 0) {
+            HttpClientWrapper wrapper = loadBalancer.getHttpClientWrapper();
+            //the batch client sends with these settings, so only clients with equal ones share it
+            List<Object> batcherKey = Arrays.asList(retries, timeout, retryBackOffFunction,
+                    batchWindow, maxBatchSize);
+            client.setBatcher(wrapper.getRpcBatcher(batcherKey, () -> new RpcBatcher(
+                    new RpcClient<>(loadBalancer, serviceName, ProtobufRpcRequest.BATCH_METHOD, retries,
+                            timeout, retryBackOffFunction, RpcEnvelope.BatchResponse.class),
+                    wrapper.getScheduler(), batchWindow, maxBatchSize)));
+        }
+        if (responseCachePolicy != null) {
+            client.setResponseCache(responseCachePolicy, injector.getInstance(RpcClientMetrics.class));
+        }
+        return client;
     }
 
     public void setResponseClass(Class<RESPONSE> responseClass) {
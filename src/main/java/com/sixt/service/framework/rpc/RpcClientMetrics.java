@@ -14,6 +14,8 @@ package com.sixt.service.framework.rpc;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.sixt.service.framework.metrics.GoCounter;
+import com.sixt.service.framework.metrics.GoGauge;
 import com.sixt.service.framework.metrics.GoTimer;
 import com.sixt.service.framework.metrics.MetricBuilderFactory;
 import org.apache.commons.lang3.StringUtils;
@@ -49,4 +51,40 @@ public class RpcClientMetrics {
                 withTag("destination_method", destinationMethod).buildTimer();
     }
 
+    public synchronized GoGauge getConnectionPoolGauge(String destinationService) {
+        if (StringUtils.isBlank(destinationService)) {
+            destinationService = UNKNOWN;
+        }
+        return metricBuilderFactory.newMetric("client_rpc_connections").
+                withTag("destination_service", destinationService).buildGauge();
+    }
+
+    /**
+     * @param event "hit", "miss" or "eviction"
+     */
+    public synchronized GoCounter getResponseCacheCounter(String destinationService,
+                                                          String destinationMethod, String event) {
+        if (StringUtils.isBlank(destinationService)) {
+            destinationService = UNKNOWN;
+        }
+        if (StringUtils.isBlank(destinationMethod)) {
+            destinationMethod = UNKNOWN;
+        }
+        return metricBuilderFactory.newMetric("client_rpc_cache").
+                withTag("destination_service", destinationService).
+                withTag("destination_method", destinationMethod).
+                withTag("event", event).buildCounter();
+    }
+
+    /**
+     * Successes count the retries taken, failures the retries denied by the retry budget
+     */
+    public synchronized GoCounter getRetryCounter(String destinationService) {
+        if (StringUtils.isBlank(destinationService)) {
+            destinationService = UNKNOWN;
+        }
+        return metricBuilderFactory.newMetric("client_rpc_retries").
+                withTag("destination_service", destinationService).buildCounter();
+    }
+
 }
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import com.sixt.service.framework.FeatureFlags;
+import com.sixt.service.framework.ServiceProperties;
+import com.sixt.service.framework.metrics.GoGauge;
+import org.eclipse.jetty.client.ConnectionPool;
+import org.eclipse.jetty.client.DuplexConnectionPool;
+import org.eclipse.jetty.client.HttpDestination;
+import org.eclipse.jetty.client.api.Connection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * Creates the (keep-alive) connection pools of the rpc HttpClient, one per destination
+ * instance.  Pools open connections on demand, so they grow with the observed concurrency
+ * towards the limit configured for the destination service, and keep them open for reuse.
+ * The pools of a destination service are reported together as a gauge.
+ */
+public class RpcConnectionPools implements ConnectionPool.Factory {
+
+    private static final Logger logger = LoggerFactory.getLogger(RpcConnectionPools.class);
+
+    private final ServiceProperties serviceProps;
+    //host:port -> destination service, learned from the requests being sent
+    private final Map<String, String> destinationServices = new ConcurrentHashMap<>();
+    private final Map<String, ServicePools> services = new ConcurrentHashMap<>();
+    private volatile RpcClientMetrics metrics;
+
+    public RpcConnectionPools(ServiceProperties serviceProps) {
+        this.serviceProps = serviceProps;
+    }
+
+    public void setMetrics(RpcClientMetrics metrics) {
+        this.metrics = metrics;
+        services.values().forEach(ServicePools::registerMetrics);
+    }
+
+    /**
+     * Remember which service an endpoint belongs to before a connection pool is created for it
+     */
+    public void registerEndpoint(ServiceEndpoint endpoint) {
+        String serviceName = endpoint.getServiceName();
+        if (serviceName != null && ! destinationServices.containsKey(endpoint.getHostAndPort())) {
+            destinationServices.putIfAbsent(endpoint.getHostAndPort(), serviceName);
+        }
+    }
+
+    @Override
+    public ConnectionPool newConnectionPool(HttpDestination destination) {
+        String serviceName = destinationServices.getOrDefault(
+                destination.getHost() + ":" + destination.getPort(), RpcClientMetrics.UNKNOWN);
+        int maxConnections = FeatureFlags.getRpcClientMaxConnections(serviceProps, serviceName);
+        logger.debug("Creating connection pool for {} ({}) with up to {} connections",
+                destination, serviceName, maxConnections);
+        ServicePools servicePools = services.computeIfAbsent(serviceName, ServicePools::new);
+        ServiceConnectionPool pool = new ServiceConnectionPool(destination, maxConnections, servicePools);
+        servicePools.pools.add(pool);
+        servicePools.registerMetrics();
+        return pool;
+    }
+
+    public int getMaxConnectionCount(String serviceName) {
+        return sum(serviceName, ServiceConnectionPool::getMaxConnectionCount);
+    }
+
+    public int getActiveConnectionCount(String serviceName) {
+        return sum(serviceName, ServiceConnectionPool::getActiveConnectionCount);
+    }
+
+    public int getIdleConnectionCount(String serviceName) {
+        return sum(serviceName, ServiceConnectionPool::getIdleConnectionCount);
+    }
+
+    public int getQueuedRequestCount(String serviceName) {
+        return sum(serviceName, pool -> pool.destination.getHttpExchanges().size());
+    }
+
+    public long getOpenedConnectionCount(String serviceName) {
+        ServicePools servicePools = services.get(serviceName);
+        return servicePools == null ? 0 : servicePools.opened.get();
+    }
+
+    public long getClosedConnectionCount(String serviceName) {
+        ServicePools servicePools = services.get(serviceName);
+        return servicePools == null ? 0 : servicePools.closed.get();
+    }
+
+    private int sum(String serviceName, ToLongFunction<ServiceConnectionPool> function) {
+        ServicePools servicePools = services.get(serviceName);
+        if (servicePools == null) {
+            return 0;
+        }
+        long retval = 0;
+        for (ServiceConnectionPool pool : servicePools.pools) {
+            retval += function.applyAsLong(pool);
+        }
+        return (int) retval;
+    }
+
+    private class ServicePools {
+
+        private final String serviceName;
+        private final List<ServiceConnectionPool> pools = new CopyOnWriteArrayList<>();
+        private final AtomicLong opened = new AtomicLong(0);
+        private final AtomicLong closed = new AtomicLong(0);
+        private final AtomicBoolean metricsRegistered = new AtomicBoolean(false);
+
+        ServicePools(String serviceName) {
+            this.serviceName = serviceName;
+        }
+
+        void registerMetrics() {
+            RpcClientMetrics rpcClientMetrics = metrics;
+            if (rpcClientMetrics == null || ! metricsRegistered.compareAndSet(false, true)) {
+                return;
+            }
+            GoGauge gauge = rpcClientMetrics.getConnectionPoolGauge(serviceName);
+            gauge.register("max", () -> getMaxConnectionCount(serviceName));
+            gauge.register("active", () -> getActiveConnectionCount(serviceName));
+            gauge.register("idle", () -> getIdleConnectionCount(serviceName));
+            gauge.register("queued", () -> getQueuedRequestCount(serviceName));
+            gauge.register("opened", () -> getOpenedConnectionCount(serviceName));
+            gauge.register("closed", () -> getClosedConnectionCount(serviceName));
+        }
+    }
+
+    private static class ServiceConnectionPool extends DuplexConnectionPool {
+
+        private final HttpDestination destination;
+        private final ServicePools servicePools;
+
+        ServiceConnectionPool(HttpDestination destination, int maxConnections, ServicePools servicePools) {
+            super(destination, maxConnections, destination);
+            this.destination = destination;
+            this.servicePools = servicePools;
+        }
+
+        @Override
+        protected void onCreated(Connection connection) {
+            servicePools.opened.incrementAndGet();
+            super.onCreated(connection);
+        }
+
+        @Override
+        public boolean remove(Connection connection) {
+            boolean removed = super.remove(connection);
+            if (removed) {
+                servicePools.closed.incrementAndGet();
+            }
+            return removed;
+        }
+
+        @Override
+        public void close() {
+            servicePools.closed.addAndGet(getConnectionCount());
+            servicePools.pools.remove(this);
+            super.close();
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.client.http.HttpClientTransportOverHTTP2;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HttpClient that talks HTTP/2 cleartext (h2c, prior knowledge) to destination services
+ * listed in rpcClientHttp2.  All requests to an instance are multiplexed over a single
+ * connection instead of a pool of HTTP/1.1 connections.
+ * It is created on first use and attached to the regular rpc HttpClient, whose executor
+ * and scheduler it shares and whose lifecycle it follows.
+ */
+public class RpcHttp2Client extends HttpClient {
+
+    private static final Logger logger = LoggerFactory.getLogger(RpcHttp2Client.class);
+
+    private RpcHttp2Client(HttpClient parent) {
+        super(new HttpClientTransportOverHTTP2(new HTTP2Client()), null);
+        setFollowRedirects(false);
+        setExecutor(parent.getExecutor());
+        setScheduler(parent.getScheduler());
+        setRequestBufferSize(parent.getRequestBufferSize());
+        setConnectTimeout(parent.getConnectTimeout());
+        setAddressResolutionTimeout(parent.getAddressResolutionTimeout());
+        setIdleTimeout(parent.getIdleTimeout());
+    }
+
+    /**
+     * Looks for the client attached to the parent under the parent's lock, so callers
+     * should resolve it once and keep it.
+     * @return the http/2 client of the parent, or null if it could not be started
+     */
+    public static RpcHttp2Client forClient(HttpClient parent) {
+        synchronized (parent) {
+            RpcHttp2Client retval = parent.getBean(RpcHttp2Client.class);
+            if (retval == null) {
+                retval = new RpcHttp2Client(parent);
+                try {
+                    retval.start();
+                } catch (Exception e) {
+                    logger.error("Error building http/2 client", e);
+                    return null;
+                }
+                parent.addBean(retval, true);
+            }
+            return retval;
+        }
+    }
+
+}
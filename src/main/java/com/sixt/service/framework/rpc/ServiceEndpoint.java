@@ -19,17 +19,33 @@ public class ServiceEndpoint {
 
     protected String availZone;
     protected String hostAndPort;
-    protected CircuitBreakerState circuitBreaker;
+    protected CircuitBreaker circuitBreaker;
     protected AtomicInteger servingRequests = new AtomicInteger(0); //intended only for probe logic
     protected String serviceName;
+    protected final EndpointStatistics statistics = new EndpointStatistics();
 
+    public ServiceEndpoint(String hostAndPort, String availZone,
+                           ServiceDependencyHealthCheck dependencyHealthCheck) {
+        this(hostAndPort, availZone, new CircuitBreakerState(), dependencyHealthCheck);
+    }
+
+    public ServiceEndpoint(String hostAndPort, String availZone, CircuitBreaker cb,
+                           ServiceDependencyHealthCheck dependencyHealthCheck) {
+        this(hostAndPort, availZone, cb);
+        dependencyHealthCheck.monitorServiceEndpoint(this);
+    }
+
+    /**
+     * The circuit breaker schedules its transitions on the given executor instead of
+     * the shared timer wheel (if not null)
+     */
     public ServiceEndpoint(ScheduledThreadPoolExecutor executor,
                            String hostAndPort, String availZone, ServiceDependencyHealthCheck dependencyHealthCheck) {
         this(hostAndPort, availZone, new CircuitBreakerState(executor));
         dependencyHealthCheck.monitorServiceEndpoint(this);
     }
 
-    public ServiceEndpoint(String hostAndPort, String availZone, CircuitBreakerState cb) {
+    public ServiceEndpoint(String hostAndPort, String availZone, CircuitBreaker cb) {
         this.hostAndPort = hostAndPort;
         this.availZone = availZone == null ? "" : availZone;
         this.circuitBreaker = cb;
@@ -51,19 +67,62 @@ public class ServiceEndpoint {
         return circuitBreaker.getState();
     }
 
+    public boolean isHealthy() {
+        //only healthy states accept further requests while one is being served
+        return circuitBreaker.canServeRequests(true);
+    }
+
     public boolean canServeRequests() {
         return circuitBreaker.canServeRequests(servingRequests.get() > 0);
     }
 
+    public int getServingRequests() {
+        return servingRequests.get();
+    }
+
     public void incrementServingRequests() {
         servingRequests.incrementAndGet();
     }
 
+    /**
+     * Counts a request against this endpoint if it can serve it.  An endpoint that is
+     * probing accepts only a single request at a time.
+     * @return false if the endpoint can't serve the request
+     */
+    public boolean tryIncrementServingRequests() {
+        if (isHealthy()) {
+            servingRequests.incrementAndGet();
+            return true;
+        }
+        return circuitBreaker.canServeRequests(false) && servingRequests.compareAndSet(0, 1);
+    }
+
     public void requestComplete(boolean success) {
         servingRequests.decrementAndGet();
         circuitBreaker.requestComplete(success);
     }
 
+    /**
+     * Like above, additionally recording the latency of the request in the endpoint statistics
+     */
+    public void requestComplete(boolean success, long latencyNanos) {
+        statistics.record(latencyNanos, success);
+        servingRequests.decrementAndGet();
+        circuitBreaker.requestComplete(success, latencyNanos);
+    }
+
+    public EndpointStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * For requests that were abandoned by the client (e.g. the loser of a hedged request).
+     * These say nothing about the health of the endpoint.
+     */
+    public void requestCancelled() {
+        servingRequests.decrementAndGet();
+    }
+
     public void setServiceName(String serviceName) {
         this.serviceName = serviceName;
     }
@@ -12,127 +12,107 @@
 
 package com.sixt.service.framework.rpc;
 
+import com.sixt.service.framework.rpc.balancing.LoadBalancingStrategy;
+import com.sixt.service.framework.rpc.balancing.RoundRobinStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * The endpoints of an availability zone, selected by a LoadBalancingStrategy (round-robin
+ * by default).  Selecting an endpoint doesn't lock: the endpoints are kept in an immutable
+ * array which is replaced as a whole when endpoints are added, and the round-robin
+ * position is an atomic index.
+ */
 public class ServiceEndpointList {
 
     private static final Logger logger = LoggerFactory.getLogger(ServiceEndpointList.class);
 
-    protected volatile int size = 0;
-    protected ServiceEndpointNode returnNext = null;
-    protected ReentrantReadWriteLock mutex = new ReentrantReadWriteLock();
-
-    public void add(ServiceEndpoint sep) {
-        mutex.writeLock().lock();
-        try {
-            if (size == 0) {
-                ServiceEndpointNode node = new ServiceEndpointNode(sep);
-                this.returnNext = node;
-                node.prev = node;
-                node.next = node;
-            } else {
-                ServiceEndpointNode node = new ServiceEndpointNode(sep);
-                ServiceEndpointNode previous = returnNext;
-                returnNext = node;
-                node.next = previous.next;
-                node.next.prev = node;
-                node.prev = previous;
-                previous.next = node;
-            }
-            size++;
-        } finally {
-            mutex.writeLock().unlock();
-        }
+    private static final ServiceEndpoint[] EMPTY = new ServiceEndpoint[0];
+
+    protected volatile ServiceEndpoint[] endpoints = EMPTY;
+    protected final AtomicInteger nextIndex = new AtomicInteger(0);
+    protected volatile LoadBalancingStrategy strategy;
+
+    public ServiceEndpointList() {
+        this(new RoundRobinStrategy());
+    }
+
+    public ServiceEndpointList(LoadBalancingStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    public void setStrategy(LoadBalancingStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    public synchronized void add(ServiceEndpoint sep) {
+        ServiceEndpoint[] current = endpoints;
+        ServiceEndpoint[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = sep;
+        endpoints = updated;
+        //the newest endpoint is the next one to be used
+        nextIndex.set(current.length);
     }
 
     public ServiceEndpoint nextAvailable() {
-        mutex.writeLock().lock(); //needs write b/c it calls canServeRequests
-        try {
-            ServiceEndpointNode retval = returnNext;
-            for (int i = 0; i < size; i++) {
-                if (retval.value.canServeRequests()) {
-                    retval.value.incrementServingRequests();
-                    returnNext = retval.next;
-                    return retval.value;
-                } else {
-                    returnNext = returnNext.next;
-                    retval = returnNext;
-                }
-            }
-            //if we got here, there are none available
-            return null;
-        } finally {
-            mutex.writeLock().unlock();
-        }
+        return strategy.select(this);
+    }
+
+    /**
+     * The current endpoints.  The returned array must not be modified.
+     */
+    public ServiceEndpoint[] getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Advances the round-robin position
+     * @return the position before advancing; not bounded by the number of endpoints
+     */
+    public int nextIndex() {
+        return nextIndex.getAndIncrement();
     }
 
     public boolean isEmpty() {
-        mutex.readLock().lock();
-        try {
-            return size == 0;
-        } finally {
-            mutex.readLock().unlock();
-        }
+        return endpoints.length == 0;
     }
 
     public int size() {
-        mutex.readLock().lock();
-        try {
-            return size;
-        } finally {
-            mutex.readLock().unlock();
+        return endpoints.length;
+    }
+
+    /**
+     * @return the number of endpoints whose circuit breaker is in a healthy state
+     */
+    public int getHealthyCount() {
+        int retval = 0;
+        for (ServiceEndpoint endpoint : endpoints) {
+            if (endpoint.isHealthy()) {
+                retval++;
+            }
         }
+        return retval;
     }
 
     public void updateEndpointHealth(ServiceEndpoint ep, CircuitBreakerState.State state) {
-        mutex.readLock().lock();
-        try {
-            ServiceEndpointNode current = returnNext;
-            int count = size;
-            for (int i = 0; i < count; i++) {
-                if (current.value.getHostAndPort().equals(ep.getHostAndPort())) {
-                    current.value.setCircuitBreakerState(state);
-                    return;
-                }
-                current = current.next;
+        for (ServiceEndpoint current : endpoints) {
+            if (current.getHostAndPort().equals(ep.getHostAndPort())) {
+                current.setCircuitBreakerState(state);
+                return;
             }
-            logger.error("updateEndpointHealth: endpoint not found: {}", ep.toString());
-        } finally {
-            mutex.readLock().unlock();
         }
+        logger.error("updateEndpointHealth: endpoint not found: {}", ep.toString());
     }
 
     //intended only for debugging
     public void debugDump(StringBuilder sb) {
-        mutex.writeLock().lock();
-        try {
-            ServiceEndpointNode current = returnNext;
-            for (int i = 0; i < size; i++) {
-                sb.append("    ").append(current.toString()).append(": ").
-                        append(current.value.getCircuitBreakerState()).append("\n");
-                current = current.next;
-            }
-        } finally {
-            mutex.writeLock().unlock();
+        for (ServiceEndpoint current : endpoints) {
+            sb.append("    ").append(current.toString()).append(": ").
+                    append(current.getCircuitBreakerState()).append("\n");
         }
     }
 
 }
-
-class ServiceEndpointNode {
-    ServiceEndpoint value;
-    ServiceEndpointNode prev;
-    ServiceEndpointNode next;
-
-    public ServiceEndpointNode(ServiceEndpoint value) {
-        this.value = value;
-    }
-
-    @Override
-    public String toString() {
-        return value.toString();
-    }
-}
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import com.sixt.service.framework.FeatureFlags;
+import com.sixt.service.framework.ServiceProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.sixt.service.framework.rpc.CircuitBreakerState.State.PRIMARY_HEALTHY;
+import static com.sixt.service.framework.rpc.CircuitBreakerState.State.PRIMARY_PROBE;
+import static com.sixt.service.framework.rpc.CircuitBreakerState.State.PRIMARY_TRIPPED;
+
+/**
+ * Trips when the rate of failed or slow requests among the last requests (a count-based
+ * sliding window) reaches a threshold, once the window holds a minimum number of requests.
+ * A tripped breaker lets a single probe through after the open time; the probe decides
+ * between healthy (with an empty window) and tripped again.
+ * Only PRIMARY_HEALTHY, PRIMARY_TRIPPED and PRIMARY_PROBE are used for these transitions.
+ */
+public class SlidingWindowCircuitBreaker implements CircuitBreaker {
+
+    private static final Logger logger = LoggerFactory.getLogger(SlidingWindowCircuitBreaker.class);
+
+    private static final CircuitBreakerState.State[] STATES = CircuitBreakerState.State.values();
+
+    //outcomes in the window
+    private static final int EMPTY = 0;
+    private static final int RECORDED = 1;
+    private static final int FAILED = 2;
+    private static final int SLOW = 4;
+
+    private final HashedTimerWheel timer;
+    private final int minimumRequests;
+    private final int failureRateThreshold;
+    private final int slowCallRateThreshold;
+    private final long slowCallNanos;
+    private final int openTime;
+
+    private final AtomicIntegerArray window;
+    private final AtomicInteger position = new AtomicInteger(0);
+    private final AtomicInteger total = new AtomicInteger(0);
+    private final AtomicInteger failed = new AtomicInteger(0);
+    private final AtomicInteger slow = new AtomicInteger(0);
+    // generation << 8 | state ordinal
+    private final AtomicLong state = new AtomicLong(PRIMARY_HEALTHY.ordinal());
+
+    public SlidingWindowCircuitBreaker(ServiceProperties serviceProps, String serviceName) {
+        this(HashedTimerWheel.getShared(),
+                FeatureFlags.getCircuitBreakerWindowSize(serviceProps, serviceName),
+                FeatureFlags.getCircuitBreakerMinimumRequests(serviceProps, serviceName),
+                FeatureFlags.getCircuitBreakerFailureRateThreshold(serviceProps, serviceName),
+                FeatureFlags.getCircuitBreakerSlowCallRateThreshold(serviceProps, serviceName),
+                FeatureFlags.getCircuitBreakerSlowCallDuration(serviceProps, serviceName),
+                FeatureFlags.getCircuitBreakerOpenTime(serviceProps, serviceName));
+    }
+
+    /**
+     * @param failureRateThreshold percent
+     * @param slowCallRateThreshold percent, 0 to disable
+     * @param slowCallDuration milliseconds
+     * @param openTime seconds
+     */
+    public SlidingWindowCircuitBreaker(HashedTimerWheel timer, int windowSize, int minimumRequests,
+                                       int failureRateThreshold, int slowCallRateThreshold,
+                                       int slowCallDuration, int openTime) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size must be positive");
+        }
+        this.timer = timer;
+        this.window = new AtomicIntegerArray(windowSize);
+        this.minimumRequests = Math.max(1, Math.min(minimumRequests, windowSize));
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallDuration);
+        this.openTime = openTime;
+    }
+
+    @Override
+    public void setState(CircuitBreakerState.State newState) {
+        while (true) {
+            long current = state.get();
+            if (state.compareAndSet(current, pack(newState, generationOf(current) + 1))) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public CircuitBreakerState.State getState() {
+        return stateOf(state.get());
+    }
+
+    @Override
+    public boolean canServeRequests(boolean oneAlreadyQueued) {
+        CircuitBreakerState.State current = getState();
+        if (current == PRIMARY_PROBE) {
+            return ! oneAlreadyQueued;
+        }
+        return current == PRIMARY_HEALTHY;
+    }
+
+    @Override
+    public void requestComplete(boolean resultGood) {
+        requestComplete(resultGood, 0);
+    }
+
+    @Override
+    public void requestComplete(boolean resultGood, long latencyNanos) {
+        long current = state.get();
+        CircuitBreakerState.State currentState = stateOf(current);
+        if (currentState == PRIMARY_HEALTHY) {
+            record(resultGood, latencyNanos);
+            if (shouldTrip()) {
+                trip(current);
+            }
+        } else if (currentState == PRIMARY_PROBE) {
+            if (resultGood) {
+                if (state.compareAndSet(current, pack(PRIMARY_HEALTHY, generationOf(current) + 1))) {
+                    logger.debug("CircuitBreaker was tripped, became healthy");
+                }
+            } else {
+                trip(current);
+            }
+        }
+    }
+
+    //percent of the requests in the window, for monitoring and tests
+    public int getFailureRate() {
+        int requests = total.get();
+        return requests == 0 ? 0 : failed.get() * 100 / requests;
+    }
+
+    public int getSlowCallRate() {
+        int requests = total.get();
+        return requests == 0 ? 0 : slow.get() * 100 / requests;
+    }
+
+    private void record(boolean resultGood, long latencyNanos) {
+        int outcome = RECORDED | (resultGood ? 0 : FAILED) |
+                (latencyNanos >= slowCallNanos && slowCallNanos > 0 ? SLOW : 0);
+        int index = Math.floorMod(position.getAndIncrement(), window.length());
+        int previous = window.getAndSet(index, outcome);
+        if ((previous & RECORDED) == 0) {
+            total.incrementAndGet();
+        }
+        adjust(failed, previous & FAILED, outcome & FAILED);
+        adjust(slow, previous & SLOW, outcome & SLOW);
+    }
+
+    private static void adjust(AtomicInteger counter, int previous, int current) {
+        if (previous == 0 && current != 0) {
+            counter.incrementAndGet();
+        } else if (previous != 0 && current == 0) {
+            counter.decrementAndGet();
+        }
+    }
+
+    private boolean shouldTrip() {
+        int requests = total.get();
+        if (requests < minimumRequests) {
+            return false;
+        }
+        if (failed.get() * 100 >= failureRateThreshold * requests) {
+            return true;
+        }
+        return slowCallRateThreshold > 0 && slow.get() * 100 >= slowCallRateThreshold * requests;
+    }
+
+    private void trip(long current) {
+        long generation = generationOf(current) + 1;
+        if (state.compareAndSet(current, pack(PRIMARY_TRIPPED, generation))) {
+            logger.debug("CircuitBreaker tripped! failure rate {}%, slow call rate {}%",
+                    getFailureRate(), getSlowCallRate());
+            resetWindow();
+            timer.schedule(() -> state.compareAndSet(pack(PRIMARY_TRIPPED, generation),
+                    pack(PRIMARY_PROBE, generation + 1)), openTime, TimeUnit.SECONDS);
+        }
+    }
+
+    private void resetWindow() {
+        for (int i = 0; i < window.length(); i++) {
+            int previous = window.getAndSet(i, EMPTY);
+            if ((previous & RECORDED) != 0) {
+                total.decrementAndGet();
+            }
+            adjust(failed, previous & FAILED, 0);
+            adjust(slow, previous & SLOW, 0);
+        }
+    }
+
+    private static long pack(CircuitBreakerState.State state, long generation) {
+        return (generation << 8) | state.ordinal();
+    }
+
+    private static CircuitBreakerState.State stateOf(long packed) {
+        return STATES[(int) (packed & 0xff)];
+    }
+
+    private static long generationOf(long packed) {
+        return packed >>> 8;
+    }
+
+}
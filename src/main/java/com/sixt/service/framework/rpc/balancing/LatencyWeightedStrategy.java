@@ -0,0 +1,85 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc.balancing;
+
+import com.sixt.service.framework.rpc.EndpointStatistics;
+import com.sixt.service.framework.rpc.ServiceEndpoint;
+import com.sixt.service.framework.rpc.ServiceEndpointList;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks endpoints with a probability inversely proportional to their cost: the moving
+ * average of their latency, multiplied by the requests in flight and penalized by their
+ * recent error rate.  Degraded instances get less traffic long before their circuit
+ * breaker trips.  Endpoints without samples yet are assumed to be average.
+ */
+public class LatencyWeightedStrategy implements LoadBalancingStrategy {
+
+    //an endpoint failing every request costs this many times more than a healthy one
+    public final static double ERROR_PENALTY = 10;
+
+    private final LoadBalancingStrategy fallback = new RoundRobinStrategy();
+
+    @Override
+    public ServiceEndpoint select(ServiceEndpointList endpoints) {
+        ServiceEndpoint[] current = endpoints.getEndpoints();
+        int size = current.length;
+        if (size < 2) {
+            return fallback.select(endpoints);
+        }
+        double defaultLatency = averageLatency(current);
+        double[] weights = new double[size];
+        double totalWeight = 0;
+        for (int i = 0; i < size; i++) {
+            ServiceEndpoint endpoint = current[i];
+            if (endpoint.canServeRequests()) {
+                totalWeight += 1 / cost(endpoint, defaultLatency);
+            }
+            weights[i] = totalWeight;
+        }
+        if (totalWeight > 0) {
+            double target = ThreadLocalRandom.current().nextDouble(totalWeight);
+            for (int i = 0; i < size; i++) {
+                if (target < weights[i]) {
+                    if (current[i].tryIncrementServingRequests()) {
+                        return current[i];
+                    }
+                    break;
+                }
+            }
+        }
+        //the chosen one stopped serving requests in the meantime
+        return fallback.select(endpoints);
+    }
+
+    protected double cost(ServiceEndpoint endpoint, double defaultLatency) {
+        EndpointStatistics statistics = endpoint.getStatistics();
+        double latency = statistics.hasSamples() ? statistics.getLatency() : defaultLatency;
+        return Math.max(latency, 1) * (1 + endpoint.getServingRequests()) *
+                (1 + ERROR_PENALTY * statistics.getErrorRate());
+    }
+
+    private double averageLatency(ServiceEndpoint[] endpoints) {
+        double sum = 0;
+        int count = 0;
+        for (ServiceEndpoint endpoint : endpoints) {
+            if (endpoint.getStatistics().hasSamples()) {
+                sum += endpoint.getStatistics().getLatency();
+                count++;
+            }
+        }
+        return count == 0 ? 1 : sum / count;
+    }
+
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc.balancing;
+
+import com.sixt.service.framework.rpc.ServiceEndpoint;
+import com.sixt.service.framework.rpc.ServiceEndpointList;
+
+/**
+ * Uses the endpoint with the fewest requests in flight.  Ties are broken round-robin.
+ */
+public class LeastOutstandingRequestsStrategy implements LoadBalancingStrategy {
+
+    @Override
+    public ServiceEndpoint select(ServiceEndpointList endpoints) {
+        ServiceEndpoint[] current = endpoints.getEndpoints();
+        int size = current.length;
+        //another thread can take a probing endpoint between looking and counting the request
+        for (int attempt = 0; attempt < size; attempt++) {
+            int offset = endpoints.nextIndex();
+            ServiceEndpoint best = null;
+            int bestServing = Integer.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                ServiceEndpoint candidate = current[Math.floorMod(offset + i, size)];
+                int serving = candidate.getServingRequests();
+                if (serving < bestServing && candidate.canServeRequests()) {
+                    best = candidate;
+                    bestServing = serving;
+                }
+            }
+            if (best == null) {
+                return null;
+            }
+            if (best.tryIncrementServingRequests()) {
+                return best;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc.balancing;
+
+import com.sixt.service.framework.rpc.ServiceEndpoint;
+import com.sixt.service.framework.rpc.ServiceEndpointList;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides which endpoint of an availability zone receives the next request.
+ * Strategies are shared between the availability zones of a service and must
+ * be thread-safe.
+ */
+public interface LoadBalancingStrategy {
+
+    String ROUND_ROBIN = "round_robin";
+    String POWER_OF_TWO_CHOICES = "power_of_two_choices";
+    String LEAST_OUTSTANDING_REQUESTS = "least_outstanding_requests";
+    String LATENCY_WEIGHTED = "latency_weighted";
+
+    /**
+     * Select an endpoint and count the request against it
+     * (see ServiceEndpoint.tryIncrementServingRequests)
+     * @return the endpoint, or null if none of the endpoints can serve requests
+     */
+    ServiceEndpoint select(ServiceEndpointList endpoints);
+
+    /**
+     * @return the strategy configured with the given name, round-robin if the name is unknown
+     */
+    static LoadBalancingStrategy forName(String name) {
+        if (POWER_OF_TWO_CHOICES.equals(name)) {
+            return new PowerOfTwoChoicesStrategy();
+        } else if (LEAST_OUTSTANDING_REQUESTS.equals(name)) {
+            return new LeastOutstandingRequestsStrategy();
+        } else if (LATENCY_WEIGHTED.equals(name)) {
+            return new LatencyWeightedStrategy();
+        } else if (name != null && ! ROUND_ROBIN.equals(name)) {
+            LoggerFactory.getLogger(LoadBalancingStrategy.class).warn(
+                    "Unknown load-balancing strategy '{}', using {}", name, ROUND_ROBIN);
+        }
+        return new RoundRobinStrategy();
+    }
+
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc.balancing;
+
+import com.sixt.service.framework.rpc.ServiceEndpoint;
+import com.sixt.service.framework.rpc.ServiceEndpointList;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks two random endpoints and uses the one with fewer requests in flight.
+ * Cheap, and avoids the herding of always choosing the globally least loaded endpoint.
+ */
+public class PowerOfTwoChoicesStrategy implements LoadBalancingStrategy {
+
+    private final LoadBalancingStrategy fallback = new RoundRobinStrategy();
+
+    @Override
+    public ServiceEndpoint select(ServiceEndpointList endpoints) {
+        ServiceEndpoint[] current = endpoints.getEndpoints();
+        int size = current.length;
+        if (size < 2) {
+            return fallback.select(endpoints);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        ServiceEndpoint preferred = current[first];
+        ServiceEndpoint other = current[second];
+        if (other.getServingRequests() < preferred.getServingRequests()) {
+            preferred = current[second];
+            other = current[first];
+        }
+        if (preferred.tryIncrementServingRequests()) {
+            return preferred;
+        }
+        if (other.tryIncrementServingRequests()) {
+            return other;
+        }
+        //both can't serve requests, look at all of them
+        return fallback.select(endpoints);
+    }
+
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc.balancing;
+
+import com.sixt.service.framework.rpc.ServiceEndpoint;
+import com.sixt.service.framework.rpc.ServiceEndpointList;
+
+/**
+ * Every endpoint gets the same share of the requests, unless it can't serve them.
+ */
+public class RoundRobinStrategy implements LoadBalancingStrategy {
+
+    @Override
+    public ServiceEndpoint select(ServiceEndpointList endpoints) {
+        ServiceEndpoint[] current = endpoints.getEndpoints();
+        int size = current.length;
+        for (int i = 0; i < size; i++) {
+            ServiceEndpoint candidate = current[Math.floorMod(endpoints.nextIndex(), size)];
+            if (candidate.tryIncrementServingRequests()) {
+                return candidate;
+            }
+        }
+        //if we got here, there are none available
+        return null;
+    }
+
+}
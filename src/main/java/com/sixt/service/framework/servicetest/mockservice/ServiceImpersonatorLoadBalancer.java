@@ -23,7 +23,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 public class ServiceImpersonatorLoadBalancer implements LoadBalancer {
 
@@ -63,8 +62,7 @@ public class ServiceImpersonatorLoadBalancer implements LoadBalancer {
 
     protected HttpClientWrapper createHttpClientWrapper() {
         int port = locateTargetServicePort();
-        serviceEndpoint = new ServiceEndpoint(new ScheduledThreadPoolExecutor(1),
-                "localhost:" + port, "", dependencyHealthCheck);
+        serviceEndpoint = new ServiceEndpoint("localhost:" + port, "", dependencyHealthCheck);
         HttpClientWrapper retval = new HttpClientWrapper(new ServiceProperties(), createHttpClient(),
                 null, NoopTracerFactory.create());
         retval.setLoadBalancer(this);
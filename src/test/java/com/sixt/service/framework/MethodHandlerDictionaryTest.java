@@ -0,0 +1,63 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework;
+
+import com.sixt.service.framework.protobuf.FrameworkTest.Foobar;
+import com.sixt.service.framework.protobuf.FrameworkTest.SerializationTest;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MethodHandlerDictionaryTest {
+
+    private final MethodHandlerDictionary dictionary = new MethodHandlerDictionary();
+
+    @Test
+    public void descriptorResolvesMessageClasses() {
+        TestHandler handler = new TestHandler();
+        dictionary.put("Test.method", handler);
+
+        ServiceMethodDescriptor descriptor = dictionary.getDescriptor("Test.method");
+        assertThat(descriptor.getHandler()).isSameAs(handler);
+        assertThat(descriptor.getRequestClass()).isEqualTo(Foobar.class);
+        assertThat(descriptor.getResponseClass()).isEqualTo(SerializationTest.class);
+        assertThat(dictionary.getDescriptor("Test.other")).isNull();
+    }
+
+    @Test
+    public void descriptorFollowsHookRegistration() {
+        ServiceMethodPreHook<Foobar> globalPreHook = (request, ctx) -> request;
+        ServiceMethodPreHook<Foobar> methodPreHook = (request, ctx) -> request;
+        ServiceMethodPostHook<SerializationTest> globalPostHook = (response, ctx) -> response;
+        ServiceMethodPostHook<SerializationTest> methodPostHook = (response, ctx) -> response;
+
+        dictionary.addPreHook("Test.method", methodPreHook);
+        dictionary.put("Test.method", new TestHandler());
+        dictionary.addPreHook(MethodHandlerDictionary.GLOBAL, globalPreHook);
+        dictionary.addPostHook(MethodHandlerDictionary.GLOBAL, globalPostHook);
+        dictionary.addPostHook("Test.method", methodPostHook);
+
+        ServiceMethodDescriptor descriptor = dictionary.getDescriptor("Test.method");
+        assertThat(descriptor.getPreHooks()).containsExactly(globalPreHook, methodPreHook);
+        assertThat(descriptor.getPostHooks()).containsExactly(methodPostHook, globalPostHook);
+        assertThat(dictionary.getPreHooksFor("Test.method")).isSameAs(descriptor.getPreHooks());
+    }
+
+    private static class TestHandler implements ServiceMethodHandler<Foobar, SerializationTest> {
+        @Override
+        public SerializationTest handleRequest(Foobar request, OrangeContext ctx) {
+            return SerializationTest.getDefaultInstance();
+        }
+    }
+
+}
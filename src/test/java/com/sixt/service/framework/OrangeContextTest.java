@@ -0,0 +1,80 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sixt.service.framework;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OrangeContextTest {
+
+    @Test
+    public void noDeadlineByDefault() {
+        OrangeContext context = new OrangeContext();
+        assertThat(context.hasDeadline()).isFalse();
+        assertThat(context.isDeadlineExceeded()).isFalse();
+        assertThat(context.getRemainingTimeBudget()).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void timeBudgetHeaderIsParsed() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("x-sx-time-budget", "250");
+        headers.put("x-sx-from-service", "com.sixt.service.caller");
+        OrangeContext context = new OrangeContext(headers);
+
+        assertThat(context.hasDeadline()).isTrue();
+        assertThat(context.getRemainingTimeBudget()).isBetween(1L, 250L);
+        assertThat(context.getProperties()).doesNotContainKey("x-sx-time-budget");
+        assertThat(context.getRpcOriginService()).isEqualTo("com.sixt.service.caller");
+    }
+
+    @Test
+    public void invalidTimeBudgetIsIgnored() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("x-sx-time-budget", "soon");
+        assertThat(new OrangeContext(headers).hasDeadline()).isFalse();
+    }
+
+    @Test
+    public void deadlineExceeded() {
+        OrangeContext context = new OrangeContext();
+        context.setTimeBudget(-1);
+        assertThat(context.isDeadlineExceeded()).isTrue();
+    }
+
+    @Test
+    public void criticalityIsReadFromHeadersAndPropagated() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("x-sx-criticality", "sheddable");
+        OrangeContext context = new OrangeContext(headers);
+        assertThat(context.hasCriticality()).isTrue();
+        assertThat(context.getCriticality()).isEqualTo(Criticality.SHEDDABLE);
+
+        context.setCriticality(Criticality.CRITICAL_PLUS);
+        assertThat(context.getProperties()).containsEntry("x-sx-criticality", "CRITICAL_PLUS");
+    }
+
+    @Test
+    public void defaultCriticality() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("x-sx-criticality", "whatever");
+        OrangeContext context = new OrangeContext(headers);
+        assertThat(context.hasCriticality()).isFalse();
+        assertThat(context.getCriticality()).isEqualTo(Criticality.CRITICAL);
+    }
+
+}
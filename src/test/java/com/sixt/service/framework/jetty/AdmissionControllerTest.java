@@ -0,0 +1,123 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.jetty;
+
+import com.sixt.service.framework.Criticality;
+import com.sixt.service.framework.FeatureFlags;
+import com.sixt.service.framework.ServiceProperties;
+import com.sixt.service.framework.rpc.RpcCallException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Clock;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class AdmissionControllerTest {
+
+    private ServiceProperties props = new ServiceProperties();
+    private RpcHandlerMetrics metrics = mock(RpcHandlerMetrics.class);
+    private Clock clock = mock(Clock.class);
+    private AdmissionController controller;
+
+    @Before
+    public void setup() {
+        when(clock.millis()).thenReturn(0L);
+        controller = new AdmissionController(props, metrics, clock);
+    }
+
+    @Test
+    public void everythingIsAdmittedByDefault() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            controller.acquire("Test.method", 10_000);
+        }
+        assertThat(controller.getInFlight("Test.method")).isEqualTo(100);
+        verify(metrics, never()).incrementRejectionCounter(anyString(), anyString(), any(Criticality.class));
+    }
+
+    @Test
+    public void concurrencyLimitPerMethod() throws Exception {
+        props.addProperty(FeatureFlags.RPC_SERVER_CONCURRENCY_LIMIT, "2");
+        props.addProperty(FeatureFlags.RPC_SERVER_CONCURRENCY_LIMIT + ".Test.other", "1");
+
+        controller.acquire("Test.method", -1);
+        controller.acquire("Test.method", -1);
+        assertThatThrownBy(() -> controller.acquire("Test.method", -1))
+                .isInstanceOf(RpcCallException.class)
+                .matches(ex -> ((RpcCallException) ex).getCategory() == RpcCallException.Category.ServiceUnavailable)
+                .matches(ex -> ((RpcCallException) ex).isRetriable());
+        controller.acquire("Test.other", -1);
+        assertThatThrownBy(() -> controller.acquire("Test.other", -1)).isInstanceOf(RpcCallException.class);
+
+        controller.release("Test.method");
+        controller.acquire("Test.method", -1);
+        verify(metrics, times(2)).incrementRejectionCounter(anyString(),
+                eq(AdmissionController.REJECTED_CONCURRENCY), eq(Criticality.CRITICAL));
+    }
+
+    @Test
+    public void requestsWaitingTooLongAreRejected() throws Exception {
+        props.addProperty(FeatureFlags.RPC_SERVER_MAX_QUEUE_TIME, "500");
+
+        controller.acquire("Test.method", 500);
+        assertThatThrownBy(() -> controller.acquire("Test.method", 501)).isInstanceOf(RpcCallException.class);
+        assertThat(controller.getInFlight("Test.method")).isEqualTo(1);
+        verify(metrics).incrementRejectionCounter("Test.method", AdmissionController.REJECTED_QUEUE_TIME,
+                Criticality.CRITICAL);
+    }
+
+    @Test
+    public void standingQueueLowersQueueTimeLimit() throws Exception {
+        props.addProperty(FeatureFlags.RPC_SERVER_QUEUE_DELAY_TARGET, "5");
+
+        //queue delay above the target for a whole interval
+        controller.acquire("Test.method", 20);
+        controller.acquire("Test.method", 30);
+        when(clock.millis()).thenReturn(AdmissionController.QUEUE_DELAY_INTERVAL);
+        assertThatThrownBy(() -> controller.acquire("Test.method", 20)).isInstanceOf(RpcCallException.class);
+        controller.acquire("Test.method", 4);
+
+        //one request got through quickly, so the queue has drained
+        when(clock.millis()).thenReturn(2 * AdmissionController.QUEUE_DELAY_INTERVAL);
+        controller.acquire("Test.method", 20);
+    }
+
+    @Test
+    public void lowerCriticalityIsShedFirst() throws Exception {
+        props.addProperty(FeatureFlags.RPC_SERVER_CONCURRENCY_LIMIT, "4");
+        props.addProperty(FeatureFlags.RPC_SERVER_MAX_QUEUE_TIME, "100");
+
+        controller.acquire("Test.method", -1, Criticality.SHEDDABLE);
+        controller.acquire("Test.method", -1, Criticality.SHEDDABLE);
+        assertThatThrownBy(() -> controller.acquire("Test.method", -1, Criticality.SHEDDABLE))
+                .isInstanceOf(RpcCallException.class);
+        controller.acquire("Test.method", -1, Criticality.CRITICAL);
+        controller.acquire("Test.method", -1, Criticality.CRITICAL_PLUS);
+
+        assertThatThrownBy(() -> controller.acquire("Other.method", 60, Criticality.SHEDDABLE))
+                .isInstanceOf(RpcCallException.class);
+        controller.acquire("Other.method", 60, Criticality.CRITICAL);
+        controller.acquire("Other.method", 5000, Criticality.CRITICAL_PLUS);
+
+        verify(metrics).incrementRejectionCounter("Test.method", AdmissionController.REJECTED_CONCURRENCY,
+                Criticality.SHEDDABLE);
+        verify(metrics).incrementRejectionCounter("Other.method", AdmissionController.REJECTED_QUEUE_TIME,
+                Criticality.SHEDDABLE);
+    }
+
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.jetty;
+
+import com.sixt.service.framework.Criticality;
+import com.sixt.service.framework.FeatureFlags;
+import com.sixt.service.framework.ServiceMethodDescriptor;
+import com.sixt.service.framework.ServiceProperties;
+import com.sixt.service.framework.metrics.GoGauge;
+import com.sixt.service.framework.rpc.RpcCallException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.*;
+
+public class BulkheadsTest {
+
+    private ServiceProperties props = new ServiceProperties();
+    private RpcHandlerMetrics metrics = mock(RpcHandlerMetrics.class);
+    private ServiceMethodDescriptor method = mock(ServiceMethodDescriptor.class);
+    private Bulkheads bulkheads;
+
+    @Before
+    public void setup() {
+        when(metrics.getBulkheadGauge("Test.method")).thenReturn(new GoGauge("bulkhead"));
+        when(method.getMethodName()).thenReturn("Test.method");
+        when(method.getBulkheadThreads()).thenReturn(0);
+        when(method.getBulkheadQueueSize()).thenReturn(-1);
+        bulkheads = new Bulkheads(props, metrics);
+    }
+
+    @Test
+    public void noBulkheadByDefault() {
+        assertThat(bulkheads.hasBulkhead(method)).isFalse();
+        verifyZeroInteractions(metrics);
+    }
+
+    @Test
+    public void propertyOverridesAnnotation() {
+        when(method.getBulkheadThreads()).thenReturn(2);
+        props.addProperty(FeatureFlags.RPC_SERVER_BULKHEAD_THREADS + ".Test.method", "3");
+        props.addProperty(FeatureFlags.RPC_SERVER_BULKHEAD_QUEUE_SIZE, "5");
+
+        assertThat(bulkheads.getExecutor(method).getMaximumPoolSize()).isEqualTo(3);
+        assertThat(bulkheads.getExecutor(method).getQueue().remainingCapacity()).isEqualTo(5);
+    }
+
+    @Test
+    public void fullBulkheadRejects() throws Exception {
+        when(method.getBulkheadThreads()).thenReturn(1);
+        when(method.getBulkheadQueueSize()).thenReturn(0);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<String> first = bulkheads.submit(method, Criticality.CRITICAL, () -> {
+            started.countDown();
+            release.await();
+            return "done";
+        });
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(bulkheads.getExecutor(method).getActiveCount()).isEqualTo(1);
+
+        assertThatThrownBy(() -> bulkheads.submit(method, Criticality.SHEDDABLE, () -> "rejected"))
+                .isInstanceOf(RpcCallException.class)
+                .matches(ex -> ((RpcCallException) ex).getCategory() ==
+                        RpcCallException.Category.ServiceUnavailable);
+        verify(metrics).incrementRejectionCounter("Test.method", Bulkheads.REJECTED_BULKHEAD,
+                Criticality.SHEDDABLE);
+
+        release.countDown();
+        assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo("done");
+    }
+
+    @Test
+    public void queuedCallsRunByCriticality() throws Exception {
+        when(method.getBulkheadThreads()).thenReturn(1);
+        when(method.getBulkheadQueueSize()).thenReturn(4);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> calls = Collections.synchronizedList(new ArrayList<>());
+
+        bulkheads.submit(method, Criticality.CRITICAL, () -> {
+            started.countDown();
+            release.await();
+            return "blocking";
+        });
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        List<CompletableFuture<Boolean>> queued = Arrays.asList(
+                bulkheads.submit(method, Criticality.SHEDDABLE, () -> calls.add("sheddable-1")),
+                bulkheads.submit(method, Criticality.CRITICAL, () -> calls.add("critical-1")),
+                bulkheads.submit(method, Criticality.SHEDDABLE, () -> calls.add("sheddable-2")),
+                bulkheads.submit(method, Criticality.CRITICAL_PLUS, () -> calls.add("critical-plus")));
+        assertThatThrownBy(() -> bulkheads.submit(method, Criticality.CRITICAL_PLUS, () -> "rejected"))
+                .isInstanceOf(RpcCallException.class);
+
+        release.countDown();
+        CompletableFuture.allOf(queued.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+        assertThat(calls).containsExactly("critical-plus", "critical-1", "sheddable-1", "sheddable-2");
+    }
+
+    @Test
+    public void asyncCallsDontHoldAThreadButAreLimited() throws Exception {
+        when(method.getBulkheadThreads()).thenReturn(1);
+        when(method.getBulkheadQueueSize()).thenReturn(1);
+        CompletableFuture<String> pending = new CompletableFuture<>();
+
+        CompletableFuture<String> first = bulkheads.submitAsync(method, Criticality.CRITICAL, () -> pending);
+        CompletableFuture<String> second = bulkheads.submitAsync(method, Criticality.CRITICAL, () -> pending);
+        assertThat(bulkheads.getExecutor(method).getActiveCount()).isEqualTo(0);
+
+        assertThatThrownBy(() -> bulkheads.submitAsync(method, Criticality.SHEDDABLE, () -> pending))
+                .isInstanceOf(RpcCallException.class)
+                .matches(ex -> ((RpcCallException) ex).getCategory() ==
+                        RpcCallException.Category.ServiceUnavailable);
+        verify(metrics).incrementRejectionCounter("Test.method", Bulkheads.REJECTED_BULKHEAD,
+                Criticality.SHEDDABLE);
+
+        pending.complete("done");
+        assertThat(first.get()).isEqualTo("done");
+        assertThat(second.get()).isEqualTo("done");
+        CompletableFuture<String> failed = bulkheads.submitAsync(method, Criticality.SHEDDABLE, () -> {
+            throw new IllegalStateException("broken");
+        });
+        assertThat(failed).isCompletedExceptionally();
+        assertThat(bulkheads.submitAsync(method, Criticality.SHEDDABLE,
+                () -> CompletableFuture.completedFuture("again")).get()).isEqualTo("again");
+    }
+
+    @Test
+    public void asyncCallKeepsItsRoomUntilItCompletes() throws Exception {
+        when(method.getBulkheadThreads()).thenReturn(1);
+        when(method.getBulkheadQueueSize()).thenReturn(0);
+        CompletableFuture<String> pending = new CompletableFuture<>();
+
+        CompletableFuture<String> call = bulkheads.submitAsync(method, Criticality.CRITICAL, () -> pending);
+        //e.g. answered with a timeout
+        call.cancel(true);
+
+        assertThat(pending).isNotDone();
+        assertThatThrownBy(() -> bulkheads.submitAsync(method, Criticality.CRITICAL, () -> pending))
+                .isInstanceOf(RpcCallException.class);
+
+        pending.complete("done");
+        assertThat(bulkheads.submitAsync(method, Criticality.CRITICAL,
+                () -> CompletableFuture.completedFuture("again")).get()).isEqualTo("again");
+    }
+
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.jetty;
+
+import com.sixt.service.framework.FeatureFlags;
+import com.sixt.service.framework.MethodHandlerDictionary;
+import com.sixt.service.framework.ServiceProperties;
+import com.sixt.service.framework.rpc.RpcCallException;
+import org.eclipse.jetty.server.Request;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class InstrumentedQueuedThreadPoolTest {
+
+    private InstrumentedQueuedThreadPool pool = new InstrumentedQueuedThreadPool(1, 1);
+    private ServiceProperties props = new ServiceProperties();
+    private AdmissionController admissionController;
+    private ProtobufHandler handler;
+
+    @Before
+    public void setup() throws Exception {
+        props.addProperty(FeatureFlags.RPC_SERVER_MAX_QUEUE_TIME, "50");
+        RpcHandlerMetrics handlerMetrics = mock(RpcHandlerMetrics.class);
+        admissionController = new AdmissionController(props, handlerMetrics);
+        handler = new ProtobufHandler(new MethodHandlerDictionary(), null, handlerMetrics, props, null,
+                admissionController, new Bulkheads(props, handlerMetrics));
+        pool.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.stop();
+    }
+
+    @Test
+    public void requestsWaitingForAThreadAreShed() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        pool.execute(() -> {
+            try {
+                blocked.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+            }
+        });
+        //parsed (and timestamped) by jetty only once it got the thread
+        Request request = mock(Request.class);
+        when(request.getTimeStamp()).thenAnswer(invocation -> System.currentTimeMillis());
+        CompletableFuture<Long> queueTime = new CompletableFuture<>();
+        CompletableFuture<Long> nextQueueTime = new CompletableFuture<>();
+        pool.execute(() -> {
+            queueTime.complete(handler.getQueueTime(request));
+            nextQueueTime.complete(handler.getQueueTime(request));
+        });
+
+        Thread.sleep(200);
+        blocked.countDown();
+
+        assertThat(queueTime.get(10, TimeUnit.SECONDS)).isGreaterThanOrEqualTo(150);
+        //a further request on the same job didn't wait for the thread
+        assertThat(nextQueueTime.get()).isLessThan(150);
+        try {
+            admissionController.acquire("Test.method", queueTime.get());
+            throw new AssertionError("request was not shed");
+        } catch (RpcCallException ex) {
+            assertThat(ex.getCategory()).isEqualTo(RpcCallException.Category.ServiceUnavailable);
+        }
+    }
+
+    @Test
+    public void waitOfRequestsReceivedBeforeTheJobWasQueuedIsNotCountedTwice() throws Exception {
+        //e.g. http/2, where the request is parsed first and then handed to another thread
+        Request request = mock(Request.class);
+        when(request.getTimeStamp()).thenReturn(System.currentTimeMillis() - 100);
+        CountDownLatch blocked = new CountDownLatch(1);
+        pool.execute(() -> {
+            try {
+                blocked.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+            }
+        });
+        CompletableFuture<Long> queueTime = new CompletableFuture<>();
+        pool.execute(() -> queueTime.complete(handler.getQueueTime(request)));
+
+        Thread.sleep(200);
+        blocked.countDown();
+
+        assertThat(queueTime.get(10, TimeUnit.SECONDS)).isBetween(290L, 450L);
+    }
+
+    @Test
+    public void batchCallsIncludeTheirOwnWait() throws Exception {
+        long dispatched = System.currentTimeMillis() - 100;
+
+        assertThat(handler.getQueueTime(20, dispatched)).isGreaterThanOrEqualTo(120);
+        assertThat(handler.getQueueTime(-1, dispatched)).isEqualTo(-1);
+    }
+
+}
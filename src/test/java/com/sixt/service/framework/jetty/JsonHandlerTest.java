@@ -15,8 +15,12 @@ package com.sixt.service.framework.jetty;
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
 import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.protobuf.Any;
 import com.sixt.service.framework.FeatureFlags;
 import com.sixt.service.framework.MethodHandlerDictionary;
 import com.sixt.service.framework.OrangeContext;
@@ -38,6 +42,7 @@ import java.util.regex.Pattern;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.*;
 
@@ -57,6 +62,8 @@ public class JsonHandlerTest {
         ServiceMethodHandlerUnderTest mockHandlerThrowsRpcCallEx = new ServiceMethodHandlerUnderTest();
 
         handlerDictionary.put("jsonRpcWithException", mockHandlerThrowsRpcCallEx);
+        handlerDictionary.put("echo", new EchoHandler());
+        handlerDictionary.put("unprintable", new UnprintableResultHandler());
 
         metricRegistry = mock(MetricRegistry.class);
         when(metricRegistry.counter(anyString())).thenReturn(mock(Counter.class));
@@ -254,6 +261,127 @@ public class JsonHandlerTest {
         assertThat(thrown).hasMessage("Missing method name");
     }
 
+    @Test
+    public void batchRequestsAreAnsweredInOrder() throws IOException {
+        String input = "[{\"method\":\"jsonRpcWithException\",\"params\":[{}],\"id\":1}," +
+                "{\"method\":\"unknown\",\"params\":[{}],\"id\":2}," +
+                "{\"method\":\"jsonRpcWithException\",\"params\":[{}],\"id\":3}]";
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(MockHttpServletResponse.class);
+
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader(input)));
+        CharArrayWriter charArryWriter = new CharArrayWriter(512);
+        when(response.getWriter()).thenReturn(new PrintWriter(charArryWriter));
+        doCallRealMethod().when(response).setStatus(anyInt());
+        doCallRealMethod().when(response).getStatus();
+
+        servlet.doPost(request, response);
+
+        JsonArray responses = new JsonParser().parse(charArryWriter.toString()).getAsJsonArray();
+        assertThat(responses.size()).isEqualTo(3);
+        assertThat(responses.get(0).getAsJsonObject().get("id").getAsInt()).isEqualTo(1);
+        assertThat(responses.get(0).getAsJsonObject().get("error").toString()).contains("no p4s5!");
+        assertThat(responses.get(1).getAsJsonObject().get("id").getAsInt()).isEqualTo(2);
+        assertThat(responses.get(1).getAsJsonObject().get("error").toString()).contains("No handler registered");
+        assertThat(responses.get(2).getAsJsonObject().get("id").getAsInt()).isEqualTo(3);
+        assertThat(response.getStatus()).isEqualTo(HttpServletResponse.SC_OK);
+    }
+
+    @Test
+    public void batchNotificationsAreNotAnswered() throws IOException {
+        GoTimer timer = mock(GoTimer.class);
+        when(handlerMetrics.getMethodTimer(any(), any(), any())).thenReturn(timer);
+        String input = "[{\"method\":\"echo\",\"params\":[{}]}," +
+                "{\"method\":\"jsonRpcWithException\",\"params\":[{}],\"id\":2}]";
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(MockHttpServletResponse.class);
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader(input)));
+        CharArrayWriter charArryWriter = new CharArrayWriter(512);
+        when(response.getWriter()).thenReturn(new PrintWriter(charArryWriter));
+
+        servlet.doPost(request, response);
+
+        JsonArray responses = new JsonParser().parse(charArryWriter.toString()).getAsJsonArray();
+        assertThat(responses.size()).isEqualTo(1);
+        assertThat(responses.get(0).getAsJsonObject().get("id").getAsInt()).isEqualTo(2);
+        verify(timer).recordSuccess(anyLong());
+        verify(timer).recordFailure(anyLong());
+
+        charArryWriter.reset();
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader(
+                "[{\"method\":\"echo\",\"params\":[{}]}]")));
+        servlet.doPost(request, response);
+        assertThat(charArryWriter.toString()).isEmpty();
+    }
+
+    @Test
+    public void paramsAreDecodedWhileReadingTheRequest() throws IOException {
+        JsonObject response = post("{\"method\":\"echo\",\"params\":[{\"service_method\":\"a\"," +
+                "\"unknown\":{\"x\":null},\"sequence_number\":null}],\"id\":1}");
+        assertThat(response.getAsJsonObject("result").get("service_method").getAsString()).isEqualTo("a");
+
+        response = post("{\"params\":[{\"serviceMethod\":\"b\"}],\"method\":\"echo\",\"id\":2}");
+        assertThat(response.getAsJsonObject("result").get("service_method").getAsString()).isEqualTo("b");
+
+        response = post("{\"method\":\"echo\",\"params\":[{\"service_method\":{}}],\"id\":3}");
+        assertThat(response.getAsJsonObject("error").get("category").getAsInt()).isEqualTo(400);
+    }
+
+    @Test
+    public void unprintableResultIsAnsweredWithAnError() throws IOException {
+        JsonObject response = post("{\"method\":\"unprintable\",\"params\":[{}],\"id\":1}");
+        assertThat(response.get("id").getAsInt()).isEqualTo(1);
+        assertThat(response.get("result").isJsonNull()).isTrue();
+        assertThat(response.get("error").getAsString()).contains("protobuf to json");
+    }
+
+    @Test
+    public void unprintableResultInBatchIsAnsweredWithAnError() throws IOException {
+        String input = "[{\"method\":\"echo\",\"params\":[{\"service_method\":\"a\"}],\"id\":1}," +
+                "{\"method\":\"unprintable\",\"params\":[{}],\"id\":2}]";
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(MockHttpServletResponse.class);
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader(input)));
+        CharArrayWriter charArryWriter = new CharArrayWriter(512);
+        when(response.getWriter()).thenReturn(new PrintWriter(charArryWriter));
+
+        servlet.doPost(request, response);
+
+        JsonArray responses = new JsonParser().parse(charArryWriter.toString()).getAsJsonArray();
+        assertThat(responses.size()).isEqualTo(2);
+        assertThat(responses.get(0).getAsJsonObject().getAsJsonObject("result")
+                .get("service_method").getAsString()).isEqualTo("a");
+        assertThat(responses.get(1).getAsJsonObject().get("id").getAsInt()).isEqualTo(2);
+        assertThat(responses.get(1).getAsJsonObject().get("error").getAsString()).contains("protobuf to json");
+    }
+
+    private JsonObject post(String input) throws IOException {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(MockHttpServletResponse.class);
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader(input)));
+        CharArrayWriter charArryWriter = new CharArrayWriter(512);
+        when(response.getWriter()).thenReturn(new PrintWriter(charArryWriter));
+
+        servlet.doPost(request, response);
+
+        return new JsonParser().parse(charArryWriter.toString()).getAsJsonObject();
+    }
+
+    class EchoHandler implements com.sixt.service.framework.ServiceMethodHandler<RpcEnvelope.Request, RpcEnvelope.Response> {
+        @Override
+        public RpcEnvelope.Response handleRequest(RpcEnvelope.Request request, OrangeContext ctx) {
+            return RpcEnvelope.Response.newBuilder().setServiceMethod(request.getServiceMethod()).build();
+        }
+    }
+
+    class UnprintableResultHandler implements com.sixt.service.framework.ServiceMethodHandler<RpcEnvelope.Request, Any> {
+        @Override
+        public Any handleRequest(RpcEnvelope.Request request, OrangeContext ctx) {
+            //JsonFormat can't print an Any of a type it doesn't know
+            return Any.newBuilder().setTypeUrl("type.googleapis.com/unknown.Type").build();
+        }
+    }
+
     class ServiceMethodHandlerUnderTest implements com.sixt.service.framework.ServiceMethodHandler<RpcEnvelope.Request, RpcEnvelope.Response>{
         @Override
         public RpcEnvelope.Response handleRequest(RpcEnvelope.Request request, OrangeContext ctx) throws RpcCallException {
@@ -0,0 +1,475 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.jetty;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.Message;
+import com.sixt.service.framework.AsyncServiceMethodHandler;
+import com.sixt.service.framework.FeatureFlags;
+import com.sixt.service.framework.MethodHandlerDictionary;
+import com.sixt.service.framework.OrangeContext;
+import com.sixt.service.framework.ServiceMethodHandler;
+import com.sixt.service.framework.ServiceProperties;
+import com.sixt.service.framework.metrics.GoTimer;
+import com.sixt.service.framework.protobuf.FrameworkTest;
+import com.sixt.service.framework.protobuf.ProtobufRpcRequest;
+import com.sixt.service.framework.protobuf.ProtobufUtil;
+import com.sixt.service.framework.protobuf.RpcEnvelope;
+import com.sixt.service.framework.rpc.RpcCallException;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class ProtobufHandlerTest {
+
+    private MethodHandlerDictionary handlers = new MethodHandlerDictionary();
+    private RpcHandlerMetrics handlerMetrics = mock(RpcHandlerMetrics.class);
+    private GoTimer timer = mock(GoTimer.class);
+    private ServiceProperties props = new ServiceProperties();
+    private ProtobufHandler handler;
+    private Map<String, String> httpHeaders = new HashMap<>();
+    private HttpServletRequest request = mock(HttpServletRequest.class);
+    private HttpServletResponse response = mock(HttpServletResponse.class);
+    private AsyncContext asyncContext = mock(AsyncContext.class);
+    private FakeInputStream in = new FakeInputStream();
+    private FakeOutputStream out = new FakeOutputStream();
+
+    @Before
+    public void setup() throws Exception {
+        when(handlerMetrics.getMethodTimer(any(), any(), any())).thenReturn(timer);
+        handlers.put("Test.context", new ContextHandler());
+        handlers.put("Test.fail", new FailingHandler());
+        handlers.put("Test.echo", new AsyncEchoHandler());
+        handlers.put("Test.never", new NeverCompletingHandler());
+        props.addProperty(FeatureFlags.ASYNC_RPC_ENABLED, "true");
+        handler = new ProtobufHandler(handlers, mock(MetricRegistry.class), handlerMetrics, props, null);
+
+        when(request.isAsyncSupported()).thenReturn(true);
+        when(request.startAsync(request, response)).thenReturn(asyncContext);
+        when(request.getInputStream()).thenReturn(in);
+        when(request.getHeaderNames()).thenAnswer(invocation -> Collections.enumeration(httpHeaders.keySet()));
+        when(request.getHeaders(anyString())).thenAnswer(invocation -> Collections.enumeration(
+                Collections.singletonList(httpHeaders.get(invocation.<String>getArgument(0)))));
+        when(response.getOutputStream()).thenReturn(out);
+    }
+
+    @Test
+    public void asyncRequestIsReadInChunks() throws Exception {
+        byte[] data = rpcRequest("Test.echo", FrameworkTest.Foobar.newBuilder().addBlah("chunked").build());
+
+        handler.doPost(request, response);
+        for (int i = 0; i < data.length; i += 3) {
+            in.receive(Arrays.copyOfRange(data, i, Math.min(i + 3, data.length)));
+        }
+        in.finish();
+
+        assertThat(responseHeader().getError()).isEmpty();
+        assertThat(FrameworkTest.Foobar.parseFrom(responseBody()).getBlahList()).containsExactly("chunked");
+        verify(response).setStatus(HttpServletResponse.SC_OK);
+        verify(asyncContext).complete();
+    }
+
+    @Test
+    public void asyncRequestLargerThanAnRpcMessageIsRejected() throws Exception {
+        handler.doPost(request, response);
+        in.receive(new byte[AsyncRpcExchange.MAX_REQUEST_SIZE + 10_000]);
+
+        verify(response).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        verify(asyncContext).complete();
+        //stopped reading as soon as the limit was reached
+        assertThat(in.isReady()).isTrue();
+
+        in.finish();
+        assertThat(out.toByteArray()).isEmpty();
+        verify(timer, never()).start();
+    }
+
+    @Test
+    public void asyncRequestWithTooLargeContentLengthIsRejectedWithoutReading() throws Exception {
+        when(request.getContentLengthLong()).thenReturn(AsyncRpcExchange.MAX_REQUEST_SIZE + 1L);
+
+        handler.doPost(request, response);
+
+        verify(response).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        verify(asyncContext).complete();
+        assertThat(in.listener).isNull();
+    }
+
+    @Test
+    public void failingAsyncRequestReturnsTheError() throws Exception {
+        handler.doPost(request, response);
+        in.receive(rpcRequest("Test.fail", FrameworkTest.Foobar.getDefaultInstance()));
+        in.finish();
+
+        assertThat(RpcCallException.fromJson(responseHeader().getError()).getCategory())
+                .isEqualTo(RpcCallException.Category.ResourceNotFound);
+        verify(handlerMetrics).incrementFailureCounter("Test.fail", null, null);
+        verify(asyncContext).complete();
+    }
+
+    @Test
+    public void asyncRequestNotCompletedWithinTheTimeBudgetTimesOut() throws Exception {
+        httpHeaders.put(OrangeContext.RPC_TIME_BUDGET, "5000");
+
+        handler.doPost(request, response);
+        in.receive(rpcRequest("Test.never", FrameworkTest.Foobar.getDefaultInstance()));
+        in.finish();
+
+        ArgumentCaptor<Long> timeout = ArgumentCaptor.forClass(Long.class);
+        verify(asyncContext).setTimeout(timeout.capture());
+        assertThat(timeout.getValue()).isBetween(1L, 5000L);
+        assertThat(out.toByteArray()).isEmpty();
+        verify(asyncContext, never()).complete();
+
+        asyncListener().onTimeout(mock(AsyncEvent.class));
+
+        assertThat(RpcCallException.fromJson(responseHeader().getError()).getCategory())
+                .isEqualTo(RpcCallException.Category.RequestTimedOut);
+        verify(handlerMetrics).incrementFailureCounter("Test.never", null, null);
+        verify(asyncContext).complete();
+    }
+
+    @Test
+    public void timedOutAsyncRequestIsAdmittedUntilTheHandlerCompletes() throws Exception {
+        CompletableFuture<FrameworkTest.Foobar> result = new CompletableFuture<>();
+        handlers.put("Test.later", (AsyncServiceMethodHandler<FrameworkTest.Foobar, FrameworkTest.Foobar>)
+                (request, ctx) -> result);
+        AdmissionController admissionController = useAdmissionController();
+
+        handler.doPost(request, response);
+        in.receive(rpcRequest("Test.later", FrameworkTest.Foobar.getDefaultInstance()));
+        in.finish();
+        asyncListener().onTimeout(mock(AsyncEvent.class));
+
+        assertThat(RpcCallException.fromJson(responseHeader().getError()).getCategory())
+                .isEqualTo(RpcCallException.Category.RequestTimedOut);
+        verify(admissionController, never()).release(anyString());
+
+        result.complete(FrameworkTest.Foobar.getDefaultInstance());
+
+        verify(admissionController).release("Test.later");
+        verify(asyncContext).complete();
+    }
+
+    @Test
+    public void rejectedAsyncRequestIsNotParsed() throws Exception {
+        AdmissionController admissionController = useAdmissionController();
+        doThrow(new RpcCallException(RpcCallException.Category.ServiceUnavailable, "full"))
+                .when(admissionController).acquire(anyString(), anyLong(), any());
+
+        handler.doPost(request, response);
+        in.receive(rpcRequestWithInvalidBody("Test.echo"));
+        in.finish();
+
+        assertThat(RpcCallException.fromJson(responseHeader().getError()).getCategory())
+                .isEqualTo(RpcCallException.Category.ServiceUnavailable);
+        verify(admissionController, never()).release(anyString());
+    }
+
+    @Test
+    public void admittedAsyncRequestWithInvalidBodyIsReleased() throws Exception {
+        AdmissionController admissionController = useAdmissionController();
+        when(request.getRequestURL()).thenReturn(new StringBuffer("http://localhost/rpc"));
+
+        handler.doPost(request, response);
+        in.receive(rpcRequestWithInvalidBody("Test.echo"));
+        in.finish();
+
+        assertThat(responseHeader().getError()).contains("Invalid body chunk size");
+        verify(admissionController).release("Test.echo");
+        verify(timer, never()).start();
+    }
+
+    @Test
+    public void asyncRequestWithoutTimeBudgetUsesTheDefaultTimeout() throws Exception {
+        handler.doPost(request, response);
+
+        verify(asyncContext).setTimeout(FeatureFlags.DEFAULT_ASYNC_RPC_TIMEOUT);
+
+        //not even the request was read completely
+        asyncListener().onTimeout(mock(AsyncEvent.class));
+
+        verify(response).setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+        verify(asyncContext).complete();
+    }
+
+    @Test
+    public void asyncBatchIsAnsweredOnceAllFramesCompleted() throws Exception {
+        CompletableFuture<FrameworkTest.Foobar> result = new CompletableFuture<>();
+        handlers.put("Test.later", (AsyncServiceMethodHandler<FrameworkTest.Foobar, FrameworkTest.Foobar>)
+                (request, ctx) -> result);
+        RpcEnvelope.BatchRequest batch = RpcEnvelope.BatchRequest.newBuilder()
+                .addFrames(RpcEnvelope.BatchRequest.Frame.newBuilder()
+                        .setServiceMethod("Test.later").setSequenceNumber(1))
+                .addFrames(RpcEnvelope.BatchRequest.Frame.newBuilder()
+                        .setServiceMethod("Test.context").setSequenceNumber(2)
+                        .putHeaders("X-Correlation-Id", "call-2"))
+                .build();
+
+        handler.doPost(request, response);
+        in.receive(rpcRequest(ProtobufRpcRequest.BATCH_METHOD, batch));
+        in.finish();
+
+        assertThat(out.toByteArray()).isEmpty();
+        verify(asyncContext, never()).complete();
+
+        result.complete(FrameworkTest.Foobar.newBuilder().addBlah("later").build());
+
+        verify(asyncContext, timeout(5000)).complete();
+        RpcEnvelope.BatchResponse batchResponse = RpcEnvelope.BatchResponse.parseFrom(responseBody());
+        assertThat(batchResponse.getFramesCount()).isEqualTo(2);
+        assertThat(batchResponse.getFrames(0).getSequenceNumber()).isEqualTo(1);
+        assertThat(FrameworkTest.Foobar.parseFrom(batchResponse.getFrames(0).getBody()).getBlahList())
+                .containsExactly("later");
+        assertThat(batchResponse.getFrames(1).getSequenceNumber()).isEqualTo(2);
+        assertThat(FrameworkTest.Foobar.parseFrom(batchResponse.getFrames(1).getBody()).getBlah(0))
+                .isEqualTo("call-2");
+    }
+
+    @Test
+    public void batchFramesHaveTheirOwnContext() throws Exception {
+        Map<String, String> httpHeaders = ImmutableMap.of("x-correlation-id", "batch",
+                "x-sx-from-service", "com.sixt.service.caller");
+        RpcEnvelope.BatchRequest.Frame frame = RpcEnvelope.BatchRequest.Frame.newBuilder()
+                .setServiceMethod("Test.context").setSequenceNumber(7)
+                .putHeaders("X-Correlation-Id", "call-7")
+                .putHeaders(OrangeContext.RPC_TIME_BUDGET.toLowerCase(), "5000")
+                .build();
+
+        RpcEnvelope.BatchResponse.Frame response = handler.handleBatchFrame(frame, httpHeaders, -1);
+
+        assertThat(response.getSequenceNumber()).isEqualTo(7);
+        assertThat(response.getError()).isEmpty();
+        assertThat(FrameworkTest.Foobar.parseFrom(response.getBody()).getBlahList())
+                .containsExactly("call-7", "com.sixt.service.caller", "deadline");
+        verify(timer).recordSuccess(anyLong());
+    }
+
+    @Test
+    public void failedBatchFramesReturnTheError() {
+        RpcEnvelope.BatchRequest.Frame frame = RpcEnvelope.BatchRequest.Frame.newBuilder()
+                .setServiceMethod("Test.fail").setSequenceNumber(8).build();
+
+        RpcEnvelope.BatchResponse.Frame response = handler.handleBatchFrame(frame, ImmutableMap.of(), -1);
+
+        assertThat(response.getSequenceNumber()).isEqualTo(8);
+        assertThat(RpcCallException.fromJson(response.getError()).getCategory())
+                .isEqualTo(RpcCallException.Category.ResourceNotFound);
+        assertThat(response.getBody().isEmpty()).isTrue();
+        verify(handlerMetrics).incrementFailureCounter("Test.fail", null, null);
+    }
+
+    @Test
+    public void batchFramesForUnknownMethodsFail() {
+        RpcEnvelope.BatchRequest.Frame frame = RpcEnvelope.BatchRequest.Frame.newBuilder()
+                .setServiceMethod("Test.unknown").setSequenceNumber(9).build();
+
+        RpcEnvelope.BatchResponse.Frame response = handler.handleBatchFrame(frame, ImmutableMap.of(), -1);
+
+        assertThat(response.getError()).contains("Invalid method");
+    }
+
+    private AdmissionController useAdmissionController() {
+        AdmissionController retval = mock(AdmissionController.class);
+        handler = new ProtobufHandler(handlers, mock(MetricRegistry.class), handlerMetrics, props, null,
+                retval, new Bulkheads(props, handlerMetrics));
+        return retval;
+    }
+
+    private AsyncListener asyncListener() {
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(listener.capture());
+        return listener.getValue();
+    }
+
+    private byte[] rpcRequest(String method, Message body) throws IOException {
+        ByteArrayOutputStream retval = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(retval);
+        byte[] header = RpcEnvelope.Request.newBuilder().setServiceMethod(method)
+                .setSequenceNumber(1).build().toByteArray();
+        data.writeInt(header.length);
+        data.write(header);
+        data.writeInt(body.getSerializedSize());
+        data.write(body.toByteArray());
+        return retval.toByteArray();
+    }
+
+    private byte[] rpcRequestWithInvalidBody(String method) throws IOException {
+        ByteArrayOutputStream retval = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(retval);
+        byte[] header = RpcEnvelope.Request.newBuilder().setServiceMethod(method)
+                .setSequenceNumber(1).build().toByteArray();
+        data.writeInt(header.length);
+        data.write(header);
+        data.writeInt(ProtobufUtil.MAX_BODY_CHUNK_SIZE + 1);
+        return retval.toByteArray();
+    }
+
+    private RpcEnvelope.Response responseHeader() throws IOException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        byte[] header = new byte[data.readInt()];
+        data.readFully(header);
+        return RpcEnvelope.Response.parseFrom(header);
+    }
+
+    private byte[] responseBody() throws IOException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        data.skipBytes(data.readInt());
+        byte[] body = new byte[data.readInt()];
+        data.readFully(body);
+        return body;
+    }
+
+    public static class ContextHandler implements ServiceMethodHandler<FrameworkTest.Foobar, FrameworkTest.Foobar> {
+        @Override
+        public FrameworkTest.Foobar handleRequest(FrameworkTest.Foobar request, OrangeContext ctx) {
+            return FrameworkTest.Foobar.newBuilder()
+                    .addBlah(ctx.getCorrelationId())
+                    .addBlah(ctx.getRpcOriginService())
+                    .addBlah(ctx.hasDeadline() ? "deadline" : "none")
+                    .build();
+        }
+    }
+
+    public static class FailingHandler implements ServiceMethodHandler<FrameworkTest.Foobar, FrameworkTest.Foobar> {
+        @Override
+        public FrameworkTest.Foobar handleRequest(FrameworkTest.Foobar request, OrangeContext ctx)
+                throws RpcCallException {
+            throw new RpcCallException(RpcCallException.Category.ResourceNotFound, "gone");
+        }
+    }
+
+    public static class AsyncEchoHandler implements AsyncServiceMethodHandler<FrameworkTest.Foobar, FrameworkTest.Foobar> {
+        @Override
+        public CompletableFuture<FrameworkTest.Foobar> handleRequestAsync(FrameworkTest.Foobar request,
+                                                                          OrangeContext ctx) {
+            return CompletableFuture.completedFuture(request);
+        }
+    }
+
+    public static class NeverCompletingHandler implements AsyncServiceMethodHandler<FrameworkTest.Foobar, FrameworkTest.Foobar> {
+        @Override
+        public CompletableFuture<FrameworkTest.Foobar> handleRequestAsync(FrameworkTest.Foobar request,
+                                                                          OrangeContext ctx) {
+            return new CompletableFuture<>();
+        }
+    }
+
+    /**
+     * Hands the request data to the read listener chunk by chunk, like the container does
+     */
+    private static class FakeInputStream extends ServletInputStream {
+        private ReadListener listener;
+        private byte[] data = new byte[0];
+        private int position;
+        private boolean finished;
+
+        void receive(byte[] chunk) throws IOException {
+            data = chunk;
+            position = 0;
+            listener.onDataAvailable();
+        }
+
+        void finish() throws IOException {
+            finished = true;
+            listener.onAllDataRead();
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        public boolean isReady() {
+            return position < data.length;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            listener = readListener;
+        }
+
+        @Override
+        public int read() {
+            return position < data.length ? data[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (position >= data.length) {
+                return -1;
+            }
+            int read = Math.min(length, data.length - position);
+            System.arraycopy(data, position, buffer, offset, read);
+            position += read;
+            return read;
+        }
+    }
+
+    private static class FakeOutputStream extends ServletOutputStream {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            try {
+                writeListener.onWritePossible();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            bytes.write(b);
+        }
+    }
+
+}
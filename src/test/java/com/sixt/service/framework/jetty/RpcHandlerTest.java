@@ -13,14 +13,26 @@
 package com.sixt.service.framework.jetty;
 
 import com.codahale.metrics.MetricRegistry;
+import com.google.protobuf.Message;
+import com.sixt.service.framework.AsyncServiceMethodHandler;
+import com.sixt.service.framework.FeatureFlags;
 import com.sixt.service.framework.MethodHandlerDictionary;
+import com.sixt.service.framework.OrangeContext;
+import com.sixt.service.framework.ServiceMethodDescriptor;
 import com.sixt.service.framework.ServiceProperties;
+import com.sixt.service.framework.metrics.GoGauge;
+import com.sixt.service.framework.protobuf.FrameworkTest;
+import com.sixt.service.framework.rpc.RpcCallException;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.Mockito;
 
 import javax.servlet.http.HttpServletRequest;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class RpcHandlerTest {
 
@@ -82,6 +94,112 @@ public class RpcHandlerTest {
         Assert.assertEquals("Second multiple key should match value3_3", filteredHeaders.get("multiple_key_2"), "value3_3");
     }
 
+    @Test
+    public void asyncHandlerIsNotWaitedFor() throws Exception {
+        MethodHandlerDictionary handlers = new MethodHandlerDictionary();
+        AsyncFoobarHandler handler = new AsyncFoobarHandler();
+        handlers.put("Test.async", handler);
+        handlers.addPostHook("Test.async", (response, ctx) ->
+                FrameworkTest.Foobar.newBuilder((FrameworkTest.Foobar) response).addBlah("post-hook").build());
+        RpcHandlerTest_RpcHandlerMock rpcHandler = new RpcHandlerTest_RpcHandlerMock(handlers, null, null);
+
+        CompletableFuture<Message> response = rpcHandler.invokeHandlerChainAsync(
+                handlers.getDescriptor("Test.async"), FrameworkTest.Foobar.getDefaultInstance(),
+                new OrangeContext());
+
+        assertThat(response).isNotDone();
+        handler.response.complete(FrameworkTest.Foobar.newBuilder().addBlah("handler").build());
+        assertThat(((FrameworkTest.Foobar) response.get()).getBlahList()).containsExactly("handler", "post-hook");
+    }
+
+    @Test
+    public void asyncHandlerOnBulkheadIsNotWaitedForOnABulkheadThread() throws Exception {
+        MethodHandlerDictionary handlers = new MethodHandlerDictionary();
+        AsyncFoobarHandler handler = new AsyncFoobarHandler();
+        handlers.put("Test.async", handler);
+        ServiceProperties props = new ServiceProperties();
+        props.addProperty(FeatureFlags.RPC_SERVER_BULKHEAD_THREADS + ".Test.async", "1");
+        RpcHandlerMetrics handlerMetrics = Mockito.mock(RpcHandlerMetrics.class);
+        Mockito.when(handlerMetrics.getBulkheadGauge("Test.async")).thenReturn(new GoGauge("bulkhead"));
+        Bulkheads bulkheads = new Bulkheads(props, handlerMetrics);
+        RpcHandler rpcHandler = new ProtobufHandler(handlers, null, handlerMetrics, props, null,
+                new AdmissionController(props, handlerMetrics), bulkheads);
+        ServiceMethodDescriptor descriptor = handlers.getDescriptor("Test.async");
+
+        CompletableFuture<Message> response = rpcHandler.invokeHandlerChainAsync(descriptor,
+                FrameworkTest.Foobar.getDefaultInstance(), new OrangeContext());
+
+        assertThat(response).isNotDone();
+        assertThat(bulkheads.getExecutor(descriptor).getActiveCount()).isEqualTo(0);
+        handler.response.complete(FrameworkTest.Foobar.newBuilder().addBlah("handler").build());
+        assertThat(((FrameworkTest.Foobar) response.get()).getBlahList()).containsExactly("handler");
+    }
+
+    @Test
+    public void waitingForTheHandlerChainIsBoundedByTheDeadline() {
+        MethodHandlerDictionary handlers = new MethodHandlerDictionary();
+        handlers.put("Test.async", new AsyncFoobarHandler());
+        RpcHandlerTest_RpcHandlerMock rpcHandler = new RpcHandlerTest_RpcHandlerMock(handlers, null, null);
+        OrangeContext context = new OrangeContext();
+        context.setTimeBudget(100);
+
+        long start = System.currentTimeMillis();
+        assertThatThrownBy(() -> rpcHandler.invokeHandlerChain(handlers.getDescriptor("Test.async"),
+                FrameworkTest.Foobar.getDefaultInstance(), context))
+                .isInstanceOf(RpcCallException.class)
+                .matches(ex -> ((RpcCallException) ex).getCategory() ==
+                        RpcCallException.Category.RequestTimedOut);
+        assertThat(System.currentTimeMillis() - start).isLessThan(5000);
+    }
+
+    @Test
+    public void timedOutHandlerChainIsAdmittedUntilItCompletes() throws Exception {
+        MethodHandlerDictionary handlers = new MethodHandlerDictionary();
+        AsyncFoobarHandler handler = new AsyncFoobarHandler();
+        handlers.put("Test.async", handler);
+        ServiceProperties props = new ServiceProperties();
+        props.addProperty(FeatureFlags.RPC_SERVER_BULKHEAD_THREADS + ".Test.async", "1");
+        RpcHandlerMetrics handlerMetrics = Mockito.mock(RpcHandlerMetrics.class);
+        Mockito.when(handlerMetrics.getBulkheadGauge("Test.async")).thenReturn(new GoGauge("bulkhead"));
+        AdmissionController admissionController = new AdmissionController(props, handlerMetrics);
+        RpcHandler rpcHandler = new ProtobufHandler(handlers, null, handlerMetrics, props, null,
+                admissionController, new Bulkheads(props, handlerMetrics));
+        OrangeContext context = new OrangeContext();
+        context.setTimeBudget(50);
+
+        admissionController.acquire("Test.async", -1);
+        assertThatThrownBy(() -> rpcHandler.invokeHandlerChain(handlers.getDescriptor("Test.async"),
+                FrameworkTest.Foobar.getDefaultInstance(), context))
+                .isInstanceOf(RpcCallException.class);
+        //as done by the caller once it answered
+        admissionController.release("Test.async");
+        assertThat(admissionController.getInFlight("Test.async")).isEqualTo(1);
+
+        handler.response.complete(FrameworkTest.Foobar.getDefaultInstance());
+        assertThat(admissionController.getInFlight("Test.async")).isEqualTo(0);
+    }
+
+    @Test
+    public void asyncHandlerFailuresAreRethrownWhenWaitedFor() {
+        AsyncFoobarHandler handler = new AsyncFoobarHandler();
+        handler.response.completeExceptionally(new RpcCallException(RpcCallException.Category.BadRequest, "nope"));
+
+        assertThatThrownBy(() -> handler.handleRequest(FrameworkTest.Foobar.getDefaultInstance(), new OrangeContext()))
+                .isInstanceOf(RpcCallException.class).hasMessageContaining("nope");
+    }
+
+    public static class AsyncFoobarHandler
+            implements AsyncServiceMethodHandler<FrameworkTest.Foobar, FrameworkTest.Foobar> {
+
+        private final CompletableFuture<FrameworkTest.Foobar> response = new CompletableFuture<>();
+
+        @Override
+        public CompletableFuture<FrameworkTest.Foobar> handleRequestAsync(FrameworkTest.Foobar request,
+                                                                          OrangeContext ctx) {
+            return response;
+        }
+    }
+
     public class RpcHandlerTest_RpcHandlerMock
             extends RpcHandler {
 
@@ -16,9 +16,11 @@ import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
+import com.sixt.service.framework.protobuf.FrameworkTest;
 import org.junit.Test;
 
 import javax.servlet.http.HttpServletResponse;
+import java.io.StringWriter;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -74,5 +76,21 @@ public class JsonRpcResponseTest {
         assertThat(response.getStatusCode()).isEqualTo(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
     }
 
+    @Test
+    public void protobufResultIsStreamedLikeToJson() throws Exception {
+        FrameworkTest.SerializationTest message = FrameworkTest.SerializationTest.newBuilder()
+                .setId("abc").setSubMessage(FrameworkTest.SerializationSubMessage.newBuilder().setId("d\"ef"))
+                .build();
+        JsonRpcResponse response = new JsonRpcResponse(new JsonPrimitive(42), JsonNull.INSTANCE,
+                JsonNull.INSTANCE, 200);
+        response.setResultMessage(message);
+
+        StringWriter writer = new StringWriter();
+        response.writeTo(writer);
+
+        assertThat(writer.toString()).isEqualTo("{\"id\":42,\"error\":null," +
+                "\"result\":{\"id\":\"abc\",\"sub_message\":{\"id\":\"d\\\"ef\"}}}");
+        assertThat(new JsonParser().parse(writer.toString())).isEqualTo(response.toJson());
+    }
 
 }
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sixt.service.framework.protobuf;
+
+import com.google.gson.stream.JsonReader;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.JsonFormat;
+import org.junit.Test;
+
+import java.io.StringReader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ProtobufJsonReaderTest {
+
+    @Test
+    public void decodesLikeJsonFormat() throws Exception {
+        assertSameAsJsonFormat("{\"id\":\"a\",\"id2\":\"b\",\"sub_message\":{\"id\":\"c\"},\"id4\":\"d\"}",
+                FrameworkTest.SerializationTest.class);
+        assertSameAsJsonFormat("{\"subMessage\":{\"id\":\"c\"},\"unknown\":{\"x\":[1,2]}}",
+                FrameworkTest.SerializationTest.class);
+        assertSameAsJsonFormat("{\"blah\":[\"a\",\"b\"]}", FrameworkTest.Foobar.class);
+        assertSameAsJsonFormat("{\"error\":1}", FrameworkTest.MessageWithEnum.class);
+        assertSameAsJsonFormat("{\"error_map\":{\"a\":\"INVALID_VEHICLE_ID\",\"b\":0}}",
+                FrameworkTest.MessageWithMap.class);
+        assertSameAsJsonFormat("{\"userId\":\"u1\"}", FrameworkTest.CamelCaseTestMessage.class);
+    }
+
+    @Test
+    public void nullsAreIgnored() throws Exception {
+        FrameworkTest.Foobar foobar = read("{\"blah\":[\"a\",null,\"b\"]}", FrameworkTest.Foobar.class);
+        assertThat(foobar.getBlahList()).containsExactly("a", "b");
+
+        FrameworkTest.SerializationTest message = read("{\"id\":null,\"sub_message\":null}",
+                FrameworkTest.SerializationTest.class);
+        assertThat(message).isEqualTo(FrameworkTest.SerializationTest.getDefaultInstance());
+
+        assertThat(read("null", FrameworkTest.Foobar.class)).isNull();
+    }
+
+    @Test
+    public void nonObjectsYieldDefaultInstance() throws Exception {
+        assertThat(read("\"text\"", FrameworkTest.Foobar.class)).isEqualTo(FrameworkTest.Foobar.getDefaultInstance());
+    }
+
+    @Test
+    public void mismatchingValuesAreRejected() {
+        assertThatThrownBy(() -> read("{\"error\":\"NO_SUCH_VALUE\"}", FrameworkTest.MessageWithEnum.class))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> read("{\"blah\":\"a\"}", FrameworkTest.Foobar.class))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    private void assertSameAsJsonFormat(String json, Class<? extends Message> messageClass) throws Exception {
+        Message.Builder builder = ProtobufParsers.getDefaultInstance(messageClass).newBuilderForType();
+        JsonFormat.parser().ignoringUnknownFields().merge(json, builder);
+        assertThat(read(json, messageClass)).isEqualTo(builder.build());
+    }
+
+    private <TYPE extends Message> TYPE read(String json, Class<TYPE> messageClass) throws Exception {
+        JsonReader reader = new JsonReader(new StringReader(json));
+        reader.setLenient(true);
+        return ProtobufJsonReader.read(reader, messageClass);
+    }
+
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sixt.service.framework.protobuf;
+
+import com.google.protobuf.Message;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares deserializing a message through a reflectively created builder (as done before
+ * {@link ProtobufParsers} existed) with the cached parser used by {@link ProtobufUtil}.
+ * Run it with "gradle benchmark".
+ */
+@Category(com.sixt.service.framework.Benchmark.class)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ProtobufParsersBenchmark {
+
+    private final byte[] data = FrameworkTest.SerializationTest.newBuilder()
+            .setId("id").setId2("id2").setId4("id4")
+            .setSubMessage(FrameworkTest.SerializationSubMessage.newBuilder().setId("sub"))
+            .build().toByteArray();
+
+    @Benchmark
+    public Message reflectiveBuilder() throws Exception {
+        Constructor<FrameworkTest.SerializationTest> constructor =
+                FrameworkTest.SerializationTest.class.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        return constructor.newInstance().newBuilderForType().mergeFrom(data).build();
+    }
+
+    @Benchmark
+    public Message cachedParser() throws Exception {
+        return ProtobufUtil.byteArrayToProtobuf(data, FrameworkTest.SerializationTest.class);
+    }
+
+    @Test
+    public void runBenchmark() throws Exception {
+        Options options = new OptionsBuilder()
+                .include(ProtobufParsersBenchmark.class.getSimpleName())
+                .forks(1)
+                .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sixt.service.framework.protobuf;
+
+import com.google.protobuf.Message;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ProtobufParsersTest {
+
+    @Test
+    public void defaultInstanceIsLookedUpOnce() {
+        FrameworkTest.Foobar instance = ProtobufParsers.getDefaultInstance(FrameworkTest.Foobar.class);
+        assertThat(instance).isSameAs(FrameworkTest.Foobar.getDefaultInstance());
+        assertThat(ProtobufParsers.getDefaultInstance(FrameworkTest.Foobar.class)).isSameAs(instance);
+    }
+
+    @Test
+    public void parserRoundTrip() throws Exception {
+        FrameworkTest.SerializationTest message = FrameworkTest.SerializationTest.newBuilder()
+                .setId("a").setSubMessage(FrameworkTest.SerializationSubMessage.newBuilder().setId("b")).build();
+        assertThat(ProtobufParsers.getParser(FrameworkTest.SerializationTest.class)
+                .parseFrom(message.toByteArray())).isEqualTo(message);
+    }
+
+    @Test
+    public void nonGeneratedClassIsRejected() {
+        assertThatThrownBy(() -> ProtobufParsers.getDefaultInstance(Message.class))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+}
@@ -95,7 +95,21 @@ public class CircuitBreakerStateTest {
         //if multiple calls take a breaker to the tripped state, there will be
         //multiple timer callbacks.  based on timing, it's possible for a breaker
         //to already be healthy when the timer fires.  don't log in that case
-        breaker.primaryTrippedToPrimaryProbe.run();
+        breaker.new StateChanger(CircuitBreakerState.State.PRIMARY_TRIPPED,
+                CircuitBreakerState.State.PRIMARY_PROBE, 0).run();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreakerState.State.PRIMARY_HEALTHY);
+    }
+
+    @Test
+    public void staleTimerIsIgnored() {
+        for (int i = 0; i < CircuitBreakerState.HISTORY_SIZE; i++) {
+            breaker.requestComplete(false);
+        }
+        assertThat(breaker.getState()).isEqualTo(CircuitBreakerState.State.PRIMARY_TRIPPED);
+        //a timer from an earlier trip must not move the breaker to probing
+        breaker.new StateChanger(CircuitBreakerState.State.PRIMARY_TRIPPED,
+                CircuitBreakerState.State.PRIMARY_PROBE, 0).run();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreakerState.State.PRIMARY_TRIPPED);
     }
 
 }
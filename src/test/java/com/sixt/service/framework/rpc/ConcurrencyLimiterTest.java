@@ -0,0 +1,93 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConcurrencyLimiterTest {
+
+    private static final long RTT = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Test
+    public void rejectsAboveLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 10);
+        assertThat(limiter.tryAcquire()).isTrue();
+        assertThat(limiter.tryAcquire()).isTrue();
+        assertThat(limiter.tryAcquire()).isFalse();
+        limiter.requestCancelled();
+        assertThat(limiter.tryAcquire()).isTrue();
+        assertThat(limiter.getInFlight()).isEqualTo(2);
+    }
+
+    @Test
+    public void growsWhileUsedAndHealthy() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 4);
+        for (int i = 0; i < 10; i++) {
+            limiter.tryAcquire();
+            limiter.tryAcquire();
+            limiter.requestComplete(true, RTT);
+            limiter.requestComplete(true, RTT);
+        }
+        assertThat(limiter.getLimit()).isEqualTo(4);
+    }
+
+    @Test
+    public void doesNotGrowWhenIdle() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 100);
+        for (int i = 0; i < 10; i++) {
+            limiter.tryAcquire();
+            limiter.requestComplete(true, RTT);
+        }
+        assertThat(limiter.getLimit()).isEqualTo(10);
+    }
+
+    @Test
+    public void shrinksOnFailures() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 2, 100);
+        limiter.tryAcquire();
+        limiter.requestComplete(false, RTT);
+        assertThat(limiter.getLimit()).isEqualTo(9);
+        for (int i = 0; i < 50; i++) {
+            limiter.tryAcquire();
+            limiter.requestComplete(false, RTT);
+        }
+        assertThat(limiter.getLimit()).isEqualTo(2);
+    }
+
+    @Test
+    public void singleSlowRequestDoesNotShrink() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 100);
+        limiter.tryAcquire();
+        limiter.requestComplete(true, RTT);
+        limiter.tryAcquire();
+        limiter.requestComplete(true, 5 * RTT);
+        assertThat(limiter.getLimit()).isEqualTo(10);
+    }
+
+    @Test
+    public void shrinksWhenLatencyRises() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 100);
+        limiter.tryAcquire();
+        limiter.requestComplete(true, RTT);
+        for (int i = 0; i < 3; i++) {
+            limiter.tryAcquire();
+            limiter.requestComplete(true, 5 * RTT);
+        }
+        assertThat(limiter.getLimit()).isEqualTo(9);
+    }
+
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class EndpointStatisticsTest {
+
+    private EndpointStatistics statistics = new EndpointStatistics();
+
+    @Test
+    public void firstSampleInitializesAverages() {
+        assertThat(statistics.hasSamples()).isFalse();
+        statistics.record(1000, false, 0);
+        assertThat(statistics.hasSamples()).isTrue();
+        assertThat(statistics.getLatency()).isEqualTo(1000);
+        assertThat(statistics.getErrorRate()).isEqualTo(1);
+    }
+
+    @Test
+    public void samplesAreWeightedByElapsedTime() {
+        statistics.record(1000, true, 0);
+        //one decay time later, the new sample has a weight of 1 - 1/e
+        statistics.record(2000, true, EndpointStatistics.DECAY_TIME);
+        assertThat(statistics.getLatency()).isCloseTo(1000 + 1000 * (1 - Math.exp(-1)), within(0.01));
+
+        //a long time later, the old samples are forgotten
+        statistics.record(5000, false, 100 * EndpointStatistics.DECAY_TIME);
+        assertThat(statistics.getLatency()).isCloseTo(5000, within(0.01));
+        assertThat(statistics.getErrorRate()).isCloseTo(1, within(0.0001));
+    }
+
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HashedTimerWheelTest {
+
+    @Test
+    public void tasksRunInOrderOfDeadline() throws Exception {
+        //wheel is smaller than the longest delay, so that task needs more than one round
+        HashedTimerWheel timer = new HashedTimerWheel(10, TimeUnit.MILLISECONDS, 8);
+        List<Integer> executed = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(3);
+        long start = System.nanoTime();
+        timer.schedule(() -> { executed.add(3); latch.countDown(); }, 200, TimeUnit.MILLISECONDS);
+        timer.schedule(() -> { executed.add(1); latch.countDown(); }, 0, TimeUnit.MILLISECONDS);
+        timer.schedule(() -> { executed.add(2); latch.countDown(); }, 50, TimeUnit.MILLISECONDS);
+
+        assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(executed).containsExactly(1, 2, 3);
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wheelSizeMustBePowerOfTwo() {
+        new HashedTimerWheel(10, TimeUnit.MILLISECONDS, 10);
+    }
+
+}
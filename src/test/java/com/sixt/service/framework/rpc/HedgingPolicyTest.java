@@ -0,0 +1,83 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import com.sixt.service.framework.metrics.GoTimer;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HedgingPolicyTest {
+
+    @Test
+    public void fixedDelay() {
+        HedgingPolicy policy = HedgingPolicy.afterDelay(50);
+        assertThat(policy.getHedgeDelay(new GoTimer("test"))).isEqualTo(50);
+    }
+
+    @Test
+    public void percentileNeedsEnoughSamples() {
+        HedgingPolicy policy = HedgingPolicy.atPercentile(0.9);
+        GoTimer timer = new GoTimer("test");
+        assertThat(policy.getHedgeDelay(timer)).isEqualTo(-1);
+        for (int i = 1; i <= 100; i++) {
+            timer.getSuccessTimer().update(i, TimeUnit.MILLISECONDS);
+        }
+        assertThat(policy.getHedgeDelay(timer)).isBetween(85L, 95L);
+    }
+
+    @Test
+    public void hedgesAreLimitedByBudget() {
+        HedgingPolicy policy = HedgingPolicy.afterDelay(0).withMaxHedgeRatio(0.1);
+        assertThat(policy.tryAcquireHedge()).isFalse();
+        for (int i = 0; i < 9; i++) {
+            policy.callStarted();
+        }
+        assertThat(policy.tryAcquireHedge()).isFalse();
+        policy.callStarted();
+        assertThat(policy.tryAcquireHedge()).isTrue();
+        assertThat(policy.tryAcquireHedge()).isFalse();
+    }
+
+    @Test
+    public void budgetIsCapped() {
+        HedgingPolicy policy = HedgingPolicy.afterDelay(0).withMaxHedgeRatio(1);
+        for (int i = 0; i < 100; i++) {
+            policy.callStarted();
+        }
+        int hedges = 0;
+        while (policy.tryAcquireHedge()) {
+            hedges++;
+        }
+        assertThat(hedges).isEqualTo(10);
+    }
+
+    @Test
+    public void copiesHaveTheirOwnBudget() {
+        HedgingPolicy policy = HedgingPolicy.afterDelay(20).withMaxHedgeRatio(1);
+        HedgingPolicy copy = policy.copy();
+        policy.callStarted();
+        assertThat(copy.tryAcquireHedge()).isFalse();
+        assertThat(copy.getHedgeDelay(new GoTimer("test"))).isEqualTo(20);
+        copy.callStarted();
+        assertThat(copy.tryAcquireHedge()).isTrue();
+        assertThat(policy.tryAcquireHedge()).isTrue();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPercentile() {
+        HedgingPolicy.atPercentile(1.5);
+    }
+}
@@ -1,5 +1,6 @@
 package com.sixt.service.framework.rpc;
 
+import com.sixt.service.framework.FeatureFlags;
 import com.sixt.service.framework.OrangeContext;
 import com.sixt.service.framework.ServiceProperties;
 import com.sixt.service.framework.kafka.messaging.EmptyMessage;
@@ -12,6 +13,8 @@ import org.eclipse.jetty.client.HttpContentResponse;
 import org.eclipse.jetty.client.api.ContentProvider;
 import org.eclipse.jetty.client.api.ContentResponse;
 import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
 import org.eclipse.jetty.client.util.BytesContentProvider;
 import org.junit.Assert;
 import org.junit.Before;
@@ -21,11 +24,13 @@ import org.junit.Test;
 import java.net.URI;
 import java.time.Duration;
 import java.util.Date;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.anyLong;
@@ -56,6 +61,7 @@ public class HttpClientWrapperTest {
 
     @Before
     public void setup() throws InterruptedException, ExecutionException, TimeoutException {
+        dependencyHealthCheck = mock(ServiceDependencyHealthCheck.class);
         when(loadBalancer.getHealthyInstance()).thenReturn(createServiceEndpoint());
         when(loadBalancer.getHealthyInstanceExclude(anyListOf(ServiceEndpoint.class)))
             .thenReturn(createServiceEndpoint());
@@ -73,7 +79,6 @@ public class HttpClientWrapperTest {
         when(request.timeout(anyLong(), any(TimeUnit.class))).thenReturn(request);
         when(request.send()).thenReturn(httpContentResponse);
         when(httpContentResponse.getStatus()).thenReturn(100);
-        dependencyHealthCheck = mock(ServiceDependencyHealthCheck.class);
     }
 
     @Ignore //TODO: Alex Borlis, please fix up this test.
@@ -122,6 +127,228 @@ public class HttpClientWrapperTest {
         Assert.assertEquals(1, exceptionsCatchTimes);
     }
 
+    @Test
+    public void executeAsyncCompletesFromCallback() throws Exception {
+        respondAsync(successfulResult());
+
+        HttpRequestWrapper httpRequestWrapper = httpClientWrapper.createHttpPost(rpcClient);
+        httpRequestWrapper.setContentProvider(new BytesContentProvider(new byte[0]));
+        CompletableFuture<ContentResponse> future = httpClientWrapper.executeAsync(
+                httpRequestWrapper, decoder, new OrangeContext());
+
+        assertThat(future.get(1, TimeUnit.SECONDS).getStatus()).isEqualTo(200);
+        verify(request, never()).send();
+    }
+
+    @Test
+    public void executeAsyncRetriesTimeouts() throws Exception {
+        respondAsync(new Result(request, mock(Response.class), new TimeoutException()));
+
+        HttpRequestWrapper httpRequestWrapper = httpClientWrapper.createHttpPost(rpcClient);
+        httpRequestWrapper.setContentProvider(new BytesContentProvider(new byte[0]));
+        CompletableFuture<ContentResponse> future = httpClientWrapper.executeAsync(
+                httpRequestWrapper, decoder, new OrangeContext());
+
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            Assert.fail("Expected the call to fail");
+        } catch (ExecutionException ex) {
+            assertThat(ex.getCause()).isInstanceOf(RpcCallException.class);
+            assertThat(((RpcCallException) ex.getCause()).getCategory())
+                    .isEqualTo(RpcCallException.Category.RequestTimedOut);
+        }
+        verify(request, times(NUMBER_OF_RETRIES + 1)).send(any(Response.CompleteListener.class));
+    }
+
+    @Test
+    public void invalidBackOffFailsAsyncCallWithRpcCallException() throws Exception {
+        respondAsync(new Result(request, mock(Response.class), new TimeoutException()));
+        when(rpcClient.getRetryBackOffFunction()).thenReturn(retryCounter -> Duration.ofMillis(-1));
+        when(rpcClient.hasRetryBackOffFunction()).thenReturn(true);
+
+        HttpRequestWrapper httpRequestWrapper = httpClientWrapper.createHttpPost(rpcClient);
+        httpRequestWrapper.setContentProvider(new BytesContentProvider(new byte[0]));
+        CompletableFuture<ContentResponse> future = httpClientWrapper.executeAsync(
+                httpRequestWrapper, decoder, new OrangeContext());
+
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            Assert.fail("Expected the call to fail");
+        } catch (ExecutionException ex) {
+            assertThat(ex.getCause()).isInstanceOf(RpcCallException.class);
+            assertThat(((RpcCallException) ex.getCause()).isRetriable()).isFalse();
+        }
+        verify(request, times(1)).send(any(Response.CompleteListener.class));
+    }
+
+    @Test
+    public void retriesStopWhenBudgetIsExhausted() throws Exception {
+        respondAsync(new Result(request, mock(Response.class), new TimeoutException()));
+        httpClientWrapper.setRetryBudget(new RetryBudget(10, 1));
+
+        HttpRequestWrapper httpRequestWrapper = httpClientWrapper.createHttpPost(rpcClient);
+        httpRequestWrapper.setContentProvider(new BytesContentProvider(new byte[0]));
+        CompletableFuture<ContentResponse> future = httpClientWrapper.executeAsync(
+                httpRequestWrapper, decoder, new OrangeContext());
+
+        assertThat(future).isCompletedExceptionally();
+        verify(request, times(2)).send(any(Response.CompleteListener.class));
+    }
+
+    @Test
+    public void deadlineIsPropagatedAsTimeBudget() throws Exception {
+        respondAsync(successfulResult());
+        OrangeContext orangeContext = new OrangeContext();
+        orangeContext.setTimeBudget(500);
+
+        HttpRequestWrapper httpRequestWrapper = httpClientWrapper.createHttpPost(rpcClient);
+        httpRequestWrapper.setContentProvider(new BytesContentProvider(new byte[0]));
+        httpClientWrapper.executeAsync(httpRequestWrapper, decoder, orangeContext).get(1, TimeUnit.SECONDS);
+
+        long budget = Long.parseLong(httpRequestWrapper.getHeaders().get(OrangeContext.RPC_TIME_BUDGET));
+        assertThat(budget).isBetween(1L, 500L);
+        verify(request).timeout(budget, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void noRetriesAfterDeadline() throws Exception {
+        OrangeContext orangeContext = new OrangeContext();
+        orangeContext.setTimeBudget(50);
+        doAnswer(invocation -> {
+            Thread.sleep(100);
+            throw new TimeoutException();
+        }).when(request).send();
+
+        HttpRequestWrapper httpRequestWrapper = httpClientWrapper.createHttpPost(rpcClient);
+        httpRequestWrapper.setContentProvider(new BytesContentProvider(new byte[0]));
+        try {
+            httpClientWrapper.execute(httpRequestWrapper, decoder, orangeContext);
+            Assert.fail("Expected the call to fail");
+        } catch (RpcCallException ex) {
+            assertThat(ex.getCategory()).isEqualTo(RpcCallException.Category.RequestTimedOut);
+        }
+        verify(request, times(1)).send();
+    }
+
+    @Test
+    public void connectionsAreKeptAliveUnlessConfigured() throws Exception {
+        when(serviceProperties.getProperty(FeatureFlags.RPC_CLIENT_CONNECTION_CLOSE))
+                .thenReturn("com.sixt.service.legacy, com.sixt.service.other");
+
+        when(rpcClient.getServiceName()).thenReturn("com.sixt.service.modern");
+        assertThat(httpClientWrapper.createHttpPost(rpcClient).getHeaders()).doesNotContainKey("Connection");
+
+        when(rpcClient.getServiceName()).thenReturn("com.sixt.service.legacy");
+        assertThat(httpClientWrapper.createHttpPost(rpcClient).getHeaders()).containsEntry("Connection", "close");
+    }
+
+    @Test
+    public void connectionPoolsAreResolvedOnce() throws Exception {
+        RpcConnectionPools connectionPools = mock(RpcConnectionPools.class);
+        when(httpClient.getBean(RpcConnectionPools.class)).thenReturn(connectionPools);
+        HttpClientWrapper wrapper = new HttpClientWrapper(serviceProperties, httpClient, rpcClientMetrics, tracer);
+        wrapper.setLoadBalancer(loadBalancer);
+        when(httpContentResponse.getStatus()).thenReturn(200);
+        when(httpContentResponse.getContent()).thenReturn(new byte[] { 1 });
+
+        for (int i = 0; i < 2; i++) {
+            HttpRequestWrapper request = wrapper.createHttpPost(rpcClient);
+            request.setContentProvider(new BytesContentProvider(new byte[0]));
+            wrapper.execute(request, decoder, new OrangeContext());
+        }
+
+        verify(httpClient, times(1)).getBean(RpcConnectionPools.class);
+        verify(connectionPools, times(2)).registerEndpoint(any(ServiceEndpoint.class));
+    }
+
+    @Test
+    public void requestsKeepTheSettingsOfTheirOwnClient() throws Exception {
+        RpcClient hedgingClient = mock(RpcClient.class);
+        HedgingPolicy policy = mock(HedgingPolicy.class);
+        when(hedgingClient.getHedgingPolicy()).thenReturn(policy);
+        when(httpContentResponse.getStatus()).thenReturn(200);
+        when(httpContentResponse.getContent()).thenReturn(new byte[] { 1 });
+
+        HttpRequestWrapper request = httpClientWrapper.createHttpPost(rpcClient);
+        request.setContentProvider(new BytesContentProvider(new byte[0]));
+        //another client of the same service, e.g. the one of a batcher
+        httpClientWrapper.createHttpPost(hedgingClient);
+        httpClientWrapper.execute(request, decoder, new OrangeContext());
+
+        assertThat(request.getRpcClient()).isSameAs(rpcClient);
+        verify(hedgingClient, never()).getHedgingPolicy();
+        verify(policy, never()).callStarted();
+    }
+
+    @Test
+    public void http2DestinationsUseTheHttp2Client() throws Exception {
+        RpcHttp2Client http2Client = mock(RpcHttp2Client.class);
+        when(http2Client.newRequest(any(URI.class))).thenReturn(request);
+        when(httpClient.getBean(RpcHttp2Client.class)).thenReturn(http2Client);
+        when(serviceProperties.getProperty(FeatureFlags.RPC_CLIENT_HTTP2)).thenReturn("com.sixt.service.modern");
+        when(serviceProperties.getProperty(FeatureFlags.RPC_CLIENT_CONNECTION_CLOSE)).thenReturn("com.sixt.service.modern");
+        when(rpcClient.getServiceName()).thenReturn("com.sixt.service.modern");
+        when(httpContentResponse.getStatus()).thenReturn(200);
+        when(httpContentResponse.getContent()).thenReturn(new byte[] { 1 });
+
+        for (int i = 0; i < 2; i++) {
+            HttpRequestWrapper request = httpClientWrapper.createHttpPost(rpcClient);
+            assertThat(request.getHeaders()).doesNotContainKey("Connection");
+            request.setContentProvider(new BytesContentProvider(new byte[0]));
+            httpClientWrapper.execute(request, decoder, new OrangeContext());
+        }
+
+        verify(http2Client, times(2)).newRequest(any(URI.class));
+        verify(httpClient, never()).newRequest(any(URI.class));
+        verify(httpClient, times(1)).getBean(RpcHttp2Client.class);
+    }
+
+    @Test
+    public void callsBeyondConcurrencyLimitAreRejected() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1);
+        httpClientWrapper.setConcurrencyLimiter(limiter);
+        when(rpcClient.getServiceName()).thenReturn("com.sixt.service.other");
+        assertThat(limiter.tryAcquire()).isTrue();
+
+        HttpRequestWrapper request = httpClientWrapper.createHttpPost(rpcClient);
+        request.setContentProvider(new BytesContentProvider(new byte[0]));
+        CompletableFuture<ContentResponse> future = httpClientWrapper.executeAsync(request, decoder, null);
+
+        assertThat(future).isCompletedExceptionally();
+        try {
+            future.get();
+        } catch (ExecutionException ex) {
+            assertThat(ex.getCause()).isInstanceOf(RpcCallException.class);
+            assertThat(((RpcCallException) ex.getCause()).isRetriable()).isTrue();
+            assertThat(((RpcCallException) ex.getCause()).getCategory())
+                    .isEqualTo(RpcCallException.Category.ServiceUnavailable);
+        }
+        verify(this.request, never()).send(any(Response.CompleteListener.class));
+        assertThat(request.getServiceEndpoint().getServingRequests()).isEqualTo(0);
+
+        limiter.requestCancelled();
+        respondAsync(successfulResult());
+        request = httpClientWrapper.createHttpPost(rpcClient);
+        request.setContentProvider(new BytesContentProvider(new byte[0]));
+        assertThat(httpClientWrapper.executeAsync(request, decoder, null).get(1, TimeUnit.SECONDS)
+                .getStatus()).isEqualTo(200);
+        assertThat(limiter.getInFlight()).isEqualTo(0);
+    }
+
+    private Result successfulResult() {
+        Response response = mock(Response.class);
+        when(response.getStatus()).thenReturn(200);
+        return new Result(request, response);
+    }
+
+    private void respondAsync(Result result) {
+        doAnswer(invocation -> {
+            Response.CompleteListener listener = invocation.getArgument(0);
+            listener.onComplete(result);
+            return null;
+        }).when(request).send(any(Response.CompleteListener.class));
+    }
+
     private ServiceEndpoint createServiceEndpoint() {
         return new ServiceEndpoint(new ScheduledThreadPoolExecutor(2), "localhost:20001", "dc1", dependencyHealthCheck);
     }
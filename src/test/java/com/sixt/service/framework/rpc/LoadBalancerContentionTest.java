@@ -0,0 +1,98 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import com.sixt.service.framework.IntegrationTest;
+import com.sixt.service.framework.ServiceProperties;
+import org.eclipse.jetty.client.HttpClient;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Measures endpoint selection throughput with many calling threads.
+ */
+@Category(IntegrationTest.class)
+public class LoadBalancerContentionTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoadBalancerContentionTest.class);
+
+    private static final int ENDPOINTS = 10;
+    private static final long DURATION_MILLIS = 2000;
+
+    private LoadBalancerImpl lb;
+    private List<ServiceEndpoint> endpoints = new ArrayList<>();
+
+    @Before
+    public void setup() {
+        ServiceProperties properties = new ServiceProperties();
+        HttpClientWrapper wrapper = new HttpClientWrapper(properties, mock(HttpClient.class), null, null);
+        lb = new LoadBalancerImpl(properties, wrapper);
+        ServiceDependencyHealthCheck dependencyHealthCheck = mock(ServiceDependencyHealthCheck.class);
+        for (int i = 0; i < ENDPOINTS; i++) {
+            ServiceEndpoint endpoint = new ServiceEndpoint(null, "1.1.1." + i + ":80",
+                    i % 2 == 0 ? "dc1" : "dc2", dependencyHealthCheck);
+            endpoints.add(endpoint);
+            lb.addServiceEndpoint(endpoint);
+        }
+    }
+
+    @Test
+    public void selectionThroughput() throws Exception {
+        for (int threads : new int[] { 1, 8, 64, 128 }) {
+            long selections = runSelections(threads);
+            logger.info("{} threads: {} selections/s", threads, selections * 1000 / DURATION_MILLIS);
+            assertThat(selections).isGreaterThan(0);
+            for (ServiceEndpoint endpoint : endpoints) {
+                assertThat(endpoint.servingRequests.get()).isEqualTo(0);
+            }
+        }
+    }
+
+    private long runSelections(int threadCount) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong selections = new AtomicLong(0);
+        CountDownLatch started = new CountDownLatch(threadCount);
+        CountDownLatch finished = new CountDownLatch(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            new Thread(() -> {
+                long count = 0;
+                started.countDown();
+                while (running.get()) {
+                    ServiceEndpoint endpoint = lb.getHealthyInstance();
+                    endpoint.requestComplete(true);
+                    count++;
+                }
+                selections.addAndGet(count);
+                finished.countDown();
+            }).start();
+        }
+        started.await();
+        Thread.sleep(DURATION_MILLIS);
+        running.set(false);
+        finished.await();
+        return selections.get();
+    }
+
+}
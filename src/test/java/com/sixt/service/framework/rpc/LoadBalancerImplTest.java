@@ -77,4 +77,44 @@ public class LoadBalancerImplTest {
         assertThat(lb.getHealthyInstance()).isNull();
     }
 
+    @Test
+    public void healthyPrimaryZoneKeepsTraffic() {
+        ServiceEndpoint local1 = new ServiceEndpoint(null, "1.1.1.1:80", "dc1", dependencyHealthCheck);
+        ServiceEndpoint local2 = new ServiceEndpoint(null, "1.1.1.2:80", "dc1", dependencyHealthCheck);
+        local2.setCircuitBreakerState(CircuitBreakerState.State.PRIMARY_TRIPPED);
+        ServiceEndpoint remote = new ServiceEndpoint(null, "1.1.2.1:80", "dc2", dependencyHealthCheck);
+        lb.addServiceEndpoint(local1);
+        lb.addServiceEndpoint(local2);
+        lb.addServiceEndpoint(remote);
+        for (int i = 0; i < 100; i++) {
+            ServiceEndpoint selected = lb.getHealthyInstance();
+            assertThat(selected).isEqualTo(local1);
+            selected.requestCancelled();
+        }
+    }
+
+    @Test
+    public void degradedPrimaryZoneSpillsOver() {
+        ServiceEndpoint local1 = new ServiceEndpoint(null, "1.1.1.1:80", "dc1", dependencyHealthCheck);
+        lb.addServiceEndpoint(local1);
+        for (int i = 2; i <= 4; i++) {
+            ServiceEndpoint tripped = new ServiceEndpoint(null, "1.1.1." + i + ":80", "dc1", dependencyHealthCheck);
+            tripped.setCircuitBreakerState(CircuitBreakerState.State.PRIMARY_TRIPPED);
+            lb.addServiceEndpoint(tripped);
+        }
+        ServiceEndpoint remote = new ServiceEndpoint(null, "1.1.2.1:80", "dc2", dependencyHealthCheck);
+        lb.addServiceEndpoint(remote);
+
+        //25% healthy capacity with a threshold of 50%: half of the requests spill over
+        int remoteCount = 0;
+        for (int i = 0; i < 1000; i++) {
+            ServiceEndpoint selected = lb.getHealthyInstance();
+            if (selected == remote) {
+                remoteCount++;
+            }
+            selected.requestCancelled();
+        }
+        assertThat(remoteCount).isBetween(350, 650);
+    }
+
 }
@@ -1,6 +1,10 @@
 package com.sixt.service.framework.rpc;
 
 import com.google.common.net.MediaType;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+import com.sixt.service.framework.protobuf.ProtobufRpcResponse;
+import com.sixt.service.framework.protobuf.RpcEnvelope;
 import junitparams.Parameters;
 import org.assertj.core.api.Assertions;
 import org.eclipse.jetty.client.HttpContentResponse;
@@ -41,6 +45,24 @@ public class ProtobufRpcCallExceptionDecoderTest {
         assertThat(exception.getMessage()).isEqualTo("Empty response received");
     }
 
+    @Test
+    public void envelopeIsOnlyParsedOnce() throws RpcCallException {
+        byte[] header = RpcEnvelope.Response.newBuilder().setServiceMethod("Test.method").build().toByteArray();
+        byte[] payload = new byte[] { 1, 2, 3 };
+        byte[] content = Bytes.concat(Ints.toByteArray(header.length), header,
+                Ints.toByteArray(payload.length), payload);
+        ContentResponse response = response(content);
+
+        assertThat(decoder.decodeException(response)).isNull();
+        ProtobufRpcResponse envelope = decoder.getEnvelope(response);
+        assertThat(envelope.getPayloadData()).isEqualTo(payload);
+        assertThat(decoder.getEnvelope(response)).isSameAs(envelope);
+
+        ContentResponse other = response(content);
+        assertThat(decoder.getEnvelope(other)).isNotSameAs(envelope);
+        assertThat(decoder.getEnvelope(other).getPayloadData()).isEqualTo(payload);
+    }
+
     private ContentResponse response(byte[] content) {
         return new HttpContentResponse(null, content, ANY_TYPE.type(), UTF_8.name());
     }
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import com.sixt.service.framework.kafka.messaging.SayHelloToCmd;
+import com.sixt.service.framework.kafka.messaging.SayHelloToReply;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class RequestCoalescerTest {
+
+    private final RequestCoalescer<SayHelloToReply> coalescer = new RequestCoalescer<>();
+    private final AtomicInteger sent = new AtomicInteger(0);
+    private CompletableFuture<SayHelloToReply> response = new CompletableFuture<>();
+
+    @Test
+    public void identicalCallsShareOneRequest() throws Exception {
+        CompletableFuture<SayHelloToReply> first = call("Hello", "Tom");
+        CompletableFuture<SayHelloToReply> second = call("Hello", "Tom");
+        assertThat(sent.get()).isEqualTo(1);
+
+        SayHelloToReply reply = SayHelloToReply.newBuilder().setGreeting("Hi Tom").build();
+        response.complete(reply);
+        assertThat(first.get()).isSameAs(reply);
+        assertThat(second.get()).isSameAs(reply);
+        assertThat(coalescer.getInFlightCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void differentCallsAreNotShared() {
+        call("Hello", "Tom");
+        call("Hello", "Jerry");
+        call("Goodbye", "Tom");
+        assertThat(sent.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void completedCallsAreNotShared() {
+        call("Hello", "Tom");
+        response.complete(SayHelloToReply.getDefaultInstance());
+        response = new CompletableFuture<>();
+        call("Hello", "Tom");
+        assertThat(sent.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void failuresAreShared() throws Exception {
+        CompletableFuture<SayHelloToReply> first = call("Hello", "Tom");
+        CompletableFuture<SayHelloToReply> second = call("Hello", "Tom");
+        RpcCallException failure = new RpcCallException(RpcCallException.Category.InternalServerError, "boom");
+        response.completeExceptionally(failure);
+        for (CompletableFuture<SayHelloToReply> future : new CompletableFuture[] { first, second }) {
+            try {
+                future.get();
+                fail("Expected the call to fail");
+            } catch (ExecutionException ex) {
+                assertThat(ex.getCause()).isSameAs(failure);
+            }
+        }
+    }
+
+    @Test
+    public void cancellingOneCallerDoesNotAffectOthers() throws Exception {
+        CompletableFuture<SayHelloToReply> first = call("Hello", "Tom");
+        CompletableFuture<SayHelloToReply> second = call("Hello", "Tom");
+        first.cancel(true);
+        response.complete(SayHelloToReply.getDefaultInstance());
+        assertThat(second.get()).isEqualTo(SayHelloToReply.getDefaultInstance());
+    }
+
+    private CompletableFuture<SayHelloToReply> call(String method, String name) {
+        return coalescer.call(method, SayHelloToCmd.newBuilder().setName(name).build(), () -> {
+            sent.incrementAndGet();
+            return response;
+        });
+    }
+
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import com.sixt.service.framework.kafka.messaging.SayHelloToCmd;
+import com.sixt.service.framework.kafka.messaging.SayHelloToReply;
+import com.sixt.service.framework.metrics.GoCounter;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ResponseCacheTest {
+
+    private long now = 0;
+    private final AtomicInteger sent = new AtomicInteger(0);
+    private CompletableFuture<SayHelloToReply> pending;
+    private final GoCounter hits = new GoCounter("hits");
+    private final GoCounter misses = new GoCounter("misses");
+    private final GoCounter evictions = new GoCounter("evictions");
+
+    @Test
+    public void freshResponsesAreCached() throws Exception {
+        ResponseCache<SayHelloToReply> cache = cache(ResponseCachePolicy.withTtl(1000));
+        assertThat(call(cache, "Tom").get().getGreeting()).isEqualTo("Hi Tom 1");
+        advance(999);
+        assertThat(call(cache, "Tom").get().getGreeting()).isEqualTo("Hi Tom 1");
+        assertThat(call(cache, "Jerry").get().getGreeting()).isEqualTo("Hi Jerry 2");
+        assertThat(hits.getSuccessCount()).isEqualTo(1);
+        assertThat(misses.getSuccessCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void expiredResponsesAreReloaded() throws Exception {
+        ResponseCache<SayHelloToReply> cache = cache(ResponseCachePolicy.withTtl(1000));
+        call(cache, "Tom");
+        advance(1000);
+        assertThat(call(cache, "Tom").get().getGreeting()).isEqualTo("Hi Tom 2");
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void failuresAreNotCached() {
+        ResponseCache<SayHelloToReply> cache = cache(ResponseCachePolicy.withTtl(1000));
+        pending = new CompletableFuture<>();
+        pending.completeExceptionally(new RpcCallException(RpcCallException.Category.InternalServerError, "boom"));
+        assertThat(call(cache, "Tom")).isCompletedExceptionally();
+        pending = null;
+        call(cache, "Tom");
+        assertThat(sent.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws Exception {
+        ResponseCache<SayHelloToReply> cache = cache(ResponseCachePolicy.withTtl(1000).withMaxEntries(2));
+        call(cache, "Tom");
+        call(cache, "Jerry");
+        call(cache, "Tom");
+        call(cache, "Spike");
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(evictions.getSuccessCount()).isEqualTo(1);
+        assertThat(call(cache, "Tom").get().getGreeting()).isEqualTo("Hi Tom 1");
+        assertThat(call(cache, "Jerry").get().getGreeting()).isEqualTo("Hi Jerry 4");
+    }
+
+    @Test
+    public void sizeInBytesIsLimited() {
+        ResponseCache<SayHelloToReply> cache = cache(ResponseCachePolicy.withTtl(1000).withMaxBytes(40));
+        call(cache, "Tom");
+        call(cache, "Jerry");
+        call(cache, "Spike");
+        assertThat(cache.getBytes()).isLessThanOrEqualTo(40);
+        assertThat(cache.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void staleResponseIsServedWhileRevalidating() throws Exception {
+        ResponseCache<SayHelloToReply> cache = cache(ResponseCachePolicy.withTtl(1000)
+                .withStaleWhileRevalidate(5000));
+        call(cache, "Tom");
+        advance(1500);
+        pending = new CompletableFuture<>();
+        assertThat(call(cache, "Tom").get().getGreeting()).isEqualTo("Hi Tom 1");
+        assertThat(call(cache, "Tom").get().getGreeting()).isEqualTo("Hi Tom 1");
+        assertThat(sent.get()).isEqualTo(2);
+
+        pending.complete(reply("Tom", 2));
+        assertThat(call(cache, "Tom").get().getGreeting()).isEqualTo("Hi Tom 2");
+        advance(6000);
+        pending = null;
+        assertThat(call(cache, "Tom").get().getGreeting()).isEqualTo("Hi Tom 3");
+    }
+
+    private ResponseCache<SayHelloToReply> cache(ResponseCachePolicy policy) {
+        return new ResponseCache<>(policy, () -> now, hits, misses, evictions);
+    }
+
+    private CompletableFuture<SayHelloToReply> call(ResponseCache<SayHelloToReply> cache, String name) {
+        return cache.get(SayHelloToCmd.newBuilder().setName(name).build(), () -> {
+            int count = sent.incrementAndGet();
+            return pending != null ? pending : CompletableFuture.completedFuture(reply(name, count));
+        });
+    }
+
+    private SayHelloToReply reply(String name, int count) {
+        return SayHelloToReply.newBuilder().setGreeting("Hi " + name + " " + count).build();
+    }
+
+    private void advance(long millis) {
+        now += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+}
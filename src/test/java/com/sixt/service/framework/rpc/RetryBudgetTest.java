@@ -0,0 +1,65 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import com.sixt.service.framework.metrics.GoCounter;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RetryBudgetTest {
+
+    @Test
+    public void startsWithBurst() {
+        RetryBudget budget = new RetryBudget(10, 3);
+        assertThat(budget.tryAcquireRetry()).isTrue();
+        assertThat(budget.tryAcquireRetry()).isTrue();
+        assertThat(budget.tryAcquireRetry()).isTrue();
+        assertThat(budget.tryAcquireRetry()).isFalse();
+    }
+
+    @Test
+    public void successesEarnRetries() {
+        RetryBudget budget = new RetryBudget(10, 3);
+        while (budget.tryAcquireRetry()) {
+        }
+        for (int i = 0; i < 9; i++) {
+            budget.requestSucceeded();
+        }
+        assertThat(budget.tryAcquireRetry()).isFalse();
+        budget.requestSucceeded();
+        assertThat(budget.tryAcquireRetry()).isTrue();
+    }
+
+    @Test
+    public void budgetIsCapped() {
+        RetryBudget budget = new RetryBudget(50, 2);
+        for (int i = 0; i < 100; i++) {
+            budget.requestSucceeded();
+        }
+        assertThat(budget.getAvailableRetries()).isEqualTo(2.0);
+    }
+
+    @Test
+    public void deniedRetriesAreCounted() {
+        RetryBudget budget = new RetryBudget(10, 1);
+        GoCounter counter = new GoCounter("retries");
+        budget.setRetryCounter(counter);
+        budget.tryAcquireRetry();
+        budget.tryAcquireRetry();
+        budget.tryAcquireRetry();
+        assertThat(counter.getSuccessCount()).isEqualTo(1);
+        assertThat(counter.getFailureCount()).isEqualTo(2);
+    }
+
+}
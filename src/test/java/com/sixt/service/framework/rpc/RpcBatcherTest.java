@@ -0,0 +1,185 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import com.sixt.service.framework.Criticality;
+import com.sixt.service.framework.OrangeContext;
+import com.sixt.service.framework.kafka.messaging.SayHelloToCmd;
+import com.sixt.service.framework.kafka.messaging.SayHelloToReply;
+import com.sixt.service.framework.protobuf.RpcEnvelope;
+import org.eclipse.jetty.util.thread.Scheduler;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@SuppressWarnings("unchecked")
+public class RpcBatcherTest {
+
+    private RpcClient<RpcEnvelope.BatchResponse> batchClient = mock(RpcClient.class);
+    private Scheduler scheduler = mock(Scheduler.class);
+    private CompletableFuture<RpcEnvelope.BatchResponse> batchResponse = new CompletableFuture<>();
+    private RpcBatcher batcher;
+
+    @Before
+    public void setup() {
+        when(batchClient.callAsync(any(RpcEnvelope.BatchRequest.class), any())).thenReturn(batchResponse);
+        batcher = new RpcBatcher(batchClient, scheduler, 5, 3);
+    }
+
+    @Test
+    public void fullBatchIsSentImmediately() throws Exception {
+        CompletableFuture<SayHelloToReply> tom = call("Hello", "Tom");
+        CompletableFuture<SayHelloToReply> jerry = call("Hello", "Jerry");
+        verify(batchClient, never()).callAsync(any(RpcEnvelope.BatchRequest.class), any());
+        CompletableFuture<SayHelloToReply> spike = call("Goodbye", "Spike");
+
+        RpcEnvelope.BatchRequest request = sentBatch();
+        assertThat(request.getFramesCount()).isEqualTo(3);
+        assertThat(request.getFrames(2).getServiceMethod()).isEqualTo("Goodbye");
+        assertThat(SayHelloToCmd.parseFrom(request.getFrames(1).getBody()).getName()).isEqualTo("Jerry");
+
+        //answered out of order, matched by sequence number
+        RpcCallException failure = new RpcCallException(RpcCallException.Category.ResourceNotFound, "no Spike");
+        batchResponse.complete(RpcEnvelope.BatchResponse.newBuilder()
+                .addFrames(reply(request.getFrames(2)).setError(failure.toString()))
+                .addFrames(reply(request.getFrames(1)).setBody(greeting("Hi Jerry").toByteString()))
+                .addFrames(reply(request.getFrames(0)).setBody(greeting("Hi Tom").toByteString()))
+                .build());
+
+        assertThat(tom.get().getGreeting()).isEqualTo("Hi Tom");
+        assertThat(jerry.get().getGreeting()).isEqualTo("Hi Jerry");
+        try {
+            spike.get();
+            fail("Expected the call to fail");
+        } catch (ExecutionException ex) {
+            assertThat(((RpcCallException) ex.getCause()).getCategory())
+                    .isEqualTo(RpcCallException.Category.ResourceNotFound);
+        }
+    }
+
+    @Test
+    public void partialBatchIsSentAfterWindow() {
+        call("Hello", "Tom");
+        ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(flush.capture(), eq(5L), eq(TimeUnit.MILLISECONDS));
+        verify(batchClient, never()).callAsync(any(RpcEnvelope.BatchRequest.class), any());
+
+        flush.getValue().run();
+        assertThat(sentBatch().getFramesCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void failedBatchFailsAllCalls() {
+        CompletableFuture<SayHelloToReply> tom = call("Hello", "Tom");
+        CompletableFuture<SayHelloToReply> jerry = call("Hello", "Jerry");
+        call("Hello", "Spike");
+        batchResponse.completeExceptionally(new RpcCallException(RpcCallException.Category.RequestTimedOut, "slow"));
+        assertThat(tom).isCompletedExceptionally();
+        assertThat(jerry).isCompletedExceptionally();
+    }
+
+    @Test
+    public void missingResponsesFail() {
+        CompletableFuture<SayHelloToReply> tom = call("Hello", "Tom");
+        call("Hello", "Jerry");
+        call("Hello", "Spike");
+        batchResponse.complete(RpcEnvelope.BatchResponse.getDefaultInstance());
+        assertThat(tom).isCompletedExceptionally();
+    }
+
+    @Test
+    public void callsKeepTheirOwnContext() {
+        OrangeContext first = new OrangeContext("first", null);
+        first.setTimeBudget(1000);
+        OrangeContext second = new OrangeContext("second", null);
+        second.setProperty("X-Sx-From-Service", "com.sixt.service.caller");
+        batcher.call("Hello", SayHelloToCmd.getDefaultInstance(), SayHelloToReply.class, first);
+        batcher.call("Hello", SayHelloToCmd.getDefaultInstance(), SayHelloToReply.class, second,
+                Criticality.SHEDDABLE);
+        batcher.call("Hello", SayHelloToCmd.getDefaultInstance(), SayHelloToReply.class, first);
+
+        ArgumentCaptor<RpcEnvelope.BatchRequest> request = ArgumentCaptor.forClass(RpcEnvelope.BatchRequest.class);
+        ArgumentCaptor<OrangeContext> batchContext = ArgumentCaptor.forClass(OrangeContext.class);
+        verify(batchClient).callAsync(request.capture(), batchContext.capture());
+        Map<String, String> firstHeaders = request.getValue().getFrames(0).getHeadersMap();
+        assertThat(firstHeaders).containsEntry("x-correlation-id", "first");
+        assertThat(Long.parseLong(firstHeaders.get("x-sx-time-budget"))).isBetween(1L, 1000L);
+        Map<String, String> secondHeaders = request.getValue().getFrames(1).getHeadersMap();
+        assertThat(secondHeaders).containsEntry("x-correlation-id", "second")
+                .containsEntry("x-sx-from-service", "com.sixt.service.caller")
+                .containsEntry("x-sx-criticality", "SHEDDABLE")
+                .doesNotContainKey("x-sx-time-budget");
+        //the batch must not be cut short by the deadline of any of its calls
+        assertThat(batchContext.getValue().hasDeadline()).isFalse();
+    }
+
+    @Test
+    public void callsFailOnTheirOwnDeadline() throws Exception {
+        OrangeContext context = new OrangeContext();
+        context.setTimeBudget(50);
+        CompletableFuture<SayHelloToReply> call = batcher.call("Hello", SayHelloToCmd.getDefaultInstance(),
+                SayHelloToReply.class, context);
+        ArgumentCaptor<Runnable> scheduled = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler, times(2)).schedule(scheduled.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+
+        scheduled.getAllValues().get(0).run();
+        try {
+            call.get();
+            fail("Expected the call to fail");
+        } catch (ExecutionException ex) {
+            assertThat(((RpcCallException) ex.getCause()).getCategory())
+                    .isEqualTo(RpcCallException.Category.RequestTimedOut);
+        }
+        //the batch window ends, nothing is left to send
+        scheduled.getAllValues().get(1).run();
+        verify(batchClient, never()).callAsync(any(RpcEnvelope.BatchRequest.class), any());
+    }
+
+    private CompletableFuture<SayHelloToReply> call(String method, String name) {
+        return batcher.call(method, SayHelloToCmd.newBuilder().setName(name).build(),
+                SayHelloToReply.class, new OrangeContext());
+    }
+
+    private RpcEnvelope.BatchRequest sentBatch() {
+        ArgumentCaptor<RpcEnvelope.BatchRequest> captor = ArgumentCaptor.forClass(RpcEnvelope.BatchRequest.class);
+        verify(batchClient).callAsync(captor.capture(), any());
+        return captor.getValue();
+    }
+
+    private RpcEnvelope.BatchResponse.Frame.Builder reply(RpcEnvelope.BatchRequest.Frame frame) {
+        return RpcEnvelope.BatchResponse.Frame.newBuilder()
+                .setServiceMethod(frame.getServiceMethod())
+                .setSequenceNumber(frame.getSequenceNumber());
+    }
+
+    private SayHelloToReply greeting(String greeting) {
+        return SayHelloToReply.newBuilder().setGreeting(greeting).build();
+    }
+
+}
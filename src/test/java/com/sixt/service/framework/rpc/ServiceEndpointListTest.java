@@ -48,10 +48,25 @@ public class ServiceEndpointListTest {
     }
 
     @Test
-    public void verifyToString() {
+    public void onlyOneProbeAtATime() {
         ServiceEndpoint sep1 = new ServiceEndpoint(null, "1.1.1.1:80", "dc1", dependencyHealthCheck);
-        ServiceEndpointNode node = new ServiceEndpointNode(sep1);
-        assertThat(node.toString()).isEqualTo(sep1.toString());
+        sep1.setCircuitBreakerState(CircuitBreakerState.State.PRIMARY_PROBE);
+        list.add(sep1);
+        assertThat(list.nextAvailable()).isEqualTo(sep1);
+        assertThat(list.nextAvailable()).isNull();
+        sep1.requestCancelled();
+        assertThat(list.nextAvailable()).isEqualTo(sep1);
+    }
+
+    @Test
+    public void skipsTrippedEndpoints() {
+        ServiceEndpoint sep1 = new ServiceEndpoint(null, "1.1.1.1:80", "dc1", dependencyHealthCheck);
+        ServiceEndpoint sep2 = new ServiceEndpoint(null, "1.1.1.2:80", "dc1", dependencyHealthCheck);
+        list.add(sep1);
+        list.add(sep2);
+        list.updateEndpointHealth(sep2, CircuitBreakerState.State.PRIMARY_TRIPPED);
+        assertThat(list.nextAvailable()).isEqualTo(sep1);
+        assertThat(list.nextAvailable()).isEqualTo(sep1);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.sixt.service.framework.rpc.CircuitBreakerState.State.PRIMARY_HEALTHY;
+import static com.sixt.service.framework.rpc.CircuitBreakerState.State.PRIMARY_PROBE;
+import static com.sixt.service.framework.rpc.CircuitBreakerState.State.PRIMARY_TRIPPED;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SlidingWindowCircuitBreakerTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(2000);
+
+    @Mock
+    private HashedTimerWheel timer;
+    private SlidingWindowCircuitBreaker breaker;
+
+    @Before
+    public void setup() {
+        breaker = new SlidingWindowCircuitBreaker(timer, 10, 5, 50, 80, 1000, 15);
+    }
+
+    @Test
+    public void doesNotTripBelowMinimumRequests() {
+        for (int i = 0; i < 4; i++) {
+            breaker.requestComplete(false, FAST);
+        }
+        assertThat(breaker.getState()).isEqualTo(PRIMARY_HEALTHY);
+        breaker.requestComplete(false, FAST);
+        assertThat(breaker.getState()).isEqualTo(PRIMARY_TRIPPED);
+        verify(timer).schedule(any(Runnable.class), eq(15L), eq(TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void oldResultsLeaveTheWindow() {
+        for (int i = 0; i < 4; i++) {
+            breaker.requestComplete(false, FAST);
+        }
+        for (int i = 0; i < 10; i++) {
+            breaker.requestComplete(true, FAST);
+        }
+        assertThat(breaker.getFailureRate()).isEqualTo(0);
+        for (int i = 0; i < 4; i++) {
+            breaker.requestComplete(false, FAST);
+        }
+        assertThat(breaker.getFailureRate()).isEqualTo(40);
+        assertThat(breaker.getState()).isEqualTo(PRIMARY_HEALTHY);
+        breaker.requestComplete(false, FAST);
+        assertThat(breaker.getState()).isEqualTo(PRIMARY_TRIPPED);
+    }
+
+    @Test
+    public void slowCallsTrip() {
+        for (int i = 0; i < 7; i++) {
+            breaker.requestComplete(true, SLOW);
+        }
+        for (int i = 0; i < 2; i++) {
+            breaker.requestComplete(true, FAST);
+        }
+        assertThat(breaker.getState()).isEqualTo(PRIMARY_HEALTHY);
+        breaker.requestComplete(true, SLOW);
+        assertThat(breaker.getState()).isEqualTo(PRIMARY_TRIPPED);
+    }
+
+    @Test
+    public void probeDecidesRecovery() {
+        Runnable reopen = trip();
+        assertThat(breaker.canServeRequests(false)).isFalse();
+        reopen.run();
+        assertThat(breaker.getState()).isEqualTo(PRIMARY_PROBE);
+        assertThat(breaker.canServeRequests(false)).isTrue();
+        assertThat(breaker.canServeRequests(true)).isFalse();
+
+        breaker.requestComplete(false, FAST);
+        assertThat(breaker.getState()).isEqualTo(PRIMARY_TRIPPED);
+
+        latestReopen().run();
+        breaker.requestComplete(true, FAST);
+        assertThat(breaker.getState()).isEqualTo(PRIMARY_HEALTHY);
+        assertThat(breaker.getFailureRate()).isEqualTo(0);
+    }
+
+    @Test
+    public void staleTimerIsIgnored() {
+        Runnable reopen = trip();
+        breaker.setState(PRIMARY_HEALTHY);
+        reopen.run();
+        assertThat(breaker.getState()).isEqualTo(PRIMARY_HEALTHY);
+    }
+
+    private Runnable trip() {
+        for (int i = 0; i < 5; i++) {
+            breaker.requestComplete(false, FAST);
+        }
+        return latestReopen();
+    }
+
+    private Runnable latestReopen() {
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(timer, atLeastOnce()).schedule(captor.capture(), eq(15L), eq(TimeUnit.SECONDS));
+        return captor.getValue();
+    }
+
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2016-2017 Sixt GmbH & Co. Autovermietung KG
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may 
+ * not use this file except in compliance with the License. You may obtain a 
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package com.sixt.service.framework.rpc.balancing;
+
+import com.sixt.service.framework.rpc.CircuitBreakerState;
+import com.sixt.service.framework.rpc.ServiceDependencyHealthCheck;
+import com.sixt.service.framework.rpc.ServiceEndpoint;
+import com.sixt.service.framework.rpc.ServiceEndpointList;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class LoadBalancingStrategyTest {
+
+    private ServiceDependencyHealthCheck dependencyHealthCheck = mock(ServiceDependencyHealthCheck.class);
+
+    @Test
+    public void strategiesByName() {
+        assertThat(LoadBalancingStrategy.forName("power_of_two_choices"))
+                .isInstanceOf(PowerOfTwoChoicesStrategy.class);
+        assertThat(LoadBalancingStrategy.forName("least_outstanding_requests"))
+                .isInstanceOf(LeastOutstandingRequestsStrategy.class);
+        assertThat(LoadBalancingStrategy.forName("latency_weighted"))
+                .isInstanceOf(LatencyWeightedStrategy.class);
+        assertThat(LoadBalancingStrategy.forName("round_robin")).isInstanceOf(RoundRobinStrategy.class);
+        assertThat(LoadBalancingStrategy.forName("nonsense")).isInstanceOf(RoundRobinStrategy.class);
+    }
+
+    @Test
+    public void powerOfTwoChoicesPrefersLessLoaded() {
+        ServiceEndpointList list = new ServiceEndpointList(new PowerOfTwoChoicesStrategy());
+        ServiceEndpoint busy = endpoint("1.1.1.1:80");
+        ServiceEndpoint idle = endpoint("1.1.1.2:80");
+        list.add(busy);
+        list.add(idle);
+        for (int i = 0; i < 10; i++) {
+            busy.incrementServingRequests();
+        }
+        //with two endpoints, both are always compared
+        for (int i = 0; i < 10; i++) {
+            assertThat(list.nextAvailable()).isEqualTo(idle);
+        }
+        assertThat(list.nextAvailable()).isIn(busy, idle);
+    }
+
+    @Test
+    public void powerOfTwoChoicesSkipsTrippedEndpoints() {
+        ServiceEndpointList list = new ServiceEndpointList(new PowerOfTwoChoicesStrategy());
+        ServiceEndpoint tripped1 = endpoint("1.1.1.1:80");
+        ServiceEndpoint tripped2 = endpoint("1.1.1.2:80");
+        ServiceEndpoint healthy = endpoint("1.1.1.3:80");
+        tripped1.setCircuitBreakerState(CircuitBreakerState.State.PRIMARY_TRIPPED);
+        tripped2.setCircuitBreakerState(CircuitBreakerState.State.PRIMARY_TRIPPED);
+        list.add(tripped1);
+        list.add(tripped2);
+        list.add(healthy);
+        for (int i = 0; i < 20; i++) {
+            assertThat(list.nextAvailable()).isEqualTo(healthy);
+        }
+    }
+
+    @Test
+    public void leastOutstandingRequests() {
+        ServiceEndpointList list = new ServiceEndpointList(new LeastOutstandingRequestsStrategy());
+        ServiceEndpoint ep1 = endpoint("1.1.1.1:80");
+        ServiceEndpoint ep2 = endpoint("1.1.1.2:80");
+        ServiceEndpoint ep3 = endpoint("1.1.1.3:80");
+        list.add(ep1);
+        list.add(ep2);
+        list.add(ep3);
+        ep1.incrementServingRequests();
+        ep1.incrementServingRequests();
+        ep2.incrementServingRequests();
+        assertThat(list.nextAvailable()).isEqualTo(ep3);
+        assertThat(list.nextAvailable()).isIn(ep2, ep3);
+        ep3.setCircuitBreakerState(CircuitBreakerState.State.PRIMARY_TRIPPED);
+        ep2.setCircuitBreakerState(CircuitBreakerState.State.PRIMARY_TRIPPED);
+        assertThat(list.nextAvailable()).isEqualTo(ep1);
+        ep1.setCircuitBreakerState(CircuitBreakerState.State.PRIMARY_TRIPPED);
+        assertThat(list.nextAvailable()).isNull();
+    }
+
+    @Test
+    public void latencyWeightedPrefersFastEndpoints() {
+        ServiceEndpointList list = new ServiceEndpointList(new LatencyWeightedStrategy());
+        ServiceEndpoint fast = endpoint("1.1.1.1:80");
+        ServiceEndpoint slow = endpoint("1.1.1.2:80");
+        list.add(fast);
+        list.add(slow);
+        fast.getStatistics().record(1_000_000, true);
+        slow.getStatistics().record(50_000_000, true);
+        int fastCount = 0;
+        for (int i = 0; i < 1000; i++) {
+            ServiceEndpoint selected = list.nextAvailable();
+            selected.requestCancelled();
+            if (selected == fast) {
+                fastCount++;
+            }
+        }
+        assertThat(fastCount).isGreaterThan(900);
+    }
+
+    private ServiceEndpoint endpoint(String hostAndPort) {
+        return new ServiceEndpoint(null, hostAndPort, "dc1", dependencyHealthCheck);
+    }
+
+}